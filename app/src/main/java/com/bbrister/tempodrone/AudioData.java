@@ -7,7 +7,11 @@ import java.util.Stack;
  * size limit. */
 public class AudioData {
 
-    private static Stack<float[]> stack;
+    // Holds float[] or short[] recordings
+    private static Stack<Object> stack;
+
+    // The clicks to play over the recordings, or null for none
+    private static ClickTrack clickTrack;
 
     static {
         stack = new Stack<>();
@@ -21,9 +25,30 @@ public class AudioData {
     }
 
     /**
-     * Retrieve data from the stack.
+     * Push new 16 bit PCM data onto the stack.
      */
-    public static synchronized float[] popData() {
+    public static synchronized void pushData(final short[] data) {
+        stack.push(data);
+    }
+
+    /**
+     * Retrieve data from the stack. This is either a float[] or a short[].
+     */
+    public static synchronized Object popData() {
         return stack.pop();
     }
+
+    /**
+     * Set the clicks to play over the recordings, or null to play none.
+     */
+    public static synchronized void setClickTrack(final ClickTrack clicks) {
+        clickTrack = clicks;
+    }
+
+    /**
+     * Retrieve the clicks to play over the recordings, or null if there are none.
+     */
+    public static synchronized ClickTrack getClickTrack() {
+        return clickTrack;
+    }
 }
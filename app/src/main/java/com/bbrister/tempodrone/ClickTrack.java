@@ -0,0 +1,148 @@
+package com.bbrister.tempodrone;
+
+import android.content.Context;
+
+import com.bbrister.mididriver.PlaybackDriver;
+import com.bbrister.mididriver.RenderSettings;
+import com.google.android.play.core.splitinstall.SplitInstallManagerFactory;
+
+/**
+ * The metronome clicks played over the drone, from the metronome soundfont. Each click is rendered
+ * once and cached. Playback starts one on every beat of the drone, so changing the tempo needs no
+ * new render.
+ */
+public class ClickTrack {
+
+    // Constants
+    final static String soundfontPath = "metronomes.sf2";
+    final static String moduleName = "metronomesounds";
+    final private static int preferredKey = 60; // Middle C, or the nearest key the preset has
+    final private static double clickVelocity = 0.6;
+    final private static double accentVelocity = 1.0;
+    final private static long noteDurationMs = 50;
+    final private static long recordDurationMs = 250;
+    final private static int noReverb = 0;
+    final private static float gain = 0.5f;
+
+    // The rendered clicks, either float[] or short[]. Null until rendered. The accent is written
+    // first, so it is ready whenever the click is.
+    private volatile Object click;
+    private Object accent;
+
+    // Beats from one accent to the next
+    private int beatsPerBar;
+
+    /**
+     * Tell whether the metronome sounds are installed.
+     */
+    public static boolean isAvailable(Context context) {
+        return SplitInstallManagerFactory.create(context).getInstalledModules()
+                .contains(moduleName);
+    }
+
+    /**
+     * Render the clicks with the first preset of the metronome soundfont, unless they're cached.
+     * The metronome soundfont is parsed without the lock, then selected alongside the drone's
+     * soundfont for the render, holding synthLock. The drone's soundfont and program are restored
+     * afterwards, and stay loaded. This parses a file, so call it on a background thread. Returns
+     * false if the metronome sounds are unavailable or fail to load.
+     */
+    public boolean render(Context context, MidiDriverHelper midi, Object synthLock) {
+
+        // Use the cached clicks
+        if (isRendered())
+            return true;
+
+        // Find the preset, and a key which sounds
+        if (!isAvailable(context))
+            return false;
+        final SoundfontIndex index = SoundfontIndex.read(context, soundfontPath);
+        if (index == null || index.presets.isEmpty())
+            return false;
+        final SoundfontIndex.Preset preset = index.presets.get(0);
+        final byte key = findKey(preset.keyRange);
+        if (key < 0)
+            return false;
+
+        // Parse the metronome sounds, leaving any soundfont load in progress alone
+        final long soundfont = midi.prepareOtherSounds(context, soundfontPath);
+        if (soundfont == 0)
+            return false;
+
+        // Render with the metronome sounds, then switch back to the drone
+        try {
+            synchronized (synthLock) {
+                midi.selectPreparedSounds(soundfont, (byte) preset.program);
+                try {
+                    accent = renderClick(midi, key, accentVelocity);
+                    click = renderClick(midi, key, clickVelocity);
+                } finally {
+                    midi.restoreSounds(soundfont);
+                }
+            }
+        } finally {
+            midi.discardSounds(soundfont);
+        }
+
+        return true;
+    }
+
+    /**
+     * Tell whether the clicks are rendered, so start() can play them.
+     */
+    public boolean isRendered() {
+        return click != null;
+    }
+
+    /**
+     * Set the number of beats from one accent to the next, or 0 for no accents. This applies the
+     * next time the clicks start.
+     */
+    public void setBeatsPerBar(final int beatsPerBar) {
+        this.beatsPerBar = beatsPerBar;
+    }
+
+    /**
+     * Start clicking over the sound which is playing, from the next beat on. The clicks must be
+     * rendered.
+     */
+    public void start(PlaybackDriver driver) {
+        if (click instanceof short[]) {
+            driver.setClickTrack((short[]) click, (short[]) accent, beatsPerBar, gain);
+        } else {
+            driver.setClickTrack((float[]) click, (float[]) accent, beatsPerBar, gain);
+        }
+    }
+
+    // Find the key nearest the preferred one which the preset has. Returns -1 if there is none.
+    private static byte findKey(final boolean[] keyRange) {
+        for (int distance = 0; distance <= MidiDriverHelper.keyMax; distance++) {
+            final int below = preferredKey - distance;
+            final int above = preferredKey + distance;
+            if (below >= 0 && keyRange[below])
+                return (byte) below;
+            if (above <= MidiDriverHelper.keyMax && keyRange[above])
+                return (byte) above;
+        }
+
+        return -1;
+    }
+
+    // Render a single click, in the synth's native format
+    private static Object renderClick(MidiDriverHelper midi, final byte key,
+                                      final double velocity) {
+
+        RenderSettings settings = new RenderSettings();
+        settings.pitchArray = new byte[] {key};
+        settings.velocity = MidiDriverHelper.encodeVelocity(velocity);
+        settings.noteDurationMs = noteDurationMs;
+        settings.recordDurationMs = recordDurationMs;
+        settings.reverbPreset = noReverb;
+        settings.volumeBoost = false;
+
+        if (midi.isFixedPoint()) {
+            return midi.renderNotesPcm16(settings);
+        }
+        return midi.renderNotes(settings);
+    }
+}
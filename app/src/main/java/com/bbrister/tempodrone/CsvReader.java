@@ -40,7 +40,7 @@ public class CsvReader {
     // Method to handle reading the instrument CSV file. Returns the results in a list.
     protected List<String[]> read(int resourceId) {
         try {
-            return readCsvHelper(resourceId);
+            return readCsvHelper(resources.openRawResource(resourceId));
         } catch (IOException ie) {
             ie.printStackTrace();
             throw BuildConfig.DEBUG_EXCEPTIONS ? new DebugException("Failed to read the CSV file!") :
@@ -48,12 +48,16 @@ public class CsvReader {
         }
     }
 
+    // Like the latter, but reads from a stream, e.g. an asset. The caller closes the stream.
+    protected static List<String[]> read(InputStream inputStream) throws IOException {
+        return readCsvHelper(inputStream);
+    }
+
     // Does the work of readCsv, wrapped to catch exceptions
-    private List<String[]> readCsvHelper(int resourceId) throws IOException  {
+    private static List<String[]> readCsvHelper(InputStream inputStream) throws IOException  {
 
         List<String[]> parsedLines = new ArrayList<>();
 
-        InputStream inputStream = resources.openRawResource(resourceId);
         BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
 
         String line;
@@ -1,17 +1,24 @@
 package com.bbrister.tempodrone;
 
+import android.app.ActivityManager;
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.Binder;
+import android.os.Looper;
 
 import com.bbrister.mididriver.PlaybackDriver;
+import com.bbrister.mididriver.ProgramList;
 import com.bbrister.tempodrone.preferences.BytePreference;
 import com.bbrister.tempodrone.preferences.StringPreference;
 
 import java.util.Map;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 // Responsible for playing sound through the MIDI driver //
 public class DroneService extends Service {
@@ -23,6 +30,12 @@ public class DroneService extends Service {
     Map<Integer, UpdateListener> updateListeners; // Store the registered listeners
     int nextListenerHandle; // Return a handle to deactivate them
 
+    // Callback interface for loading soundfonts. Called on the main thread.
+    public interface LoadListener {
+        void onLoadProgress(long bytesParsed, long bytesTotal);
+        void onLoadFinished(boolean success);
+    }
+
     // Public constants
     final public static String programKey = "last_program_number";
     final public static int programMax = 127;
@@ -31,13 +44,27 @@ public class DroneService extends Service {
     // Private constants
     final private static String soundfontNameKey = "soundfont";
     final private static String defaultSoundfont = "";
+    final private static long loadProgressIntervalMs = 500;
+    final private static long bytesPerMb = 1 << 20;
+    final private static int soundCacheShare = 4; // Fraction of the memory class for soundfonts
 
     // State
     private boolean isPlaying;
 
+    // Soundfonts are parsed on a background thread, then committed on the main thread. Starting a
+    // load increments the generation, which supersedes any load in progress.
+    private ExecutorService loadExecutor;
+    private Handler mainHandler;
+    private volatile int loadGeneration;
+
     // Sound parameters
     private SoundSettings settings;
     private StringPreference soundfontName;
+    private SoundfontIndex soundfontIndex; // Index of the current soundfont, or null if it has none
+
+    // Metronome clicks, rendered on first use on the loader thread
+    private ClickTrack clickTrack;
+    private boolean renderingClicks;
 
     // Create midi driver
     private MidiDriverHelper midi;
@@ -56,6 +83,11 @@ public class DroneService extends Service {
         // Initialize the sound driver
         midi = new MidiDriverHelper();
 
+        // Initialize the soundfont loader
+        loadExecutor = Executors.newSingleThreadExecutor();
+        mainHandler = new Handler(Looper.getMainLooper());
+        loadGeneration = 0;
+
         // Initialize the sound parameters
         settings = new SoundSettings(this, midi.getMaxVoices(), midi.getNumReverbPresets()) {
             @Override
@@ -66,29 +98,45 @@ public class DroneService extends Service {
 
         // Initialize the soundfont
         soundfontName = new StringPreference(this, soundfontNameKey, defaultSoundfont);
+        clickTrack = new ClickTrack();
+        renderingClicks = false;
 
         // Start the midi synth
         midi.start(this.getApplicationContext());
 
+        // Keep recently used soundfonts loaded, within a share of the app's memory class
+        final ActivityManager activityManager =
+                (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+        midi.setSoundCacheBudget(activityManager.getMemoryClass() * bytesPerMb / soundCacheShare);
+
         // Query whether sound is already playing, e.g. the app is restarted
         isPlaying = (new PlaybackDriver()).isPlaying();
     }
 
+    @Override
+    public void onDestroy() {
+        // Abandon any soundfont being loaded
+        cancelLoad();
+        loadExecutor.shutdown();
+
+        super.onDestroy();
+    }
+
     // Interface for drone activities
     public class DroneBinder extends Binder {
         boolean isPlaying() { return isPlaying; }
-        synchronized void loadSounds(final String filename) {
-            DroneService.this.loadSounds(filename);
+        void loadSoundsAsync(final String filename, final LoadListener listener) {
+            DroneService.this.loadSoundsAsync(filename, listener);
         }
+        void cancelLoad() { DroneService.this.cancelLoad(); }
         boolean haveSoundfont() {return !getSoundfont().isEmpty(); }
         String getSoundfont() {
             return soundfontName.read();
         }
         synchronized void playPause() { DroneService.this.playPause(); }
-        boolean queryProgram(int instrument) { return midi.queryProgram((byte) instrument); }
-        String getProgramName(int instrument) { return midi.getProgramName((byte) instrument); }
+        synchronized ProgramList listPrograms() { return midi.listPrograms(); }
         synchronized void changeProgram(int instrument) { DroneService.this.changeProgram(instrument); }
-        int getProgram() { return midi.getProgram(); }
+        synchronized int getProgram() { return midi.getProgram(); }
         synchronized int addNote() { return settings.addNote(); }
         synchronized void deleteNote(int handle) { settings.deleteNote(handle); }
         boolean notesFull() { return settings.isFull(); }
@@ -104,6 +152,10 @@ public class DroneService extends Service {
         int getNumReverbPresets() { return midi.getNumReverbPresets(); }
         int getReverbPreset() { return settings.getReverbPreset(); }
         boolean getVolumeBoost() { return settings.getVolumeBoost(); }
+        boolean haveClickSounds() { return ClickTrack.isAvailable(DroneService.this); }
+        boolean getClickTrack() { return settings.getClickTrack(); }
+        int getBeatsPerBar() { return settings.getBeatsPerBar(); }
+        boolean getLowLatency() { return settings.getLowLatency(); }
         int registerListener(UpdateListener listener) {
             return DroneService.this.registerListener(listener);
         }
@@ -121,6 +173,18 @@ public class DroneService extends Service {
             settings.setOctave(handle, octave);
         }
         synchronized void setVolumeBoost(boolean boostVolume) { settings.setVolumeBoost(boostVolume); }
+        synchronized void setClickTrack(boolean clickTrack) {
+            settings.setClickTrack(clickTrack);
+            switchClicks();
+        }
+        synchronized void setBeatsPerBar(int beats) {
+            settings.setBeatsPerBar(beats);
+            switchClicks();
+        }
+        synchronized void setLowLatency(boolean lowLatency) {
+            settings.setLowLatency(lowLatency);
+            switchProfile();
+        }
     }
 
     @Override
@@ -147,11 +211,106 @@ public class DroneService extends Service {
         }
     }
 
-    // Load the sounds and remember the soundfont name
-    private void loadSounds(final String soundfontName) {
-        this.soundfontName.write(soundfontName);
-        midi.loadSounds(getApplicationContext(), soundfontName);
-        storeProgram(); // In case this is changed when loading a soundfont
+    /* Load the sounds on a background thread and remember the soundfont name. The current sounds keep playing until the new ones
+     * are ready. This cancels any load in progress, whose listener is then never called. Must be
+     * called on the main thread. */
+    private void loadSoundsAsync(final String soundfontName, final LoadListener listener) {
+
+        // Supersede any load in progress
+        cancelLoad();
+        final int generation = loadGeneration;
+        final Context context = getApplicationContext();
+
+        // Switch right away if the soundfont is still loaded from earlier
+        final boolean isCached;
+        synchronized (droneBinder) {
+            isCached = midi.selectCachedSounds(soundfontName);
+        }
+        if (isCached) {
+            finishSwitchSounds(soundfontName, listener);
+            return;
+        }
+
+        // Report the progress periodically, until the load finishes
+        final Runnable progressReporter = new Runnable() {
+            @Override
+            public void run() {
+                if (generation != loadGeneration)
+                    return;
+
+                final long[] progress = midi.getLoadProgress();
+                listener.onLoadProgress(progress[0], progress[1]);
+                mainHandler.postDelayed(this, loadProgressIntervalMs);
+            }
+        };
+        mainHandler.postDelayed(progressReporter, loadProgressIntervalMs);
+
+        // Parse the soundfont in the background, then commit it on the main thread
+        loadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Skip the parsing if this load was superseded while queued
+                final long soundfont = generation == loadGeneration ?
+                        midi.prepareSounds(context, soundfontName) : 0;
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mainHandler.removeCallbacks(progressReporter);
+                        finishLoadSounds(generation, soundfontName, soundfont, listener);
+                    }
+                });
+            }
+        });
+    }
+
+    // Commit a soundfont parsed by loadSoundsAsync(), unless its load was superseded
+    private void finishLoadSounds(final int generation, final String soundfontName,
+                                  final long soundfont, final LoadListener listener) {
+
+        // Drop the soundfont if another load has started since
+        if (generation != loadGeneration) {
+            midi.discardSounds(soundfont);
+            return;
+        }
+
+        // Check for errors
+        if (soundfont == 0) {
+            listener.onLoadFinished(false);
+            return;
+        }
+
+        // Swap in the new sounds
+        synchronized (droneBinder) {
+            midi.commitSounds(soundfont);
+        }
+        finishSwitchSounds(soundfontName, listener);
+    }
+
+    /* Remember the soundfont the synth switched to, then play it. Reloading the current soundfont,
+     * e.g. when the activity is recreated, leaves the drone playing as it is. */
+    private void finishSwitchSounds(final String soundfontName, final LoadListener listener) {
+        final boolean isNewSoundfont;
+        synchronized (droneBinder) {
+            isNewSoundfont = !soundfontName.equals(this.soundfontName.read());
+            this.soundfontName.write(soundfontName);
+            soundfontIndex = SoundfontIndex.read(this, soundfontName);
+            storeProgram(); // In case this is changed when loading a soundfont
+        }
+        listener.onLoadFinished(true);
+
+        // Play the new sounds
+        if (isNewSoundfont) {
+            updateSound();
+        } else {
+            callListeners();
+        }
+    }
+
+    // Cancel the asynchronous load in progress, if any
+    private void cancelLoad() {
+        loadGeneration++;
+        midi.cancelLoad();
     }
 
     // Save the program number for future use
@@ -162,22 +321,32 @@ public class DroneService extends Service {
 
     // Change the MIDI program
     private void changeProgram(final int instrument) {
+        /* Check the program against the index of the soundfont, if it has one, before touching the
+         * synth. The index also has the key range, so the synth needn't scan the preset for it. */
+        final SoundfontIndex.Preset preset = soundfontIndex == null ? null :
+                soundfontIndex.getPreset(instrument);
+        if (soundfontIndex != null && preset == null)
+            throw BuildConfig.DEBUG_EXCEPTIONS ? new DebugException(String.format(
+                    "Program %d is not in the soundfont %s", instrument, soundfontName.read())) :
+                    new DefaultException();
+
         // Get the currently running program
         final int currentProgram = midi.getProgram();
 
-        // If this is a new program, pause the sound to avoid double-updates when rounding the key
-        final boolean pauseSound = isPlaying && (instrument != currentProgram);
-        if (pauseSound) {
-            pause();
+        /* If this is a new program, hold off updating the sound until the key is rounded, to avoid
+         * double-updates. The sound keeps playing meanwhile. */
+        final boolean switchSound = isPlaying && (instrument != currentProgram);
+        if (switchSound) {
+            isPlaying = false;
         }
 
         // Change the program and set the key range
         midi.changeProgram((byte) instrument);
-        settings.setKeyRange(midi.getKeyRange());
+        settings.setKeyRange(preset != null ? preset.keyRange : midi.getKeyRange());
 
-        // Play the sound if it's been paused
-        if (pauseSound) {
-            play();
+        // Switch to the new instrument right away, keeping the beat
+        if (switchSound) {
+            play(true);
         }
 
         // Store the program number for future use
@@ -198,28 +367,92 @@ public class DroneService extends Service {
         callListeners();
     }
 
-    // Start playing the sound, according to the current settings
+    // Start playing the sound, according to the current settings. If already playing, the new
+    // sound takes over on the next beat.
     private void play() {
+        play(false);
+    }
 
-        // Reset the state, cancelling existing playback
-        pause();
+    // Start playing the sound, replacing the current one immediately or on the next beat
+    private void play(final boolean immediate) {
 
-        // Do nothing in the absence of notes to play
+        // Stop playing in the absence of notes to play
         final int numNotes = settings.getNumNotes();
-        if (numNotes < 1)
+        if (numNotes < 1) {
+            pause();
             return;
+        }
 
-        // Render the sound
-        float[] sound = midi.renderNotes(settings.getRenderSettings());
+        // Render the sound and save it to the singleton class. Fixed point builds render straight
+        // to 16 bit PCM. The lock keeps the clicks from borrowing the synth meanwhile.
+        synchronized (droneBinder) {
+            if (midi.isFixedPoint()) {
+                AudioData.pushData(midi.renderNotesPcm16(settings.getRenderSettings()));
+            } else {
+                AudioData.pushData(midi.renderNotes(settings.getRenderSettings()));
+            }
+        }
 
-        // Save the sound to the singleton class
-        AudioData.pushData(sound);
+        // Hand over the clicks, which start with the sound
+        updateClicks();
 
-        // Launch a new playback service
-        startService(PlaybackService.getStartIntent(this));
+        /* Launch the playback service. If it's already running, it switches to the new sound
+         * without restarting the audio output. */
+        startService(PlaybackService.getStartIntent(this, immediate));
         isPlaying = true;
     }
 
+    /* Save the clicks to the singleton class if they're on, rendering them first if needed. They
+     * play over the drone without rendering it again, so the tempo changes without new clicks. */
+    private void updateClicks() {
+        final boolean clicksOn = settings.getClickTrack() && clickTrack.isRendered();
+        if (settings.getClickTrack() && !clicksOn)
+            renderClicksAsync();
+        clickTrack.setBeatsPerBar(settings.getBeatsPerBar());
+        AudioData.setClickTrack(clicksOn ? clickTrack : null);
+    }
+
+    /* Render the clicks on the loader thread, then switch them on from the main thread. The
+     * metronome soundfont is parsed there too, so the main thread never waits for a file, and the
+     * drone's soundfont stays loaded. Must be called on the main thread. */
+    private void renderClicksAsync() {
+
+        // Render once at a time, and only to play over a drone
+        if (renderingClicks || soundfontName.read().isEmpty())
+            return;
+        renderingClicks = true;
+
+        final Context context = getApplicationContext();
+        loadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                clickTrack.render(context, midi, droneBinder);
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        renderingClicks = false;
+                        if (clickTrack.isRendered())
+                            switchClicks();
+                    }
+                });
+            }
+        });
+    }
+
+    // Switch the clicks over the drone, on the next beat if playing
+    private void switchClicks() {
+        updateClicks();
+        if (isPlaying)
+            startService(PlaybackService.getClickIntent(this));
+    }
+
+    // Apply the latency setting to the audio output, if playing. Otherwise the next play does.
+    private void switchProfile() {
+        if (isPlaying)
+            startService(PlaybackService.getProfileIntent(this));
+    }
+
     // Pause playing
     private void pause() {
         // Stop playing
@@ -20,10 +20,12 @@ import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.bbrister.mididriver.ProgramList;
 import com.bbrister.tempodrone.preferences.BooleanPreference;
 import com.bbrister.tempodrone.preferences.BytePreference;
 import com.bbrister.tempodrone.preferences.ReadOnlyPreference;
 import com.google.android.flexbox.FlexboxLayout;
+import com.google.android.play.core.splitinstall.SplitInstallManagerFactory;
 
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -46,6 +48,8 @@ public class MainActivity extends DroneActivity {
 
     // State
     private boolean uiReady;
+    private Toast loadProgressToast; // Reused, so progress updates don't queue up
+    private ModulePrefetcher modulePrefetcher; // Null in instant mode, or before the UI is set up
 
     /**
      * Helper method to initialize a BooleanPreference obejct for DisplaySharps.
@@ -144,29 +148,78 @@ public class MainActivity extends DroneActivity {
                 final byte previousProgram = new BytePreference(getApplicationContext(),
                         DroneService.programKey, DroneService.defaultProgram).read();
 
-                // Load the soundfont in the MIDI
-                droneBinder.loadSounds(startupSoundfont.path);
-
-                // Try to change to the last-used program number. Otherwise do nothing
-                if (previousProgram >= 0) {
-                    try {
-                        droneBinder.changeProgram(previousProgram);
-                    } catch (RuntimeException e) {
-                        // In debug mode, pass this exception along
-                        if (BuildConfig.DEBUG_EXCEPTIONS) {
-                            throw e;
+                // Load the soundfont in the MIDI, then set up the UI
+                droneBinder.loadSoundsAsync(startupSoundfont.path,
+                        new SoundfontLoadListener(startupSoundfont) {
+                    @Override
+                    public void onLoadFinished(boolean success) {
+                        super.onLoadFinished(success);
+
+                        // Try to change to the last-used program number. Otherwise do nothing
+                        if (previousProgram >= 0) {
+                            try {
+                                droneBinder.changeProgram(previousProgram);
+                            } catch (RuntimeException e) {
+                                // In debug mode, pass this exception along
+                                if (BuildConfig.DEBUG_EXCEPTIONS) {
+                                    throw e;
+                                }
+
+                                // In production mode, do nothing
+                            }
                         }
 
-                        // In production mode, do nothing
+                        // Populate UI elements using information from the drone service
+                        setupUI(soundfonts);
                     }
-                }
-
-                // Populate UI elements using information from the drone service
-                setupUI(soundfonts);
+                });
             }
         });
     }
 
+    /**
+     * Reports the progress of loading a soundfont in the drone service.
+     */
+    private class SoundfontLoadListener implements DroneService.LoadListener {
+
+        final private Soundfont soundfont;
+
+        SoundfontLoadListener(final Soundfont soundfont) {
+            this.soundfont = soundfont;
+        }
+
+        @Override
+        public void onLoadProgress(long bytesParsed, long bytesTotal) {
+            // Wait until the size is known
+            if (bytesTotal <= 0)
+                return;
+
+            final String msg = String.format(getString(R.string.load_progress),
+                    soundfont.displayName, (int) (100 * bytesParsed / bytesTotal));
+            if (loadProgressToast == null) {
+                loadProgressToast = Toast.makeText(MainActivity.this, msg, Toast.LENGTH_SHORT);
+            } else {
+                loadProgressToast.setText(msg);
+            }
+            loadProgressToast.show();
+        }
+
+        @Override
+        public void onLoadFinished(boolean success) {
+            // Take down the progress message
+            if (loadProgressToast != null) {
+                loadProgressToast.cancel();
+                loadProgressToast = null;
+            }
+
+            // Handle loading errors
+            if (!success) {
+                throw BuildConfig.DEBUG_EXCEPTIONS ? new DebugException("Failed to load " +
+                        "soundfont " + soundfont.path) : new DefaultException();
+            }
+        }
+    }
+
     // Update the UI when drone parameters are changed by the parent class
     @Override
     protected void onDroneChanged() {
@@ -200,6 +253,11 @@ public class MainActivity extends DroneActivity {
                     getString(R.string.premium_prompt_full)
             );
         }
+
+        // Premium sounds can be prefetched once purchased
+        if (modulePrefetcher != null) {
+            modulePrefetcher.setPremium(isPurchased);
+        }
     }
 
     /**
@@ -441,6 +499,14 @@ public class MainActivity extends DroneActivity {
             }
         });
 
+        // Install the sounds the user is likely to pick next in the background
+        if (!instantMode) {
+            modulePrefetcher = new ModulePrefetcher(this, SplitInstallManagerFactory.create(this),
+                    soundfonts);
+            modulePrefetcher.setPremium(havePremium());
+            modulePrefetcher.start();
+        }
+
         // Update all the UI elements, to retrieve values set by other activities
         uiReady = true;
         updateUI();
@@ -467,6 +533,11 @@ public class MainActivity extends DroneActivity {
             return false;
         }
 
+        // Record the selection, to predict the next one
+        if (modulePrefetcher != null) {
+            modulePrefetcher.recordSelection(soundfont.moduleName);
+        }
+
         // Check if this is installed
         if (!soundfont.isInstalled()) {
                 // Allow the user to start installation. Do not set the new soundfont.
@@ -484,9 +555,11 @@ public class MainActivity extends DroneActivity {
      */
     private void loadSoundfont(final Soundfont soundfont, final Spinner instrumentSpinner) {
 
-        // Check if this is the same soundfont as before
-        if (soundfont.path.equals(droneBinder.getSoundfont()))
+        // Check if this is the same soundfont as before. Cancel any other one still loading.
+        if (soundfont.path.equals(droneBinder.getSoundfont())) {
+            droneBinder.cancelLoad();
             return;
+        }
 
         // Create the installation listener and install
         soundfont.request(new DynamicModule.InstallListener() {
@@ -511,28 +584,43 @@ public class MainActivity extends DroneActivity {
     /**
      * Load the given soundfont in the synth and update instrument choices.
      */
-    private void finishLoadSoundfont(Soundfont soundfont, Spinner instrumentSpinner) {
-        // Load the sounds in the synth
-        droneBinder.loadSounds(soundfont.path);
+    private void finishLoadSoundfont(final Soundfont soundfont, final Spinner instrumentSpinner) {
+        // Load the sounds in the synth. The current sounds play in the meantime.
+        droneBinder.loadSoundsAsync(soundfont.path, new SoundfontLoadListener(soundfont) {
+            @Override
+            public void onLoadFinished(boolean success) {
+                super.onLoadFinished(success);
 
-        // Update the instruments. Don't rely on the spinner to do it, this is unreliable
-        updateInstrumentSelection(instrumentSpinner,
-                (InstrumentIconAdapter) instrumentSpinner.getAdapter());
+                // Update the instruments. Don't rely on the spinner to do it, this is unreliable
+                updateInstrumentSelection(instrumentSpinner,
+                        (InstrumentIconAdapter) instrumentSpinner.getAdapter());
+            }
+        });
     }
 
     // Update the list of instrument choices
     private void updateInstrumentChoices(ArrayAdapter<NameValPair<Integer>> adapter) {
 
-        // List the instruments in the currently loaded soundfont
+        // List the instruments in the currently loaded soundfont. Use its index if there is one,
+        // otherwise ask the synth.
         List<NameValPair<Integer>> instruments = new ArrayList<>();
-        for (int programNum = 0; programNum < DroneService.programMax; programNum++) {
-            if (!droneBinder.queryProgram(programNum))
-                continue;
+        final SoundfontIndex index = SoundfontIndex.read(getApplicationContext(),
+                droneBinder.getSoundfont());
+        if (index != null) {
+            for (SoundfontIndex.Preset preset : index.presets) {
+                if (preset.program >= DroneService.programMax)
+                    continue;
+
+                instruments.add(new NameValPair(preset.name, preset.program));
+            }
+        } else {
+            final ProgramList programs = droneBinder.listPrograms();
+            for (int i = 0; i < programs.size(); i++) {
+                if (programs.programs[i] >= DroneService.programMax)
+                    continue;
 
-            instruments.add(new NameValPair(
-                    droneBinder.getProgramName(programNum),
-                    programNum
-            ));
+                instruments.add(new NameValPair(programs.names[i], (int) programs.programs[i]));
+            }
         }
 
         // We need to have at least one instrument
@@ -684,6 +772,14 @@ public class MainActivity extends DroneActivity {
     protected void onResume() {
         super.onResume();
         if (uiReady) updateUI();
+        if (modulePrefetcher != null) modulePrefetcher.start();
+    }
+
+    // Only prefetch sounds while the user is in the app
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (modulePrefetcher != null) modulePrefetcher.stop();
     }
 
     /**
@@ -0,0 +1,445 @@
+package com.bbrister.tempodrone;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.StatFs;
+
+import com.bbrister.tempodrone.preferences.StringPreference;
+import com.google.android.play.core.splitinstall.SplitInstallManager;
+import com.google.android.play.core.splitinstall.SplitInstallRequest;
+import com.google.android.play.core.splitinstall.SplitInstallSessionState;
+import com.google.android.play.core.splitinstall.SplitInstallStateUpdatedListener;
+import com.google.android.play.core.splitinstall.model.SplitInstallSessionStatus;
+import com.google.android.play.core.tasks.OnFailureListener;
+import com.google.android.play.core.tasks.OnSuccessListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Installs the sound modules which the user is likely to pick next, before they pick them, so a
+ * family switch only costs loading the soundfont. Modules are ranked by the history of family
+ * selections and by their neighbors in sounds_list.csv, and installed one at a time once the app
+ * has been idle for a while on an unmetered network. Prefetched modules which the user has not
+ * selected yet stay within a storage budget. The install manager is passed in, so tests can use a
+ * fake one.
+ */
+public class ModulePrefetcher {
+
+    // Constants
+    final private static long idleDelayMs = 30 * 1000; // Wait this long after the last selection
+    final private static long storageBudgetBytes = 256L << 20; // For modules not selected yet
+    final private static long reserveBytes = 512L << 20; // Free storage to leave on the device
+    final private static int historyLength = 32; // Number of selections to remember
+    final private static double historyDecay = 0.8; // Weight of a selection relative to the next
+    final private static double neighborWeight = 0.25; // Weight of the adjacent families
+    final private static String historyKey = "prefetchHistory";
+    final private static String prefetchedKey = "prefetchedModules";
+    final private static String listSeparator = ",";
+    final private static String sizeSeparator = ":";
+
+    /**
+     * The device state which decides whether to prefetch. Replaceable for testing.
+     */
+    interface Conditions {
+        boolean isUnmetered();
+        long getAvailableBytes();
+    }
+
+    // Configuration
+    final private SplitInstallManager splitInstallManager;
+    final private List<Soundfont> soundfonts;
+    final private Conditions conditions;
+    private boolean premium;
+
+    // Persistent state
+    final private StringPreference history; // Selected modules, most recent first
+    final private StringPreference prefetched; // Prefetched modules not selected yet, with sizes
+
+    // Session state
+    final private Handler handler;
+    final private Set<String> skippedModules; // Failed or over budget, not retried until restart
+    private String activeModule; // Module being prefetched, or null
+    private int activeSessionId; // 0 until the install has started
+    private int prefetchGeneration; // Counts the prefetches, to tell stale ones from the active one
+    private int adoptedGeneration; // Prefetch which became the user's install, or 0
+    private boolean started;
+
+    // Runs when the app has been idle long enough
+    final private Runnable idleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            prefetchNext();
+        }
+    };
+
+    // Follows the install sessions of the prefetched modules
+    final private SplitInstallStateUpdatedListener listener =
+            new SplitInstallStateUpdatedListener() {
+        @Override
+        public void onStateUpdate(SplitInstallSessionState state) {
+            if (activeModule != null && state.moduleNames().contains(activeModule)) {
+                handleInstallStatus(state);
+            }
+        }
+    };
+
+    public ModulePrefetcher(final Context context, final SplitInstallManager splitInstallManager,
+                            final List<Soundfont> soundfonts) {
+        this(context, splitInstallManager, soundfonts, new DeviceConditions(context));
+    }
+
+    public ModulePrefetcher(final Context context, final SplitInstallManager splitInstallManager,
+                            final List<Soundfont> soundfonts, final Conditions conditions) {
+        this.splitInstallManager = splitInstallManager;
+        this.soundfonts = soundfonts;
+        this.conditions = conditions;
+        premium = false;
+        history = new StringPreference(context, historyKey, "");
+        prefetched = new StringPreference(context, prefetchedKey, "");
+        handler = new Handler(Looper.getMainLooper());
+        skippedModules = new HashSet<>();
+        activeModule = null;
+        prefetchGeneration = 0;
+        adoptedGeneration = 0;
+        started = false;
+    }
+
+    /**
+     * Set whether premium modules may be prefetched.
+     */
+    public void setPremium(final boolean premium) {
+        this.premium = premium;
+    }
+
+    /**
+     * Start listening for install updates, and prefetch once the app is idle.
+     */
+    public void start() {
+        if (started)
+            return;
+
+        splitInstallManager.registerListener(listener);
+        started = true;
+        scheduleIdle();
+    }
+
+    /**
+     * Stop prefetching, cancelling the prefetch in progress, if any.
+     */
+    public void stop() {
+        if (!started)
+            return;
+
+        handler.removeCallbacks(idleRunnable);
+        cancelActive();
+        splitInstallManager.unregisterListener(listener);
+        started = false;
+    }
+
+    /**
+     * Record that the user selected a module. This restarts the idle wait, and stops a prefetch
+     * of another module, so it doesn't slow down the selected one.
+     */
+    public void recordSelection(final String moduleName) {
+
+        // Put the module at the front of the history
+        List<String> modules = readList(history);
+        modules.add(0, moduleName);
+        while (modules.size() > historyLength) {
+            modules.remove(modules.size() - 1);
+        }
+        history.write(joinList(modules));
+
+        // The module no longer counts against the prefetch budget
+        Map<String, Long> sizes = readSizes();
+        if (sizes.remove(moduleName) != null) {
+            writeSizes(sizes);
+        }
+
+        // A prefetch of the selected module becomes the user's install
+        if (moduleName.equals(activeModule)) {
+            adoptedGeneration = prefetchGeneration;
+            activeModule = null;
+            activeSessionId = 0;
+        } else {
+            cancelActive();
+        }
+
+        scheduleIdle();
+    }
+
+    /**
+     * Rank the modules which could be prefetched, most likely first.
+     */
+    public List<String> rankModules() {
+
+        final List<String> recent = readList(history);
+        final Map<String, Double> scores = new HashMap<>();
+
+        // Recently and often selected modules
+        double weight = 1.0;
+        for (String module : recent) {
+            addScore(scores, module, weight);
+            weight *= historyDecay;
+        }
+
+        // Modules which the user picked after the current one, in the past
+        if (!recent.isEmpty()) {
+            final String current = recent.get(0);
+            weight = 1.0;
+            for (int i = 1; i < recent.size(); i++) {
+                if (recent.get(i).equals(current)) {
+                    addScore(scores, recent.get(i - 1), weight);
+                }
+                weight *= historyDecay;
+            }
+
+            // The families next to the current one in the list
+            for (int i = 0; i < soundfonts.size(); i++) {
+                if (!soundfonts.get(i).moduleName.equals(current))
+                    continue;
+
+                if (i > 0)
+                    addScore(scores, soundfonts.get(i - 1).moduleName, neighborWeight);
+                if (i < soundfonts.size() - 1)
+                    addScore(scores, soundfonts.get(i + 1).moduleName, neighborWeight);
+            }
+        }
+
+        // Keep the modules which may be prefetched, ordered by score
+        final Set<String> installed = splitInstallManager.getInstalledModules();
+        List<String> ranked = new ArrayList<>();
+        for (Soundfont soundfont : soundfonts) {
+            final String module = soundfont.moduleName;
+            if (soundfont.isInstant() || !(soundfont.isFree || premium) ||
+                    installed.contains(module) || skippedModules.contains(module) ||
+                    !scores.containsKey(module) || ranked.contains(module))
+                continue;
+
+            ranked.add(module);
+        }
+        Collections.sort(ranked, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Double.compare(scores.get(b), scores.get(a));
+            }
+        });
+
+        return ranked;
+    }
+
+    /**
+     * Get the storage taken by prefetched modules which the user has not selected yet.
+     */
+    public long getPrefetchedBytes() {
+        long total = 0;
+        for (long bytes : readSizes().values()) {
+            total += bytes;
+        }
+        return total;
+    }
+
+    // Wait for the app to be idle, then prefetch
+    private void scheduleIdle() {
+        if (!started)
+            return;
+
+        handler.removeCallbacks(idleRunnable);
+        handler.postDelayed(idleRunnable, idleDelayMs);
+    }
+
+    // Start installing the most likely module, if the conditions allow it. Package-private so
+    // tests can run it without waiting for the idle delay.
+    void prefetchNext() {
+
+        if (!started || activeModule != null || !conditions.isUnmetered() ||
+                getPrefetchedBytes() >= storageBudgetBytes)
+            return;
+
+        final List<String> ranked = rankModules();
+        if (ranked.isEmpty())
+            return;
+
+        final String module = ranked.get(0);
+        final int generation = ++prefetchGeneration;
+        activeModule = module;
+        activeSessionId = 0;
+        SplitInstallRequest request = SplitInstallRequest.newBuilder().addModule(module).build();
+        splitInstallManager.startInstall(request)
+                .addOnSuccessListener(new OnSuccessListener<Integer>() {
+                    @Override
+                    public void onSuccess(Integer sessionId) {
+                        if (isActive(generation)) {
+                            activeSessionId = sessionId;
+                            return;
+                        }
+
+                        /* The prefetch was stopped before its session started, so cancel it now,
+                         * or it would keep downloading and could block the user's own install.
+                         * A prefetch of the module the user then selected is their install. */
+                        if (generation != adoptedGeneration) {
+                            splitInstallManager.cancelInstall(sessionId);
+                        }
+                    }
+                })
+                .addOnFailureListener(new OnFailureListener() {
+                    @Override
+                    public void onFailure(Exception e) {
+                        // Another install may be running. Try again when next idle.
+                        if (isActive(generation)) {
+                            activeModule = null;
+                        }
+                    }
+                });
+    }
+
+    // Tell whether the given prefetch is still in progress
+    private boolean isActive(final int generation) {
+        return activeModule != null && generation == prefetchGeneration;
+    }
+
+    // Handle updates of the prefetch session
+    private void handleInstallStatus(final SplitInstallSessionState state) {
+        activeSessionId = state.sessionId();
+        switch (state.status()) {
+            case SplitInstallSessionStatus.DOWNLOADING:
+                // Stop if the module turns out too large for the budget or the device
+                final long bytes = state.totalBytesToDownload();
+                if (getPrefetchedBytes() + bytes > storageBudgetBytes ||
+                        conditions.getAvailableBytes() - bytes < reserveBytes ||
+                        !conditions.isUnmetered()) {
+                    skippedModules.add(activeModule);
+                    cancelActive();
+                }
+                return;
+            case SplitInstallSessionStatus.REQUIRES_USER_CONFIRMATION:
+                // Never prompt the user for a prefetch
+                skippedModules.add(activeModule);
+                cancelActive();
+                return;
+            case SplitInstallSessionStatus.INSTALLED:
+                Map<String, Long> sizes = readSizes();
+                sizes.put(activeModule, state.totalBytesToDownload());
+                writeSizes(sizes);
+                activeModule = null;
+                scheduleIdle();
+                return;
+            case SplitInstallSessionStatus.FAILED:
+                skippedModules.add(activeModule);
+                activeModule = null;
+                return;
+            case SplitInstallSessionStatus.CANCELED:
+                activeModule = null;
+                return;
+            default:
+                // Still in progress
+        }
+    }
+
+    // Cancel the prefetch in progress, if any
+    private void cancelActive() {
+        if (activeModule == null)
+            return;
+
+        if (activeSessionId != 0) {
+            splitInstallManager.cancelInstall(activeSessionId);
+        }
+        activeModule = null;
+        activeSessionId = 0;
+    }
+
+    private static void addScore(Map<String, Double> scores, final String module,
+                                 final double score) {
+        final Double previous = scores.get(module);
+        scores.put(module, previous == null ? score : previous + score);
+    }
+
+    // Parse a list preference
+    private static List<String> readList(final StringPreference preference) {
+        List<String> list = new LinkedList<>();
+        for (String item : preference.read().split(listSeparator)) {
+            if (!item.isEmpty()) {
+                list.add(item);
+            }
+        }
+        return list;
+    }
+
+    private static String joinList(final List<String> list) {
+        StringBuilder builder = new StringBuilder();
+        for (String item : list) {
+            if (builder.length() > 0)
+                builder.append(listSeparator);
+            builder.append(item);
+        }
+        return builder.toString();
+    }
+
+    // Parse the sizes of the prefetched modules
+    private Map<String, Long> readSizes() {
+        Map<String, Long> sizes = new LinkedHashMap<>();
+        for (String item : readList(prefetched)) {
+            final String[] pair = item.split(sizeSeparator);
+            try {
+                sizes.put(pair[0], Long.parseLong(pair[1]));
+            } catch (RuntimeException e) {
+                // Drop entries written by other versions
+            }
+        }
+        return sizes;
+    }
+
+    private void writeSizes(final Map<String, Long> sizes) {
+        List<String> list = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+            list.add(entry.getKey() + sizeSeparator + entry.getValue());
+        }
+        prefetched.write(joinList(list));
+    }
+
+    /**
+     * Reads the network and storage state of the device.
+     */
+    private static class DeviceConditions implements Conditions {
+
+        final private Context context;
+
+        DeviceConditions(final Context context) {
+            this.context = context.getApplicationContext();
+        }
+
+        @Override
+        public boolean isUnmetered() {
+            ConnectivityManager connectivityManager = (ConnectivityManager)
+                    context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            if (connectivityManager == null)
+                return false;
+
+            final NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+            return networkInfo != null && networkInfo.isConnected() &&
+                    !connectivityManager.isActiveNetworkMetered();
+        }
+
+        @Override
+        public long getAvailableBytes() {
+            final StatFs statFs = new StatFs(context.getFilesDir().getPath());
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                return statFs.getAvailableBytes();
+            }
+            return (long) statFs.getAvailableBlocks() * statFs.getBlockSize();
+        }
+    }
+}
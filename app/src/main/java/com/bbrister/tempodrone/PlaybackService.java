@@ -4,10 +4,13 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.Build;
 import android.os.IBinder;
+import android.os.PowerManager;
 
 import androidx.core.app.NotificationCompat;
 import androidx.core.content.ContextCompat;
@@ -22,6 +25,14 @@ public class PlaybackService extends Service {
     // Intent actions
     public final static String startAction = "startPlayback";
     public final static String stopAction = "stopPlayback";
+    public final static String clickAction = "updateClicks";
+    public final static String profileAction = "updateProfile";
+
+    // Intent extras
+    private final static String immediateExtra = "immediate";
+
+    // Longest wait for the sound to fade out when the service stops
+    private static final long releaseTimeoutMs = 1000;
 
     // An ID unique for the playback notification
     private static final int playbackNotificationId = Notifications.getUniqueId();
@@ -29,14 +40,48 @@ public class PlaybackService extends Service {
     // JNI library
     private PlaybackDriver driver;
 
+    /* Switches to deep buffers while the screen is off, to let the CPU sleep during long drones.
+     * The output reopens on a background thread, since it waits for the sound to fade out. */
+    private final BroadcastReceiver screenReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final boolean screenOff = Intent.ACTION_SCREEN_OFF.equals(intent.getAction());
+            driver.setProfileAsync(getProfile(!screenOff));
+        }
+    };
+
+    // Choose the latency profile. Deep buffers save power while the screen is off. While it's on,
+    // changes take over quickly with balanced buffers, or the smallest ones if the user chose low
+    // latency.
+    private int getProfile(final boolean screenOn) {
+        if (!screenOn)
+            return PlaybackDriver.profileDeepBuffer;
+        return SoundSettings.readLowLatency(this) ? PlaybackDriver.profileLowLatency :
+                PlaybackDriver.profileBalanced;
+    }
+
+    // Switch to the latency profile for the settings and the screen, without blocking
+    private void updateProfile() {
+        driver.setProfileAsync(getProfile(isScreenOn()));
+    }
+
+    // Tell whether the screen is on
+    @SuppressWarnings("deprecation")
+    private boolean isScreenOn() {
+        PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH ? pm.isInteractive() :
+                pm.isScreenOn();
+    }
+
     // Create an intent for this service
     private static Intent getIntent(Context context, final String action) {
         return new Intent(context, PlaybackService.class).setAction(action);
     }
 
-    // Create a start action intent
-    public static Intent getStartIntent(Context context) {
-        return getIntent(context, startAction);
+    // Create a start action intent. A sound already playing is replaced on the next beat, or
+    // immediately.
+    public static Intent getStartIntent(Context context, final boolean immediate) {
+        return getIntent(context, startAction).putExtra(immediateExtra, immediate);
     }
 
     // Create a stop action intent
@@ -44,6 +89,26 @@ public class PlaybackService extends Service {
         return getIntent(context, stopAction);
     }
 
+    // Create an intent to switch to the current click track, on the next beat
+    public static Intent getClickIntent(Context context) {
+        return getIntent(context, clickAction);
+    }
+
+    // Create an intent to apply the latency setting to the sound which is playing
+    public static Intent getProfileIntent(Context context) {
+        return getIntent(context, profileAction);
+    }
+
+    // Start the click track from AudioData over the sound, or stop the clicks if there is none
+    private void updateClicks() {
+        final ClickTrack clicks = AudioData.getClickTrack();
+        if (clicks != null) {
+            clicks.start(driver);
+        } else {
+            driver.clearClickTrack();
+        }
+    }
+
     // Return null from binding attempts--this is strictly a started service
     @Override
     public IBinder onBind(Intent intent) {
@@ -56,6 +121,12 @@ public class PlaybackService extends Service {
 
         // Load the library
         driver = new PlaybackDriver();
+
+        // Follow the screen state. These broadcasts only reach registered receivers.
+        updateProfile();
+        IntentFilter screenFilter = new IntentFilter(Intent.ACTION_SCREEN_OFF);
+        screenFilter.addAction(Intent.ACTION_SCREEN_ON);
+        registerReceiver(screenReceiver, screenFilter);
     }
 
     @Override
@@ -74,13 +145,22 @@ public class PlaybackService extends Service {
                 // Stop the service
                 stopSelf();
                 return returnCode;
+            case clickAction:
+                // Switch the clicks over the sound which is playing
+                if (driver.isPlaying())
+                    updateClicks();
+                return returnCode;
+            case profileAction:
+                // Reopen the output with the new latency setting
+                updateProfile();
+                return returnCode;
             default:
                 throw BuildConfig.DEBUG_EXCEPTIONS ? new DebugException("Unrecognized intent: " +
                         intent.getAction()) : new DefaultException();
         }
 
         // Retrieve the sound data from the singleton
-        float[] data;
+        Object data;
         try {
             data = AudioData.popData();
         } catch (EmptyStackException e) {
@@ -88,8 +168,18 @@ public class PlaybackService extends Service {
                     new DefaultException();
         }
 
-        // Play the sound
-        driver.play(this.getApplicationContext(), data);
+        // Play the sound, replacing the previous one if the service is already running
+        final boolean immediate = intent.getBooleanExtra(immediateExtra, false);
+        final boolean wasPlaying = driver.isPlaying();
+        if (data instanceof short[]) {
+            driver.play(this.getApplicationContext(), (short[]) data, immediate);
+        } else {
+            driver.play(this.getApplicationContext(), (float[]) data, immediate);
+        }
+
+        // Start the clicks with the sound. They keep the beat when the sound is replaced.
+        if (!wasPlaying)
+            updateClicks();
 
         // Create a notification channel, for android O+ devices
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -179,8 +269,11 @@ public class PlaybackService extends Service {
     public void onDestroy() {
         super.onDestroy();
 
-        // Stop the sound
-        driver.pause();
+        // Stop following the screen, before the output shuts down
+        unregisterReceiver(screenReceiver);
+
+        // Fade out the sound and shut down the audio output, without blocking the main thread
+        driver.releaseAsync(releaseTimeoutMs, null);
     }
 
 }
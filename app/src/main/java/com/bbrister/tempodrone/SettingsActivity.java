@@ -57,5 +57,50 @@ public class SettingsActivity extends DroneActivity {
                 droneBinder.setReverbPreset(seekBar.getProgress());
             }
         });
+
+        // Metronome click track, if the metronome sounds are installed
+        final boolean haveClickSounds = droneBinder.haveClickSounds();
+        CheckBox clickTrackBox = findViewById(R.id.clickTrackBox);
+        clickTrackBox.setEnabled(haveClickSounds);
+        clickTrackBox.setChecked(haveClickSounds && droneBinder.getClickTrack());
+        clickTrackBox.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton compoundButton, boolean isChecked) {
+                droneBinder.setClickTrack(isChecked);
+            }
+        });
+
+        // Beats per bar, starting from 1
+        SeekBar beatsPerBarSeekBar = findViewById(R.id.beatsPerBarSeekBar);
+        beatsPerBarSeekBar.setEnabled(haveClickSounds);
+        beatsPerBarSeekBar.setMax(SoundSettings.beatsPerBarMax - 1);
+        beatsPerBarSeekBar.setProgress(droneBinder.getBeatsPerBar() - 1);
+        beatsPerBarSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                // Do nothing
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+                // Do nothing
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+                // Update when a selection is made
+                droneBinder.setBeatsPerBar(seekBar.getProgress() + 1);
+            }
+        });
+
+        // Low latency output, which uses more power
+        CheckBox lowLatencyBox = findViewById(R.id.lowLatencyBox);
+        lowLatencyBox.setChecked(droneBinder.getLowLatency());
+        lowLatencyBox.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton compoundButton, boolean isChecked) {
+                droneBinder.setLowLatency(isChecked);
+            }
+        });
     }
 }
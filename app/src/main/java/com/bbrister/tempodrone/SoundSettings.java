@@ -25,6 +25,7 @@ public abstract class SoundSettings {
     final static int octaveMax = 7;
     final static int bpmMax = 512;
     final static int bpmMin = 20;
+    final static int beatsPerBarMax = 12;
 
     // Starting defaults
     final private static int defaultStartPitch = 0;
@@ -37,6 +38,12 @@ public abstract class SoundSettings {
     final private static String reverbKey = "reverb";
     final private static String velocityKey = "velocity";
     final private static String durationKey = "duration";
+    final private static String clickTrackKey = "clickTrack";
+    final private static String beatsPerBarKey = "beatsPerBar";
+    final private static String lowLatencyKey = "lowLatency";
+
+    // Playback defaults, also read by the playback service
+    final private static boolean defaultLowLatency = false;
 
     // Key default. This is changed throughout the program
     private byte defaultKey;
@@ -55,6 +62,13 @@ public abstract class SoundSettings {
     private List<Integer> freeHandles;
     private List<Integer> occupiedHandles;
 
+    // Click track data--the clicks play over the sound, so changing these doesn't update it
+    private BooleanPreference clickTrack;
+    private IntegerPreference beatsPerBar;
+
+    // Playback data--applies to the audio output, so changing it doesn't update the sound
+    private BooleanPreference lowLatency;
+
     // Callbacks
     private UpdateInterface updateInterface;
 
@@ -70,6 +84,8 @@ public abstract class SoundSettings {
         final int defaultBpm = 80;
         final float defaultVelocity = 1.0f;
         final float defaultDuration = 0.95f;
+        final boolean defaultClickTrack = false;
+        final int defaultBeatsPerBar = 4;
 
         // Initialize the key range to dummy values
         keyRange = new boolean[MidiDriverHelper.keyMax + 1];
@@ -93,6 +109,9 @@ public abstract class SoundSettings {
                 .setUpdate(updateInterface);
         reverbPreset = new IntegerPreference(context, reverbKey, defaultReverbPreset)
                 .setUpdate(updateInterface);
+        clickTrack = new BooleanPreference(context, clickTrackKey, defaultClickTrack);
+        beatsPerBar = new IntegerPreference(context, beatsPerBarKey, defaultBeatsPerBar);
+        lowLatency = getLowLatencyPreference(context);
 
         // Apply the reverb limits, possibly overriding defaults
         maxReverbPreset = numReverbPresets - 1;
@@ -208,6 +227,21 @@ public abstract class SoundSettings {
 
     public int getReverbPreset() { return reverbPreset.read(); }
 
+    public boolean getClickTrack() { return clickTrack.read(); }
+
+    public int getBeatsPerBar() { return beatsPerBar.read(); }
+
+    public boolean getLowLatency() { return lowLatency.read(); }
+
+    // Read whether the user chose low latency output over balanced buffers, without the others
+    static boolean readLowLatency(Context context) {
+        return getLowLatencyPreference(context).read();
+    }
+
+    private static BooleanPreference getLowLatencyPreference(Context context) {
+        return new BooleanPreference(context, lowLatencyKey, defaultLowLatency);
+    }
+
     // Check if this key is available
     public boolean haveKey(final byte key) {
         return keyRange[key];
@@ -408,6 +442,27 @@ public abstract class SoundSettings {
         reverbPreset.write(preset);
     }
 
+    // Choose whether or not to play the click track
+    public void setClickTrack(final boolean clickTrack) {
+        this.clickTrack.write(clickTrack);
+    }
+
+    // Choose the number of beats from one accented click to the next
+    public void setBeatsPerBar(final int beats) {
+        if (beats < 1 || beats > beatsPerBarMax) {
+            throw BuildConfig.DEBUG_EXCEPTIONS ? new DebugException(String.format(
+                    "Invalid beats per bar: %d (max: %d)", beats, beatsPerBarMax)) :
+                    new DefaultException();
+        }
+
+        beatsPerBar.write(beats);
+    }
+
+    // Choose the smallest output buffers while the screen is on, rather than balanced ones
+    public void setLowLatency(final boolean lowLatency) {
+        this.lowLatency.write(lowLatency);
+    }
+
     // Given the pitch limits, round the octave choice to the nearest possible one. Input and output
     // are keys (0-127).
     private byte roundOctave(byte key) {
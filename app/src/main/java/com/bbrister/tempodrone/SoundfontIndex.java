@@ -0,0 +1,100 @@
+package com.bbrister.tempodrone;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The presets of a soundfont, read from the index which the sound modules generate at build time.
+ * See gradle/soundfont-index.gradle. This lists the instruments without loading the soundfont in
+ * the synth.
+ */
+public class SoundfontIndex {
+
+    // Constants
+    final static String fileExt = ".idx";
+
+    // A preset in bank 0 of the soundfont
+    public static class Preset {
+        final public int program;
+        final public String name;
+        final public boolean[] keyRange; // True for each key which sounds
+        final public long sampleBytes; // Size of the sample data the preset uses
+
+        Preset(int program, String name, boolean[] keyRange, long sampleBytes) {
+            this.program = program;
+            this.name = name;
+            this.keyRange = keyRange;
+            this.sampleBytes = sampleBytes;
+        }
+    }
+
+    // The presets, ordered by program number
+    final public List<Preset> presets;
+
+    private SoundfontIndex(List<Preset> presets) {
+        this.presets = presets;
+    }
+
+    // Look up the preset with the given program number, or return null if there is none
+    public Preset getPreset(final int program) {
+        for (Preset preset : presets) {
+            if (preset.program == program)
+                return preset;
+        }
+        return null;
+    }
+
+    /**
+     * Read the index of the soundfont at the given asset path. Returns null if the soundfont has
+     * no index, e.g. its module was built without one.
+     */
+    public static SoundfontIndex read(final Context context, final String soundfontPath) {
+
+        // Open the index
+        final List<String[]> csvLines;
+        try {
+            final InputStream inputStream = context.getAssets().open(soundfontPath + fileExt);
+            try {
+                csvLines = CsvReader.read(inputStream);
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException ie) {
+            return null;
+        }
+
+        // Verify the format
+        final int programIdx = 0;
+        final int nameIdx = 1;
+        final int keysIdx = 2;
+        final int sampleBytesIdx = 3;
+        CsvReader.verifyHeader(csvLines, new String[] {"program", "name", "keys", "sample_bytes"});
+
+        // Parse the presets
+        List<Preset> presets = new ArrayList<>();
+        for (int i = 1; i < csvLines.size(); i++) {
+            final String[] csvLine = csvLines.get(i);
+            try {
+                final BigInteger keys = new BigInteger(csvLine[keysIdx], 16);
+                final boolean[] keyRange = new boolean[MidiDriverHelper.keyMax + 1];
+                for (int key = 0; key < keyRange.length; key++) {
+                    keyRange[key] = keys.testBit(key);
+                }
+
+                presets.add(new Preset(Integer.parseInt(csvLine[programIdx]), csvLine[nameIdx],
+                        keyRange, Long.parseLong(csvLine[sampleBytesIdx])));
+            } catch (NumberFormatException ne) {
+                throw BuildConfig.DEBUG_EXCEPTIONS ? new DebugException(String.format(
+                        "Invalid line in the index of %s: %d", soundfontPath, i)) :
+                        new DefaultException();
+            }
+        }
+
+        return new SoundfontIndex(presets);
+    }
+}
@@ -0,0 +1,472 @@
+package com.bbrister.tempodrone;
+
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+
+import com.google.android.play.core.splitinstall.SplitInstallManager;
+import com.google.android.play.core.splitinstall.SplitInstallRequest;
+import com.google.android.play.core.tasks.OnCompleteListener;
+import com.google.android.play.core.tasks.OnFailureListener;
+import com.google.android.play.core.tasks.OnSuccessListener;
+import com.google.android.play.core.tasks.Task;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of ModulePrefetcher with a fake install manager, which records the installs it is asked
+ * for and starts their sessions when the test says so.
+ */
+public class ModulePrefetcherTest {
+
+    // Modules of the families. newPrefetcher() lists them in sounds_list.csv order.
+    final private static String strings = "stringsounds";
+    final private static String brass = "brasssounds";
+    final private static String organ = "organsounds";
+    final private static String synth = "synthsounds";
+    final private static String premium = "exoticsounds";
+    final private static String instant = "instantsounds";
+
+    final private static long overBudgetBytes = 512L << 20;
+
+    private FakeInstalls installs;
+    private FakeConditions conditions;
+    private FakeContext context;
+    private ModulePrefetcher prefetcher;
+
+    @Before
+    public void setUp() {
+        installs = new FakeInstalls();
+        conditions = new FakeConditions();
+        context = new FakeContext();
+        prefetcher = newPrefetcher();
+    }
+
+    @Test
+    public void ranksRecentSelectionsThenNeighbors() {
+        prefetcher.recordSelection(synth);
+        prefetcher.recordSelection(organ);
+
+        // The recent ones in order, then the free neighbor of the current family
+        assertEquals(Arrays.asList(organ, synth, brass), prefetcher.rankModules());
+    }
+
+    @Test
+    public void ranksFollowersOfTheCurrentFamily() {
+        // Synth followed strings before, so it outranks the older picks
+        prefetcher.recordSelection(strings);
+        prefetcher.recordSelection(synth);
+        prefetcher.recordSelection(organ);
+        prefetcher.recordSelection(strings);
+
+        final List<String> ranked = prefetcher.rankModules();
+        assertEquals(strings, ranked.get(0));
+        assertTrue(ranked.indexOf(synth) < ranked.indexOf(organ));
+    }
+
+    @Test
+    public void skipsInstalledInstantAndPremiumModules() {
+        installs.installed.add(brass);
+        prefetcher.recordSelection(instant);
+        prefetcher.recordSelection(brass);
+        prefetcher.recordSelection(organ);
+
+        // The premium neighbor of organ is only ranked with premium
+        assertEquals(Collections.singletonList(organ), prefetcher.rankModules());
+        prefetcher.setPremium(true);
+        assertEquals(Arrays.asList(organ, premium), prefetcher.rankModules());
+    }
+
+    @Test
+    public void prefetchesTheTopModule() {
+        prefetcher.recordSelection(synth);
+        prefetcher.recordSelection(organ);
+        prefetcher.start();
+        prefetcher.prefetchNext();
+
+        assertEquals(Collections.singletonList(organ), installs.requested);
+
+        // Only one prefetch at a time
+        prefetcher.prefetchNext();
+        assertEquals(1, installs.requested.size());
+    }
+
+    @Test
+    public void waitsForAnUnmeteredNetwork() {
+        conditions.unmetered = false;
+        prefetcher.recordSelection(strings);
+        prefetcher.start();
+        prefetcher.prefetchNext();
+
+        assertTrue(installs.requested.isEmpty());
+    }
+
+    @Test
+    public void stopsAtTheStorageBudget() {
+        context.preferences.values.put("prefetchedModules", synth + ":" + overBudgetBytes);
+        prefetcher = newPrefetcher();
+        prefetcher.recordSelection(strings);
+        prefetcher.start();
+        prefetcher.prefetchNext();
+
+        assertEquals(overBudgetBytes, prefetcher.getPrefetchedBytes());
+        assertTrue(installs.requested.isEmpty());
+
+        // Selecting the prefetched module frees the budget
+        prefetcher.recordSelection(synth);
+        prefetcher.prefetchNext();
+        assertEquals(0, prefetcher.getPrefetchedBytes());
+        assertEquals(1, installs.requested.size());
+    }
+
+    @Test
+    public void cancelsWhenAnotherModuleIsSelected() {
+        prefetcher.recordSelection(strings);
+        prefetcher.start();
+        prefetcher.prefetchNext();
+        installs.startSession(0, 7);
+
+        prefetcher.recordSelection(organ);
+        assertEquals(Collections.singletonList(7), installs.cancelled);
+    }
+
+    @Test
+    public void cancelsASessionWhichStartsAfterTheSelection() {
+        prefetcher.recordSelection(strings);
+        prefetcher.start();
+        prefetcher.prefetchNext();
+
+        // The session ID arrives after the prefetch was stopped
+        prefetcher.recordSelection(organ);
+        assertTrue(installs.cancelled.isEmpty());
+        installs.startSession(0, 7);
+        assertEquals(Collections.singletonList(7), installs.cancelled);
+    }
+
+    @Test
+    public void cancelsASessionWhichStartsAfterStopping() {
+        prefetcher.recordSelection(strings);
+        prefetcher.start();
+        prefetcher.prefetchNext();
+        prefetcher.stop();
+
+        installs.startSession(0, 7);
+        assertEquals(Collections.singletonList(7), installs.cancelled);
+    }
+
+    @Test
+    public void keepsAPrefetchOfTheSelectedModule() {
+        prefetcher.recordSelection(strings);
+        prefetcher.start();
+        prefetcher.prefetchNext();
+
+        // The user picks the module being prefetched, so the download becomes their install
+        prefetcher.recordSelection(strings);
+        installs.startSession(0, 7);
+        assertTrue(installs.cancelled.isEmpty());
+    }
+
+    @Test
+    public void cancelsAStalePrefetchOfTheNextModule() {
+        prefetcher.recordSelection(strings);
+        prefetcher.start();
+        prefetcher.prefetchNext();
+
+        // A new prefetch starts before the first one's session does
+        prefetcher.recordSelection(organ);
+        prefetcher.prefetchNext();
+        installs.startSession(1, 8);
+        installs.startSession(0, 7);
+
+        assertEquals(Collections.singletonList(7), installs.cancelled);
+        prefetcher.stop();
+        assertEquals(Arrays.asList(7, 8), installs.cancelled);
+    }
+
+    // Each family neighbors the ones before and after it in the list
+    private ModulePrefetcher newPrefetcher() {
+        final List<Soundfont> soundfonts = Arrays.asList(
+                new Soundfont(null, "instant.sf2", instant, true, true),
+                new Soundfont(null, "strings.sf2", strings, true, false),
+                new Soundfont(null, "brass.sf2", brass, true, false),
+                new Soundfont(null, "organ.sf2", organ, true, false),
+                new Soundfont(null, "exotic.sf2", premium, false, false),
+                new Soundfont(null, "synth.sf2", synth, true, false));
+        return new ModulePrefetcher(context, installs.manager, soundfonts, conditions);
+    }
+
+    /**
+     * Records the installs and cancellations. The manager is a proxy, since the tests only need a
+     * few of its methods.
+     */
+    private static class FakeInstalls implements InvocationHandler {
+
+        final SplitInstallManager manager = (SplitInstallManager) Proxy.newProxyInstance(
+                SplitInstallManager.class.getClassLoader(),
+                new Class<?>[] {SplitInstallManager.class}, this);
+        final Set<String> installed = new HashSet<>();
+        final List<String> requested = new ArrayList<>();
+        final List<FakeTask<Integer>> sessions = new ArrayList<>();
+        final List<Integer> cancelled = new ArrayList<>();
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "startInstall":
+                    requested.addAll(((SplitInstallRequest) args[0]).getModuleNames());
+                    final FakeTask<Integer> session = new FakeTask<>();
+                    sessions.add(session);
+                    return session;
+                case "cancelInstall":
+                    cancelled.add((Integer) args[0]);
+                    return new FakeTask<Void>();
+                case "getInstalledModules":
+                    return installed;
+                case "registerListener":
+                case "unregisterListener":
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        }
+
+        // Start the session of the i-th install request
+        void startSession(final int i, final int sessionId) {
+            sessions.get(i).succeed(sessionId);
+        }
+    }
+
+    /**
+     * A task which completes when the test says so.
+     */
+    private static class FakeTask<ResultT> extends Task<ResultT> {
+
+        final private List<OnSuccessListener<? super ResultT>> successListeners =
+                new ArrayList<>();
+        private ResultT result;
+        private boolean complete;
+
+        void succeed(final ResultT result) {
+            this.result = result;
+            complete = true;
+            for (OnSuccessListener<? super ResultT> listener : successListeners) {
+                listener.onSuccess(result);
+            }
+        }
+
+        @Override
+        public Task<ResultT> addOnSuccessListener(OnSuccessListener<? super ResultT> listener) {
+            successListeners.add(listener);
+            return this;
+        }
+
+        @Override
+        public Task<ResultT> addOnSuccessListener(Executor executor,
+                                                  OnSuccessListener<? super ResultT> listener) {
+            return addOnSuccessListener(listener);
+        }
+
+        @Override
+        public Task<ResultT> addOnFailureListener(OnFailureListener listener) {
+            return this;
+        }
+
+        @Override
+        public Task<ResultT> addOnFailureListener(Executor executor, OnFailureListener listener) {
+            return this;
+        }
+
+        @Override
+        public Task<ResultT> addOnCompleteListener(OnCompleteListener<ResultT> listener) {
+            return this;
+        }
+
+        @Override
+        public Task<ResultT> addOnCompleteListener(Executor executor,
+                                                   OnCompleteListener<ResultT> listener) {
+            return this;
+        }
+
+        @Override
+        public boolean isComplete() {
+            return complete;
+        }
+
+        @Override
+        public boolean isSuccessful() {
+            return complete;
+        }
+
+        @Override
+        public ResultT getResult() {
+            return result;
+        }
+
+        @Override
+        public <X extends Throwable> ResultT getResult(Class<X> exceptionType) {
+            return result;
+        }
+
+        @Override
+        public Exception getException() {
+            return null;
+        }
+    }
+
+    private static class FakeConditions implements ModulePrefetcher.Conditions {
+        boolean unmetered = true;
+        long availableBytes = 8L << 30;
+
+        @Override
+        public boolean isUnmetered() {
+            return unmetered;
+        }
+
+        @Override
+        public long getAvailableBytes() {
+            return availableBytes;
+        }
+    }
+
+    // Provides the preferences, which live in memory
+    private static class FakeContext extends ContextWrapper {
+        final FakePreferences preferences = new FakePreferences();
+
+        FakeContext() {
+            super(null);
+        }
+
+        @Override
+        public SharedPreferences getSharedPreferences(String name, int mode) {
+            return preferences;
+        }
+    }
+
+    // Preferences in memory. Only strings are used.
+    private static class FakePreferences implements SharedPreferences, SharedPreferences.Editor {
+        final Map<String, Object> values = new HashMap<>();
+
+        @Override
+        public Map<String, ?> getAll() {
+            return values;
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return values.containsKey(key) ? (String) values.get(key) : defValue;
+        }
+
+        @Override
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return values.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return this;
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public Editor putString(String key, String value) {
+            values.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Editor remove(String key) {
+            values.remove(key);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            values.clear();
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            return true;
+        }
+
+        @Override
+        public void apply() {
+        }
+    }
+}
@@ -83,6 +83,132 @@ public class MidiDriver
      * Load a soundfont from an asset file. Uses the context to locate the asset.
      */
     public void loadSounds(final Context context, final String filename) {
+        // Load the soundfont
+        if (!loadSoundfontJNI(getSoundfontAssets(context, filename), filename)) {
+            throw new RuntimeException(BuildConfig.DEBUG_EXCEPTIONS ? String.format(
+                    "Failed to load soundfont %s", filename) : "");
+        }
+    }
+
+    /**
+     * Switch to a soundfont which is still loaded from earlier, which is instant. Returns false if
+     * it has to be loaded again.
+     */
+    public boolean selectCachedSounds(final String filename) {
+        final int result = selectCachedSoundfontJNI(filename);
+        if (result < 0)
+            throw new RuntimeException(BuildConfig.DEBUG_EXCEPTIONS ? String.format(
+                    "Failed to select soundfont %s", filename) : "");
+        return result > 0;
+    }
+
+    /**
+     * Set how much native memory the loaded soundfonts may hold, in bytes. The least recently used
+     * ones are unloaded to stay within it, except the one in use.
+     */
+    public void setSoundCacheBudget(final long bytes) {
+        if (!setSoundfontCacheBudgetJNI(bytes))
+            throw new RuntimeException(BuildConfig.DEBUG_EXCEPTIONS ?
+                    "Failed to set the soundfont cache budget" : "");
+    }
+
+    /**
+     * Parse a soundfont from an asset file, without replacing the one in use. This may run on a
+     * background thread while the synth renders. Returns a handle to pass to commitSounds() or
+     * discardSounds(), or 0 if the load failed or was cancelled by cancelLoad().
+     */
+    public long prepareSounds(final Context context, final String filename) {
+        return prepareSoundfontJNI(getSoundfontAssets(context, filename), filename, true);
+    }
+
+    /**
+     * Like prepareSounds(), but for a soundfont used alongside the one in use, which is not
+     * reported by getLoadProgress() and not stopped by cancelLoad(). Returns a handle to pass to
+     * selectPreparedSounds(), or 0 if the load failed. Free it with discardSounds().
+     */
+    public long prepareOtherSounds(final Context context, final String filename) {
+        return prepareSoundfontJNI(getSoundfontAssets(context, filename), filename, false);
+    }
+
+    /**
+     * Temporarily use a soundfont from prepareOtherSounds(), selecting a program from it. The
+     * soundfonts already loaded are kept. Call restoreSounds() before loading or selecting any
+     * other soundfont, and before discarding this one.
+     */
+    public void selectPreparedSounds(final long soundfont, final byte programNumber) {
+        if (!selectPreparedSoundfontJNI(soundfont, programNumber)) {
+            throw new RuntimeException(BuildConfig.DEBUG_EXCEPTIONS ? String.format(
+                    "Failed to select program %d of the prepared soundfont", programNumber) : "");
+        }
+    }
+
+    /**
+     * Go back to the soundfont and program in use before selectPreparedSounds().
+     */
+    public void restoreSounds(final long soundfont) {
+        if (!restoreSoundfontJNI(soundfont)) {
+            throw new RuntimeException(BuildConfig.DEBUG_EXCEPTIONS ?
+                    "Failed to restore the soundfont" : "");
+        }
+    }
+
+    /**
+     * Replace the soundfont in use with one from prepareSounds(). The handle is no longer valid
+     * afterwards, even if this throws.
+     */
+    public void commitSounds(final long soundfont) {
+        if (!commitSoundfontJNI(soundfont)) {
+            throw new RuntimeException(BuildConfig.DEBUG_EXCEPTIONS ?
+                    "Failed to commit the soundfont" : "");
+        }
+    }
+
+    /**
+     * Free a soundfont from prepareSounds() which will not be committed.
+     */
+    public void discardSounds(final long soundfont) {
+        if (soundfont != 0)
+            discardSoundfontJNI(soundfont);
+    }
+
+    /**
+     * Cancel the call to prepareSounds() in progress, if any. Safe to call from any thread.
+     */
+    public void cancelLoad() {
+        cancelLoadJNI();
+    }
+
+    /**
+     * Get the progress of the call to prepareSounds() in progress, as {bytes parsed, total bytes}.
+     * The total is 0 until it is known. Safe to call from any thread.
+     */
+    public long[] getLoadProgress() {
+        final long[] progress = getLoadProgressJNI();
+        if (progress == null)
+            throw new RuntimeException(BuildConfig.DEBUG_EXCEPTIONS ?
+                    "Failed to get the load progress" : "");
+        return progress;
+    }
+
+    /**
+     * Get the memory held for the sounds. This reads the active soundfont, so it must not overlap
+     * loading or selecting another one.
+     */
+    public SoundfontMemory getMemoryUsage() {
+        final long[] usage = getMemoryUsageJNI();
+        if (usage == null)
+            throw new RuntimeException(BuildConfig.DEBUG_EXCEPTIONS ?
+                    "Failed to get the memory usage" : "");
+        if (usage.length != SoundfontMemory.snapshotLength)
+            throw new RuntimeException(BuildConfig.DEBUG_EXCEPTIONS ?
+                    "Unexpected memory usage length " + usage.length : "");
+        return new SoundfontMemory(usage);
+    }
+
+    /**
+     * Get the asset manager, ensuring it has the soundfont.
+     */
+    private static AssetManager getSoundfontAssets(final Context context, final String filename) {
         // Get the assets
         AssetManager assetManager = context.getAssets();
 
@@ -100,11 +226,7 @@ public class MidiDriver
                     "Failed to locate asset %s", filename) : "");
         }
 
-        // Load the soundfont
-        if (!loadSoundfontJNI(assetManager, filename)) {
-            throw new RuntimeException(BuildConfig.DEBUG_EXCEPTIONS ? String.format(
-                    "Failed to load soundfont %s", filename) : "");
-        }
+        return assetManager;
     }
 
     /**
@@ -140,6 +262,28 @@ public class MidiDriver
         return name;
     }
 
+    /**
+     * List the programs in the soundfont, with their names and key ranges. This takes one native
+     * call, instead of one per program number.
+     */
+    public ProgramList listPrograms() {
+        final int maxPrograms = Byte.MAX_VALUE + 1;
+        final byte[] programs = new byte[maxPrograms];
+        final String[] names = new String[maxPrograms];
+        final boolean[] keyRanges = new boolean[maxPrograms * ProgramList.numKeys];
+
+        final int numPrograms = listProgramsJNI(programs, names, keyRanges);
+        if (numPrograms < 0)
+            throw new RuntimeException(BuildConfig.DEBUG_EXCEPTIONS ?
+                    "Failed to list the programs" : "");
+
+        ProgramList list = new ProgramList();
+        list.programs = Arrays.copyOf(programs, numPrograms);
+        list.names = Arrays.copyOf(names, numPrograms);
+        list.keyRanges = Arrays.copyOf(keyRanges, numPrograms * ProgramList.numKeys);
+        return list;
+    }
+
     /**
      * Change the program
      */
@@ -184,6 +328,33 @@ public class MidiDriver
         return sound;
     }
 
+    /**
+     * Render to 16 bit PCM and check for errors. This is the native output of fixed point builds.
+     */
+    public short[] renderNotesPcm16(RenderSettings settings) {
+        final short[] sound = renderPcm16JNI(settings);
+        if (sound == null)
+            throw new RuntimeException(BuildConfig.DEBUG_EXCEPTIONS ?
+                    "Failed to render pitches" : "");
+
+        return sound;
+    }
+
+    /**
+     * Query whether the synth renders in fixed point. If so, prefer renderNotesPcm16().
+     */
+    public boolean isFixedPoint() {
+        return isFixedPointJNI();
+    }
+
+    /**
+     * Get the name of the instruction set variant of the native library which is in use. A variant
+     * can be forced for benchmarking with the debug.mididriver.isa system property.
+     */
+    public String getIsaVariant() {
+        return getIsaVariantJNI();
+    }
+
     /**
      * Get the synth maximum polyphony count.
      */
@@ -252,6 +423,47 @@ public class MidiDriver
             boolean volumeBoost
     );
 
+    /**
+     * Like renderJNI, but renders to 16 bit PCM.
+     *
+     * @param settings holds all the information to play the notes
+     *
+     */
+    private short[] renderPcm16JNI(final RenderSettings settings) {
+        return N(
+                settings.pitchArray,
+                settings.noteDurationMs,
+                settings.recordDurationMs,
+                settings.reverbPreset,
+                settings.velocity,
+                settings.volumeBoost
+        );
+    }
+    private native short[] N(
+            byte[] pitches,
+            long noteDurationMs,
+            long recordingDurationMs,
+            int reverbPreset,
+            byte velocity,
+            boolean volumeBoost
+    );
+
+    /**
+     * @return true if the synth renders in fixed point.
+     */
+    private boolean isFixedPointJNI() {
+        return O();
+    }
+    private native boolean O();
+
+    /**
+     * @return The name of the loaded instruction set variant.
+     */
+    private String getIsaVariantJNI() {
+        return P();
+    }
+    private native String P();
+
     /*
      * Query if the given MIDI program number is valid.
      *
@@ -272,6 +484,16 @@ public class MidiDriver
     }
     private native String H(byte programNum);
 
+    /*
+     * List the programs in the soundfont into the arrays, which have room for every program.
+     *
+     * @return The number of programs, or -1 on error.
+     */
+    private int listProgramsJNI(byte[] programs, String[] names, boolean[] keyRanges) {
+        return Q(programs, names, keyRanges);
+    }
+    private native int Q(byte[] programs, String[] names, boolean[] keyRanges);
+
     /**
      *  Change the MIDI program.
      *
@@ -318,7 +540,103 @@ public class MidiDriver
     }
     private native boolean M(Object assetManager, String filename);
 
-    // Load midi library
+    /**
+     * Parse a soundfont without adding it to the synth.
+     *
+     * @return A handle to the soundfont, or 0 on failure.
+     */
+    private long prepareSoundfontJNI(Object assetManager, String filename, boolean tracked) {
+        return R(assetManager, filename, tracked);
+    }
+    private native long R(Object assetManager, String filename, boolean tracked);
+
+    /**
+     * Replace the loaded soundfont with a prepared one.
+     *
+     * @return True on success
+     */
+    private boolean commitSoundfontJNI(long soundfont) {
+        return S(soundfont);
+    }
+    private native boolean S(long soundfont);
+
+    /**
+     * Temporarily make a prepared soundfont the active one.
+     *
+     * @return True on success
+     */
+    private boolean selectPreparedSoundfontJNI(long soundfont, byte programNum) {
+        return Y(soundfont, programNum);
+    }
+    private native boolean Y(long soundfont, byte programNum);
+
+    /**
+     * Make the soundfont active before selectPreparedSoundfontJNI() active again.
+     *
+     * @return True on success
+     */
+    private boolean restoreSoundfontJNI(long soundfont) {
+        return Z(soundfont);
+    }
+    private native boolean Z(long soundfont);
+
+    /**
+     * Free a prepared soundfont.
+     */
+    private void discardSoundfontJNI(long soundfont) {
+        T(soundfont);
+    }
+    private native void T(long soundfont);
+
+    /**
+     * Cancel the soundfont being prepared.
+     */
+    private void cancelLoadJNI() {
+        U();
+    }
+    private native void U();
+
+    /**
+     * Get the progress of the soundfont being prepared.
+     *
+     * @return {bytes parsed, total bytes}, or null on error.
+     */
+    private long[] getLoadProgressJNI() {
+        return V();
+    }
+    private native long[] V();
+
+    /**
+     * Get the memory held for the sounds.
+     *
+     * @return The native report, or null on error.
+     */
+    private long[] getMemoryUsageJNI() {
+        return C();
+    }
+    private native long[] C();
+
+    /**
+     * Make a cached soundfont the active one.
+     *
+     * @return 1 on success, 0 if it isn't cached, -1 on error.
+     */
+    private int selectCachedSoundfontJNI(String filename) {
+        return W(filename);
+    }
+    private native int W(String filename);
+
+    /**
+     * Set the memory budget of the soundfont cache, in bytes.
+     *
+     * @return True on success
+     */
+    private boolean setSoundfontCacheBudgetJNI(long bytes) {
+        return X(bytes);
+    }
+    private native boolean X(long bytes);
+
+    // Load midi library, which loads the best instruction set variant of the synth
     static
     {
         isStarted = false;
@@ -5,11 +5,42 @@ import android.media.AudioManager;
 import android.os.Build;
 import android.util.Log;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 public class PlaybackDriver {
 
     // Constants
     private static final String logTag = "Playback";
 
+    // Latency profiles, trading latency for power
+    public static final int profileLowLatency = 0; // Smallest buffers, for quick changes
+    public static final int profileBalanced = 1; // Larger buffers
+    public static final int profileDeepBuffer = 2; // Lets the CPU sleep, e.g. with the screen off
+
+    // The native playback state is shared by all drivers, so they all lock the same object
+    private static final Object nativeLock = new Object();
+
+    // Finishes asynchronous pauses and profile switches, in the order they were requested
+    private static final ExecutorService asyncExecutor = Executors.newSingleThreadExecutor();
+
+    // Interval for checking on the fade out of an asynchronous pause
+    private static final long pausePollMs = 5;
+
+    /*
+     * Listener for the end of an asynchronous pause.
+     */
+    public interface OnPausedListener {
+        /*
+         * Called from a background thread once the sound has stopped. The fade out was cut short
+         * if it didn't finish before the timeout, e.g. because the audio output stopped calling
+         * back.
+         */
+        void onPaused(boolean fadedOut);
+    }
+
     // Shortcut to query a parameter from the Audio manager. Returns -1 on failure.
     private static int getAudioProperty(Context context, String tag) {
 
@@ -46,6 +77,11 @@ public class PlaybackDriver {
         return sampleRate;
     }
 
+    // Tell whether the device can play floating point audio. OpenSL ES takes it from Lollipop on.
+    private static boolean supportsFloatOutput() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
     // Return the playback buffer size
     public static int getBufferSize(Context context) {
         // Query the device audio parameters, on supported devices
@@ -64,19 +100,278 @@ public class PlaybackDriver {
     }
 
     /*
-     * Initiate playback.
+     * Initiate playback. If a sound is already playing, it is replaced on the next beat, without
+     * interrupting playback. The sound is assumed to be one beat long.
+     */
+    public void play(Context context, float[] sound) {
+        play(context, sound, false);
+    }
+
+    /*
+     * Initiate playback. If a sound is already playing, it is replaced with a short crossfade,
+     * either immediately or on the next beat. An immediate switch keeps the phase of the beat.
+     * The sound plays as floating point if the device supports it, skipping the conversion to 16
+     * bit PCM.
+     */
+    public void play(Context context, float[] sound, boolean immediate) {
+        synchronized (nativeLock) {
+            if (!playJNI(getSampleRate(context), getBufferSize(context), sound, immediate,
+                    supportsFloatOutput()))
+                throw new RuntimeException(BuildConfig.DEBUG ? "Failed to start playback" : "");
+        }
+    }
+
+    /*
+     * Initiate playback of 16 bit PCM, which needs no conversion. Replaces the current sound on
+     * the next beat.
+     */
+    public void play(Context context, short[] sound) {
+        play(context, sound, false);
+    }
+
+    /*
+     * Initiate playback of 16 bit PCM, replacing the current sound immediately or on the next beat.
      */
-    public synchronized void play(Context context, float[] sound) {
-        if (!playJNI(getSampleRate(context), getBufferSize(context), sound))
-            throw new RuntimeException(BuildConfig.DEBUG ? "Failed to start playback" : "");
+    public void play(Context context, short[] sound, boolean immediate) {
+        synchronized (nativeLock) {
+            if (!playPcm16JNI(getSampleRate(context), getBufferSize(context), sound, immediate,
+                    supportsFloatOutput()))
+                throw new RuntimeException(BuildConfig.DEBUG ? "Failed to start playback" : "");
+        }
     }
 
     /*
      * Pause playback and check for errors.
      */
-    public synchronized void pause() {
-        if (!pauseJNI())
-            throw new RuntimeException(BuildConfig.DEBUG ? "Failed to pause playback" : "");
+    public void pause() {
+        synchronized (nativeLock) {
+            if (!pauseJNI())
+                throw new RuntimeException(BuildConfig.DEBUG ? "Failed to pause playback" : "");
+        }
+    }
+
+    /*
+     * Start pausing playback, returning right away rather than waiting for the sound to fade out.
+     * The pause finishes on a background thread, which waits for up to the timeout, then calls the
+     * listener, if any. The future tells whether the sound faded out in time. A later call which
+     * plays, pauses or releases finishes the pause first, waiting for the fade out itself.
+     */
+    public Future<Boolean> pauseAsync(long timeoutMs, OnPausedListener listener) {
+        return stopAsync(timeoutMs, false, listener);
+    }
+
+    /*
+     * Start pausing playback like pauseAsync, then end the playback session. The session is kept
+     * if a later call plays a new sound first.
+     */
+    public Future<Boolean> releaseAsync(long timeoutMs, OnPausedListener listener) {
+        return stopAsync(timeoutMs, true, listener);
+    }
+
+    // Start pausing, and finish on the background thread, optionally releasing too
+    private Future<Boolean> stopAsync(final long timeoutMs, final boolean release,
+                                      final OnPausedListener listener) {
+        synchronized (nativeLock) {
+            beginPauseJNI();
+        }
+
+        return asyncExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws InterruptedException {
+                /* Wait for the fade out without holding the lock, so a play request can take over
+                 * the pause meanwhile, rather than block until the timeout. */
+                final long endNs = System.nanoTime() + timeoutMs * 1000000;
+                for (;;) {
+                    synchronized (nativeLock) {
+                        if (isPauseSettledJNI())
+                            break;
+                    }
+                    if (System.nanoTime() >= endNs)
+                        break;
+                    Thread.sleep(pausePollMs);
+                }
+
+                // Finish the pause, cutting the fade out short if it still hasn't played
+                final int result;
+                synchronized (nativeLock) {
+                    result = finishPauseJNI(0, release);
+                }
+                if (result < 0)
+                    throw new RuntimeException(BuildConfig.DEBUG ? "Failed to pause playback" :
+                            "");
+
+                final boolean fadedOut = result > 0;
+                if (listener != null)
+                    listener.onPaused(fadedOut);
+                return fadedOut;
+            }
+        });
+    }
+
+    /*
+     * End the playback session, shutting down the audio output. The next play starts a new one.
+     */
+    public void release() {
+        synchronized (nativeLock) {
+            if (!releaseJNI())
+                throw new RuntimeException(BuildConfig.DEBUG ? "Failed to release playback" : "");
+        }
+    }
+
+    /*
+     * Switch the buffering of the audio output to one of the latency profiles. If a sound is
+     * playing, it ramps down and back up while the output reopens. If the device refuses the new
+     * buffering, the output keeps the old profile and this returns false.
+     */
+    public boolean setProfile(int profile) {
+        synchronized (nativeLock) {
+            final int result = setProfileJNI(profile);
+            if (result < 0)
+                throw new RuntimeException(BuildConfig.DEBUG ? "Failed to set the latency profile" :
+                        "");
+            return result == 0;
+        }
+    }
+
+    /*
+     * Switch the latency profile like setProfile, returning right away rather than waiting for the
+     * output to reopen. The switch happens on a background thread, after any asynchronous pause
+     * requested before it. Nobody waits for it, so failures are logged there. A profile the device
+     * refuses leaves the old one, and an output which fails to reopen stays closed until the next
+     * play.
+     */
+    public void setProfileAsync(final int profile) {
+        asyncExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!setProfile(profile))
+                        Log.w(logTag, String.format("Kept the old latency profile, since the " +
+                                "output failed to open with profile %d", profile));
+                } catch (RuntimeException e) {
+                    Log.e(logTag, String.format("Failed to switch to latency profile %d, so the " +
+                            "output is closed until the next play", profile), e);
+                }
+            }
+        });
+    }
+
+    /*
+     * Mix another sound over the one playing, e.g. a second drone over the first. It loops on its
+     * own, at the given gain, starting the given number of frames after the start of the playing
+     * sound's loop. It fades in without interrupting playback, and is removed when playback
+     * pauses. Returns an ID for changing the stream's gain or removing it.
+     */
+    public int addStream(float[] sound, float gain, int offsetFrames) {
+        synchronized (nativeLock) {
+            final int stream = addStreamJNI(sound, gain, offsetFrames);
+            if (stream < 0)
+                throw new RuntimeException(BuildConfig.DEBUG ? "Failed to add a stream" : "");
+            return stream;
+        }
+    }
+
+    /*
+     * Mix another sound in 16 bit PCM over the one playing, like the float version.
+     */
+    public int addStream(short[] sound, float gain, int offsetFrames) {
+        synchronized (nativeLock) {
+            final int stream = addStreamPcm16JNI(sound, gain, offsetFrames);
+            if (stream < 0)
+                throw new RuntimeException(BuildConfig.DEBUG ? "Failed to add a stream" : "");
+            return stream;
+        }
+    }
+
+    /*
+     * Fade out a stream and remove it, without interrupting playback. Returns false if the stream
+     * is already gone, e.g. since playback paused.
+     */
+    public boolean removeStream(int stream) {
+        synchronized (nativeLock) {
+            return removeStreamJNI(stream);
+        }
+    }
+
+    /*
+     * Fade a stream to a new gain. Returns false if the stream is gone.
+     */
+    public boolean setStreamGain(int stream, float gain) {
+        synchronized (nativeLock) {
+            return setStreamGainJNI(stream, gain);
+        }
+    }
+
+    /*
+     * Click on every beat of the sound which is playing, e.g. a metronome over a drone. The accent
+     * clicks on the first beat of each bar of the given number of beats, or never if that is 0 or
+     * the accent is null. The clicks are rendered once, and playback schedules them on the beat,
+     * so the tempo can change without rendering them again. Replaces the current clicks on the
+     * next beat. They stop when playback pauses.
+     */
+    public void setClickTrack(float[] click, float[] accent, int beatsPerBar, float gain) {
+        synchronized (nativeLock) {
+            if (!setClickTrackJNI(click, accent, beatsPerBar, gain))
+                throw new RuntimeException(BuildConfig.DEBUG ? "Failed to set the click track" :
+                        "");
+        }
+    }
+
+    /*
+     * Click on every beat in 16 bit PCM, like the float version.
+     */
+    public void setClickTrack(short[] click, short[] accent, int beatsPerBar, float gain) {
+        synchronized (nativeLock) {
+            if (!setClickTrackPcm16JNI(click, accent, beatsPerBar, gain))
+                throw new RuntimeException(BuildConfig.DEBUG ? "Failed to set the click track" :
+                        "");
+        }
+    }
+
+    /*
+     * Stop clicking from the next beat on.
+     */
+    public void clearClickTrack() {
+        synchronized (nativeLock) {
+            clearClickTrackJNI();
+        }
+    }
+
+    /*
+     * Query how many times per minute the audio output wakes up the CPU to render, since it
+     * opened. Returns -1 if no output is open.
+     */
+    public double getWakeupsPerMinute() {
+        synchronized (nativeLock) {
+            return getWakeupsPerMinuteJNI();
+        }
+    }
+
+    /*
+     * Query the time from the last play request until its sound started, in nanoseconds. Returns
+     * -1 if nothing has played yet.
+     */
+    public long getSwitchLatencyNs() {
+        return getSwitchLatencyJNI();
+    }
+
+    /*
+     * Query the number of underruns of the audio output this session. Returns -1 if the output
+     * can't tell.
+     */
+    public int getUnderrunCount() {
+        synchronized (nativeLock) {
+            return getUnderrunCountJNI();
+        }
+    }
+
+    /*
+     * Query whether the audio output plays floating point, rather than 16 bit PCM.
+     */
+    public boolean isFloatOutput() {
+        synchronized (nativeLock) {
+            return isFloatOutputJNI();
+        }
     }
 
     /*
@@ -86,14 +381,46 @@ public class PlaybackDriver {
         return isPlayingJNI();
     }
 
+    /*
+     * Take a snapshot of the playback health since the audio output opened, with the device and
+     * the buffer size it reports. Returns null if no output is open.
+     */
+    public PlaybackHealth getHealth(Context context) {
+        final long[] snapshot;
+        synchronized (nativeLock) {
+            snapshot = getHealthJNI();
+        }
+        if (snapshot == null)
+            return null;
+        if (snapshot.length != PlaybackHealth.snapshotLength)
+            throw new RuntimeException(BuildConfig.DEBUG ? "Unexpected health snapshot length " +
+                    snapshot.length : "");
+
+        return new PlaybackHealth(snapshot, getBufferSize(context));
+    }
+
     /**
      * Play the sound.
      * @return true on success.
      */
-    private boolean playJNI(final int sampleRate, final int bufferSizeMono, final float[] sound) {
-        return B(sampleRate, bufferSizeMono, sound);
+    private boolean playJNI(final int sampleRate, final int bufferSizeMono, final float[] sound,
+                            final boolean immediate, final boolean floatOutput) {
+        return B(sampleRate, bufferSizeMono, sound, immediate, floatOutput);
+    }
+    private native boolean B(int sampleRate, int bufferSizeMono, float[] sound,
+                             boolean immediate, boolean floatOutput);
+
+    /**
+     * Play the sound, in 16 bit PCM.
+     * @return true on success.
+     */
+    private boolean playPcm16JNI(final int sampleRate, final int bufferSizeMono,
+                                 final short[] sound, final boolean immediate,
+                                 final boolean floatOutput) {
+        return E(sampleRate, bufferSizeMono, sound, immediate, floatOutput);
     }
-    private native boolean B(int sampleRate, int bufferSizeMono, float[] sound);
+    private native boolean E(int sampleRate, int bufferSizeMono, short[] sound,
+                             boolean immediate, boolean floatOutput);
 
     /**
      * Pause the sound.
@@ -104,6 +431,31 @@ public class PlaybackDriver {
     }
     private native boolean C();
 
+    /**
+     * Start pausing the sound, without waiting.
+     */
+    private void beginPauseJNI() {
+        L();
+    }
+    private native void L();
+
+    /**
+     * Finish pausing the sound, optionally releasing the audio output.
+     * @return 1 if the sound faded out, 0 if it was cut short, or -1 on failure.
+     */
+    private int finishPauseJNI(final long timeoutMs, final boolean release) {
+        return M(timeoutMs, release);
+    }
+    private native int M(long timeoutMs, boolean release);
+
+    /**
+     * Query whether finishing the pause would return right away.
+     */
+    private boolean isPauseSettledJNI() {
+        return V();
+    }
+    private native boolean V();
+
     /**
      * Query whether sound is currently playing.
      * @return true if playing.
@@ -111,6 +463,125 @@ public class PlaybackDriver {
     private boolean isPlayingJNI() { return D(); }
     private native boolean D();
 
+    /**
+     * Stop the sound and release the audio output.
+     * @return true on success.
+     */
+    private boolean releaseJNI() {
+        return F();
+    }
+    private native boolean F();
+
+    /**
+     * Query the latency of the last play request.
+     * @return the latency in nanoseconds, or -1 if unknown.
+     */
+    private long getSwitchLatencyJNI() { return G(); }
+    private native long G();
+
+    /**
+     * Query the number of underruns.
+     * @return the count, or -1 if unknown.
+     */
+    private int getUnderrunCountJNI() { return H(); }
+    private native int H();
+
+    /**
+     * Query the sample format of the audio output.
+     * @return true if it plays floating point.
+     */
+    private boolean isFloatOutputJNI() { return I(); }
+    private native boolean I();
+
+    /**
+     * Set the latency profile.
+     * @return 0 on success, 1 if the output kept the old profile, -1 on error.
+     */
+    private int setProfileJNI(final int profile) {
+        return J(profile);
+    }
+    private native int J(int profile);
+
+    /**
+     * Query the rate of audio callbacks.
+     * @return the callbacks per minute, or -1 if unknown.
+     */
+    private double getWakeupsPerMinuteJNI() { return K(); }
+    private native double K();
+
+    /**
+     * Add a stream to mix over the sound.
+     * @return the stream's ID, or -1 on failure.
+     */
+    private int addStreamJNI(final float[] sound, final float gain, final int offsetFrames) {
+        return N(sound, gain, offsetFrames);
+    }
+    private native int N(float[] sound, float gain, int offsetFrames);
+
+    /**
+     * Add a stream in 16 bit PCM to mix over the sound.
+     * @return the stream's ID, or -1 on failure.
+     */
+    private int addStreamPcm16JNI(final short[] sound, final float gain, final int offsetFrames) {
+        return O(sound, gain, offsetFrames);
+    }
+    private native int O(short[] sound, float gain, int offsetFrames);
+
+    /**
+     * Remove a stream.
+     * @return true on success.
+     */
+    private boolean removeStreamJNI(final int stream) {
+        return P(stream);
+    }
+    private native boolean P(int stream);
+
+    /**
+     * Set the gain of a stream.
+     * @return true on success.
+     */
+    private boolean setStreamGainJNI(final int stream, final float gain) {
+        return Q(stream, gain);
+    }
+    private native boolean Q(int stream, float gain);
+
+    /**
+     * Set the clicks to play on the beat.
+     * @return true on success.
+     */
+    private boolean setClickTrackJNI(final float[] click, final float[] accent,
+                                     final int beatsPerBar, final float gain) {
+        return R(click, accent, beatsPerBar, gain);
+    }
+    private native boolean R(float[] click, float[] accent, int beatsPerBar, float gain);
+
+    /**
+     * Set the clicks to play on the beat, in 16 bit PCM.
+     * @return true on success.
+     */
+    private boolean setClickTrackPcm16JNI(final short[] click, final short[] accent,
+                                          final int beatsPerBar, final float gain) {
+        return S(click, accent, beatsPerBar, gain);
+    }
+    private native boolean S(short[] click, short[] accent, int beatsPerBar, float gain);
+
+    /**
+     * Stop the clicks.
+     */
+    private void clearClickTrackJNI() {
+        T();
+    }
+    private native void T();
+
+    /**
+     * Query the playback health.
+     * @return the native snapshot, or null if no output is open.
+     */
+    private long[] getHealthJNI() {
+        return U();
+    }
+    private native long[] U();
+
     // Load playback library
     static
     {
@@ -0,0 +1,101 @@
+package com.bbrister.mididriver;
+
+import android.os.Build;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/* Class to hold the playback health returned by PlaybackDriver.getHealth(), since the audio output
+ * opened. Glitches show up as late callbacks, underruns, enqueue failures or long render times. The
+ * device and the buffer size it reports are included, to correlate glitches with them. */
+public class PlaybackHealth {
+    /* Bins of the time histograms. Bin i counts times from 2^i up to 2^(i+1) microseconds, except
+     * the first also counts anything shorter, and the last anything longer. */
+    public static final int numBins = 24;
+
+    // Layout of the native snapshot, see playback_health.h
+    private static final int elapsedIndex = 0;
+    private static final int callbacksIndex = 1;
+    private static final int framesIndex = 2;
+    private static final int maxIntervalIndex = 3;
+    private static final int renderIndex = 4;
+    private static final int maxRenderIndex = 5;
+    private static final int lateCallbacksIndex = 6;
+    private static final int underrunsIndex = 7;
+    private static final int enqueueFailuresIndex = 8;
+    private static final int sampleRateIndex = 9;
+    private static final int framesPerCallbackIndex = 10;
+    private static final int bufferedFramesIndex = 11;
+    private static final int profileIndex = 12;
+    private static final int floatOutputIndex = 13;
+    private static final int intervalBinsIndex = 14;
+    private static final int renderBinsIndex = intervalBinsIndex + numBins;
+    static final int snapshotLength = renderBinsIndex + numBins;
+
+    public final long elapsedNs; // Time since the output opened
+    public final long callbacks; // Render callbacks, i.e. wakeups of the audio thread
+    public final long frames; // Frames rendered
+    public final long maxIntervalNs; // Longest time from the start of one callback to the next
+    public final long renderNs; // Total time spent rendering
+    public final long maxRenderNs; // Longest time spent in one callback
+    public final long lateCallbacks; // Callbacks after the buffered audio would have run out
+    public final long underruns; // Underruns reported by the output, or -1 if it can't tell
+    public final long enqueueFailures; // Rendered buffers the output failed to queue
+    public final int sampleRate;
+    public final int framesPerCallback; // Buffer size the output was opened with
+    public final int bufferedFrames; // Frames rendered ahead of what is audible
+    public final int profile; // Latency profile, one of the PlaybackDriver profiles
+    public final boolean floatOutput; // Whether the output plays floating point
+    public final long intervalBins[]; // Histogram of the times from one callback to the next
+    public final long renderBins[]; // Histogram of the times spent in each callback
+
+    // The device
+    public final String manufacturer = Build.MANUFACTURER;
+    public final String model = Build.MODEL;
+    public final int deviceBufferSize; // Frames per buffer reported by the device
+
+    // Unpack a native snapshot
+    PlaybackHealth(final long[] snapshot, final int deviceBufferSize) {
+        elapsedNs = snapshot[elapsedIndex];
+        callbacks = snapshot[callbacksIndex];
+        frames = snapshot[framesIndex];
+        maxIntervalNs = snapshot[maxIntervalIndex];
+        renderNs = snapshot[renderIndex];
+        maxRenderNs = snapshot[maxRenderIndex];
+        lateCallbacks = snapshot[lateCallbacksIndex];
+        underruns = snapshot[underrunsIndex];
+        enqueueFailures = snapshot[enqueueFailuresIndex];
+        sampleRate = (int) snapshot[sampleRateIndex];
+        framesPerCallback = (int) snapshot[framesPerCallbackIndex];
+        bufferedFrames = (int) snapshot[bufferedFramesIndex];
+        profile = (int) snapshot[profileIndex];
+        floatOutput = snapshot[floatOutputIndex] != 0;
+        intervalBins = Arrays.copyOfRange(snapshot, intervalBinsIndex, intervalBinsIndex + numBins);
+        renderBins = Arrays.copyOfRange(snapshot, renderBinsIndex, renderBinsIndex + numBins);
+        this.deviceBufferSize = deviceBufferSize;
+    }
+
+    // Get the shortest time counted by the i-th bin, in microseconds
+    public static long getBinStartUs(int i) {
+        return i > 0 ? 1L << i : 0;
+    }
+
+    // Get the mean time spent in a callback, in nanoseconds, or 0 if there were none
+    public double getMeanRenderNs() {
+        return callbacks > 0 ? (double) renderNs / callbacks : 0;
+    }
+
+    // Summarize the health in one line, for logging
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s %s, buffer %d, rate %d, %d frames per callback, " +
+                        "%d buffered, profile %d, %s: %d callbacks in %.1f s, max interval " +
+                        "%.2f ms, render mean %.1f us max %.1f us, %d late, %d underruns, " +
+                        "%d enqueue failures, intervals %s, renders %s",
+                manufacturer, model, deviceBufferSize, sampleRate, framesPerCallback,
+                bufferedFrames, profile, floatOutput ? "float" : "16 bit PCM", callbacks,
+                elapsedNs / 1e9, maxIntervalNs / 1e6, getMeanRenderNs() / 1e3, maxRenderNs / 1e3,
+                lateCallbacks, underruns, enqueueFailures, Arrays.toString(intervalBins),
+                Arrays.toString(renderBins));
+    }
+}
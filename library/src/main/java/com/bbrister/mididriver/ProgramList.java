@@ -0,0 +1,23 @@
+package com.bbrister.mididriver;
+
+import java.util.Arrays;
+
+/* Class to hold the programs returned by listPrograms(). The arrays are parallel, with an entry per
+ * program in increasing order. */
+public class ProgramList {
+    public static final int numKeys = 128; // Length of a key range mask
+
+    public byte programs[];
+    public String names[];
+    public boolean keyRanges[]; // numKeys entries per program, true for each key which sounds
+
+    // Get the number of programs
+    public int size() {
+        return programs.length;
+    }
+
+    // Get the key range mask of the i-th program
+    public boolean[] getKeyRange(int i) {
+        return Arrays.copyOfRange(keyRanges, i * numKeys, (i + 1) * numKeys);
+    }
+}
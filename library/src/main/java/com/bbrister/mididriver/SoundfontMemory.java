@@ -0,0 +1,38 @@
+package com.bbrister.mididriver;
+
+import java.util.Locale;
+
+/* Class to hold the memory held for the sounds, returned by MidiDriver.getMemoryUsage(). The
+ * metadata of a soundfont, i.e. its presets, instruments and sample headers, is held apart from
+ * its sample data. Sample data held in memory is pooled, so soundfonts which share a sample store
+ * it once. */
+public class SoundfontMemory {
+
+    // Layout of the native report, see enum memory_field in midi.c
+    private static final int metadataIndex = 0;
+    private static final int peakMetadataIndex = 1;
+    private static final int pooledIndex = 2;
+    private static final int savedIndex = 3;
+    static final int snapshotLength = savedIndex + 1;
+
+    public final long metadataBytes; // Metadata of the active soundfont, or 0 if there is none
+    public final long peakMetadataBytes; // Most metadata it held at once while loading
+    public final long pooledSampleBytes; // Sample data in the pool, for all loaded soundfonts
+    public final long savedSampleBytes; // Sample data saved by sharing, versus a copy for each
+
+    // Unpack a native report
+    SoundfontMemory(final long[] snapshot) {
+        metadataBytes = snapshot[metadataIndex];
+        peakMetadataBytes = snapshot[peakMetadataIndex];
+        pooledSampleBytes = snapshot[pooledIndex];
+        savedSampleBytes = snapshot[savedIndex];
+    }
+
+    // Summarize the memory in one line, for logging
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "soundfont metadata %d bytes, %d bytes peak while " +
+                        "loading, sample pool %d bytes, %d bytes saved by sharing", metadataBytes,
+                peakMetadataBytes, pooledSampleBytes, savedSampleBytes);
+    }
+}
@@ -14,28 +14,58 @@
 #
 LOCAL_PATH := $(call my-dir)
 
+# 32 bit ARM devices render with the fixed point synth, which outputs 16 bit PCM without a float
+# pass. It stays within 80 dB SNR of the float synth, checked by tools/fixed_point_snr.sh.
+ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
+RENDER_CFLAGS := -DFLUID_FIXED_POINT
+else
+RENDER_CFLAGS :=
+endif
+
+# Instruction set variants of the synth, in order of preference. Each variant is built into its own
+# libmidi_<variant>.so, and libmidi loads the best one the CPU supports. Keep this in sync with the
+# variant table in midi_dispatch.c.
+MIDI_VARIANTS := generic
+MIDI_VARIANT_CFLAGS_generic :=
+ifeq ($(TARGET_ARCH_ABI),arm64-v8a)
+MIDI_VARIANTS += dotprod
+MIDI_VARIANT_CFLAGS_dotprod := -march=armv8.2-a+dotprod+fp16
+endif
+ifeq ($(TARGET_ARCH_ABI),x86_64)
+MIDI_VARIANTS += avx2
+MIDI_VARIANT_CFLAGS_avx2 := -mavx2 -mfma
+endif
+
+FLUID_CFLAGS := -O3 -DNDEBUG -std=gnu99 -fvisibility=hidden -D UNIFIED_DEBUG_MESSAGES $(RENDER_CFLAGS)
+
+# Translation units which run per sample. These are built once per variant.
+FLUID_HOT_SRC_FILES := \
+	fluidlite_squash/fluid_chorus.c \
+	fluidlite_squash/fluid_dsp_float.c \
+	fluidlite_squash/fluid_rev.c \
+	fluidlite_squash/fluid_voice.c
+
 include $(CLEAR_VARS)
 
 LOCAL_SRC_FILES = \
+	fluidlite_squash/fluid_arena.c \
 	fluidlite_squash/fluid_chan.c \
-	fluidlite_squash/fluid_chorus.c \
 	fluidlite_squash/fluid_conv.c \
 	fluidlite_squash/fluid_defsfont.c \
-	fluidlite_squash/fluid_dsp_float.c \
 	fluidlite_squash/fluid_gen.c \
 	fluidlite_squash/fluid_hash.c \
 	fluidlite_squash/fluid_list.c \
 	fluidlite_squash/fluid_mod.c \
 	fluidlite_squash/fluid_ramsfont.c \
-	fluidlite_squash/fluid_rev.c \
+	fluidlite_squash/fluid_sample_pool.c \
 	fluidlite_squash/fluid_settings.c \
 	fluidlite_squash/fluid_synth.c \
 	fluidlite_squash/fluid_sys.c \
 	fluidlite_squash/fluid_tuning.c \
-	fluidlite_squash/fluid_voice.c \
+	fluidlite_squash/fluid_vorbis.c \
 	fluidlite_squash/aasset_stdio_adapter.c
 
-LOCAL_CFLAGS += -O3 -DNDEBUG -std=gnu99 -fvisibility=hidden -D UNIFIED_DEBUG_MESSAGES
+LOCAL_CFLAGS += $(FLUID_CFLAGS)
 
 LOCAL_C_INCLUDES := \
 	${LOCAL_PATH}/fluidlite_squash
@@ -46,13 +76,39 @@ LOCAL_MODULE := fluidlite
 
 include $(BUILD_STATIC_LIBRARY)
 
+# Builds the hot translation units and the MIDI driver for the variant named by the argument. The
+# two fluid libraries reference each other, so both are linked whole.
+define midi-variant
+include $$(CLEAR_VARS)
+
+LOCAL_MODULE := fluidlite_hot_$(1)
+LOCAL_SRC_FILES := $$(FLUID_HOT_SRC_FILES)
+LOCAL_CFLAGS += $$(FLUID_CFLAGS) $$(MIDI_VARIANT_CFLAGS_$(1))
+LOCAL_C_INCLUDES := $$(LOCAL_PATH)/fluidlite_squash
+LOCAL_ARM_MODE := arm
+
+include $$(BUILD_STATIC_LIBRARY)
+
+include $$(CLEAR_VARS)
+
+LOCAL_MODULE    := midi_$(1)
+LOCAL_SRC_FILES := midi.c dither.c
+LOCAL_C_INCLUDES := $$(LOCAL_PATH)/fluidlite_squash
+LOCAL_WHOLE_STATIC_LIBRARIES := fluidlite_hot_$(1) fluidlite
+LOCAL_LDLIBS := -llog -landroid -lm -ldl
+
+LOCAL_CFLAGS += -O3 -DNDEBUG -fvisibility=hidden $$(RENDER_CFLAGS) $$(MIDI_VARIANT_CFLAGS_$(1))
+
+include $$(BUILD_SHARED_LIBRARY)
+endef
+
+$(foreach variant,$(MIDI_VARIANTS),$(eval $(call midi-variant,$(variant))))
+
 include $(CLEAR_VARS)
 
 LOCAL_MODULE    := midi
-LOCAL_SRC_FILES := midi.c
-LOCAL_C_INCLUDES := ${LOCAL_PATH}/fluidlite_squash
-LOCAL_STATIC_LIBRARIES := fluidlite
-LOCAL_LDLIBS := -llog -landroid -lm
+LOCAL_SRC_FILES := midi_dispatch.c
+LOCAL_LDLIBS := -llog -ldl
 
 LOCAL_CFLAGS += -O3 -DNDEBUG -fvisibility=hidden
 
@@ -61,8 +117,8 @@ include $(BUILD_SHARED_LIBRARY)
 include $(CLEAR_VARS)
 
 LOCAL_MODULE    := playback
-LOCAL_SRC_FILES := playback.c
-LOCAL_LDLIBS := -lOpenSLES -llog
+LOCAL_SRC_FILES := playback.c dither.c audio_sink_aaudio.c audio_sink_opensl.c
+LOCAL_LDLIBS := -lOpenSLES -llog -ldl
 
 LOCAL_CFLAGS += -O3 -DNDEBUG -fvisibility=hidden
 
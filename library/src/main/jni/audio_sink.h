@@ -0,0 +1,106 @@
+/*
+ * Interface to the audio outputs which play the recording. Each output pulls audio from a render
+ * callback on its own thread. Playback only depends on this interface, so the outputs can be
+ * swapped for one another.
+ *
+ * Created by: Blaine Rister Oct 19 2026
+ */
+
+#ifndef METRODRONE_AUDIO_SINK_H
+#define METRODRONE_AUDIO_SINK_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+#include "global.h"
+
+// Sample formats of the audio outputs
+enum sample_format {
+    SAMPLE_FORMAT_I16, // 16 bit PCM, i.e. output_t
+    SAMPLE_FORMAT_FLOAT // Floating point, with full scale at maxFloatLevel
+};
+
+// Buffering profiles, trading latency for power. The values match PlaybackDriver.
+enum latency_profile {
+    PROFILE_LOW_LATENCY, // Smallest buffers the device takes, for quick changes
+    PROFILE_BALANCED, // Larger buffers, in the default performance mode
+    PROFILE_DEEP_BUFFER, // Large buffers which let the CPU sleep, e.g. while the screen is off
+    NUM_PROFILES
+};
+
+// Size of a sample in the given format, in bytes
+static inline size_t getSampleSize(const enum sample_format format) {
+    return format == SAMPLE_FORMAT_FLOAT ? sizeof(float) : sizeof(output_t);
+}
+
+// Fills the buffer with the given number of interleaved frames, in the format the output was opened
+// with. Called from the audio thread.
+typedef void (*audio_render_callback)(void *buffer, int32_t numFrames);
+
+// An audio output. Each holds at most one stream at a time.
+struct audio_sink {
+
+    // Name for logging
+    const char *name;
+
+    // Open a stream which pulls audio from the callback, without starting it. The buffer size is
+    // the preferred number of frames per callback, which outputs may ignore. The profile sets the
+    // queue depth and performance mode. Returns 0 on success, or nonzero if the output can't play
+    // the format.
+    int (*open)(int sampleRate, int bufferSizeMono, enum sample_format format,
+                enum latency_profile profile, audio_render_callback render);
+
+    // Start or resume pulling audio. Returns 0 on success.
+    int (*start)(void);
+
+    // Pause the stream. A few more callbacks may come. Returns 0 on success.
+    int (*stop)(void);
+
+    // Close the stream, if any. No more callbacks come once this returns.
+    void (*close)(void);
+
+    // Tell whether the stream can still play. A stream can die, e.g. when the device disconnects,
+    // after which no more callbacks come.
+    int (*is_alive)(void);
+
+    // Number of frames rendered ahead of what is audible
+    int32_t (*get_buffered_frames)(void);
+
+    // Number of underruns since the stream opened, or -1 if the output can't tell
+    int32_t (*get_xrun_count)(void);
+
+    // Number of rendered buffers the output failed to queue since the stream opened. Each one is
+    // lost, so it glitches.
+    int32_t (*get_enqueue_failure_count)(void);
+};
+
+// The available outputs
+extern const struct audio_sink aaudio_sink;
+extern const struct audio_sink opensl_sink;
+
+// Simulated outputs for running off-device, in audio_sink_simulated.c. These are not part of the
+// app.
+extern const struct audio_sink null_sink; // Discards the audio
+extern const struct audio_sink wav_sink; // Writes the audio to a WAV file
+
+// Statistics of a simulated output, since it opened
+struct simulated_sink_stats {
+    int64_t frames; // Frames rendered
+    int64_t callbacks; // Calls to the render callback
+    int64_t render_ns; // Total time spent rendering
+    int64_t max_render_ns; // Longest time spent in one call
+    int64_t xruns; // Periods in which rendering missed the simulated device's deadline
+};
+
+/* Configure the simulated outputs before opening them. The WAV output writes to the given path.
+ * The speed scales the simulated device's clock, e.g. 2 pulls audio twice as fast as the sample
+ * rate, while 0 pulls it as fast as it renders. */
+void simulated_sink_configure(const char *wavPath, double speed);
+
+// Read the statistics of the open simulated output
+void simulated_sink_get_stats(struct simulated_sink_stats *stats);
+
+// Play through the given output, instead of the first one which opens. Used off-device.
+void playback_use_sink(const struct audio_sink *sink);
+
+#endif //METRODRONE_AUDIO_SINK_H
@@ -0,0 +1,350 @@
+/*
+ * Low latency audio output through AAudio. AAudio only exists on API level 26+, so the library is
+ * loaded at runtime, and opening fails on older devices.
+ *
+ * Created by: Blaine Rister Oct 19 2026
+ */
+
+#include <aaudio/AAudio.h>
+#include <assert.h>
+#include <dlfcn.h>
+#include <pthread.h>
+#include <stdint.h>
+
+#include "audio_sink.h"
+
+// Stream settings of each profile
+static const struct {
+    aaudio_performance_mode_t performanceMode;
+    aaudio_sharing_mode_t sharingMode;
+    int burstsPerBuffer; // Or 0 for the whole capacity
+} profiles[NUM_PROFILES] = {
+        // Least latency which reliably avoids underruns
+        {AAUDIO_PERFORMANCE_MODE_LOW_LATENCY,  AAUDIO_SHARING_MODE_EXCLUSIVE, 2},
+        {AAUDIO_PERFORMANCE_MODE_NONE,         AAUDIO_SHARING_MODE_SHARED,    4},
+        // The deep buffer path, with large bursts
+        {AAUDIO_PERFORMANCE_MODE_POWER_SAVING, AAUDIO_SHARING_MODE_SHARED,    0}
+};
+
+// Entry points of libaaudio
+static struct {
+    aaudio_result_t (*createStreamBuilder)(AAudioStreamBuilder **builder);
+    void (*setSampleRate)(AAudioStreamBuilder *builder, int32_t sampleRate);
+    void (*setChannelCount)(AAudioStreamBuilder *builder, int32_t channelCount);
+    void (*setFormat)(AAudioStreamBuilder *builder, aaudio_format_t format);
+    void (*setPerformanceMode)(AAudioStreamBuilder *builder, aaudio_performance_mode_t mode);
+    void (*setSharingMode)(AAudioStreamBuilder *builder, aaudio_sharing_mode_t sharingMode);
+    void (*setDataCallback)(AAudioStreamBuilder *builder, AAudioStream_dataCallback callback,
+                            void *userData);
+    void (*setErrorCallback)(AAudioStreamBuilder *builder, AAudioStream_errorCallback callback,
+                             void *userData);
+    aaudio_result_t (*openStream)(AAudioStreamBuilder *builder, AAudioStream **stream);
+    aaudio_result_t (*deleteBuilder)(AAudioStreamBuilder *builder);
+    aaudio_result_t (*requestStart)(AAudioStream *stream);
+    aaudio_result_t (*requestPause)(AAudioStream *stream);
+    aaudio_result_t (*close)(AAudioStream *stream);
+    int32_t (*getSampleRate)(AAudioStream *stream);
+    aaudio_format_t (*getFormat)(AAudioStream *stream);
+    aaudio_sharing_mode_t (*getSharingMode)(AAudioStream *stream);
+    int32_t (*getFramesPerBurst)(AAudioStream *stream);
+    aaudio_result_t (*setBufferSizeInFrames)(AAudioStream *stream, int32_t numFrames);
+    int32_t (*getBufferSizeInFrames)(AAudioStream *stream);
+    int32_t (*getBufferCapacityInFrames)(AAudioStream *stream);
+    int32_t (*getXRunCount)(AAudioStream *stream);
+} aa;
+
+// Names of the entry points, in the order of the struct
+static const char *const symbols[] = {
+        "AAudio_createStreamBuilder",
+        "AAudioStreamBuilder_setSampleRate",
+        "AAudioStreamBuilder_setChannelCount",
+        "AAudioStreamBuilder_setFormat",
+        "AAudioStreamBuilder_setPerformanceMode",
+        "AAudioStreamBuilder_setSharingMode",
+        "AAudioStreamBuilder_setDataCallback",
+        "AAudioStreamBuilder_setErrorCallback",
+        "AAudioStreamBuilder_openStream",
+        "AAudioStreamBuilder_delete",
+        "AAudioStream_requestStart",
+        "AAudioStream_requestPause",
+        "AAudioStream_close",
+        "AAudioStream_getSampleRate",
+        "AAudioStream_getFormat",
+        "AAudioStream_getSharingMode",
+        "AAudioStream_getFramesPerBurst",
+        "AAudioStream_setBufferSizeInFrames",
+        "AAudioStream_getBufferSizeInFrames",
+        "AAudioStream_getBufferCapacityInFrames",
+        "AAudioStream_getXRunCount"
+};
+
+// Library state
+static void *library = NULL;
+
+// Stream state, guarded by the lock. The audio thread only uses the render callback.
+static pthread_mutex_t lock = PTHREAD_MUTEX_INITIALIZER;
+static AAudioStream *stream = NULL;
+static intptr_t stream_generation; // Tells apart the streams reopened after errors
+static int stream_started; // Whether the stream should be pulling audio
+static int stream_sample_rate;
+static aaudio_format_t stream_format;
+static enum latency_profile stream_profile;
+static int32_t closed_xruns; // Underruns of the streams replaced after errors
+static audio_render_callback renderCallback;
+
+// Load libaaudio, if it exists. It stays loaded for the lifetime of the process.
+static int loadLibrary(void) {
+
+    void **const entryPoints = (void **) &aa;
+    const size_t numSymbols = sizeof(symbols) / sizeof(symbols[0]);
+    size_t i;
+
+    if (library != NULL)
+        return 0;
+
+    assert(sizeof(aa) == numSymbols * sizeof(void *));
+
+    if ((library = dlopen("libaaudio.so", RTLD_NOW)) == NULL) {
+        LOG_I(LOG_TAG, "AAudio is not available on this device.");
+        return -1;
+    }
+
+    for (i = 0; i < numSymbols; i++) {
+        if ((entryPoints[i] = dlsym(library, symbols[i])) == NULL) {
+            LOG_W(LOG_TAG, "Missing AAudio entry point %s", symbols[i]);
+            dlclose(library);
+            library = NULL;
+            return -1;
+        }
+    }
+
+    return 0;
+}
+
+// Called from the audio thread. Render straight into the stream's buffer.
+static aaudio_data_callback_result_t dataCallback(AAudioStream *callbackStream, void *userData,
+                                                  void *audioData, int32_t numFrames) {
+    renderCallback(audioData, numFrames);
+    return AAUDIO_CALLBACK_RESULT_CONTINUE;
+}
+
+static void *restartStream(void *arg);
+
+/* Called from an AAudio thread when the stream fails, e.g. the headphones are unplugged. The
+ * stream can't be closed from here, so this hands off to another thread, which opens a stream on
+ * the new device. */
+static void errorCallback(AAudioStream *callbackStream, void *userData, aaudio_result_t error) {
+
+    pthread_t thread;
+
+    LOG_W(LOG_TAG, "AAudio stream error %d. Restarting the stream.", error);
+
+    if (pthread_create(&thread, NULL, restartStream, userData) == 0) {
+        pthread_detach(thread);
+    } else {
+        LOG_E(LOG_TAG, "Failed to create a thread to restart the stream.");
+    }
+}
+
+// Open a stream with the current parameters. The lock must be held.
+static int openStream(void) {
+
+    AAudioStreamBuilder *builder;
+    aaudio_result_t result;
+
+    if ((result = aa.createStreamBuilder(&builder)) != AAUDIO_OK) {
+        LOG_E(LOG_TAG, "Failed to create an AAudio stream builder (code %d).", result);
+        return -1;
+    }
+
+    // An exclusive stream is replaced with a shared one if it's unavailable
+    aa.setSampleRate(builder, stream_sample_rate);
+    aa.setChannelCount(builder, numChannels);
+    aa.setFormat(builder, stream_format);
+    aa.setPerformanceMode(builder, profiles[stream_profile].performanceMode);
+    aa.setSharingMode(builder, profiles[stream_profile].sharingMode);
+    aa.setDataCallback(builder, dataCallback, NULL);
+    aa.setErrorCallback(builder, errorCallback, (void *) ++stream_generation);
+
+    result = aa.openStream(builder, &stream);
+    aa.deleteBuilder(builder);
+    if (result != AAUDIO_OK) {
+        LOG_W(LOG_TAG, "Failed to open an AAudio stream (code %d).", result);
+        stream = NULL;
+        return -1;
+    }
+
+    // The recording is rendered at the requested rate and format
+    if (aa.getSampleRate(stream) != stream_sample_rate) {
+        LOG_W(LOG_TAG, "AAudio stream has sample rate %d instead of %d", aa.getSampleRate(stream),
+              stream_sample_rate);
+        aa.close(stream);
+        stream = NULL;
+        return -1;
+    }
+    if (aa.getFormat(stream) != stream_format) {
+        LOG_W(LOG_TAG, "AAudio stream has format %d instead of %d", aa.getFormat(stream),
+              stream_format);
+        aa.close(stream);
+        stream = NULL;
+        return -1;
+    }
+
+    // Size the buffer for the profile
+    aa.setBufferSizeInFrames(stream, profiles[stream_profile].burstsPerBuffer > 0 ?
+                                     profiles[stream_profile].burstsPerBuffer *
+                                     aa.getFramesPerBurst(stream) :
+                                     aa.getBufferCapacityInFrames(stream));
+
+    LOG_I(LOG_TAG, "Opened %s AAudio stream with sample rate: %d burst size: %d buffer size: %d",
+          aa.getSharingMode(stream) == AAUDIO_SHARING_MODE_EXCLUSIVE ? "an exclusive" : "a shared",
+          stream_sample_rate, aa.getFramesPerBurst(stream), aa.getBufferSizeInFrames(stream));
+
+    return 0;
+}
+
+// Close the stream, keeping its underrun count. The lock must be held.
+static void closeStream(void) {
+    if (stream != NULL) {
+        closed_xruns += aa.getXRunCount(stream);
+        aa.close(stream);
+        stream = NULL;
+    }
+}
+
+// Replace a failed stream, resuming playback if it was playing
+static void *restartStream(void *arg) {
+
+    pthread_mutex_lock(&lock);
+
+    // Ignore streams which were closed in the meantime
+    if (stream != NULL && (intptr_t) arg == stream_generation) {
+        closeStream();
+        if (openStream() == 0 && stream_started && aa.requestStart(stream) != AAUDIO_OK) {
+            LOG_E(LOG_TAG, "Failed to start the restarted AAudio stream.");
+            closeStream();
+        }
+    }
+
+    pthread_mutex_unlock(&lock);
+    return NULL;
+}
+
+// Open a stream with the settings of the profile. AAudio picks the callback size itself.
+static int openSink(const int sampleRate, const int bufferSizeMono,
+                    const enum sample_format format, const enum latency_profile profile,
+                    const audio_render_callback render) {
+
+    int result;
+
+    if (loadLibrary())
+        return -1;
+
+    pthread_mutex_lock(&lock);
+    renderCallback = render;
+    stream_sample_rate = sampleRate;
+    stream_format = format == SAMPLE_FORMAT_FLOAT ? AAUDIO_FORMAT_PCM_FLOAT :
+                    AAUDIO_FORMAT_PCM_I16;
+    stream_profile = profile;
+    stream_started = 0;
+    closed_xruns = 0;
+    result = openStream();
+    pthread_mutex_unlock(&lock);
+
+    return result;
+}
+
+// Start pulling audio
+static int startSink(void) {
+
+    aaudio_result_t result = AAUDIO_ERROR_INVALID_STATE;
+
+    pthread_mutex_lock(&lock);
+    stream_started = 1;
+    if (stream != NULL)
+        result = aa.requestStart(stream);
+    pthread_mutex_unlock(&lock);
+
+    if (result != AAUDIO_OK) {
+        LOG_E(LOG_TAG, "Failed to start the AAudio stream (code %d).", result);
+        return -1;
+    }
+
+    return 0;
+}
+
+// Pause the stream. Note: this is non-blocking
+static int stopSink(void) {
+
+    aaudio_result_t result = AAUDIO_OK;
+
+    pthread_mutex_lock(&lock);
+    stream_started = 0;
+    if (stream != NULL)
+        result = aa.requestPause(stream);
+    pthread_mutex_unlock(&lock);
+
+    return result == AAUDIO_OK ? 0 : -1;
+}
+
+// Close the stream, waiting for its callbacks to finish
+static void closeSink(void) {
+    pthread_mutex_lock(&lock);
+    closeStream();
+    stream_started = 0;
+    pthread_mutex_unlock(&lock);
+}
+
+// The stream dies if it can't be restarted after an error
+static int isSinkAlive(void) {
+
+    int alive;
+
+    pthread_mutex_lock(&lock);
+    alive = stream != NULL;
+    pthread_mutex_unlock(&lock);
+
+    return alive;
+}
+
+// Frames in the stream's buffer
+static int32_t getBufferedFrames(void) {
+
+    int32_t frames = 0;
+
+    pthread_mutex_lock(&lock);
+    if (stream != NULL)
+        frames = aa.getBufferSizeInFrames(stream);
+    pthread_mutex_unlock(&lock);
+
+    return frames;
+}
+
+// Underruns of the current stream and the ones it replaced
+static int32_t getXRunCount(void) {
+
+    int32_t xruns;
+
+    pthread_mutex_lock(&lock);
+    xruns = closed_xruns + (stream != NULL ? aa.getXRunCount(stream) : 0);
+    pthread_mutex_unlock(&lock);
+
+    return xruns;
+}
+
+// The stream pulls each buffer from the callback, so none can fail to queue
+static int32_t getEnqueueFailureCount(void) {
+    return 0;
+}
+
+const struct audio_sink aaudio_sink = {
+        "AAudio",
+        openSink,
+        startSink,
+        stopSink,
+        closeSink,
+        isSinkAlive,
+        getBufferedFrames,
+        getXRunCount,
+        getEnqueueFailureCount
+};
@@ -0,0 +1,398 @@
+/*
+ * Audio output through an OpenSL ES buffer queue player. This works on all supported devices.
+ *
+ * Created by: Blaine Rister Oct 19 2026
+ */
+
+#include <SLES/OpenSLES.h>
+#include <SLES/OpenSLES_Android.h>
+#include <assert.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "audio_sink.h"
+
+// Player settings of each profile
+static const struct {
+    SLuint32 performanceMode;
+    int queueSize; // Buffers in the queue
+} profiles[NUM_PROFILES] = {
+        {SL_ANDROID_PERFORMANCE_LATENCY,       2},
+        {SL_ANDROID_PERFORMANCE_NONE,          2},
+        {SL_ANDROID_PERFORMANCE_POWER_SAVING,  4}
+};
+
+// Static function declarations
+static void bqPlayerCallback(SLAndroidSimpleBufferQueueItf bq, void *context);
+
+// engine interfaces
+static SLObjectItf engineObject = NULL;
+static SLEngineItf engineEngine;
+
+// output mix interfaces
+static SLObjectItf outputMixObject = NULL;
+
+// buffer queue player interfaces
+static SLObjectItf bqPlayerObject = NULL;
+static SLPlayItf bqPlayerPlay;
+static SLAndroidSimpleBufferQueueItf bqPlayerBufferQueue;
+
+// Buffers handed to the queue, rendered in turn
+static audio_render_callback renderCallback;
+static int bufferSizeMono;
+static int bufferQueueSize;
+static size_t buffer_size; // Bytes per buffer
+static char *buffers = NULL;
+static int buffer_index;
+static int32_t enqueue_failures; // Shared with the audio thread
+
+// create the engine and output mix objects
+static SLresult createEngine() {
+    SLresult result;
+
+    // create engine
+    result = slCreateEngine(&engineObject, 0, NULL, 0, NULL, NULL);
+    if (SL_RESULT_SUCCESS != result)
+        return result;
+
+    // LOG_D(LOG_TAG, "Engine created");
+
+    // realize the engine
+    result = (*engineObject)->Realize(engineObject, SL_BOOLEAN_FALSE);
+    if (SL_RESULT_SUCCESS != result)
+        return result;
+
+    // LOG_D(LOG_TAG, "Engine realised");
+
+    // get the engine interface, which is needed in order to create
+    // other objects
+    result = (*engineObject)->GetInterface(engineObject, SL_IID_ENGINE,
+                                           &engineEngine);
+    if (SL_RESULT_SUCCESS != result)
+        return result;
+
+    // LOG_D(LOG_TAG, "Engine Interface retrieved");
+
+    // create output mix
+    result = (*engineEngine)->CreateOutputMix(engineEngine, &outputMixObject,
+                                              0, NULL, NULL);
+    if (SL_RESULT_SUCCESS != result)
+        return result;
+
+    // LOG_D(LOG_TAG, "Output mix created");
+
+    // realize the output mix
+    result = (*outputMixObject)->Realize(outputMixObject, SL_BOOLEAN_FALSE);
+    if (SL_RESULT_SUCCESS != result)
+        return result;
+
+    // LOG_D(LOG_TAG, "Output mix realised");
+
+    return SL_RESULT_SUCCESS;
+}
+
+// create buffer queue audio player
+static SLresult createBufferQueueAudioPlayer(int sampleRate, int deviceBufferSizeMono,
+                                             enum sample_format format,
+                                             enum latency_profile profile) {
+
+    SLAndroidConfigurationItf configItf;
+    SLVolumeItf volumeItf;
+    SLresult result;
+
+    // configure audio source
+    SLDataLocator_AndroidSimpleBufferQueue loc_bufq =
+            {
+                    SL_DATALOCATOR_ANDROIDSIMPLEBUFFERQUEUE, bufferQueueSize
+            };
+    SLDataFormat_PCM format_pcm =
+            {
+                    SL_DATAFORMAT_PCM, (SLuint32)(numChannels),
+                    (SLuint32)(sampleRate * 1000),
+                    SL_PCMSAMPLEFORMAT_FIXED_16, SL_PCMSAMPLEFORMAT_FIXED_16,
+                    SL_SPEAKER_FRONT_LEFT | SL_SPEAKER_FRONT_RIGHT,
+                    SL_BYTEORDER_LITTLEENDIAN
+            };
+    // Float needs the Android extension, from API level 21
+    SLAndroidDataFormat_PCM_EX format_float =
+            {
+                    SL_ANDROID_DATAFORMAT_PCM_EX, (SLuint32)(numChannels),
+                    (SLuint32)(sampleRate * 1000),
+                    SL_PCMSAMPLEFORMAT_FIXED_32, SL_PCMSAMPLEFORMAT_FIXED_32,
+                    SL_SPEAKER_FRONT_LEFT | SL_SPEAKER_FRONT_RIGHT,
+                    SL_BYTEORDER_LITTLEENDIAN, SL_ANDROID_PCM_REPRESENTATION_FLOAT
+            };
+    SLDataSource audioSrc = {&loc_bufq, format == SAMPLE_FORMAT_FLOAT ?
+                                        (void *) &format_float : (void *) &format_pcm};
+
+    // configure audio sink
+    SLDataLocator_OutputMix loc_outmix =
+            {SL_DATALOCATOR_OUTPUTMIX, outputMixObject};
+    SLDataSink audioSnk = {&loc_outmix, NULL};
+
+    // create audio player
+    const SLInterfaceID ids[] = {SL_IID_BUFFERQUEUE, SL_IID_VOLUME, SL_IID_ANDROIDCONFIGURATION};
+    const SLboolean req[] = {SL_BOOLEAN_TRUE, SL_BOOLEAN_FALSE, SL_BOOLEAN_FALSE};
+    const size_t numIds = sizeof(ids) / sizeof(SLInterfaceID);
+
+    result = (*engineEngine)->CreateAudioPlayer(engineEngine,
+                                                &bqPlayerObject,
+                                                &audioSrc, &audioSnk,
+                                                numIds, ids, req);
+    if (SL_RESULT_SUCCESS != result)
+        return result;
+
+    LOG_I(LOG_TAG, "Initialized audio player with sample rate: %d buffer size: %d", sampleRate,
+          deviceBufferSizeMono);
+
+    // LOG_D(LOG_TAG, "Audio player created");
+
+    // Get the Android configuration interface, if it exists. If so, set the performance mode of
+    // the profile. This will fail on Android versions prior to API level 25
+    result = (*bqPlayerObject)->GetInterface(bqPlayerObject, SL_IID_ANDROIDCONFIGURATION,
+                                             &configItf);
+    if (result == SL_RESULT_SUCCESS) {
+
+        const SLuint32 desiredMode = profiles[profile].performanceMode;
+
+        LOG_I(LOG_TAG, "Successfully received Android audio configItf");
+
+        // Set the performance mode
+        result = (*configItf)->SetConfiguration(configItf, SL_ANDROID_KEY_PERFORMANCE_MODE,
+                                                &desiredMode, sizeof(desiredMode));
+        if (result == SL_RESULT_SUCCESS) {
+            LOG_I(LOG_TAG, "Set audio performance mode.");
+        } else {
+            LOG_W(LOG_TAG, "Failed to set audio performance mode (code %d).", result);
+        }
+    } else {
+        LOG_W(LOG_TAG, "Failed to get the configuration controls (code %d). Audio performance mode "
+                       "will not be set.", result);
+    }
+
+    // realize the player
+    result = (*bqPlayerObject)->Realize(bqPlayerObject, SL_BOOLEAN_FALSE);
+    if (SL_RESULT_SUCCESS != result)
+        return result;
+
+    // LOG_D(LOG_TAG, "Audio player realised");
+
+    // get the play interface
+    result = (*bqPlayerObject)->GetInterface(bqPlayerObject, SL_IID_PLAY,
+                                             &bqPlayerPlay);
+    if (SL_RESULT_SUCCESS != result)
+        return result;
+
+    // Get the volume interface, if it exists. If so, set the volume to max.
+    result = (*bqPlayerObject)->GetInterface(bqPlayerObject, SL_IID_VOLUME, &volumeItf);
+    if (result == SL_RESULT_SUCCESS) {
+
+        SLmillibel maxVolume;
+
+        // Get the maximum volume level
+        result = (*volumeItf)->GetMaxVolumeLevel(volumeItf, &maxVolume);
+        if (result != SL_RESULT_SUCCESS) {
+            LOG_E(LOG_TAG, "failed to get the maximum volume");
+            return result;
+        }
+
+        // Set the volume to max
+        result = (*volumeItf)->SetVolumeLevel(volumeItf, maxVolume);
+        if (result != SL_RESULT_SUCCESS) {
+            LOG_E(LOG_TAG, "failed to set the volume level");
+            return result;
+        }
+
+        LOG_I(LOG_TAG, "Set volume level to the maximum.");
+
+    } else {
+        LOG_W(LOG_TAG, "Failed to get the volume controls (code %d). The app will not control the "
+                       "OpenSL ES player volume.", result);
+    }
+
+    // get the buffer queue interface
+    result = (*bqPlayerObject)->GetInterface(bqPlayerObject, SL_IID_BUFFERQUEUE,
+                                             &bqPlayerBufferQueue);
+    if (SL_RESULT_SUCCESS != result)
+        return result;
+
+    // LOG_D(LOG_TAG, "Buffer queue interface retrieved");
+
+    // register callback on the buffer queue
+    result = (*bqPlayerBufferQueue)->RegisterCallback(bqPlayerBufferQueue,
+                                                      bqPlayerCallback, NULL);
+    if (SL_RESULT_SUCCESS != result)
+        return result;
+
+    // LOG_D(LOG_TAG, "Callback registered");
+
+    return SL_RESULT_SUCCESS;
+    // LOG_D(LOG_TAG, "Audio player set playing");
+}
+
+// Render the next buffer and add it to the queue
+static SLresult enqueueBuffer(void) {
+
+    char *const buffer = buffers + buffer_index * buffer_size;
+    buffer_index = (buffer_index + 1) % bufferQueueSize;
+
+    renderCallback(buffer, bufferSizeMono);
+    return (*bqPlayerBufferQueue)->Enqueue(bqPlayerBufferQueue, buffer, buffer_size);
+}
+
+// this callback handler is called every time a buffer finishes
+// playing
+static void bqPlayerCallback(SLAndroidSimpleBufferQueueItf bq, void *context) {
+
+    SLresult result;
+
+    assert(bq == bqPlayerBufferQueue);
+    assert(NULL == context);
+
+    // Replace the buffer which finished
+    result = enqueueBuffer();
+    switch (result) {
+        case SL_RESULT_SUCCESS:
+        case SL_RESULT_OPERATION_ABORTED:
+            return;
+        default:
+            /* Could get SL_RESULT_BUFFER_INSUFFICIENT (code 7) if the buffer is full. This
+             * shouldn't happen because each callback frees one buffer, but some devices do it.
+             * The buffer is dropped, and counted for the playback health. */
+            __atomic_add_fetch(&enqueue_failures, 1, __ATOMIC_RELAXED);
+            LOG_W(LOG_TAG, "Error code from OpenSL ES enqueue buffer: %d", result);
+    }
+}
+
+// shut down the native audio system
+static void closeSink(void) {
+    // destroy buffer queue audio player object, and invalidate all
+    // associated interfaces
+    if (bqPlayerObject != NULL) {
+        (*bqPlayerObject)->Destroy(bqPlayerObject);
+        bqPlayerObject = NULL;
+        bqPlayerPlay = NULL;
+        bqPlayerBufferQueue = NULL;
+    }
+
+    // destroy output mix object, and invalidate all associated interfaces
+    if (outputMixObject != NULL) {
+        (*outputMixObject)->Destroy(outputMixObject);
+        outputMixObject = NULL;
+    }
+
+    // destroy engine object, and invalidate all associated interfaces
+    if (engineObject != NULL) {
+        (*engineObject)->Destroy(engineObject);
+        engineObject = NULL;
+        engineEngine = NULL;
+    }
+
+    if (buffers != NULL) {
+        free(buffers);
+        buffers = NULL;
+    }
+}
+
+// Create the engine and the player, and fill the queue with silence
+static int openSink(const int sampleRate, const int deviceBufferSizeMono,
+                    const enum sample_format format, const enum latency_profile profile,
+                    const audio_render_callback render) {
+
+    SLresult result;
+    int i;
+
+    // Allocate the buffers
+    renderCallback = render;
+    bufferSizeMono = deviceBufferSizeMono;
+    bufferQueueSize = profiles[profile].queueSize;
+    buffer_size = getNumPcm(bufferSizeMono) * getSampleSize(format);
+    buffer_index = 0;
+    __atomic_store_n(&enqueue_failures, 0, __ATOMIC_RELAXED);
+    buffers = (char *) calloc(bufferQueueSize, buffer_size);
+    if (buffers == NULL) {
+        LOG_E(LOG_TAG, "Insufficient memory for audio buffers.");
+        return -1;
+    }
+
+    // create the engine and output mix objects
+    if ((result = createEngine()) != SL_RESULT_SUCCESS) {
+        closeSink();
+
+        LOG_E(LOG_TAG, "Create engine failed: %d", result);
+
+        return -1;
+    }
+
+    // create buffer queue audio player
+    if ((result = createBufferQueueAudioPlayer(sampleRate, deviceBufferSizeMono, format,
+                                               profile)) != SL_RESULT_SUCCESS) {
+        closeSink();
+
+        LOG_E(LOG_TAG, "Create buffer queue audio player failed: %d", result);
+
+        return -1;
+    }
+
+    // Fill the queue while paused, so the callbacks keep it full once playing
+    for (i = 0; i < bufferQueueSize; i++) {
+        if ((*bqPlayerBufferQueue)->Enqueue(bqPlayerBufferQueue, buffers + i * buffer_size,
+                                            buffer_size) != SL_RESULT_SUCCESS) {
+            closeSink();
+
+            LOG_E(LOG_TAG, "Failed to enqueue buffer.");
+
+            return -1;
+        }
+    }
+
+    return 0;
+}
+
+// Set the player playing
+static int startSink(void) {
+    if ((*bqPlayerPlay)->SetPlayState(bqPlayerPlay, SL_PLAYSTATE_PLAYING) != SL_RESULT_SUCCESS) {
+        LOG_E(LOG_TAG, "playback failed: failed to set play state");
+        return -1;
+    }
+
+    return 0;
+}
+
+// Pause the player. Its queue stays full for the next start. Note: this is non-blocking
+static int stopSink(void) {
+    return (*bqPlayerPlay)->SetPlayState(bqPlayerPlay, SL_PLAYSTATE_PAUSED) ==
+           SL_RESULT_SUCCESS ? 0 : -1;
+}
+
+// The player can't fail once created
+static int isSinkAlive(void) {
+    return bqPlayerObject != NULL;
+}
+
+// Everything in the queue is ahead of what is audible
+static int32_t getBufferedFrames(void) {
+    return bufferQueueSize * bufferSizeMono;
+}
+
+// OpenSL ES does not report underruns
+static int32_t getXRunCount(void) {
+    return -1;
+}
+
+// Buffers the callback failed to queue
+static int32_t getEnqueueFailureCount(void) {
+    return __atomic_load_n(&enqueue_failures, __ATOMIC_RELAXED);
+}
+
+const struct audio_sink opensl_sink = {
+        "OpenSL ES",
+        openSink,
+        startSink,
+        stopSink,
+        closeSink,
+        isSinkAlive,
+        getBufferedFrames,
+        getXRunCount,
+        getEnqueueFailureCount
+};
@@ -0,0 +1,269 @@
+/*
+ * Simulated audio outputs for running playback off-device. A thread stands in for the audio
+ * device, pulling a buffer at a time at the simulated sample rate, or as fast as possible. The
+ * null output discards the audio, and the WAV output writes it to a file. Not part of the app.
+ *
+ * Created by: Blaine Rister Oct 19 2026
+ */
+
+#include <pthread.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include "audio_sink.h"
+
+// Configuration
+static const char *wav_path = "playback.wav";
+static double clock_speed = 1.0;
+
+// Stream state. The flags are shared with the device thread.
+static audio_render_callback renderCallback;
+static int sampleRate;
+static int bufferSizeMono;
+static enum sample_format sampleFormat;
+static void *buffer = NULL;
+static FILE *wav_file = NULL;
+static pthread_t device_thread;
+static int device_running; // Whether the thread should keep going
+static int device_started; // Whether the thread pulls audio
+static struct simulated_sink_stats stats;
+
+void simulated_sink_configure(const char *const wavPath, const double speed) {
+    wav_path = wavPath;
+    clock_speed = speed;
+}
+
+void simulated_sink_get_stats(struct simulated_sink_stats *const out) {
+    out->frames = __atomic_load_n(&stats.frames, __ATOMIC_RELAXED);
+    out->callbacks = __atomic_load_n(&stats.callbacks, __ATOMIC_RELAXED);
+    out->render_ns = __atomic_load_n(&stats.render_ns, __ATOMIC_RELAXED);
+    out->max_render_ns = __atomic_load_n(&stats.max_render_ns, __ATOMIC_RELAXED);
+    out->xruns = __atomic_load_n(&stats.xruns, __ATOMIC_RELAXED);
+}
+
+// Read the monotonic clock, in nanoseconds
+static int64_t nowNs(void) {
+    struct timespec time;
+    clock_gettime(CLOCK_MONOTONIC, &time);
+    return (int64_t) time.tv_sec * 1000000000 + time.tv_nsec;
+}
+
+static void putU16(FILE *const file, const unsigned int value) {
+    fputc((int) (value & 0xff), file);
+    fputc((int) ((value >> 8) & 0xff), file);
+}
+
+static void putU32(FILE *const file, const uint32_t value) {
+    putU16(file, value & 0xffff);
+    putU16(file, value >> 16);
+}
+
+// Write the header of a WAV file in the output format, with the size of the data in bytes
+static void putWavHeader(FILE *const file, const uint32_t dataSize) {
+
+    const unsigned int sampleSize = (unsigned int) getSampleSize(sampleFormat);
+    const unsigned int bytesPerFrame = (unsigned int) getNumPcm(sampleSize);
+
+    fwrite("RIFF", 1, 4, file);
+    putU32(file, 36 + dataSize);
+    fwrite("WAVEfmt ", 1, 8, file);
+    putU32(file, 16);
+    putU16(file, sampleFormat == SAMPLE_FORMAT_FLOAT ? 3 : 1); // IEEE float or PCM
+    putU16(file, (unsigned int) numChannels);
+    putU32(file, (uint32_t) sampleRate);
+    putU32(file, (uint32_t) sampleRate * bytesPerFrame);
+    putU16(file, bytesPerFrame);
+    putU16(file, 8 * sampleSize);
+    fwrite("data", 1, 4, file);
+    putU32(file, dataSize);
+}
+
+// Write a buffer of samples, in little endian order
+static void putSamples(FILE *const file, const void *const samples, const size_t count) {
+
+    size_t i;
+
+    for (i = 0; i < count; i++) {
+        if (sampleFormat == SAMPLE_FORMAT_FLOAT) {
+            uint32_t bits;
+            memcpy(&bits, (const float *) samples + i, sizeof(bits));
+            putU32(file, bits);
+        } else {
+            putU16(file, (uint16_t) ((const output_t *) samples)[i]);
+        }
+    }
+}
+
+// Stand in for the audio device, pulling a buffer per period of the simulated clock
+static void *runDevice(void *arg) {
+
+    const int64_t periodNs = clock_speed > 0 ?
+            (int64_t) (1e9 * bufferSizeMono / sampleRate / clock_speed) : 0;
+    int64_t deadline = nowNs();
+
+    while (__atomic_load_n(&device_running, __ATOMIC_ACQUIRE)) {
+
+        // Pull a buffer, unless paused
+        if (__atomic_load_n(&device_started, __ATOMIC_ACQUIRE)) {
+            const int64_t start = nowNs();
+            renderCallback(buffer, bufferSizeMono);
+            const int64_t renderNs = nowNs() - start;
+
+            if (wav_file != NULL)
+                putSamples(wav_file, buffer, getNumPcm(bufferSizeMono));
+
+            __atomic_add_fetch(&stats.frames, bufferSizeMono, __ATOMIC_RELAXED);
+            __atomic_add_fetch(&stats.callbacks, 1, __ATOMIC_RELAXED);
+            __atomic_add_fetch(&stats.render_ns, renderNs, __ATOMIC_RELAXED);
+            if (renderNs > stats.max_render_ns)
+                __atomic_store_n(&stats.max_render_ns, renderNs, __ATOMIC_RELAXED);
+        }
+
+        if (periodNs == 0)
+            continue;
+
+        // Wait for the next period. Missing it would have been an underrun on a device.
+        deadline += periodNs;
+        if (nowNs() > deadline) {
+            __atomic_add_fetch(&stats.xruns, 1, __ATOMIC_RELAXED);
+            deadline = nowNs();
+        } else {
+            struct timespec wake;
+            wake.tv_sec = (time_t) (deadline / 1000000000);
+            wake.tv_nsec = (long) (deadline % 1000000000);
+            clock_nanosleep(CLOCK_MONOTONIC, TIMER_ABSTIME, &wake, NULL);
+        }
+    }
+
+    return NULL;
+}
+
+// Start the device thread, without pulling audio yet. It pulls a buffer of the given size per
+// callback, whatever the profile.
+static int openDevice(const int rate, const int deviceBufferSizeMono,
+                      const enum sample_format format, const enum latency_profile profile,
+                      const audio_render_callback render) {
+
+    renderCallback = render;
+    sampleRate = rate;
+    bufferSizeMono = deviceBufferSizeMono;
+    sampleFormat = format;
+    memset(&stats, 0, sizeof(stats));
+
+    if ((buffer = malloc(getNumPcm(bufferSizeMono) * getSampleSize(format))) == NULL)
+        return -1;
+
+    device_started = 0;
+    device_running = 1;
+    if (pthread_create(&device_thread, NULL, runDevice, NULL) != 0) {
+        free(buffer);
+        buffer = NULL;
+        return -1;
+    }
+
+    return 0;
+}
+
+// Stop the device thread
+static void closeDevice(void) {
+
+    if (buffer == NULL)
+        return;
+
+    __atomic_store_n(&device_running, 0, __ATOMIC_RELEASE);
+    pthread_join(device_thread, NULL);
+    free(buffer);
+    buffer = NULL;
+}
+
+static int startDevice(void) {
+    __atomic_store_n(&device_started, 1, __ATOMIC_RELEASE);
+    return 0;
+}
+
+static int stopDevice(void) {
+    __atomic_store_n(&device_started, 0, __ATOMIC_RELEASE);
+    return 0;
+}
+
+static int isDeviceAlive(void) {
+    return buffer != NULL;
+}
+
+// Only the buffer being rendered is ahead of the simulated device
+static int32_t getBufferedFrames(void) {
+    return bufferSizeMono;
+}
+
+static int32_t getXRunCount(void) {
+    return (int32_t) __atomic_load_n(&stats.xruns, __ATOMIC_RELAXED);
+}
+
+// The simulated device takes every buffer
+static int32_t getEnqueueFailureCount(void) {
+    return 0;
+}
+
+// Open the WAV file, leaving room for the header
+static int openWav(const int rate, const int deviceBufferSizeMono,
+                   const enum sample_format format, const enum latency_profile profile,
+                   const audio_render_callback render) {
+
+    if ((wav_file = fopen(wav_path, "wb")) == NULL) {
+        perror(wav_path);
+        return -1;
+    }
+    sampleRate = rate;
+    sampleFormat = format;
+    putWavHeader(wav_file, 0);
+
+    if (openDevice(rate, deviceBufferSizeMono, format, profile, render)) {
+        fclose(wav_file);
+        wav_file = NULL;
+        return -1;
+    }
+
+    return 0;
+}
+
+// Finish the WAV file, now that the size is known
+static void closeWav(void) {
+
+    long size;
+
+    closeDevice();
+    if (wav_file == NULL)
+        return;
+
+    size = ftell(wav_file);
+    fseek(wav_file, 0, SEEK_SET);
+    putWavHeader(wav_file, (uint32_t) (size - 44));
+    fclose(wav_file);
+    wav_file = NULL;
+}
+
+const struct audio_sink null_sink = {
+        "null",
+        openDevice,
+        startDevice,
+        stopDevice,
+        closeDevice,
+        isDeviceAlive,
+        getBufferedFrames,
+        getXRunCount,
+        getEnqueueFailureCount
+};
+
+const struct audio_sink wav_sink = {
+        "WAV",
+        openWav,
+        startDevice,
+        stopDevice,
+        closeWav,
+        isDeviceAlive,
+        getBufferedFrames,
+        getXRunCount,
+        getEnqueueFailureCount
+};
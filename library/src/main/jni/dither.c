@@ -0,0 +1,155 @@
+/*
+ * Conversion of float and fixed point audio to 16 bit PCM with TPDF dither, see dither.h. The
+ * unshaped kernels run independent generators in lanes, so the compiler vectorizes them.
+ *
+ * Created by: Blaine Rister Oct 19 2026
+ */
+
+#include <string.h>
+
+#include "dither.h"
+
+// Samples converted at once, each with its own generator. Fewer lanes get unrolled rather than
+// vectorized.
+#define LANES 16
+
+// Rounding is done by truncating, after offsetting the samples to be positive
+static const float pcmOffset = 32768.5F;
+static const float pcmRange = 65535.F;
+
+// Bound on the error fed back by noise shaping, so clipping doesn't feed on itself
+static const float maxShapedError = 2.F;
+
+// Mix the seed into a nonzero starting state for a lane
+static uint32_t seedLane(const uint32_t seed, const uint32_t lane) {
+
+    uint32_t x = seed + lane * 0x9e3779b9U;
+
+    x ^= x >> 16;
+    x *= 0x7feb352dU;
+    x ^= x >> 15;
+    x *= 0x846ca68bU;
+    x ^= x >> 16;
+
+    return x | 1;
+}
+
+// Advance a xorshift generator
+static uint32_t xorshift(uint32_t x) {
+    x ^= x << 13;
+    x ^= x >> 17;
+    x ^= x << 5;
+    return x;
+}
+
+// Triangular dither in [-1, 1) LSB, from the sum of the two halves of a random word
+static float tpdf(const uint32_t random) {
+    const int32_t sum = (int32_t) (random & 0xffff) + (int32_t) (random >> 16);
+    return (float) sum * (1.F / 65536.F) - 1.F;
+}
+
+// Triangular dither in [-1, 1) LSB, with 32 fractional bits
+static int64_t tpdfFixed(const uint32_t random) {
+    return ((int64_t) (random & 0xffff) + (int64_t) (random >> 16) - 65536) * 65536;
+}
+
+// Round a sample with 32 fractional bits to 16 bit PCM, saturating
+static output_t quantizeFixed(const int64_t sample) {
+    const int64_t pcm = (sample + ((int64_t) 1 << 31)) >> 32;
+    return (output_t) MIN(MAX(pcm, INT16_MIN), INT16_MAX);
+}
+
+// Round an offset sample to 16 bit PCM, saturating
+static output_t quantize(const float offsetSample) {
+    const float clamped = MIN(MAX(offsetSample, 0.F), pcmRange);
+    return (output_t) ((int32_t) clamped - 32768);
+}
+
+// Convert without noise shaping
+static void ditherPlain(const float *const in, output_t *const out, const size_t length,
+                        const float gain, const uint32_t seed) {
+
+    uint32_t states[LANES];
+    size_t i, k;
+
+    for (k = 0; k < LANES; k++)
+        states[k] = seedLane(seed, (uint32_t) k);
+
+    /* Convert a block of lanes at a time. The block is copied in before anything is written out,
+     * which makes converting in place safe, and tells the compiler the lanes don't alias. */
+    for (i = 0; i + LANES <= length; i += LANES) {
+        float block[LANES];
+        output_t converted[LANES];
+
+        memcpy(block, in + i, sizeof(block));
+        for (k = 0; k < LANES; k++) {
+            states[k] = xorshift(states[k]);
+            converted[k] = quantize(block[k] * gain + tpdf(states[k]) + pcmOffset);
+        }
+        memcpy(out + i, converted, sizeof(converted));
+    }
+
+    // Convert the remainder with the first lane
+    for (; i < length; i++) {
+        states[0] = xorshift(states[0]);
+        out[i] = quantize(in[i] * gain + tpdf(states[0]) + pcmOffset);
+    }
+}
+
+// Convert with first order noise shaping, per channel
+static void ditherShaped(const float *const in, output_t *const out, const size_t length,
+                         const float gain, const uint32_t seed) {
+
+    float errors[numChannels];
+    uint32_t state = seedLane(seed, 0);
+    size_t i;
+    int channel = 0;
+
+    memset(errors, 0, sizeof(errors));
+
+    for (i = 0; i < length; i++) {
+        const float target = in[i] * gain - errors[channel];
+        output_t sample;
+
+        state = xorshift(state);
+        sample = quantize(target + tpdf(state) + pcmOffset);
+        errors[channel] = MIN(MAX((float) sample - target, -maxShapedError), maxShapedError);
+        out[i] = sample;
+
+        if (++channel == numChannels)
+            channel = 0;
+    }
+}
+
+void dither_to_pcm16(const float *const in, output_t *const out, const size_t length,
+                     const float gain, const uint32_t seed, const int noiseShaping) {
+    if (noiseShaping) {
+        ditherShaped(in, out, length, gain, seed);
+    } else {
+        ditherPlain(in, out, length, gain, seed);
+    }
+}
+
+void dither_fixed_to_pcm16(const int32_t *const in, output_t *const out, const size_t length,
+                           const int64_t gain, const uint32_t seed) {
+
+    uint32_t states[LANES];
+    size_t i, k;
+
+    for (k = 0; k < LANES; k++)
+        states[k] = seedLane(seed, (uint32_t) k);
+
+    // Convert a block of lanes at a time, like ditherPlain
+    for (i = 0; i + LANES <= length; i += LANES) {
+        for (k = 0; k < LANES; k++) {
+            states[k] = xorshift(states[k]);
+            out[i + k] = quantizeFixed((int64_t) in[i + k] * gain + tpdfFixed(states[k]));
+        }
+    }
+
+    // Convert the remainder with the first lane
+    for (; i < length; i++) {
+        states[0] = xorshift(states[0]);
+        out[i] = quantizeFixed((int64_t) in[i] * gain + tpdfFixed(states[0]));
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Conversion of float or fixed point audio to 16 bit PCM with TPDF dither. The dither comes from
+ * seeded xorshift generators rather than rand(), so the conversion is thread-safe, and a given seed
+ * always gives the same output. Playback and the synth's renders share it.
+ *
+ * Created by: Blaine Rister Oct 19 2026
+ */
+
+#ifndef METRODRONE_DITHER_H
+#define METRODRONE_DITHER_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+#include "global.h"
+
+/* Scale interleaved float audio by the gain, add triangular dither of +-1 LSB, and round to 16 bit
+ * PCM, saturating. With noise shaping, the quantization error of each channel is fed back through
+ * a first order filter, moving the noise up in frequency. That is serial, so only the unshaped
+ * conversion vectorizes. The buffers may be the same, in which case the conversion is done in
+ * place. */
+void dither_to_pcm16(const float *in, output_t *out, size_t length, float gain, uint32_t seed,
+                     int noiseShaping);
+
+/* Like dither_to_pcm16, without noise shaping, for the integer mix of fixed point builds. The gain
+ * has 32 fractional bits. The conversion stays in integer arithmetic, with the same dither
+ * generators. */
+void dither_fixed_to_pcm16(const int32_t *in, output_t *out, size_t length, int64_t gain,
+                           uint32_t seed);
+
+#endif //METRODRONE_DITHER_H
@@ -9,6 +9,7 @@
 #include <android/asset_manager_jni.h>
 
 #include <string.h>
+#include <unistd.h>
 
 #include "fluidsynth_priv.h"
 
@@ -17,6 +18,7 @@
 
 #include "aasset_stdio_adapter_public.h"
 #include "aasset_stdio_adapter.h"
+#include "fluid_sys.h"
 
 // TODO: Call AAssetManager_fromJava() to get the manager. Need to somehow pass the asset
 // manager in the midi.init() function. This needs to persist the whole time the MIDI player is
@@ -71,6 +73,33 @@ fluid_file fluid_system_fopen(const char * filename, const char * mode ) {
     return AAssetManager_open(aasset_manager, filename, AASSET_MODE_RANDOM);
 }
 
+// Map an asset into memory. Only works for assets stored uncompressed in the APK, which can be
+// opened as a file descriptor. Other assets must be read with fluid_system_fread.
+int fluid_file_map_open(fluid_file_map_t* map, const char* filename) {
+
+    off_t start, length;
+    AAsset *asset;
+    int fd, result;
+
+    map->data = NULL;
+    if (aasset_manager == NULL) {
+        FLUID_LOG(FLUID_ERR, "fluid_file_map_open: must call init_AAssets before this");
+        return FLUID_FAILED;
+    }
+
+    if ((asset = AAssetManager_open(aasset_manager, filename, AASSET_MODE_UNKNOWN)) == NULL)
+        return FLUID_FAILED;
+    fd = AAsset_openFileDescriptor(asset, &start, &length);
+    AAsset_close(asset);
+    if (fd < 0)
+        return FLUID_FAILED;
+
+    // The mapping outlives both the descriptor and the asset manager
+    result = fluid_file_map_fd(map, fd, (long) start, (size_t) length);
+    close(fd);
+    return result;
+}
+
 size_t fluid_system_fread(void *ptr, size_t size, size_t nmemb, fluid_file stream) {
     return AAsset_read(stream, ptr, size * nmemb) / size;
 }
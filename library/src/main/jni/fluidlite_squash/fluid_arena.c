@@ -0,0 +1,220 @@
+/**
+ * Bump allocator for soundfont metadata.
+ *
+ * Created by: Blaine Rister Oct 19 2026
+ */
+
+#include "fluid_arena.h"
+
+/* All allocations are aligned for the widest type stored in soundfont metadata */
+#define FLUID_ARENA_ALIGN 8
+#define FLUID_ARENA_ROUND(_size) \
+  (((_size) + (FLUID_ARENA_ALIGN - 1)) & ~((size_t) FLUID_ARENA_ALIGN - 1))
+
+typedef struct _fluid_arena_block_t fluid_arena_block_t;
+
+struct _fluid_arena_block_t
+{
+  fluid_arena_block_t* next;    /* the previously filled block */
+  size_t size;                  /* usable bytes following the header */
+  size_t pos;                   /* offset of the first free byte */
+};
+
+struct _fluid_arena_t
+{
+  fluid_arena_block_t* block;   /* the block currently being filled */
+  size_t block_size;            /* default usable size of a new block */
+  size_t used;                  /* bytes handed out to callers */
+  size_t reserved;              /* bytes obtained from the system */
+};
+
+/* The header is padded so the data following it keeps the arena alignment */
+#define FLUID_ARENA_HEADER FLUID_ARENA_ROUND(sizeof(fluid_arena_block_t))
+#define FLUID_ARENA_DATA(_block) ((char*) (_block) + FLUID_ARENA_HEADER)
+
+/*
+ * new_fluid_arena
+ */
+fluid_arena_t*
+new_fluid_arena(size_t block_size)
+{
+  fluid_arena_t* arena;
+
+  arena = FLUID_NEW(fluid_arena_t);
+  if (arena == NULL) {
+    FLUID_LOG(FLUID_ERR, "Out of memory");
+    return NULL;
+  }
+
+  arena->block = NULL;
+  arena->block_size = FLUID_ARENA_ROUND(block_size);
+  arena->used = 0;
+  arena->reserved = sizeof(fluid_arena_t);
+
+  return arena;
+}
+
+/*
+ * delete_fluid_arena
+ *
+ * Releases every allocation made from the arena at once.
+ */
+void
+delete_fluid_arena(fluid_arena_t* arena)
+{
+  fluid_arena_block_t *block, *next;
+
+  if (arena == NULL) {
+    return;
+  }
+
+  for (block = arena->block; block != NULL; block = next) {
+    next = block->next;
+    FLUID_FREE(block);
+  }
+
+  FLUID_FREE(arena);
+}
+
+/*
+ * fluid_arena_alloc
+ *
+ * Returns uninitialized memory which lives as long as the arena. A NULL arena falls back to
+ * FLUID_MALLOC, for objects which are shared with loaders that free them individually.
+ */
+void*
+fluid_arena_alloc(fluid_arena_t* arena, size_t size)
+{
+  fluid_arena_block_t* block;
+  size_t block_size;
+  void* ptr;
+
+  if (arena == NULL) {
+    return FLUID_MALLOC(size);
+  }
+
+  size = FLUID_ARENA_ROUND(size);
+  block = arena->block;
+
+  if ((block == NULL) || (block->size - block->pos < size)) {
+
+    /* Oversized requests get a block of their own. It goes behind the current block so the
+     * free space remaining there is not wasted. */
+    block_size = size > arena->block_size ? size : arena->block_size;
+    block = (fluid_arena_block_t*) FLUID_MALLOC(FLUID_ARENA_HEADER + block_size);
+    if (block == NULL) {
+      FLUID_LOG(FLUID_ERR, "Out of memory");
+      return NULL;
+    }
+    block->size = block_size;
+    block->pos = 0;
+    arena->reserved += FLUID_ARENA_HEADER + block_size;
+
+    if ((arena->block != NULL) && (block_size > arena->block_size)) {
+      block->next = arena->block->next;
+      arena->block->next = block;
+    } else {
+      block->next = arena->block;
+      arena->block = block;
+    }
+  }
+
+  ptr = FLUID_ARENA_DATA(block) + block->pos;
+  block->pos += size;
+  arena->used += size;
+
+  return ptr;
+}
+
+/*
+ * fluid_arena_calloc
+ */
+void*
+fluid_arena_calloc(fluid_arena_t* arena, size_t size)
+{
+  void* ptr = fluid_arena_alloc(arena, size);
+  if (ptr != NULL) {
+    FLUID_MEMSET(ptr, 0, size);
+  }
+  return ptr;
+}
+
+/*
+ * fluid_arena_strdup
+ */
+char*
+fluid_arena_strdup(fluid_arena_t* arena, const char* str)
+{
+  size_t size = FLUID_STRLEN(str) + 1;
+  char* dup = (char*) fluid_arena_alloc(arena, size);
+  if (dup != NULL) {
+    FLUID_MEMCPY(dup, str, size);
+  }
+  return dup;
+}
+
+/*
+ * fluid_arena_list_append
+ *
+ * Same as fluid_list_append, except that the new node belongs to the arena. Lists built this
+ * way must not be passed to delete_fluid_list or fluid_list_remove. Returns NULL if out of
+ * memory, in which case the nodes of the old list are still reclaimed with the arena.
+ */
+fluid_list_t*
+fluid_arena_list_append(fluid_arena_t* arena, fluid_list_t* list, void* data)
+{
+  fluid_list_t* node;
+
+  node = fluid_arena_list_prepend(arena, NULL, data);
+  if (node == NULL) {
+    return NULL;
+  }
+
+  if (list == NULL) {
+    return node;
+  }
+
+  fluid_list_last(list)->next = node;
+  return list;
+}
+
+/*
+ * fluid_arena_list_prepend
+ */
+fluid_list_t*
+fluid_arena_list_prepend(fluid_arena_t* arena, fluid_list_t* list, void* data)
+{
+  fluid_list_t* node;
+
+  node = FLUID_ARENA_NEW(arena, fluid_list_t);
+  if (node == NULL) {
+    return NULL;
+  }
+
+  node->data = data;
+  node->next = list;
+  return node;
+}
+
+/*
+ * fluid_arena_get_used
+ *
+ * Returns the number of bytes handed out so far.
+ */
+size_t
+fluid_arena_get_used(const fluid_arena_t* arena)
+{
+  return arena->used;
+}
+
+/*
+ * fluid_arena_get_reserved
+ *
+ * Returns the number of bytes obtained from the system, including block headers and the unused
+ * tail of each block. Since nothing is freed before the arena is deleted, this is also the peak.
+ */
+size_t
+fluid_arena_get_reserved(const fluid_arena_t* arena)
+{
+  return arena->reserved;
+}
@@ -0,0 +1,32 @@
+/**
+ * Bump allocator for soundfont metadata. Every preset, zone, instrument, modulator and list node
+ * belonging to one soundfont is carved out of a small number of large blocks, which are released
+ * together when the soundfont is deleted.
+ *
+ * Created by: Blaine Rister Oct 19 2026
+ */
+
+#ifndef _FLUID_ARENA_H
+#define _FLUID_ARENA_H
+
+#include "fluidsynth_priv.h"
+#include "fluid_list.h"
+
+typedef struct _fluid_arena_t fluid_arena_t;
+
+fluid_arena_t* new_fluid_arena(size_t block_size);
+void delete_fluid_arena(fluid_arena_t* arena);
+
+void* fluid_arena_alloc(fluid_arena_t* arena, size_t size);
+void* fluid_arena_calloc(fluid_arena_t* arena, size_t size);
+char* fluid_arena_strdup(fluid_arena_t* arena, const char* str);
+
+fluid_list_t* fluid_arena_list_append(fluid_arena_t* arena, fluid_list_t* list, void* data);
+fluid_list_t* fluid_arena_list_prepend(fluid_arena_t* arena, fluid_list_t* list, void* data);
+
+size_t fluid_arena_get_used(const fluid_arena_t* arena);
+size_t fluid_arena_get_reserved(const fluid_arena_t* arena);
+
+#define FLUID_ARENA_NEW(_arena, _t) ((_t*) fluid_arena_alloc((_arena), sizeof(_t)))
+
+#endif /* _FLUID_ARENA_H */
@@ -12,7 +12,7 @@
 #undef WORDS_BIGENDIAN
 
 
-#define SF3_SUPPORT 0
+#define SF3_SUPPORT 1
 #define WITH_FLOAT 1
 
 #define HAVE_STRING_H 1
@@ -23,11 +23,12 @@
 #define HAVE_FCNTL_H 1
 #define HAVE_LIMITS_H 1
 
-// Override stdio with Android asset-reading functions
+// Override stdio with Android asset-reading functions, and use Android logging. Host builds, such
+// as the tools next to this library, fall back to stdio.
+#ifdef __ANDROID__
 #define FLUID_WITH_ANDROID_AASSET
-
-// Use Android logging
 #define ANDROID_LOGGING
+#endif
 
 //#pragma warning(disable : 4244)
 //#pragma warning(disable : 4101)
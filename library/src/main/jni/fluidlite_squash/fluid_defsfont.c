@@ -24,76 +24,48 @@
 #include "fluid_defsfont.h"
 /* Todo: Get rid of that 'include' */
 #include "fluid_sys.h"
+#include "fluid_sample_pool.h"
+#include "fluid_vorbis.h"
+#include <pthread.h>
+#include <unistd.h>
 
-#if SF3_SUPPORT
-#include "vorbis/codec.h"
-#include "vorbis/vorbisenc.h"
-#include "vorbis/vorbisfile.h"
-
-struct VorbisData {
-    int pos;          // current position in audio->data()
-    char* data;
-    int datasize;
-};
+/* Block sizes of the metadata arenas. A preset or instrument zone is roughly 1kB, so a typical
+ * General MIDI font can fill around a hundred soundfont blocks, while the parse records are small. */
+#define FLUID_DEFSFONT_ARENA_BLOCK (64 * 1024)
+#define SFDATA_ARENA_BLOCK (16 * 1024)
 
-static struct VorbisData vorbisData;
+/* Default amount of mapped or decoded sample data to keep. Samples are paged in or decoded when a
+ * note first uses them, and the least recently played ones are dropped beyond this. */
+#define FLUID_DEFSFONT_SAMPLE_BUDGET (8 * 1024 * 1024)
 
-static size_t ovRead(void* ptr, size_t size, size_t nmemb, void* datasource);
-static int ovSeek(void* datasource, ogg_int64_t offset, int whence);
-static long ovTell(void* datasource);
+/* Most compressed samples decoded ahead of a chord, and most threads decoding them. Further
+ * samples are decoded when their notes start. */
+#define FLUID_DEFSFONT_MAX_DECODE_JOBS 64
+#define FLUID_DEFSFONT_MAX_DECODE_THREADS 8
 
-static ov_callbacks ovCallbacks = { ovRead, ovSeek, 0, ovTell };
+/* Sample data is read in blocks of this size when it can't be mapped, so
+   the progress of the load keeps moving */
+#define FLUID_DEFSFONT_SAMPLE_READ_BLOCK (1024 * 1024)
 
-//---------------------------------------------------------
-//   ovRead
-//---------------------------------------------------------
-
-static size_t ovRead(void* ptr, size_t size, size_t nmemb, void* datasource)
-{
-    struct VorbisData* vd = (struct VorbisData*)datasource;
-    size_t n = size * nmemb;
-    if (vd->datasize < (int)vd->pos + (int)n)
-        n = vd->datasize - vd->pos;
-    if (n) {
-        const char* src = vd->data + vd->pos;
-        memcpy(ptr, src, n);
-        vd->pos += n;
-    }
-
-    return n;
-}
-
-//---------------------------------------------------------
-//   ovSeek
-//---------------------------------------------------------
-
-static int ovSeek(void* datasource, ogg_int64_t offset, int whence)
+/*
+ * fluid_defsfont_progress_set
+ */
+static void
+fluid_defsfont_progress_set(fluid_defsfont_progress_t* progress, size_t parsed)
 {
-    struct VorbisData* vd = (struct VorbisData*)datasource;
-    switch(whence) {
-    case SEEK_SET:
-        vd->pos = offset;
-        break;
-    case SEEK_CUR:
-        vd->pos += offset;
-        break;
-    case SEEK_END:
-        vd->pos = vd->datasize - offset;
-        break;
-    }
-    return 0;
+  if (progress != NULL) {
+    __atomic_store_n(&progress->parsed, parsed, __ATOMIC_RELAXED);
+  }
 }
 
-//---------------------------------------------------------
-//   ovTell
-//---------------------------------------------------------
-
-static long ovTell(void* datasource)
+/*
+ * fluid_defsfont_progress_cancelled
+ */
+static int
+fluid_defsfont_progress_cancelled(fluid_defsfont_progress_t* progress)
 {
-    struct VorbisData* vd = (struct VorbisData*)datasource;
-    return vd->pos;
+  return (progress != NULL) && __atomic_load_n(&progress->cancel, __ATOMIC_RELAXED);
 }
-#endif
 
 /***************************************************************
  *
@@ -126,6 +98,19 @@ int delete_fluid_defsfloader(fluid_sfloader_t* loader)
 }
 
 fluid_sfont_t* fluid_defsfloader_load(fluid_sfloader_t* loader, const char* filename)
+{
+  return fluid_defsfloader_load_progress(loader, filename, NULL);
+}
+
+/*
+ * fluid_defsfloader_load_progress
+ *
+ * Like fluid_defsfloader_load, but reports the progress of the load, which
+ * another thread can cancel. Nothing is allocated on failure. An sfont passed
+ * in loader->data is left for the caller to free.
+ */
+fluid_sfont_t* fluid_defsfloader_load_progress(fluid_sfloader_t* loader, const char* filename,
+                                               fluid_defsfont_progress_t* progress)
 {
   fluid_defsfont_t* defsfont;
   fluid_sfont_t* sfont;
@@ -135,10 +120,18 @@ fluid_sfont_t* fluid_defsfloader_load(fluid_sfloader_t* loader, const char* file
   if (defsfont == NULL) {
     return NULL;
   }
+  defsfont->progress = progress;
+
+  if (fluid_defsfont_load(defsfont, filename) == FLUID_FAILED) {
+    delete_fluid_defsfont(defsfont);
+    return NULL;
+  }
+  defsfont->progress = NULL;
 
   sfont = loader->data ? (fluid_sfont_t*)loader->data : FLUID_NEW(fluid_sfont_t);
   if (sfont == NULL) {
     FLUID_LOG(FLUID_ERR, "Out of memory");
+    delete_fluid_defsfont(defsfont);
     return NULL;
   }
 
@@ -149,11 +142,6 @@ fluid_sfont_t* fluid_defsfloader_load(fluid_sfloader_t* loader, const char* file
   sfont->iteration_start = fluid_defsfont_sfont_iteration_start;
   sfont->iteration_next = fluid_defsfont_sfont_iteration_next;
 
-  if (fluid_defsfont_load(defsfont, filename) == FLUID_FAILED) {
-    delete_fluid_defsfont(defsfont);
-    return NULL;
-  }
-
   return sfont;
 }
 
@@ -220,12 +208,28 @@ int fluid_defsfont_sfont_iteration_next(fluid_sfont_t* sfont, fluid_preset_t* pr
   preset->get_name = fluid_defpreset_preset_get_name;
   preset->get_banknum = fluid_defpreset_preset_get_banknum;
   preset->get_num = fluid_defpreset_preset_get_num;
+  preset->get_range = fluid_defpreset_preset_get_range;
   preset->noteon = fluid_defpreset_preset_noteon;
   preset->notify = NULL;
 
   return fluid_defsfont_iteration_next((fluid_defsfont_t*) sfont->data, preset);
 }
 
+int fluid_defsfont_sfont_get_memory_usage(fluid_sfont_t* sfont, size_t* resident, size_t* peak)
+{
+  return fluid_defsfont_get_memory_usage((fluid_defsfont_t*) sfont->data, resident, peak);
+}
+
+size_t fluid_defsfont_sfont_get_resident_size(fluid_sfont_t* sfont)
+{
+  return fluid_defsfont_get_resident_size((fluid_defsfont_t*) sfont->data);
+}
+
+int fluid_defsfont_sfont_set_sample_budget(fluid_sfont_t* sfont, size_t budget)
+{
+  return fluid_defsfont_set_sample_budget((fluid_defsfont_t*) sfont->data, budget);
+}
+
 int fluid_defpreset_preset_delete(fluid_preset_t* preset)
 {
   FLUID_FREE(preset);
@@ -282,23 +286,49 @@ fluid_defsfont_t* new_fluid_defsfont()
     return NULL;
   }
 
+  sfont->arena = new_fluid_arena(FLUID_DEFSFONT_ARENA_BLOCK);
+  if (sfont->arena == NULL) {
+    FLUID_FREE(sfont);
+    return NULL;
+  }
+
   sfont->filename = NULL;
   sfont->samplepos = 0;
   sfont->samplesize = 0;
   sfont->sample = NULL;
   sfont->sampledata = NULL;
+  sfont->map.data = NULL;
   sfont->preset = NULL;
+  sfont->load_peak = 0;
+  sfont->progress = NULL;
+  sfont->sample_budget = FLUID_DEFSFONT_SAMPLE_BUDGET;
+  sfont->sample_resident = 0;
+  sfont->sample_pooled = 0;
+  sfont->page_first = NULL;
+  sfont->page_last = NULL;
 
   return sfont;
 }
 
+/*
+ * fluid_sample_is_pooled
+ *
+ * Whether the data of a sample is held in the sample pool. This is the case for
+ * the samples read into memory, once they have left the block of sample data,
+ * and for the decoded ones.
+ */
+static int
+fluid_sample_is_pooled(fluid_defsfont_t* sfont, fluid_sample_t* sample)
+{
+  return (sample->data != NULL) && (sample->data != sfont->sampledata);
+}
+
 /*
  * delete_fluid_defsfont
  */
 int delete_fluid_defsfont(fluid_defsfont_t* sfont)
 {
   fluid_list_t *list;
-  fluid_defpreset_t* preset;
   fluid_sample_t* sample;
 
   /* Check that no samples are currently used */
@@ -309,28 +339,23 @@ int delete_fluid_defsfont(fluid_defsfont_t* sfont)
     }
   }
 
-  if (sfont->filename != NULL) {
-    FLUID_FREE(sfont->filename);
-  }
-
+  /* Pooled sample data is the only per-sample allocation outside the arena */
   for (list = sfont->sample; list; list = fluid_list_next(list)) {
-    delete_fluid_sample((fluid_sample_t*) fluid_list_get(list));
-  }
-
-  if (sfont->sample) {
-    delete_fluid_list(sfont->sample);
+    sample = (fluid_sample_t*) fluid_list_get(list);
+    if (fluid_sample_is_pooled(sfont, sample)) {
+      fluid_sample_pool_release(sample->data);
+    }
   }
 
-  if (sfont->sampledata != NULL) {
+  if (sfont->map.data != NULL) {
+    fluid_file_map_close(&sfont->map);
+  } else if (sfont->sampledata != NULL) {
     FLUID_FREE(sfont->sampledata);
   }
 
-  preset = sfont->preset;
-  while (preset != NULL) {
-    sfont->preset = preset->next;
-    delete_fluid_defpreset(preset);
-    preset = sfont->preset;
-  }
+  /* The presets, their zones and instruments, the samples and the sample list all live in the
+   * arena, so they are released in one pass instead of being freed one by one */
+  delete_fluid_arena(sfont->arena);
 
   FLUID_FREE(sfont);
   return FLUID_OK;
@@ -350,6 +375,71 @@ void fluid_synth_set_preset_callback(void* callback)
     preset_callback=callback;
 }
 
+/*
+ * fluid_defsfont_pool_sample
+ *
+ * Moves a sample read into memory from the block of sample data into the
+ * sample pool, so a sample which another soundfont already holds is shared.
+ * Its start, end and loop become relative to the pooled data.
+ */
+static int
+fluid_defsfont_pool_sample(fluid_defsfont_t* sfont, fluid_sample_t* sample)
+{
+  unsigned int num_frames;
+  short* data;
+
+  if (!sample->valid) {
+    return FLUID_OK;
+  }
+
+  num_frames = sample->end - sample->start + 1;
+  data = fluid_sample_pool_acquire(sample->data + sample->start, num_frames);
+  if (data == NULL) {
+    return FLUID_FAILED;
+  }
+
+  sample->data = data;
+  sample->loopstart -= sample->start;
+  sample->loopend -= sample->start;
+  sample->end -= sample->start;
+  sample->start = 0;
+  sfont->sample_pooled += (size_t) num_frames * sizeof(short);
+  return FLUID_OK;
+}
+
+/*
+ * fluid_defsfont_release_sampledata
+ *
+ * Frees the block of sample data read into memory, unless compressed samples
+ * are still to be decoded from it. Samples which were not pooled are invalid,
+ * and lose their data.
+ */
+static void
+fluid_defsfont_release_sampledata(fluid_defsfont_t* sfont)
+{
+  fluid_list_t* list;
+  fluid_sample_t* sample;
+
+  if ((sfont->map.data != NULL) || (sfont->sampledata == NULL)) {
+    return;
+  }
+  for (list = sfont->sample; list; list = fluid_list_next(list)) {
+    sample = (fluid_sample_t*) fluid_list_get(list);
+    if (sample->sampletype & FLUID_SAMPLETYPE_OGG_VORBIS) {
+      return;
+    }
+  }
+
+  for (list = sfont->sample; list; list = fluid_list_next(list)) {
+    sample = (fluid_sample_t*) fluid_list_get(list);
+    if (sample->data == sfont->sampledata) {
+      sample->data = NULL;
+    }
+  }
+  FLUID_FREE(sfont->sampledata);
+  sfont->sampledata = NULL;
+}
+
 /*
  * fluid_defsfont_load
  */
@@ -362,15 +452,13 @@ int fluid_defsfont_load(fluid_defsfont_t* sfont, const char* file)
   fluid_sample_t* sample;
   fluid_defpreset_t* preset;
 
-  sfont->filename = FLUID_MALLOC(1 + FLUID_STRLEN(file));
+  sfont->filename = fluid_arena_strdup(sfont->arena, file);
   if (sfont->filename == NULL) {
-    FLUID_LOG(FLUID_ERR, "Out of memory");
     return FLUID_FAILED;
   }
-  FLUID_STRCPY(sfont->filename, file);
 
   /* The actual loading is done in the sfont and sffile files */
-  sfdata = sfload_file(file);
+  sfdata = sfload_file(file, sfont->progress);
   if (sfdata == NULL) {
     FLUID_LOG(FLUID_ERR, "Couldn't load soundfont file");
     return FLUID_FAILED;
@@ -381,6 +469,10 @@ int fluid_defsfont_load(fluid_defsfont_t* sfont, const char* file)
   sfont->samplepos = sfdata->samplepos;
   sfont->samplesize = sfdata->samplesize;
 
+  /* Keep the mapping of the file, if any, so the sample data can stay in it */
+  sfont->map = sfdata->map;
+  sfdata->map.data = NULL;
+
   /* load sample data in one block */
   if (fluid_defsfont_load_sampledata(sfont) != FLUID_OK)
     goto err_exit;
@@ -390,17 +482,47 @@ int fluid_defsfont_load(fluid_defsfont_t* sfont, const char* file)
   while (p != NULL) {
     sfsample = (SFSample *) p->data;
 
-    sample = new_fluid_sample();
+    sample = new_fluid_sample(sfont->arena);
     if (sample == NULL) goto err_exit;
 
     if (fluid_sample_import_sfont(sample, sfsample, sfont) != FLUID_OK)
       goto err_exit;
 
-    fluid_defsfont_add_sample(sfont, sample);
-    fluid_voice_optimize_sample(sample);
+    if (fluid_defsfont_add_sample(sfont, sample) != FLUID_OK)
+      goto err_exit;
+
+    if (fluid_defsfont_progress_cancelled(sfont->progress))
+      goto err_exit;
+
+    /* Samples in the mapped file are paged in when they are first played, and
+       compressed ones are decoded then */
+    if ((sfont->map.data != NULL) || (sample->sampletype & FLUID_SAMPLETYPE_OGG_VORBIS)) {
+      fluid_sample_page_t* page = FLUID_ARENA_NEW(sfont->arena, fluid_sample_page_t);
+      if (page == NULL) {
+        FLUID_LOG(FLUID_ERR, "Out of memory");
+        goto err_exit;
+      }
+      page->sample = sample;
+      page->prev = NULL;
+      page->next = NULL;
+      page->resident = 0;
+      page->ogg_start = 0;
+      page->ogg_size = 0;
+      if (sample->sampletype & FLUID_SAMPLETYPE_OGG_VORBIS) {
+        page->ogg_start = sample->start;
+        page->ogg_size = sample->end - sample->start + 1;
+      }
+      sample->userdata = page;
+    } else if (fluid_defsfont_pool_sample(sfont, sample) != FLUID_OK) {
+      goto err_exit;
+    }
     p = fluid_list_next(p);
   }
 
+  /* The samples read into memory are now pooled, so the block is only needed
+     for the compressed data */
+  fluid_defsfont_release_sampledata(sfont);
+
   /* Load all the presets */
   p = sfdata->preset;
   while (p != NULL) {
@@ -413,10 +535,21 @@ int fluid_defsfont_load(fluid_defsfont_t* sfont, const char* file)
 
     fluid_defsfont_add_preset(sfont, preset);
     if(preset_callback) preset_callback(preset->bank,preset->num,preset->name);
+
+    if (fluid_defsfont_progress_cancelled(sfont->progress))
+      goto err_exit;
     p = fluid_list_next(p);
   }
+
+  /* Both arenas only grow, so the peak is reached just before the parse records are dropped */
+  sfont->load_peak = fluid_arena_get_reserved(sfont->arena)
+    + fluid_arena_get_reserved(sfdata->arena);
   sfont_close (sfdata);
 
+  if (sfont->progress != NULL) {
+    fluid_defsfont_progress_set(sfont->progress, __atomic_load_n(&sfont->progress->total,
+                                                                 __ATOMIC_RELAXED));
+  }
   return FLUID_OK;
 
 err_exit:
@@ -430,7 +563,11 @@ err_exit:
  */
 int fluid_defsfont_add_sample(fluid_defsfont_t* sfont, fluid_sample_t* sample)
 {
-  sfont->sample = fluid_list_append(sfont->sample, sample);
+  fluid_list_t* list = fluid_arena_list_append(sfont->arena, sfont->sample, sample);
+  if (list == NULL) {
+    return FLUID_FAILED;
+  }
+  sfont->sample = list;
   return FLUID_OK;
 }
 
@@ -477,6 +614,20 @@ fluid_defsfont_load_sampledata(fluid_defsfont_t* sfont)
 {
   fluid_file fd;
   unsigned short endian;
+  unsigned int read, block;
+
+  /* I'm not sure this endian test is waterproof...  */
+  endian = 0x0100;
+
+  /* Point straight into the mapped file, unless the samples need byte swapping
+     or are misaligned. Pages are then only read in when a sample is played. */
+  if ((sfont->map.data != NULL) && !((char *) &endian)[0] && !(sfont->samplepos & 1)
+      && (sfont->samplepos + (size_t) sfont->samplesize <= sfont->map.size)) {
+    sfont->sampledata = (short*) ((const char*) sfont->map.data + sfont->samplepos);
+    return FLUID_OK;
+  }
+  fluid_file_map_close(&sfont->map);
+
   fd = FLUID_FOPEN(sfont->filename, "rb");
   if (fd == NULL) {
     FLUID_LOG(FLUID_ERR, "Can't open soundfont file");
@@ -490,17 +641,27 @@ fluid_defsfont_load_sampledata(fluid_defsfont_t* sfont)
   sfont->sampledata = (short*) FLUID_MALLOC(sfont->samplesize);
   if (sfont->sampledata == NULL) {
     FLUID_LOG(FLUID_ERR, "Out of memory");
+    FLUID_FCLOSE(fd);
     return FLUID_FAILED;
   }
-  if (FLUID_FREAD(sfont->sampledata, 1, sfont->samplesize, fd) < sfont->samplesize) {
-    FLUID_LOG(FLUID_ERR, "Failed to read sample data");
-    return FLUID_FAILED;
+  for (read = 0; read < sfont->samplesize; read += block) {
+    block = sfont->samplesize - read;
+    if (block > FLUID_DEFSFONT_SAMPLE_READ_BLOCK) {
+      block = FLUID_DEFSFONT_SAMPLE_READ_BLOCK;
+    }
+    if (FLUID_FREAD((char*) sfont->sampledata + read, 1, block, fd) < block) {
+      FLUID_LOG(FLUID_ERR, "Failed to read sample data");
+      FLUID_FCLOSE(fd);
+      return FLUID_FAILED;
+    }
+    fluid_defsfont_progress_set(sfont->progress, sfont->samplepos + read + block);
+    if (fluid_defsfont_progress_cancelled(sfont->progress)) {
+      FLUID_FCLOSE(fd);
+      return FLUID_FAILED;
+    }
   }
   FLUID_FCLOSE(fd);
 
-  /* I'm not sure this endian test is waterproof...  */
-  endian = 0x0100;
-
   /* If this machine is big endian, the sample have to byte swapped  */
   if (((char *) &endian)[0]) {
     unsigned char* cbuf;
@@ -531,70 +692,398 @@ fluid_sample_t* fluid_defsfont_get_sample(fluid_defsfont_t* sfont, char *s)
     sample = (fluid_sample_t*) fluid_list_get(list);
 
     if (FLUID_STRCMP(sample->name, s) == 0) {
+      return sample;
+    }
+  }
 
-        if (sample->sampletype & FLUID_SAMPLETYPE_OGG_VORBIS)
-        {
-      #if SF3_SUPPORT
-            short *sampledata_ogg=NULL;
-            int sampledata_size=0;
-
-            OggVorbis_File vf;
-            vorbisData.pos  = 0;
-            vorbisData.data = (char*)sample->data+sample->start;
-            vorbisData.datasize = (sample->end + 1 - sample->start);
-            if (ov_open_callbacks(&vorbisData, &vf, 0, 0, ovCallbacks) == 0)
-            {
-                char buffer[4096];
-                int numberRead = 0;
-                int section = 0;
-                do {
-                    numberRead = ov_read(&vf, buffer, 4096, 0, 2, 1, &section);
-                    sampledata_ogg=realloc(sampledata_ogg,sampledata_size+numberRead);
-                    if(numberRead>0)
-                    {
-                        memcpy((char*)(sampledata_ogg)+sampledata_size,buffer,numberRead);
-                        sampledata_size+=numberRead;
-                    }
-                } while (numberRead>0);
-
-                ov_clear(&vf);
-            }
-
-          // point sample data to uncompressed data stream
-          sample->data = sampledata_ogg;
-          sample->start = 0;
-          sample->end = sampledata_size - 1;
-
-          /* loop is fowled?? (cluck cluck :) */
-          if (sample->loopend > sample->end ||
-              sample->loopstart >= sample->loopend ||
-              sample->loopstart <= sample->start)
-          {
-            /* can pad loop by 8 samples and ensure at least 4 for loop (2*8+4) */
-            if ((sample->end - sample->start) >= 20)
-            {
-              sample->loopstart = sample->start + 8;
-              sample->loopend = sample->end - 8;
-            }
-            else /* loop is fowled, sample is tiny (can't pad 8 samples) */
-            {
-              sample->loopstart = sample->start + 1;
-              sample->loopend = sample->end - 1;
-            }
-          }
-          sample->sampletype=FLUID_SAMPLETYPE_OGG_VORBIS_UNPACKED;
-          fluid_voice_optimize_sample(sample);
-      #endif
-        }
+  return NULL;
+}
 
+/*
+ * fluid_defsfont_get_memory_usage
+ *
+ * Reports the metadata memory held by the soundfont, and the most that was held at once while
+ * loading it. Sample data is not included, its size is samplesize.
+ */
+int fluid_defsfont_get_memory_usage(fluid_defsfont_t* sfont, size_t* resident, size_t* peak)
+{
+  *resident = fluid_arena_get_reserved(sfont->arena);
+  *peak = sfont->load_peak > *resident ? sfont->load_peak : *resident;
+  return FLUID_OK;
+}
 
-      return sample;
+/*
+ * fluid_defsfont_get_resident_size
+ *
+ * Reports the memory the soundfont holds: its metadata plus its sample data.
+ * Only the paged in samples count for mapped files, and compressed samples
+ * count once they are decoded. Pooled samples count in full, even when other
+ * soundfonts share them.
+ */
+size_t fluid_defsfont_get_resident_size(fluid_defsfont_t* sfont)
+{
+  size_t size = fluid_arena_get_reserved(sfont->arena) + sfont->sample_resident
+    + sfont->sample_pooled;
+
+  if ((sfont->map.data == NULL) && (sfont->sampledata != NULL)) {
+    size += (size_t) sfont->samplesize;
+  }
+  return size;
+}
+
+/*
+ * fluid_defsfont_set_sample_budget
+ *
+ * Sets how much of the mapped sample data stays paged in, and how much of the
+ * decoded sample data stays decoded, in bytes. Samples of playing voices are
+ * never dropped, so the budget can be exceeded while they play.
+ */
+int fluid_defsfont_set_sample_budget(fluid_defsfont_t* sfont, size_t budget)
+{
+  sfont->sample_budget = budget;
+  return FLUID_OK;
+}
+
+/*
+ * fluid_sample_page_unlink
+ */
+static void
+fluid_sample_page_unlink(fluid_defsfont_t* sfont, fluid_sample_page_t* page)
+{
+  if (page->prev != NULL) {
+    page->prev->next = page->next;
+  } else {
+    sfont->page_first = page->next;
+  }
+  if (page->next != NULL) {
+    page->next->prev = page->prev;
+  } else {
+    sfont->page_last = page->prev;
+  }
+  page->prev = NULL;
+  page->next = NULL;
+}
+
+/*
+ * fluid_sample_page_size
+ */
+static size_t
+fluid_sample_page_size(fluid_sample_t* sample)
+{
+  return (sample->end - sample->start + 1) * sizeof(short);
+}
+
+/*
+ * fluid_sample_page_offset
+ *
+ * The position of the sample data in the mapped file.
+ */
+static size_t
+fluid_sample_page_offset(fluid_defsfont_t* sfont, fluid_sample_t* sample)
+{
+  return sfont->samplepos + sample->start * sizeof(short);
+}
+
+/*
+ * fluid_sample_page_link_first
+ *
+ * Makes a resident sample the most recently played one.
+ */
+static void
+fluid_sample_page_link_first(fluid_defsfont_t* sfont, fluid_sample_page_t* page)
+{
+  if (page->resident) {
+    if (page == sfont->page_first) {
+      return;
+    }
+    fluid_sample_page_unlink(sfont, page);
+  }
+
+  page->next = sfont->page_first;
+  if (sfont->page_first != NULL) {
+    sfont->page_first->prev = page;
+  } else {
+    sfont->page_last = page;
+  }
+  sfont->page_first = page;
+}
+
+/*
+ * fluid_defsfont_trim_samples
+ *
+ * Drops the least recently played samples which no voice uses until the
+ * soundfont is back within its budget, stopping at the given sample. Mapped
+ * samples are paged out and decoded ones are freed.
+ */
+static void
+fluid_defsfont_trim_samples(fluid_defsfont_t* sfont, fluid_sample_page_t* keep)
+{
+  fluid_sample_page_t *victim, *prev;
+
+  for (victim = sfont->page_last;
+       (victim != NULL) && (victim != keep) && (sfont->sample_resident > sfont->sample_budget);
+       victim = prev) {
+    prev = victim->prev;
+    if (fluid_sample_refcount(victim->sample) != 0) {
+      continue;
+    }
+    fluid_sample_page_unlink(sfont, victim);
+    victim->resident = 0;
+    sfont->sample_resident -= fluid_sample_page_size(victim->sample);
+    if (victim->ogg_size != 0) {
+      fluid_sample_pool_release(victim->sample->data);
+      victim->sample->data = NULL;
+    } else {
+      fluid_file_map_page_out(&sfont->map, fluid_sample_page_offset(sfont, victim->sample),
+                              fluid_sample_page_size(victim->sample));
+    }
+  }
+}
+
+/*
+ * fluid_sample_set_decoded
+ *
+ * Points a compressed sample to its decoded data.
+ */
+static void
+fluid_sample_set_decoded(fluid_sample_t* sample, short* data, unsigned int num_frames)
+{
+  sample->data = data;
+  sample->start = 0;
+  sample->end = num_frames - 1;
+
+  /* loop is fowled?? (cluck cluck :) */
+  if (sample->loopend > sample->end ||
+      sample->loopstart >= sample->loopend ||
+      sample->loopstart <= sample->start) {
+    /* can pad loop by 8 samples and ensure at least 4 for loop (2*8+4) */
+    if ((sample->end - sample->start) >= 20) {
+      sample->loopstart = sample->start + 8;
+      sample->loopend = sample->end - 8;
+    } else { /* loop is fowled, sample is tiny (can't pad 8 samples) */
+      sample->loopstart = sample->start + 1;
+      sample->loopend = sample->end - 1;
+    }
+  }
+
+  sample->sampletype = (sample->sampletype & ~FLUID_SAMPLETYPE_OGG_VORBIS)
+    | FLUID_SAMPLETYPE_OGG_VORBIS_UNPACKED;
+}
+
+/*
+ * fluid_sample_page_decode
+ *
+ * Decodes a compressed sample into the sample pool. Only reads the soundfont,
+ * so several samples can be decoded at once.
+ */
+static int
+fluid_sample_page_decode(fluid_defsfont_t* sfont, fluid_sample_page_t* page, short** data,
+                         unsigned int* num_frames)
+{
+  const unsigned char* ogg = (const unsigned char*) sfont->sampledata + page->ogg_start;
+
+  if (fluid_vorbis_decode(ogg, page->ogg_size, data, num_frames) != FLUID_OK) {
+    return FLUID_FAILED;
+  }
+  if (*num_frames < 8) {
+    FLUID_FREE(*data);
+    return FLUID_FAILED;
+  }
+  *data = fluid_sample_pool_adopt(*data, *num_frames);
+  return (*data != NULL) ? FLUID_OK : FLUID_FAILED;
+}
+
+/*
+ * fluid_defsfont_make_resident
+ *
+ * Adds a sample to the front of the resident samples.
+ */
+static void
+fluid_defsfont_make_resident(fluid_defsfont_t* sfont, fluid_sample_page_t* page)
+{
+  fluid_sample_page_link_first(sfont, page);
+  page->resident = 1;
+  sfont->sample_resident += fluid_sample_page_size(page->sample);
+}
+
+/*
+ * fluid_defsfont_page_in_sample
+ *
+ * Makes sure the data of a sample is ready to play, before a voice uses it.
+ * A sample in the mapped file is paged in, and a compressed sample is decoded.
+ * It becomes the most recently played one, and the least recently played
+ * samples which no voice uses are dropped until the soundfont is back within
+ * its budget. Fails if the sample can't be decoded.
+ */
+int fluid_defsfont_page_in_sample(fluid_defsfont_t* sfont, fluid_sample_t* sample)
+{
+  fluid_sample_page_t* page;
+  unsigned int num_frames;
+  short* data;
+
+  page = (fluid_sample_page_t*) sample->userdata;
+  if ((page != NULL) && sample->valid) {
+
+    if (page->resident) {
+      fluid_sample_page_link_first(sfont, page);
+    } else {
+      if (page->ogg_size != 0) {
+        if (fluid_sample_page_decode(sfont, page, &data, &num_frames) != FLUID_OK) {
+          FLUID_LOG(FLUID_ERR, "Failed to decode sample %s", sample->name);
+          return FLUID_FAILED;
+        }
+        fluid_sample_set_decoded(sample, data, num_frames);
+      } else {
+        fluid_file_map_page_in(&sfont->map, fluid_sample_page_offset(sfont, sample),
+                               fluid_sample_page_size(sample));
+      }
+      fluid_defsfont_make_resident(sfont, page);
+      fluid_defsfont_trim_samples(sfont, page);
     }
   }
 
+  /* Reads the loop, so this is deferred until the sample is needed. It only
+     runs once per sample. */
+  fluid_voice_optimize_sample(sample);
+  return FLUID_OK;
+}
+
+/* A compressed sample to decode ahead of its notes */
+typedef struct _fluid_decode_job_t
+{
+  fluid_sample_page_t* page;
+  short* data;
+  unsigned int num_frames;
+  int status;
+} fluid_decode_job_t;
+
+/* The samples which the decoding threads share */
+typedef struct _fluid_decode_queue_t
+{
+  fluid_defsfont_t* sfont;
+  fluid_decode_job_t* jobs;
+  int num_jobs;
+  int next;                     /* the next job to take */
+} fluid_decode_queue_t;
+
+/*
+ * fluid_decode_queue_run
+ *
+ * Decodes samples from the queue until it is empty.
+ */
+static void*
+fluid_decode_queue_run(void* arg)
+{
+  fluid_decode_queue_t* queue = (fluid_decode_queue_t*) arg;
+  fluid_decode_job_t* job;
+  int i;
+
+  while ((i = __atomic_fetch_add(&queue->next, 1, __ATOMIC_RELAXED)) < queue->num_jobs) {
+    job = &queue->jobs[i];
+    job->status = fluid_sample_page_decode(queue->sfont, job->page, &job->data,
+                                           &job->num_frames);
+  }
   return NULL;
 }
 
+/*
+ * fluid_defsfont_preset_prepare_notes
+ *
+ * Decodes the compressed samples which the given notes of a preset will play,
+ * using a thread per core, so that starting the notes doesn't decode them one
+ * by one. Samples which fail here are retried, and reported, when the notes
+ * start. Does nothing for presets of other soundfont types.
+ */
+int fluid_defsfont_preset_prepare_notes(fluid_preset_t* preset, const int* keys, int num_keys,
+                                        int vel)
+{
+  fluid_decode_job_t jobs[FLUID_DEFSFONT_MAX_DECODE_JOBS];
+  pthread_t threads[FLUID_DEFSFONT_MAX_DECODE_THREADS];
+  fluid_decode_queue_t queue;
+  fluid_defpreset_t* defpreset;
+  fluid_preset_zone_t* preset_zone;
+  fluid_inst_zone_t* inst_zone;
+  fluid_sample_t* sample;
+  fluid_sample_page_t *page, *keep;
+  long num_cores;
+  int i, j, k, num_threads;
+
+  if (preset->noteon != fluid_defpreset_preset_noteon) {
+    return FLUID_OK;
+  }
+  defpreset = (fluid_defpreset_t*) preset->data;
+
+  /* Find the samples which are not decoded yet */
+  queue.sfont = defpreset->sfont;
+  queue.jobs = jobs;
+  queue.num_jobs = 0;
+  queue.next = 0;
+  for (k = 0; k < num_keys; k++) {
+    for (preset_zone = fluid_defpreset_get_zone(defpreset); preset_zone != NULL;
+         preset_zone = fluid_preset_zone_next(preset_zone)) {
+      if (!fluid_preset_zone_inside_range(preset_zone, keys[k], vel)) {
+        continue;
+      }
+      for (inst_zone = fluid_inst_get_zone(fluid_preset_zone_get_inst(preset_zone));
+           inst_zone != NULL; inst_zone = fluid_inst_zone_next(inst_zone)) {
+        sample = fluid_inst_zone_get_sample(inst_zone);
+        if ((sample == NULL) || !sample->valid
+            || !fluid_inst_zone_inside_range(inst_zone, keys[k], vel)) {
+          continue;
+        }
+        page = (fluid_sample_page_t*) sample->userdata;
+        if ((page == NULL) || (page->ogg_size == 0) || page->resident) {
+          continue;
+        }
+        for (j = 0; (j < queue.num_jobs) && (jobs[j].page != page); j++);
+        if ((j == queue.num_jobs) && (queue.num_jobs < FLUID_DEFSFONT_MAX_DECODE_JOBS)) {
+          jobs[queue.num_jobs++].page = page;
+        }
+      }
+    }
+  }
+  if (queue.num_jobs == 0) {
+    return FLUID_OK;
+  }
+
+  /* Decode them. This thread takes jobs too. */
+  num_cores = sysconf(_SC_NPROCESSORS_ONLN);
+  num_threads = queue.num_jobs;
+  if (num_threads > FLUID_DEFSFONT_MAX_DECODE_THREADS) {
+    num_threads = FLUID_DEFSFONT_MAX_DECODE_THREADS;
+  }
+  if (num_threads > num_cores) {
+    num_threads = (num_cores > 1) ? (int) num_cores : 1;
+  }
+  for (i = 0; i < num_threads - 1; i++) {
+    if (pthread_create(&threads[i], NULL, fluid_decode_queue_run, &queue) != 0) {
+      break;
+    }
+  }
+  fluid_decode_queue_run(&queue);
+  for (j = 0; j < i; j++) {
+    pthread_join(threads[j], NULL);
+  }
+
+  /* Install the decoded samples, keeping all of them resident */
+  keep = NULL;
+  for (j = 0; j < queue.num_jobs; j++) {
+    if (jobs[j].status != FLUID_OK) {
+      continue;
+    }
+    page = jobs[j].page;
+    fluid_sample_set_decoded(page->sample, jobs[j].data, jobs[j].num_frames);
+    fluid_defsfont_make_resident(queue.sfont, page);
+    if (keep == NULL) {
+      keep = page;
+    }
+  }
+  if (keep != NULL) {
+    fluid_defsfont_trim_samples(queue.sfont, keep);
+  }
+  return FLUID_OK;
+}
+
 /*
  * fluid_defsfont_get_preset
  */
@@ -643,7 +1132,7 @@ int fluid_defsfont_iteration_next(fluid_defsfont_t* sfont, fluid_preset_t* prese
 fluid_defpreset_t*
 new_fluid_defpreset(fluid_defsfont_t* sfont)
 {
-  fluid_defpreset_t* preset = FLUID_NEW(fluid_defpreset_t);
+  fluid_defpreset_t* preset = FLUID_ARENA_NEW(sfont->arena, fluid_defpreset_t);
   if (preset == NULL) {
     FLUID_LOG(FLUID_ERR, "Out of memory");
     return NULL;
@@ -658,32 +1147,6 @@ new_fluid_defpreset(fluid_defsfont_t* sfont)
   return preset;
 }
 
-/*
- * delete_fluid_defpreset
- */
-int
-delete_fluid_defpreset(fluid_defpreset_t* preset)
-{
-  int err = FLUID_OK;
-  fluid_preset_zone_t* zone;
-  if (preset->global_zone != NULL) {
-    if (delete_fluid_preset_zone(preset->global_zone) != FLUID_OK) {
-      err = FLUID_FAILED;
-    }
-    preset->global_zone = NULL;
-  }
-  zone = preset->zone;
-  while (zone != NULL) {
-    preset->zone = zone->next;
-    if (delete_fluid_preset_zone(zone) != FLUID_OK) {
-      err = FLUID_FAILED;
-    }
-    zone = preset->zone;
-  }
-  FLUID_FREE(preset);
-  return err;
-}
-
 int
 fluid_defpreset_get_banknum(fluid_defpreset_t* preset)
 {
@@ -811,6 +1274,10 @@ fluid_defpreset_noteon(fluid_defpreset_t* preset, fluid_synth_t* synth, int chan
 	  /* this is a good zone. allocate a new synthesis process and
              initialize it */
 
+	  if (fluid_defsfont_page_in_sample(preset->sfont, sample) != FLUID_OK) {
+	    inst_zone = fluid_inst_zone_next(inst_zone);
+	    continue;
+	  }
 	  voice = fluid_synth_alloc_voice(synth, sample, chan, key, vel);
 	  if (voice == NULL) {
 	    return FLUID_FAILED;
@@ -1026,7 +1493,7 @@ fluid_defpreset_import_sfont(fluid_defpreset_t* preset,
   while (p != NULL) {
     sfzone = (SFZone *) p->data;
     FLUID_SPRINTF(zone_name, "%s/%d", preset->name, count);
-    zone = new_fluid_preset_zone(zone_name);
+    zone = new_fluid_preset_zone(sfont->arena, zone_name);
     if (zone == NULL) {
       return FLUID_FAILED;
     }
@@ -1091,24 +1558,21 @@ fluid_preset_zone_next(fluid_preset_zone_t* preset)
  * new_fluid_preset_zone
  */
 fluid_preset_zone_t*
-new_fluid_preset_zone(char *name)
+new_fluid_preset_zone(fluid_arena_t* arena, char *name)
 {
-  int size;
   fluid_preset_zone_t* zone = NULL;
-  zone = FLUID_NEW(fluid_preset_zone_t);
+  zone = FLUID_ARENA_NEW(arena, fluid_preset_zone_t);
   if (zone == NULL) {
     FLUID_LOG(FLUID_ERR, "Out of memory");
     return NULL;
   }
   zone->next = NULL;
-  size = 1 + FLUID_STRLEN(name);
-  zone->name = FLUID_MALLOC(size);
+  zone->name = fluid_arena_strdup(arena, name);
   if (zone->name == NULL) {
     FLUID_LOG(FLUID_ERR, "Out of memory");
-    FLUID_FREE(zone);
+    if (arena == NULL) FLUID_FREE(zone);
     return NULL;
   }
-  FLUID_STRCPY(zone->name, name);
   zone->inst = NULL;
   zone->keylo = 0;
   zone->keyhi = 128;
@@ -1130,6 +1594,8 @@ new_fluid_preset_zone(char *name)
 
 /*
  * delete_fluid_preset_zone
+ *
+ * Only for zones created without an arena. Arena zones are released with their soundfont.
  */
 int
 delete_fluid_preset_zone(fluid_preset_zone_t* zone)
@@ -1179,7 +1645,7 @@ fluid_preset_zone_import_sfont(fluid_preset_zone_t* zone, SFZone *sfzone, fluid_
     r = fluid_list_next(r);
   }
   if ((sfzone->instsamp != NULL) && (sfzone->instsamp->data != NULL)) {
-    zone->inst = (fluid_inst_t*) new_fluid_inst();
+    zone->inst = (fluid_inst_t*) new_fluid_inst(sfont->arena);
     if (zone->inst == NULL) {
       FLUID_LOG(FLUID_ERR, "Out of memory");
       return FLUID_FAILED;
@@ -1193,10 +1659,11 @@ fluid_preset_zone_import_sfont(fluid_preset_zone_t* zone, SFZone *sfzone, fluid_
   for (count = 0, r = sfzone->mod; r != NULL; count++) {
 
     SFMod* mod_src = (SFMod *)r->data;
-    fluid_mod_t * mod_dest = fluid_mod_new();
+    fluid_mod_t * mod_dest = FLUID_ARENA_NEW(sfont->arena, fluid_mod_t);
     int type;
 
     if (mod_dest == NULL){
+      FLUID_LOG(FLUID_ERR, "Out of memory");
       return FLUID_FAILED;
     }
     mod_dest->next = NULL; /* pointer to next modulator, this is the end of the list now.*/
@@ -1352,9 +1819,9 @@ fluid_preset_zone_inside_range(fluid_preset_zone_t* zone, int key, int vel)
  * new_fluid_inst
  */
 fluid_inst_t*
-new_fluid_inst()
+new_fluid_inst(fluid_arena_t* arena)
 {
-  fluid_inst_t* inst = FLUID_NEW(fluid_inst_t);
+  fluid_inst_t* inst = FLUID_ARENA_NEW(arena, fluid_inst_t);
   if (inst == NULL) {
     FLUID_LOG(FLUID_ERR, "Out of memory");
     return NULL;
@@ -1367,6 +1834,8 @@ new_fluid_inst()
 
 /*
  * delete_fluid_inst
+ *
+ * Only for instruments created without an arena.
  */
 int
 delete_fluid_inst(fluid_inst_t* inst)
@@ -1426,7 +1895,7 @@ fluid_inst_import_sfont(fluid_inst_t* inst, SFInst *sfinst, fluid_defsfont_t* sf
     sfzone = (SFZone *) p->data;
     FLUID_SPRINTF(zone_name, "%s/%d", inst->name, count);
 
-    zone = new_fluid_inst_zone(zone_name);
+    zone = new_fluid_inst_zone(sfont->arena, zone_name);
     if (zone == NULL) {
       return FLUID_FAILED;
     }
@@ -1491,24 +1960,21 @@ fluid_inst_get_global_zone(fluid_inst_t* inst)
  * new_fluid_inst_zone
  */
 fluid_inst_zone_t*
-new_fluid_inst_zone(char* name)
+new_fluid_inst_zone(fluid_arena_t* arena, char* name)
 {
-  int size;
   fluid_inst_zone_t* zone = NULL;
-  zone = FLUID_NEW(fluid_inst_zone_t);
+  zone = FLUID_ARENA_NEW(arena, fluid_inst_zone_t);
   if (zone == NULL) {
     FLUID_LOG(FLUID_ERR, "Out of memory");
     return NULL;
   }
   zone->next = NULL;
-  size = 1 + FLUID_STRLEN(name);
-  zone->name = FLUID_MALLOC(size);
+  zone->name = fluid_arena_strdup(arena, name);
   if (zone->name == NULL) {
     FLUID_LOG(FLUID_ERR, "Out of memory");
-    FLUID_FREE(zone);
+    if (arena == NULL) FLUID_FREE(zone);
     return NULL;
   }
-  FLUID_STRCPY(zone->name, name);
   zone->sample = NULL;
   zone->keylo = 0;
   zone->keyhi = 128;
@@ -1524,6 +1990,8 @@ new_fluid_inst_zone(char* name)
 
 /*
  * delete_fluid_inst_zone
+ *
+ * Only for zones created without an arena.
  */
 int
 delete_fluid_inst_zone(fluid_inst_zone_t* zone)
@@ -1602,8 +2070,9 @@ fluid_inst_zone_import_sfont(fluid_inst_zone_t* zone, SFZone *sfzone, fluid_defs
     int type;
     fluid_mod_t* mod_dest;
 
-    mod_dest = fluid_mod_new();
+    mod_dest = FLUID_ARENA_NEW(sfont->arena, fluid_mod_t);
     if (mod_dest == NULL){
+      FLUID_LOG(FLUID_ERR, "Out of memory");
       return FLUID_FAILED;
     }
 
@@ -1756,11 +2225,11 @@ fluid_inst_zone_inside_range(fluid_inst_zone_t* zone, int key, int vel)
  * new_fluid_sample
  */
 fluid_sample_t*
-new_fluid_sample()
+new_fluid_sample(fluid_arena_t* arena)
 {
   fluid_sample_t* sample = NULL;
 
-  sample = FLUID_NEW(fluid_sample_t);
+  sample = FLUID_ARENA_NEW(arena, fluid_sample_t);
   if (sample == NULL) {
     FLUID_LOG(FLUID_ERR, "Out of memory");
     return NULL;
@@ -1774,6 +2243,8 @@ new_fluid_sample()
 
 /*
  * delete_fluid_sample
+ *
+ * Only for samples created without an arena.
  */
 int
 delete_fluid_sample(fluid_sample_t* sample)
@@ -1816,9 +2287,13 @@ fluid_sample_import_sfont(fluid_sample_t* sample, SFSample* sfsample, fluid_defs
   sample->pitchadj = sfsample->pitchadj;
   sample->sampletype = sfsample->sampletype;
 
-  if (sample->sampletype & FLUID_SAMPLETYPE_OGG_VORBIS)
-  {
-
+  /* Compressed samples are decoded when they are first played. Until then,
+     start and end are the position of the Ogg stream in bytes, and the loop
+     is relative to the decoded sample. */
+  if (sample->sampletype & FLUID_SAMPLETYPE_OGG_VORBIS) {
+    sample->data = NULL;
+    sample->loopstart = sfsample->loopstart;
+    sample->loopend = sfsample->loopend;
   }
 
   if (sample->sampletype & FLUID_SAMPLETYPE_ROM) {
@@ -1926,31 +2401,50 @@ var = GINT16_FROM_BE(_temp);			\
 	return(FAIL);					\
 } G_STMT_END
 
-/* removes and advances a fluid_list_t pointer */
+/* removes and advances a fluid_list_t pointer, the node stays in the arena */
 #define SLADVREM(list, item)	G_STMT_START {		\
     fluid_list_t *_temp = item;				\
     item = fluid_list_next(item);				\
     list = fluid_list_remove_link(list, _temp);		\
-    delete1_fluid_list(_temp);				\
+} G_STMT_END
+
+/* allocates a record from the SFData arena */
+#define SFNEW(var, type)	G_STMT_START {		\
+    if (!(var = FLUID_ARENA_NEW (sf->arena, type)))	\
+	return (gerr (ErrMem, _("Out of memory")));	\
+} G_STMT_END
+
+/* adds to a list whose nodes belong to the SFData arena */
+#define SLPREPEND(list, data)	G_STMT_START {		\
+    fluid_list_t *_temp = fluid_arena_list_prepend (sf->arena, list, data); \
+    if (!_temp)						\
+	return (gerr (ErrMem, _("Out of memory")));	\
+    list = _temp;					\
+} G_STMT_END
+#define SLAPPEND(list, data)	G_STMT_START {		\
+    fluid_list_t *_temp = fluid_arena_list_append (sf->arena, list, data); \
+    if (!_temp)						\
+	return (gerr (ErrMem, _("Out of memory")));	\
+    list = _temp;					\
 } G_STMT_END
 
 static int chunkid (unsigned int id);
-static int load_body (unsigned int size, SFData * sf, fluid_file fd);
-static int read_listchunk (SFChunk * chunk, fluid_file fd);
-static int process_info (int size, SFData * sf, fluid_file fd);
-static int process_sdta (int size, SFData * sf, fluid_file fd);
+static int load_body (unsigned int size, SFData * sf, SFReader * fd);
+static int read_listchunk (SFChunk * chunk, SFReader * fd);
+static int process_info (int size, SFData * sf, SFReader * fd);
+static int process_sdta (int size, SFData * sf, SFReader * fd);
 static int pdtahelper (unsigned int expid, unsigned int reclen, SFChunk * chunk,
-  int * size, fluid_file fd);
-static int process_pdta (int size, SFData * sf, fluid_file fd);
-static int load_phdr (int size, SFData * sf, fluid_file fd);
-static int load_pbag (int size, SFData * sf, fluid_file fd);
-static int load_pmod (int size, SFData * sf, fluid_file fd);
-static int load_pgen (int size, SFData * sf, fluid_file fd);
-static int load_ihdr (int size, SFData * sf, fluid_file fd);
-static int load_ibag (int size, SFData * sf, fluid_file fd);
-static int load_imod (int size, SFData * sf, fluid_file fd);
-static int load_igen (int size, SFData * sf, fluid_file fd);
-static int load_shdr (unsigned int size, SFData * sf, fluid_file fd);
+  int * size, SFReader * fd);
+static int process_pdta (int size, SFData * sf, SFReader * fd);
+static int load_phdr (int size, SFData * sf, SFReader * fd);
+static int load_pbag (int size, SFData * sf, SFReader * fd);
+static int load_pmod (int size, SFData * sf, SFReader * fd);
+static int load_pgen (int size, SFData * sf, SFReader * fd);
+static int load_ihdr (int size, SFData * sf, SFReader * fd);
+static int load_ibag (int size, SFData * sf, SFReader * fd);
+static int load_imod (int size, SFData * sf, SFReader * fd);
+static int load_igen (int size, SFData * sf, SFReader * fd);
+static int load_shdr (unsigned int size, SFData * sf, SFReader * fd);
 static int fixup_pgen (SFData * sf);
 static int fixup_igen (SFData * sf);
 static int fixup_sample (SFData * sf);
@@ -1979,14 +2473,25 @@ chunkid (unsigned int id)
 }
 
 SFData *
-sfload_file (const char * fname)
+sfload_file (const char * fname, fluid_defsfont_progress_t * progress)
 {
   SFData *sf = NULL;
-  fluid_file fd;
+  fluid_file_map_t map;
+  SFReader reader;
+  SFReader *fd = &reader;
   size_t fsize = 0;
   int err = FALSE;
 
-  if (!(fd = FLUID_FOPEN(fname, "rb")))
+  memset (&reader, 0, sizeof (SFReader));
+  reader.progress = progress;
+
+  /* Parse the mapped file if possible, which saves many small reads */
+  if (fluid_file_map_open (&map, fname) == FLUID_OK)
+    {
+      reader.data = (const unsigned char *) map.data;
+      reader.size = map.size;
+    }
+  else if (!(reader.fd = FLUID_FOPEN(fname, "rb")))
     {
       FLUID_LOG (FLUID_ERR, _("Unable to open file \"%s\""), fname);
       return (NULL);
@@ -1995,29 +2500,37 @@ sfload_file (const char * fname)
   if (!(sf = FLUID_NEW (SFData)))
     {
       FLUID_LOG(FLUID_ERR, "Out of memory");
-      err = TRUE;
+      if (reader.fd)
+	FLUID_FCLOSE (reader.fd);
+      fluid_file_map_close (&map);
+      return (NULL);
     }
 
   if (!err)
     {
       memset (sf, 0, sizeof (SFData));	/* zero sfdata */
       sf->fname = FLUID_STRDUP (fname);	/* copy file name */
-      sf->sffd = fd;
+      sf->sffd = reader.fd;
+      sf->map = map;
+      if (!(sf->arena = new_fluid_arena (SFDATA_ARENA_BLOCK)))
+	err = TRUE;
     }
 
   /* get size of file */
-  if (!err && FLUID_FSEEK (fd, 0L, SEEK_END) == -1)
+  if (!err && !safe_fseek (fd, 0L, SEEK_END))
     {				/* seek to end of file */
       err = TRUE;
       FLUID_LOG (FLUID_ERR, _("Seek to end of file failed"));
     }
-  if (!err && (fsize = FLUID_FTELL (fd)) == -1)
+  if (!err && (fsize = safe_ftell (fd)) == -1)
     {				/* position = size */
       err = TRUE;
       FLUID_LOG (FLUID_ERR, _("Get end of file position failed"));
     }
-  if (!err)
-    FLUID_REWIND (fd);
+  if (!err && !safe_fseek (fd, 0L, SEEK_SET))
+    err = TRUE;
+  if (!err && progress != NULL)
+    __atomic_store_n (&progress->total, fsize, __ATOMIC_RELAXED);
 
   if (!err && !load_body (fsize, sf, fd))
     err = TRUE;			/* load the sfont */
@@ -2033,7 +2546,7 @@ sfload_file (const char * fname)
 }
 
 static int
-load_body (unsigned int size, SFData * sf, fluid_file fd)
+load_body (unsigned int size, SFData * sf, SFReader * fd)
 {
   SFChunk chunk;
 
@@ -2094,7 +2607,7 @@ load_body (unsigned int size, SFData * sf, fluid_file fd)
 }
 
 static int
-read_listchunk (SFChunk * chunk, fluid_file fd)
+read_listchunk (SFChunk * chunk, SFReader * fd)
 {
   READCHUNK (chunk, fd);	/* read list chunk */
   if (chunkid (chunk->id) != LIST_ID)	/* error if ! list chunk */
@@ -2105,7 +2618,7 @@ read_listchunk (SFChunk * chunk, fluid_file fd)
 }
 
 static int
-process_info (int size, SFData * sf, fluid_file fd)
+process_info (int size, SFData * sf, SFReader * fd)
 {
   SFChunk chunk;
   unsigned char id;
@@ -2172,14 +2685,11 @@ process_info (int size, SFData * sf, fluid_file fd)
 		  " of %d bytes"), &chunk.id, chunk.size));
 
 	  /* alloc for chunk id and da chunk */
-	  if (!(item = FLUID_MALLOC (chunk.size + 1)))
-	    {
-	      FLUID_LOG(FLUID_ERR, "Out of memory");
-	      return (FAIL);
-	    }
+	  if (!(item = fluid_arena_alloc (sf->arena, chunk.size + 1)))
+	    return (gerr (ErrMem, _("Out of memory")));
 
 	  /* attach to INFO list, sfont_close will cleanup if FAIL occurs */
-	  sf->info = fluid_list_append (sf->info, item);
+	  SLAPPEND (sf->info, item);
 
 	  *(unsigned char *) item = id;
 	  if (!safe_fread (&item[1], chunk.size, fd))
@@ -2200,7 +2710,7 @@ process_info (int size, SFData * sf, fluid_file fd)
 }
 
 static int
-process_sdta (int size, SFData * sf, fluid_file fd)
+process_sdta (int size, SFData * sf, SFReader * fd)
 {
   SFChunk chunk;
 
@@ -2219,7 +2729,7 @@ process_sdta (int size, SFData * sf, fluid_file fd)
     return (gerr (ErrCorr, _("SDTA chunk size mismatch")));
 
   /* sample data follows */
-  sf->samplepos = FLUID_FTELL (fd);
+  sf->samplepos = safe_ftell (fd);
 
   /* used in fixup_sample() to check validity of sample headers */
   sdtachunk_size = chunk.size;
@@ -2232,7 +2742,7 @@ process_sdta (int size, SFData * sf, fluid_file fd)
 
 static int
 pdtahelper (unsigned int expid, unsigned int reclen, SFChunk * chunk,
-  int * size, fluid_file fd)
+  int * size, SFReader * fd)
 {
   unsigned int id;
   char *expstr;
@@ -2257,7 +2767,7 @@ pdtahelper (unsigned int expid, unsigned int reclen, SFChunk * chunk,
 }
 
 static int
-process_pdta (int size, SFData * sf, fluid_file fd)
+process_pdta (int size, SFData * sf, SFReader * fd)
 {
   SFChunk chunk;
 
@@ -2311,7 +2821,7 @@ process_pdta (int size, SFData * sf, fluid_file fd)
 
 /* preset header loader */
 static int
-load_phdr (int size, SFData * sf, fluid_file fd)
+load_phdr (int size, SFData * sf, SFReader * fd)
 {
   int i, i2;
   SFPreset *p, *pr = NULL;	/* ptr to current & previous preset */
@@ -2330,8 +2840,8 @@ load_phdr (int size, SFData * sf, fluid_file fd)
 
   for (; i > 0; i--)
     {				/* load all preset headers */
-      p = FLUID_NEW (SFPreset);
-      sf->preset = fluid_list_append (sf->preset, p);
+      SFNEW (p, SFPreset);
+      SLAPPEND (sf->preset, p);
       p->zone = NULL;		/* In case of failure, sfont_close can cleanup */
       READSTR (&p->name, fd);	/* possible read failure ^ */
       READW (p->prenum, fd);
@@ -2348,7 +2858,7 @@ load_phdr (int size, SFData * sf, fluid_file fd)
 	  i2 = zndx - pzndx;
 	  while (i2--)
 	    {
-	      pr->zone = fluid_list_prepend (pr->zone, NULL);
+	      SLPREPEND (pr->zone, NULL);
 	    }
 	}
       else if (zndx > 0)	/* 1st preset, warn if ofs >0 */
@@ -2366,7 +2876,7 @@ load_phdr (int size, SFData * sf, fluid_file fd)
   i2 = zndx - pzndx;
   while (i2--)
     {
-      pr->zone = fluid_list_prepend (pr->zone, NULL);
+      SLPREPEND (pr->zone, NULL);
     }
 
   return (OK);
@@ -2374,7 +2884,7 @@ load_phdr (int size, SFData * sf, fluid_file fd)
 
 /* preset bag loader */
 static int
-load_pbag (int size, SFData * sf, fluid_file fd)
+load_pbag (int size, SFData * sf, SFReader * fd)
 {
   fluid_list_t *p, *p2;
   SFZone *z, *pz = NULL;
@@ -2393,7 +2903,7 @@ load_pbag (int size, SFData * sf, fluid_file fd)
 	{			/* traverse preset's zones */
 	  if ((size -= SFBAGSIZE) < 0)
 	    return (gerr (ErrCorr, _("Preset bag chunk size mismatch")));
-	  z = FLUID_NEW (SFZone);
+	  SFNEW (z, SFZone);
 	  p2->data = z;
 	  z->gen = NULL;	/* Init gen and mod before possible failure, */
 	  z->mod = NULL;	/* to ensure proper cleanup (sfont_close) */
@@ -2411,10 +2921,10 @@ load_pbag (int size, SFData * sf, fluid_file fd)
 		    _("Preset bag modulator indices not monotonic")));
 	      i = genndx - pgenndx;
 	      while (i--)
-		pz->gen = fluid_list_prepend (pz->gen, NULL);
+		SLPREPEND (pz->gen, NULL);
 	      i = modndx - pmodndx;
 	      while (i--)
-		pz->mod = fluid_list_prepend (pz->mod, NULL);
+		SLPREPEND (pz->mod, NULL);
 	    }
 	  pz = z;		/* update previous zone ptr */
 	  pgenndx = genndx;	/* update previous zone gen index */
@@ -2446,17 +2956,17 @@ load_pbag (int size, SFData * sf, fluid_file fd)
     return (gerr (ErrCorr, _("Preset bag modulator indices not monotonic")));
   i = genndx - pgenndx;
   while (i--)
-    pz->gen = fluid_list_prepend (pz->gen, NULL);
+    SLPREPEND (pz->gen, NULL);
   i = modndx - pmodndx;
   while (i--)
-    pz->mod = fluid_list_prepend (pz->mod, NULL);
+    SLPREPEND (pz->mod, NULL);
 
   return (OK);
 }
 
 /* preset modulator loader */
 static int
-load_pmod (int size, SFData * sf, fluid_file fd)
+load_pmod (int size, SFData * sf, SFReader * fd)
 {
   fluid_list_t *p, *p2, *p3;
   SFMod *m;
@@ -2473,7 +2983,7 @@ load_pmod (int size, SFData * sf, fluid_file fd)
 	      if ((size -= SFMODSIZE) < 0)
 		return (gerr (ErrCorr,
 		    _("Preset modulator chunk size mismatch")));
-	      m = FLUID_NEW (SFMod);
+	      SFNEW (m, SFMod);
 	      p3->data = m;
 	      READW (m->src, fd);
 	      READW (m->dest, fd);
@@ -2515,7 +3025,7 @@ load_pmod (int size, SFData * sf, fluid_file fd)
  * if a duplicate generator exists replace previous one
  * ------------------------------------------------------------------- */
 static int
-load_pgen (int size, SFData * sf, fluid_file fd)
+load_pgen (int size, SFData * sf, SFReader * fd)
 {
   fluid_list_t *p, *p2, *p3, *dup, **hz = NULL;
   SFZone *z;
@@ -2593,7 +3103,7 @@ load_pgen (int size, SFData * sf, fluid_file fd)
 		{
 		  if (!dup)
 		    {		/* if gen ! dup alloc new */
-		      g = FLUID_NEW (SFGen);
+		      SFNEW (g, SFGen);
 		      p3->data = g;
 		      g->id = genid;
 		    }
@@ -2634,7 +3144,7 @@ load_pgen (int size, SFData * sf, fluid_file fd)
 			_("Preset \"%s\": Global zone is not first zone"),
 			((SFPreset *) (p->data))->name);
 		      SLADVREM (*hz, p2);
-		      *hz = fluid_list_prepend (*hz, save);
+		      SLPREPEND (*hz, save);
 		      continue;
 		    }
 		}
@@ -2680,7 +3190,7 @@ load_pgen (int size, SFData * sf, fluid_file fd)
 
 /* instrument header loader */
 static int
-load_ihdr (int size, SFData * sf, fluid_file fd)
+load_ihdr (int size, SFData * sf, SFReader * fd)
 {
   int i, i2;
   SFInst *p, *pr = NULL;	/* ptr to current & previous instrument */
@@ -2699,8 +3209,8 @@ load_ihdr (int size, SFData * sf, fluid_file fd)
 
   for (i = 0; i < size; i++)
     {				/* load all instrument headers */
-      p = FLUID_NEW (SFInst);
-      sf->inst = fluid_list_append (sf->inst, p);
+      SFNEW (p, SFInst);
+      SLAPPEND (sf->inst, p);
       p->zone = NULL;		/* For proper cleanup if fail (sfont_close) */
       READSTR (&p->name, fd);	/* Possible read failure ^ */
       READW (zndx, fd);
@@ -2712,7 +3222,7 @@ load_ihdr (int size, SFData * sf, fluid_file fd)
 		_("Instrument header indices not monotonic")));
 	  i2 = zndx - pzndx;
 	  while (i2--)
-	    pr->zone = fluid_list_prepend (pr->zone, NULL);
+	    SLPREPEND (pr->zone, NULL);
 	}
       else if (zndx > 0)	/* 1st inst, warn if ofs >0 */
 	FLUID_LOG (FLUID_WARN, _("%d instrument zones not referenced, discarding"),
@@ -2728,14 +3238,14 @@ load_ihdr (int size, SFData * sf, fluid_file fd)
     return (gerr (ErrCorr, _("Instrument header indices not monotonic")));
   i2 = zndx - pzndx;
   while (i2--)
-    pr->zone = fluid_list_prepend (pr->zone, NULL);
+    SLPREPEND (pr->zone, NULL);
 
   return (OK);
 }
 
 /* instrument bag loader */
 static int
-load_ibag (int size, SFData * sf, fluid_file fd)
+load_ibag (int size, SFData * sf, SFReader * fd)
 {
   fluid_list_t *p, *p2;
   SFZone *z, *pz = NULL;
@@ -2753,7 +3263,7 @@ load_ibag (int size, SFData * sf, fluid_file fd)
 	{			/* load this inst's zones */
 	  if ((size -= SFBAGSIZE) < 0)
 	    return (gerr (ErrCorr, _("Instrument bag chunk size mismatch")));
-	  z = FLUID_NEW (SFZone);
+	  SFNEW (z, SFZone);
 	  p2->data = z;
 	  z->gen = NULL;	/* In case of failure, */
 	  z->mod = NULL;	/* sfont_close can clean up */
@@ -2771,10 +3281,10 @@ load_ibag (int size, SFData * sf, fluid_file fd)
 		    _("Instrument modulator indices not monotonic")));
 	      i = genndx - pgenndx;
 	      while (i--)
-		pz->gen = fluid_list_prepend (pz->gen, NULL);
+		SLPREPEND (pz->gen, NULL);
 	      i = modndx - pmodndx;
 	      while (i--)
-		pz->mod = fluid_list_prepend (pz->mod, NULL);
+		SLPREPEND (pz->mod, NULL);
 	    }
 	  pz = z;		/* update previous zone ptr */
 	  pgenndx = genndx;
@@ -2808,17 +3318,17 @@ load_ibag (int size, SFData * sf, fluid_file fd)
     return (gerr (ErrCorr, _("Instrument modulator indices not monotonic")));
   i = genndx - pgenndx;
   while (i--)
-    pz->gen = fluid_list_prepend (pz->gen, NULL);
+    SLPREPEND (pz->gen, NULL);
   i = modndx - pmodndx;
   while (i--)
-    pz->mod = fluid_list_prepend (pz->mod, NULL);
+    SLPREPEND (pz->mod, NULL);
 
   return (OK);
 }
 
 /* instrument modulator loader */
 static int
-load_imod (int size, SFData * sf, fluid_file fd)
+load_imod (int size, SFData * sf, SFReader * fd)
 {
   fluid_list_t *p, *p2, *p3;
   SFMod *m;
@@ -2835,7 +3345,7 @@ load_imod (int size, SFData * sf, fluid_file fd)
 	      if ((size -= SFMODSIZE) < 0)
 		return (gerr (ErrCorr,
 		    _("Instrument modulator chunk size mismatch")));
-	      m = FLUID_NEW (SFMod);
+	      SFNEW (m, SFMod);
 	      p3->data = m;
 	      READW (m->src, fd);
 	      READW (m->dest, fd);
@@ -2866,7 +3376,7 @@ load_imod (int size, SFData * sf, fluid_file fd)
 
 /* load instrument generators (see load_pgen for loading rules) */
 static int
-load_igen (int size, SFData * sf, fluid_file fd)
+load_igen (int size, SFData * sf, SFReader * fd)
 {
   fluid_list_t *p, *p2, *p3, *dup, **hz = NULL;
   SFZone *z;
@@ -2943,7 +3453,7 @@ load_igen (int size, SFData * sf, fluid_file fd)
 		{
 		  if (!dup)
 		    {		/* if gen ! dup alloc new */
-		      g = FLUID_NEW (SFGen);
+		      SFNEW (g, SFGen);
 		      p3->data = g;
 		      g->id = genid;
 		    }
@@ -2984,7 +3494,7 @@ load_igen (int size, SFData * sf, fluid_file fd)
 			_("Instrument \"%s\": Global zone is not first zone"),
 			((SFPreset *) (p->data))->name);
 		      SLADVREM (*hz, p2);
-		      *hz = fluid_list_prepend (*hz, save);
+		      SLPREPEND (*hz, save);
 		      continue;
 		    }
 		}
@@ -3030,7 +3540,7 @@ load_igen (int size, SFData * sf, fluid_file fd)
 
 /* sample header loader */
 static int
-load_shdr (unsigned int size, SFData * sf, fluid_file fd)
+load_shdr (unsigned int size, SFData * sf, SFReader * fd)
 {
   unsigned int i;
   SFSample *p;
@@ -3049,8 +3559,8 @@ load_shdr (unsigned int size, SFData * sf, fluid_file fd)
   /* load all sample headers */
   for (i = 0; i < size; i++)
     {
-      p = FLUID_NEW (SFSample);
-      sf->sample = fluid_list_append (sf->sample, p);
+      SFNEW (p, SFSample);
+      SLAPPEND (sf->sample, p);
       READSTR (&p->name, fd);
       READD (p->start, fd);
       READD (p->end, fd);	/* - end, loopstart and loopend */
@@ -3182,8 +3692,11 @@ fixup_sample (SFData * sf)
 
       /* convert sample end, loopstart, loopend to offsets from sam->start */
       sam->end -= sam->start + 1;	/* marks last sample, contrary to SF spec. */
-      sam->loopstart -= sam->start;
-      sam->loopend -= sam->start;
+      if (!(sam->sampletype & FLUID_SAMPLETYPE_OGG_VORBIS))
+	{			/* compressed loops are already relative to the decoded sample */
+	  sam->loopstart -= sam->start;
+	  sam->loopend -= sam->start;
+	}
 
       p = fluid_list_next (p);
     }
@@ -3219,97 +3732,20 @@ unsigned short badpgen[] = { Gen_StartAddrOfs, Gen_EndAddrOfs, Gen_StartLoopAddr
 void
 sfont_close (SFData * sf)
 {
-  fluid_list_t *p, *p2;
-
   if (sf->sffd)
     FLUID_FCLOSE (sf->sffd);
+  fluid_file_map_close (&sf->map);
 
   if (sf->fname)
     free (sf->fname);
 
-  p = sf->info;
-  while (p)
-    {
-      free (p->data);
-      p = fluid_list_next (p);
-    }
-  delete_fluid_list(sf->info);
-  sf->info = NULL;
-
-  p = sf->preset;
-  while (p)
-    {				/* loop over presets */
-      p2 = ((SFPreset *) (p->data))->zone;
-      while (p2)
-	{			/* loop over preset's zones */
-	  sfont_free_zone (p2->data);
-	  p2 = fluid_list_next (p2);
-	}			/* free preset's zone list */
-      delete_fluid_list (((SFPreset *) (p->data))->zone);
-      FLUID_FREE (p->data);	/* free preset chunk */
-      p = fluid_list_next (p);
-    }
-  delete_fluid_list (sf->preset);
-  sf->preset = NULL;
-
-  p = sf->inst;
-  while (p)
-    {				/* loop over instruments */
-      p2 = ((SFInst *) (p->data))->zone;
-      while (p2)
-	{			/* loop over inst's zones */
-	  sfont_free_zone (p2->data);
-	  p2 = fluid_list_next (p2);
-	}			/* free inst's zone list */
-      delete_fluid_list (((SFInst *) (p->data))->zone);
-      FLUID_FREE (p->data);
-      p = fluid_list_next (p);
-    }
-  delete_fluid_list (sf->inst);
-  sf->inst = NULL;
-
-  p = sf->sample;
-  while (p)
-    {
-      FLUID_FREE (p->data);
-      p = fluid_list_next (p);
-    }
-  delete_fluid_list (sf->sample);
-  sf->sample = NULL;
+  /* the info strings, presets, instruments, zones, samples and all of their
+     list nodes were allocated from the arena */
+  delete_fluid_arena (sf->arena);
 
   FLUID_FREE (sf);
 }
 
-/* free all elements of a zone (Preset or Instrument) */
-void
-sfont_free_zone (SFZone * zone)
-{
-  fluid_list_t *p;
-
-  if (!zone)
-    return;
-
-  p = zone->gen;
-  while (p)
-    {				/* Free gen chunks for this zone */
-      if (p->data)
-	FLUID_FREE (p->data);
-      p = fluid_list_next (p);
-    }
-  delete_fluid_list (zone->gen);	/* free genlist */
-
-  p = zone->mod;
-  while (p)
-    {				/* Free mod chunks for this zone */
-      if (p->data)
-	FLUID_FREE (p->data);
-      p = fluid_list_next (p);
-    }
-  delete_fluid_list (zone->mod);	/* free modlist */
-
-  FLUID_FREE (zone);	/* free zone chunk */
-}
-
 /* preset sort function, first by bank, then by preset # */
 int
 sfont_preset_compare_func (void* a, void* b)
@@ -3326,8 +3762,12 @@ sfont_preset_compare_func (void* a, void* b)
 void
 sfont_zone_delete (SFData * sf, fluid_list_t ** zlist, SFZone * zone)
 {
-  *zlist = fluid_list_remove (*zlist, (void*) zone);
-  sfont_free_zone (zone);
+  fluid_list_t *p;
+
+  /* unlink only, the zone and its node are reclaimed with the arena */
+  for (p = *zlist; p && p->data != zone; p = fluid_list_next (p));
+  if (p)
+    *zlist = fluid_list_remove_link (*zlist, p);
 }
 
 /* Find generator in gen list */
@@ -3391,10 +3831,44 @@ gerr (int ev, char * fmt, ...)
   return (FAIL);
 }
 
+/* report how far the parse got, and stop it if the load was cancelled */
+static int
+sfreader_check (SFReader * fd)
+{
+  if (fd->progress == NULL)
+    return (OK);
+
+  fluid_defsfont_progress_set (fd->progress, fd->pos);
+  if (fluid_defsfont_progress_cancelled (fd->progress))
+    return (gerr (ErrStatus, _("Soundfont load cancelled")));
+  return (OK);
+}
+
+/* read from the mapped file */
+static int
+safe_mread (void *buf, int count, SFReader * fd)
+{
+  if (count < 0 || (size_t) count > fd->size - fd->pos)
+    {
+      fd->pos = fd->size;
+      return (gerr (ErrEof, _("EOF while attemping to read %d bytes"), count));
+    }
+  memcpy (buf, fd->data + fd->pos, count);
+  fd->pos += count;
+  return (OK);
+}
+
 #ifdef FLUID_WITH_ANDROID_AASSET
-int safe_fread(void *buf, int count, fluid_file fd) {
+int safe_fread(void *buf, int count, SFReader * fd) {
+
+    if (!sfreader_check(fd))
+        return (FAIL);
+
+    if (fd->data != NULL)
+        return safe_mread(buf, count, fd);
+
+    int result = FLUID_FREAD(buf, count, 1, fd->fd);
 
-    int result = FLUID_FREAD(buf, count, 1, fd);
     if (result != 1) { /* size_t = count, nmemb = 1 */
         if (result == 0) // Returns 0 for EOF
             gerr(ErrEof, _("EOF while attemping to read %d bytes"), count);
@@ -3402,31 +3876,63 @@ int safe_fread(void *buf, int count, fluid_file fd) {
             FLUID_LOG(FLUID_ERR, _("File read failed"));
         return (FAIL);
     }
+    fd->pos += count;
     return (OK);
 
 }
 #else
 int
-safe_fread (void *buf, int count, fluid_file fd)
+safe_fread (void *buf, int count, SFReader * fd)
 {
-  if (FLUID_FREAD(buf, count, 1, fd) != 1)
+  if (!sfreader_check (fd))
+    return (FAIL);
+
+  if (fd->data != NULL)
+    return safe_mread (buf, count, fd);
+
+  if (FLUID_FREAD(buf, count, 1, fd->fd) != 1)
     {				/* size_t = count, nmemb = 1 */
-      if (feof (fd))
+      if (feof (fd->fd))
 	gerr (ErrEof, _("EOF while attemping to read %d bytes"), count);
       else
 	FLUID_LOG (FLUID_ERR, _("File read failed"));
       return (FAIL);
     }
+  fd->pos += count;
   return (OK);
 }
 #endif
 
 int
-safe_fseek (fluid_file fd, long ofs, int whence)
+safe_fseek (SFReader * fd, long ofs, int whence)
 {
-  if (FLUID_FSEEK(fd, ofs, whence) == -1) {
+  long base;
+
+  if (!sfreader_check (fd))
+    return (FAIL);
+
+  if (fd->data == NULL) {
+    if (FLUID_FSEEK(fd->fd, ofs, whence) == -1) {
+      FLUID_LOG (FLUID_ERR, _("File seek failed with offset = %ld and whence = %d"), ofs, whence);
+      return (FAIL);
+    }
+    fd->pos = whence == SEEK_SET ? (size_t) ofs : whence == SEEK_CUR ? fd->pos + ofs
+      : (size_t) FLUID_FTELL (fd->fd);
+    return (OK);
+  }
+
+  /* seek within the mapped file */
+  base = whence == SEEK_SET ? 0 : whence == SEEK_CUR ? (long) fd->pos : (long) fd->size;
+  if (ofs < -base || ofs > (long) fd->size - base) {
     FLUID_LOG (FLUID_ERR, _("File seek failed with offset = %ld and whence = %d"), ofs, whence);
     return (FAIL);
   }
+  fd->pos = base + ofs;
   return (OK);
 }
+
+long
+safe_ftell (SFReader * fd)
+{
+  return fd->data != NULL ? (long) fd->pos : FLUID_FTELL(fd->fd);
+}
@@ -28,6 +28,8 @@
 #include "fluidlite.h"
 #include "fluidsynth_priv.h"
 #include "fluid_list.h"
+#include "fluid_arena.h"
+#include "fluid_sys.h"
 
 
 
@@ -144,13 +146,38 @@ typedef struct _SFData
   unsigned int samplesize;		/* length within sffd of the sample chunk */
   char *fname;			/* file name */
   fluid_file sffd;			/* loaded sfont file descriptor */
+  fluid_file_map_t map;			/* mapping of the file, used instead of sffd if available */
   fluid_list_t *info;		     /* linked list of info strings (1st byte is ID) */
   fluid_list_t *preset;		/* linked list of preset info */
   fluid_list_t *inst;			/* linked list of instrument info */
   fluid_list_t *sample;		/* linked list of sample info */
+  fluid_arena_t *arena;		/* owns the lists above and everything in them */
 }
 SFData;
 
+/* Progress of a soundfont load, which other threads may watch. Setting
+   cancel makes the load fail at its next check. Access the fields with
+   atomic loads and stores. */
+typedef struct _fluid_defsfont_progress_t
+{
+  size_t parsed;			/* bytes of the file parsed so far */
+  size_t total;				/* size of the file, or 0 until it is known */
+  int cancel;				/* nonzero to abandon the load */
+}
+fluid_defsfont_progress_t;
+
+/* Input of the sfont parser. Reads from the mapping of the file when there
+   is one, otherwise from the file itself. */
+typedef struct _SFReader
+{
+  fluid_file fd;			/* the file, or NULL if mapped */
+  const unsigned char *data;		/* the mapped file */
+  size_t size;				/* size of the mapped file */
+  size_t pos;				/* read position within the file */
+  fluid_defsfont_progress_t *progress;	/* progress to report, or NULL */
+}
+SFReader;
+
 /* sf file chunk IDs */
 enum
 { UNKN_ID, RIFF_ID, LIST_ID, SFBK_ID,
@@ -218,7 +245,6 @@ extern unsigned short badpgen[]; 	/* list of bad preset generators */
 void sfont_init_chunks (void);
 
 void sfont_close (SFData * sf);
-void sfont_free_zone (SFZone * zone);
 int sfont_preset_compare_func (void* a, void* b);
 
 void sfont_zone_delete (SFData * sf, fluid_list_t ** zlist, SFZone * zone);
@@ -296,7 +322,7 @@ SFShdr;
 extern char idlist[];
 
 /* functions */
-SFData *sfload_file (const char * fname);
+SFData *sfload_file (const char * fname, fluid_defsfont_progress_t * progress);
 
 
 
@@ -426,9 +452,10 @@ enum
 #define ErrnoEnd	ErrWrite
 
 int gerr (int ev, char * fmt, ...);
-int safe_fread (void *buf, int count, fluid_file fd);
+int safe_fread (void *buf, int count, SFReader * fd);
 int safe_fwrite (void *buf, int count, fluid_file fd);
-int safe_fseek (fluid_file fd, long ofs, int whence);
+int safe_fseek (SFReader * fd, long ofs, int whence);
+long safe_ftell (SFReader * fd);
 
 
 /********************************************************************************/
@@ -458,6 +485,8 @@ typedef struct _fluid_inst_zone_t fluid_inst_zone_t;
 fluid_sfloader_t* new_fluid_defsfloader(void);
 int delete_fluid_defsfloader(fluid_sfloader_t* loader);
 fluid_sfont_t* fluid_defsfloader_load(fluid_sfloader_t* loader, const char* filename);
+fluid_sfont_t* fluid_defsfloader_load_progress(fluid_sfloader_t* loader, const char* filename,
+                                               fluid_defsfont_progress_t* progress);
 
 
 int fluid_defsfont_sfont_delete(fluid_sfont_t* sfont);
@@ -465,6 +494,9 @@ char* fluid_defsfont_sfont_get_name(fluid_sfont_t* sfont);
 fluid_preset_t* fluid_defsfont_sfont_get_preset(fluid_sfont_t* sfont, unsigned int bank, unsigned int prenum);
 void fluid_defsfont_sfont_iteration_start(fluid_sfont_t* sfont);
 int fluid_defsfont_sfont_iteration_next(fluid_sfont_t* sfont, fluid_preset_t* preset);
+int fluid_defsfont_sfont_get_memory_usage(fluid_sfont_t* sfont, size_t* resident, size_t* peak);
+size_t fluid_defsfont_sfont_get_resident_size(fluid_sfont_t* sfont);
+int fluid_defsfont_sfont_set_sample_budget(fluid_sfont_t* sfont, size_t budget);
 
 
 int fluid_defpreset_preset_delete(fluid_preset_t* preset);
@@ -473,19 +505,45 @@ int fluid_defpreset_preset_get_banknum(fluid_preset_t* preset);
 int fluid_defpreset_preset_get_num(fluid_preset_t* preset);
 void fluid_defpreset_preset_get_range(const fluid_preset_t *const preset, uint8_t *const range);
 int fluid_defpreset_preset_noteon(fluid_preset_t* preset, fluid_synth_t* synth, int chan, int key, int vel);
+int fluid_defsfont_preset_prepare_notes(fluid_preset_t* preset, const int* keys, int num_keys, int vel);
 
 
 /*
  * fluid_defsfont_t
  */
+/*
+ * Paging state of a sample whose data stays in the mapped file, or which is
+ * decoded from Ogg Vorbis when it is first played. The resident samples of a
+ * soundfont form a list, from the most to the least recently played one.
+ */
+typedef struct _fluid_sample_page_t fluid_sample_page_t;
+struct _fluid_sample_page_t
+{
+  fluid_sample_t* sample;        /* the sample */
+  fluid_sample_page_t* prev;     /* the more recently played resident sample */
+  fluid_sample_page_t* next;     /* the less recently played resident sample */
+  int resident;                  /* whether the sample is in the list */
+  unsigned int ogg_start;        /* the position of the compressed data in sampledata, in bytes */
+  unsigned int ogg_size;         /* the size of the compressed data, or 0 if uncompressed */
+};
+
 struct _fluid_defsfont_t
 {
   char* filename;           /* the filename of this soundfont */
   unsigned int samplepos;   /* the position in the file at which the sample data starts */
   unsigned int samplesize;  /* the size of the sample data */
-  short* sampledata;        /* the sample data, loaded in ram */
+  short* sampledata;        /* the sample data, loaded in ram or mapped */
+  fluid_file_map_t map;     /* mapping of the file which sampledata points into, if any */
   fluid_list_t* sample;      /* the samples in this soundfont */
   fluid_defpreset_t* preset; /* the presets of this soundfont */
+  fluid_arena_t* arena;      /* owns the presets, instruments, zones and samples */
+  size_t load_peak;          /* the most metadata memory held while loading, in bytes */
+  fluid_defsfont_progress_t* progress; /* progress of the load, or NULL */
+  size_t sample_budget;      /* the mapped or decoded sample data to keep, in bytes */
+  size_t sample_resident;    /* the mapped sample data paged in plus the decoded data, in bytes */
+  size_t sample_pooled;      /* the sample data read into memory, held in the sample pool, in bytes */
+  fluid_sample_page_t* page_first; /* the most recently played resident sample */
+  fluid_sample_page_t* page_last;  /* the least recently played resident sample */
 
   fluid_preset_t iter_preset;        /* preset interface used in the iteration */
   fluid_defpreset_t* iter_cur;       /* the current preset in the iteration */
@@ -503,6 +561,10 @@ int fluid_defsfont_load_sampledata(fluid_defsfont_t* sfont);
 int fluid_defsfont_add_sample(fluid_defsfont_t* sfont, fluid_sample_t* sample);
 int fluid_defsfont_add_preset(fluid_defsfont_t* sfont, fluid_defpreset_t* preset);
 fluid_sample_t* fluid_defsfont_get_sample(fluid_defsfont_t* sfont, char *s);
+int fluid_defsfont_get_memory_usage(fluid_defsfont_t* sfont, size_t* resident, size_t* peak);
+size_t fluid_defsfont_get_resident_size(fluid_defsfont_t* sfont);
+int fluid_defsfont_set_sample_budget(fluid_defsfont_t* sfont, size_t budget);
+int fluid_defsfont_page_in_sample(fluid_defsfont_t* sfont, fluid_sample_t* sample);
 
 
 /*
@@ -520,7 +582,6 @@ struct _fluid_defpreset_t
 };
 
 fluid_defpreset_t* new_fluid_defpreset(fluid_defsfont_t* sfont);
-int delete_fluid_defpreset(fluid_defpreset_t* preset);
 fluid_defpreset_t* fluid_defpreset_next(fluid_defpreset_t* preset);
 int fluid_defpreset_import_sfont(fluid_defpreset_t* preset, SFPreset* sfpreset, fluid_defsfont_t* sfont);
 int fluid_defpreset_set_global_zone(fluid_defpreset_t* preset, fluid_preset_zone_t* zone);
@@ -549,7 +610,7 @@ struct _fluid_preset_zone_t
   fluid_mod_t * mod; /* List of modulators */
 };
 
-fluid_preset_zone_t* new_fluid_preset_zone(char* name);
+fluid_preset_zone_t* new_fluid_preset_zone(fluid_arena_t* arena, char* name);
 int delete_fluid_preset_zone(fluid_preset_zone_t* zone);
 fluid_preset_zone_t* fluid_preset_zone_next(fluid_preset_zone_t* preset);
 int fluid_preset_zone_import_sfont(fluid_preset_zone_t* zone, SFZone* sfzone, fluid_defsfont_t* sfont);
@@ -566,7 +627,7 @@ struct _fluid_inst_t
   fluid_inst_zone_t* zone;
 };
 
-fluid_inst_t* new_fluid_inst(void);
+fluid_inst_t* new_fluid_inst(fluid_arena_t* arena);
 int delete_fluid_inst(fluid_inst_t* inst);
 int fluid_inst_import_sfont(fluid_inst_t* inst, SFInst *sfinst, fluid_defsfont_t* sfont);
 int fluid_inst_set_global_zone(fluid_inst_t* inst, fluid_inst_zone_t* zone);
@@ -590,7 +651,7 @@ struct _fluid_inst_zone_t
   fluid_mod_t * mod; /* List of modulators */
 };
 
-fluid_inst_zone_t* new_fluid_inst_zone(char* name);
+fluid_inst_zone_t* new_fluid_inst_zone(fluid_arena_t* arena, char* name);
 int delete_fluid_inst_zone(fluid_inst_zone_t* zone);
 fluid_inst_zone_t* fluid_inst_zone_next(fluid_inst_zone_t* zone);
 int fluid_inst_zone_import_sfont(fluid_inst_zone_t* zone, SFZone *sfzone, fluid_defsfont_t* sfont);
@@ -599,7 +660,7 @@ fluid_sample_t* fluid_inst_zone_get_sample(fluid_inst_zone_t* zone);
 
 
 
-fluid_sample_t* new_fluid_sample(void);
+fluid_sample_t* new_fluid_sample(fluid_arena_t* arena);
 int delete_fluid_sample(fluid_sample_t* sample);
 int fluid_sample_import_sfont(fluid_sample_t* sample, SFSample* sfsample, fluid_defsfont_t* sfont);
 int fluid_sample_in_rom(fluid_sample_t* sample);
@@ -41,23 +41,58 @@
  * A couple of variables are used internally, their results are discarded:
  * - dsp_i: Index through the output buffer
  * - dsp_buf: Output buffer of floating point values (FLUID_BUFSIZE in length)
+ *
+ * In fixed point builds, the coefficient tables have FLUID_FIXED_INTERP_BITS
+ * fractional bits and the amplitude FLUID_FIXED_AMP_BITS. The interpolated
+ * sum is scaled straight to the FLUID_FIXED_VOICE_BITS of dsp_buf, using one
+ * 32x32->64 bit multiply per sample.
  */
 
 #include "fluidsynth_priv.h"
 #include "fluid_synth.h"
 #include "fluid_voice.h"
 
+#ifdef FLUID_FIXED_POINT
+typedef int32_t fluid_interp_coeff_t;
+typedef int32_t fluid_dsp_amp_t;
+
+#define FLUID_FIXED_INTERP_BITS 15
+#define FLUID_FIXED_AMP_BITS 28
+
+#define fluid_interp_coeff(_v) \
+  ((fluid_interp_coeff_t) floor ((_v) * (1 << FLUID_FIXED_INTERP_BITS) + 0.5))
+#define fluid_dsp_amp(_x) \
+  ((fluid_dsp_amp_t) ((_x) * (fluid_real_t) (1 << FLUID_FIXED_AMP_BITS)))
+#define fluid_dsp_amp_to_real(_a) \
+  ((fluid_real_t) (_a) * (1.0f / (1 << FLUID_FIXED_AMP_BITS)))
+#define fluid_dsp_apply_amp(_amp, _sum) \
+  ((fluid_buf_t) (((int64_t) (_sum) * (_amp)) \
+   >> (FLUID_FIXED_INTERP_BITS + FLUID_FIXED_AMP_BITS - FLUID_FIXED_VOICE_BITS)))
+#define fluid_dsp_apply_amp_point(_amp, _point) \
+  ((fluid_buf_t) (((int64_t) (_point) * (_amp)) \
+   >> (FLUID_FIXED_AMP_BITS - FLUID_FIXED_VOICE_BITS)))
+#else
+typedef fluid_real_t fluid_interp_coeff_t;
+typedef fluid_real_t fluid_dsp_amp_t;
+
+#define fluid_interp_coeff(_v) ((fluid_real_t) (_v))
+#define fluid_dsp_amp(_x) (_x)
+#define fluid_dsp_amp_to_real(_a) (_a)
+#define fluid_dsp_apply_amp(_amp, _sum) ((_amp) * (_sum))
+#define fluid_dsp_apply_amp_point(_amp, _point) ((_amp) * (_point))
+#endif
+
 
 /* Interpolation (find a value between two samples of the original waveform) */
 
 /* Linear interpolation table (2 coefficients centered on 1st) */
-static fluid_real_t interp_coeff_linear[FLUID_INTERP_MAX][2];
+static fluid_interp_coeff_t interp_coeff_linear[FLUID_INTERP_MAX][2];
 
 /* 4th order (cubic) interpolation table (4 coefficients centered on 2nd) */
-static fluid_real_t interp_coeff[FLUID_INTERP_MAX][4];
+static fluid_interp_coeff_t interp_coeff[FLUID_INTERP_MAX][4];
 
 /* 7th order interpolation (7 coefficients centered on 3rd) */
-static fluid_real_t sinc_table7[FLUID_INTERP_MAX][7];
+static fluid_interp_coeff_t sinc_table7[FLUID_INTERP_MAX][7];
 
 
 #define SINC_INTERP_ORDER 7	/* 7th order constant */
@@ -79,13 +114,13 @@ void fluid_dsp_float_config (void)
   {
     x = (double) i / (double) FLUID_INTERP_MAX;
 
-    interp_coeff[i][0] = (fluid_real_t)(x * (-0.5 + x * (1 - 0.5 * x)));
-    interp_coeff[i][1] = (fluid_real_t)(1.0 + x * x * (1.5 * x - 2.5));
-    interp_coeff[i][2] = (fluid_real_t)(x * (0.5 + x * (2.0 - 1.5 * x)));
-    interp_coeff[i][3] = (fluid_real_t)(0.5 * x * x * (x - 1.0));
+    interp_coeff[i][0] = fluid_interp_coeff(x * (-0.5 + x * (1 - 0.5 * x)));
+    interp_coeff[i][1] = fluid_interp_coeff(1.0 + x * x * (1.5 * x - 2.5));
+    interp_coeff[i][2] = fluid_interp_coeff(x * (0.5 + x * (2.0 - 1.5 * x)));
+    interp_coeff[i][3] = fluid_interp_coeff(0.5 * x * x * (x - 1.0));
 
-    interp_coeff_linear[i][0] = (fluid_real_t)(1.0 - x);
-    interp_coeff_linear[i][1] = (fluid_real_t)x;
+    interp_coeff_linear[i][0] = fluid_interp_coeff(1.0 - x);
+    interp_coeff_linear[i][1] = fluid_interp_coeff(x);
   }
 
   /* i: Offset in terms of whole samples */
@@ -106,7 +141,7 @@ void fluid_dsp_float_config (void)
       }
       else v = 1.0;
 
-      sinc_table7[FLUID_INTERP_MAX - i2 - 1][i] = v;
+      sinc_table7[FLUID_INTERP_MAX - i2 - 1][i] = fluid_interp_coeff(v);
     }
   }
 
@@ -130,9 +165,9 @@ fluid_dsp_float_interpolate_none (fluid_voice_t *voice)
   fluid_phase_t dsp_phase = voice->phase;
   fluid_phase_t dsp_phase_incr;
   short int *dsp_data = voice->sample->data;
-  fluid_real_t *dsp_buf = voice->dsp_buf;
-  fluid_real_t dsp_amp = voice->amp;
-  fluid_real_t dsp_amp_incr = voice->amp_incr;
+  fluid_buf_t *dsp_buf = voice->dsp_buf;
+  fluid_dsp_amp_t dsp_amp = fluid_dsp_amp(voice->amp);
+  fluid_dsp_amp_t dsp_amp_incr = fluid_dsp_amp(voice->amp_incr);
   unsigned int dsp_i = 0;
   unsigned int dsp_phase_index;
   unsigned int end_index;
@@ -155,7 +190,7 @@ fluid_dsp_float_interpolate_none (fluid_voice_t *voice)
     /* interpolate sequence of sample points */
     for ( ; dsp_i < FLUID_BUFSIZE && dsp_phase_index <= end_index; dsp_i++)
     {
-      dsp_buf[dsp_i] = dsp_amp * dsp_data[dsp_phase_index];
+      dsp_buf[dsp_i] = fluid_dsp_apply_amp_point(dsp_amp, dsp_data[dsp_phase_index]);
 
       /* increment phase and amplitude */
       fluid_phase_incr (dsp_phase, dsp_phase_incr);
@@ -178,7 +213,7 @@ fluid_dsp_float_interpolate_none (fluid_voice_t *voice)
   }
 
   voice->phase = dsp_phase;
-  voice->amp = dsp_amp;
+  voice->amp = fluid_dsp_amp_to_real(dsp_amp);
 
   return (dsp_i);
 }
@@ -193,14 +228,14 @@ fluid_dsp_float_interpolate_linear (fluid_voice_t *voice)
   fluid_phase_t dsp_phase = voice->phase;
   fluid_phase_t dsp_phase_incr;
   short int *dsp_data = voice->sample->data;
-  fluid_real_t *dsp_buf = voice->dsp_buf;
-  fluid_real_t dsp_amp = voice->amp;
-  fluid_real_t dsp_amp_incr = voice->amp_incr;
+  fluid_buf_t *dsp_buf = voice->dsp_buf;
+  fluid_dsp_amp_t dsp_amp = fluid_dsp_amp(voice->amp);
+  fluid_dsp_amp_t dsp_amp_incr = fluid_dsp_amp(voice->amp_incr);
   unsigned int dsp_i = 0;
   unsigned int dsp_phase_index;
   unsigned int end_index;
   short int point;
-  fluid_real_t *coeffs;
+  fluid_interp_coeff_t *coeffs;
   int looping;
 
   /* Convert playback "speed" floating point value to phase index/fract */
@@ -226,8 +261,9 @@ fluid_dsp_float_interpolate_linear (fluid_voice_t *voice)
     for ( ; dsp_i < FLUID_BUFSIZE && dsp_phase_index <= end_index; dsp_i++)
     {
       coeffs = interp_coeff_linear[fluid_phase_fract_to_tablerow (dsp_phase)];
-      dsp_buf[dsp_i] = dsp_amp * (coeffs[0] * dsp_data[dsp_phase_index]
-				  + coeffs[1] * dsp_data[dsp_phase_index+1]);
+      dsp_buf[dsp_i] = fluid_dsp_apply_amp(dsp_amp,
+					   coeffs[0] * dsp_data[dsp_phase_index]
+					   + coeffs[1] * dsp_data[dsp_phase_index+1]);
 
       /* increment phase and amplitude */
       fluid_phase_incr (dsp_phase, dsp_phase_incr);
@@ -244,8 +280,9 @@ fluid_dsp_float_interpolate_linear (fluid_voice_t *voice)
     for (; dsp_phase_index <= end_index && dsp_i < FLUID_BUFSIZE; dsp_i++)
     {
       coeffs = interp_coeff_linear[fluid_phase_fract_to_tablerow (dsp_phase)];
-      dsp_buf[dsp_i] = dsp_amp * (coeffs[0] * dsp_data[dsp_phase_index]
-				  + coeffs[1] * point);
+      dsp_buf[dsp_i] = fluid_dsp_apply_amp(dsp_amp,
+					   coeffs[0] * dsp_data[dsp_phase_index]
+					   + coeffs[1] * point);
 
       /* increment phase and amplitude */
       fluid_phase_incr (dsp_phase, dsp_phase_incr);
@@ -269,7 +306,7 @@ fluid_dsp_float_interpolate_linear (fluid_voice_t *voice)
   }
 
   voice->phase = dsp_phase;
-  voice->amp = dsp_amp;
+  voice->amp = fluid_dsp_amp_to_real(dsp_amp);
 
   return (dsp_i);
 }
@@ -284,14 +321,14 @@ fluid_dsp_float_interpolate_4th_order (fluid_voice_t *voice)
   fluid_phase_t dsp_phase = voice->phase;
   fluid_phase_t dsp_phase_incr;
   short int *dsp_data = voice->sample->data;
-  fluid_real_t *dsp_buf = voice->dsp_buf;
-  fluid_real_t dsp_amp = voice->amp;
-  fluid_real_t dsp_amp_incr = voice->amp_incr;
+  fluid_buf_t *dsp_buf = voice->dsp_buf;
+  fluid_dsp_amp_t dsp_amp = fluid_dsp_amp(voice->amp);
+  fluid_dsp_amp_t dsp_amp_incr = fluid_dsp_amp(voice->amp_incr);
   unsigned int dsp_i = 0;
   unsigned int dsp_phase_index;
   unsigned int start_index, end_index;
   short int start_point, end_point1, end_point2;
-  fluid_real_t *coeffs;
+  fluid_interp_coeff_t *coeffs;
   int looping;
 
   /* Convert playback "speed" floating point value to phase index/fract */
@@ -336,10 +373,11 @@ fluid_dsp_float_interpolate_4th_order (fluid_voice_t *voice)
     for ( ; dsp_phase_index == start_index && dsp_i < FLUID_BUFSIZE; dsp_i++)
     {
       coeffs = interp_coeff[fluid_phase_fract_to_tablerow (dsp_phase)];
-      dsp_buf[dsp_i] = dsp_amp * (coeffs[0] * start_point
-				  + coeffs[1] * dsp_data[dsp_phase_index]
-				  + coeffs[2] * dsp_data[dsp_phase_index+1]
-				  + coeffs[3] * dsp_data[dsp_phase_index+2]);
+      dsp_buf[dsp_i] = fluid_dsp_apply_amp(dsp_amp,
+					   coeffs[0] * start_point
+					   + coeffs[1] * dsp_data[dsp_phase_index]
+					   + coeffs[2] * dsp_data[dsp_phase_index+1]
+					   + coeffs[3] * dsp_data[dsp_phase_index+2]);
 
       /* increment phase and amplitude */
       fluid_phase_incr (dsp_phase, dsp_phase_incr);
@@ -351,10 +389,11 @@ fluid_dsp_float_interpolate_4th_order (fluid_voice_t *voice)
     for ( ; dsp_i < FLUID_BUFSIZE && dsp_phase_index <= end_index; dsp_i++)
     {
       coeffs = interp_coeff[fluid_phase_fract_to_tablerow (dsp_phase)];
-      dsp_buf[dsp_i] = dsp_amp * (coeffs[0] * dsp_data[dsp_phase_index-1]
-				  + coeffs[1] * dsp_data[dsp_phase_index]
-				  + coeffs[2] * dsp_data[dsp_phase_index+1]
-				  + coeffs[3] * dsp_data[dsp_phase_index+2]);
+      dsp_buf[dsp_i] = fluid_dsp_apply_amp(dsp_amp,
+					   coeffs[0] * dsp_data[dsp_phase_index-1]
+					   + coeffs[1] * dsp_data[dsp_phase_index]
+					   + coeffs[2] * dsp_data[dsp_phase_index+1]
+					   + coeffs[3] * dsp_data[dsp_phase_index+2]);
 
       /* increment phase and amplitude */
       fluid_phase_incr (dsp_phase, dsp_phase_incr);
@@ -371,10 +410,11 @@ fluid_dsp_float_interpolate_4th_order (fluid_voice_t *voice)
     for (; dsp_phase_index <= end_index && dsp_i < FLUID_BUFSIZE; dsp_i++)
     {
       coeffs = interp_coeff[fluid_phase_fract_to_tablerow (dsp_phase)];
-      dsp_buf[dsp_i] = dsp_amp * (coeffs[0] * dsp_data[dsp_phase_index-1]
-				  + coeffs[1] * dsp_data[dsp_phase_index]
-				  + coeffs[2] * dsp_data[dsp_phase_index+1]
-				  + coeffs[3] * end_point1);
+      dsp_buf[dsp_i] = fluid_dsp_apply_amp(dsp_amp,
+					   coeffs[0] * dsp_data[dsp_phase_index-1]
+					   + coeffs[1] * dsp_data[dsp_phase_index]
+					   + coeffs[2] * dsp_data[dsp_phase_index+1]
+					   + coeffs[3] * end_point1);
 
       /* increment phase and amplitude */
       fluid_phase_incr (dsp_phase, dsp_phase_incr);
@@ -388,10 +428,11 @@ fluid_dsp_float_interpolate_4th_order (fluid_voice_t *voice)
     for (; dsp_phase_index <= end_index && dsp_i < FLUID_BUFSIZE; dsp_i++)
     {
       coeffs = interp_coeff[fluid_phase_fract_to_tablerow (dsp_phase)];
-      dsp_buf[dsp_i] = dsp_amp * (coeffs[0] * dsp_data[dsp_phase_index-1]
-				  + coeffs[1] * dsp_data[dsp_phase_index]
-				  + coeffs[2] * end_point1
-				  + coeffs[3] * end_point2);
+      dsp_buf[dsp_i] = fluid_dsp_apply_amp(dsp_amp,
+					   coeffs[0] * dsp_data[dsp_phase_index-1]
+					   + coeffs[1] * dsp_data[dsp_phase_index]
+					   + coeffs[2] * end_point1
+					   + coeffs[3] * end_point2);
 
       /* increment phase and amplitude */
       fluid_phase_incr (dsp_phase, dsp_phase_incr);
@@ -421,7 +462,7 @@ fluid_dsp_float_interpolate_4th_order (fluid_voice_t *voice)
   }
 
   voice->phase = dsp_phase;
-  voice->amp = dsp_amp;
+  voice->amp = fluid_dsp_amp_to_real(dsp_amp);
 
   return (dsp_i);
 }
@@ -436,15 +477,15 @@ fluid_dsp_float_interpolate_7th_order (fluid_voice_t *voice)
   fluid_phase_t dsp_phase = voice->phase;
   fluid_phase_t dsp_phase_incr;
   short int *dsp_data = voice->sample->data;
-  fluid_real_t *dsp_buf = voice->dsp_buf;
-  fluid_real_t dsp_amp = voice->amp;
-  fluid_real_t dsp_amp_incr = voice->amp_incr;
+  fluid_buf_t *dsp_buf = voice->dsp_buf;
+  fluid_dsp_amp_t dsp_amp = fluid_dsp_amp(voice->amp);
+  fluid_dsp_amp_t dsp_amp_incr = fluid_dsp_amp(voice->amp_incr);
   unsigned int dsp_i = 0;
   unsigned int dsp_phase_index;
   unsigned int start_index, end_index;
   short int start_points[3];
   short int end_points[3];
-  fluid_real_t *coeffs;
+  fluid_interp_coeff_t *coeffs;
   int looping;
 
   /* Convert playback "speed" floating point value to phase index/fract */
@@ -500,14 +541,14 @@ fluid_dsp_float_interpolate_7th_order (fluid_voice_t *voice)
     {
       coeffs = sinc_table7[fluid_phase_fract_to_tablerow (dsp_phase)];
 
-      dsp_buf[dsp_i] = dsp_amp
-	* (coeffs[0] * (fluid_real_t)start_points[2]
-	   + coeffs[1] * (fluid_real_t)start_points[1]
-	   + coeffs[2] * (fluid_real_t)start_points[0]
-	   + coeffs[3] * (fluid_real_t)dsp_data[dsp_phase_index]
-	   + coeffs[4] * (fluid_real_t)dsp_data[dsp_phase_index+1]
-	   + coeffs[5] * (fluid_real_t)dsp_data[dsp_phase_index+2]
-	   + coeffs[6] * (fluid_real_t)dsp_data[dsp_phase_index+3]);
+      dsp_buf[dsp_i] = fluid_dsp_apply_amp(dsp_amp,
+	     coeffs[0] * (fluid_interp_coeff_t)start_points[2]
+	   + coeffs[1] * (fluid_interp_coeff_t)start_points[1]
+	   + coeffs[2] * (fluid_interp_coeff_t)start_points[0]
+	   + coeffs[3] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index]
+	   + coeffs[4] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index+1]
+	   + coeffs[5] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index+2]
+	   + coeffs[6] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index+3]);
 
       /* increment phase and amplitude */
       fluid_phase_incr (dsp_phase, dsp_phase_incr);
@@ -522,14 +563,14 @@ fluid_dsp_float_interpolate_7th_order (fluid_voice_t *voice)
     {
       coeffs = sinc_table7[fluid_phase_fract_to_tablerow (dsp_phase)];
 
-      dsp_buf[dsp_i] = dsp_amp
-	* (coeffs[0] * (fluid_real_t)start_points[1]
-	   + coeffs[1] * (fluid_real_t)start_points[0]
-	   + coeffs[2] * (fluid_real_t)dsp_data[dsp_phase_index-1]
-	   + coeffs[3] * (fluid_real_t)dsp_data[dsp_phase_index]
-	   + coeffs[4] * (fluid_real_t)dsp_data[dsp_phase_index+1]
-	   + coeffs[5] * (fluid_real_t)dsp_data[dsp_phase_index+2]
-	   + coeffs[6] * (fluid_real_t)dsp_data[dsp_phase_index+3]);
+      dsp_buf[dsp_i] = fluid_dsp_apply_amp(dsp_amp,
+	     coeffs[0] * (fluid_interp_coeff_t)start_points[1]
+	   + coeffs[1] * (fluid_interp_coeff_t)start_points[0]
+	   + coeffs[2] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index-1]
+	   + coeffs[3] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index]
+	   + coeffs[4] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index+1]
+	   + coeffs[5] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index+2]
+	   + coeffs[6] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index+3]);
 
       /* increment phase and amplitude */
       fluid_phase_incr (dsp_phase, dsp_phase_incr);
@@ -544,14 +585,14 @@ fluid_dsp_float_interpolate_7th_order (fluid_voice_t *voice)
     {
       coeffs = sinc_table7[fluid_phase_fract_to_tablerow (dsp_phase)];
 
-      dsp_buf[dsp_i] = dsp_amp
-	* (coeffs[0] * (fluid_real_t)start_points[0]
-	   + coeffs[1] * (fluid_real_t)dsp_data[dsp_phase_index-2]
-	   + coeffs[2] * (fluid_real_t)dsp_data[dsp_phase_index-1]
-	   + coeffs[3] * (fluid_real_t)dsp_data[dsp_phase_index]
-	   + coeffs[4] * (fluid_real_t)dsp_data[dsp_phase_index+1]
-	   + coeffs[5] * (fluid_real_t)dsp_data[dsp_phase_index+2]
-	   + coeffs[6] * (fluid_real_t)dsp_data[dsp_phase_index+3]);
+      dsp_buf[dsp_i] = fluid_dsp_apply_amp(dsp_amp,
+	     coeffs[0] * (fluid_interp_coeff_t)start_points[0]
+	   + coeffs[1] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index-2]
+	   + coeffs[2] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index-1]
+	   + coeffs[3] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index]
+	   + coeffs[4] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index+1]
+	   + coeffs[5] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index+2]
+	   + coeffs[6] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index+3]);
 
       /* increment phase and amplitude */
       fluid_phase_incr (dsp_phase, dsp_phase_incr);
@@ -567,14 +608,14 @@ fluid_dsp_float_interpolate_7th_order (fluid_voice_t *voice)
     {
       coeffs = sinc_table7[fluid_phase_fract_to_tablerow (dsp_phase)];
 
-      dsp_buf[dsp_i] = dsp_amp
-	* (coeffs[0] * (fluid_real_t)dsp_data[dsp_phase_index-3]
-	   + coeffs[1] * (fluid_real_t)dsp_data[dsp_phase_index-2]
-	   + coeffs[2] * (fluid_real_t)dsp_data[dsp_phase_index-1]
-	   + coeffs[3] * (fluid_real_t)dsp_data[dsp_phase_index]
-	   + coeffs[4] * (fluid_real_t)dsp_data[dsp_phase_index+1]
-	   + coeffs[5] * (fluid_real_t)dsp_data[dsp_phase_index+2]
-	   + coeffs[6] * (fluid_real_t)dsp_data[dsp_phase_index+3]);
+      dsp_buf[dsp_i] = fluid_dsp_apply_amp(dsp_amp,
+	     coeffs[0] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index-3]
+	   + coeffs[1] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index-2]
+	   + coeffs[2] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index-1]
+	   + coeffs[3] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index]
+	   + coeffs[4] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index+1]
+	   + coeffs[5] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index+2]
+	   + coeffs[6] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index+3]);
 
       /* increment phase and amplitude */
       fluid_phase_incr (dsp_phase, dsp_phase_incr);
@@ -592,14 +633,14 @@ fluid_dsp_float_interpolate_7th_order (fluid_voice_t *voice)
     {
       coeffs = sinc_table7[fluid_phase_fract_to_tablerow (dsp_phase)];
 
-      dsp_buf[dsp_i] = dsp_amp
-	* (coeffs[0] * (fluid_real_t)dsp_data[dsp_phase_index-3]
-	   + coeffs[1] * (fluid_real_t)dsp_data[dsp_phase_index-2]
-	   + coeffs[2] * (fluid_real_t)dsp_data[dsp_phase_index-1]
-	   + coeffs[3] * (fluid_real_t)dsp_data[dsp_phase_index]
-	   + coeffs[4] * (fluid_real_t)dsp_data[dsp_phase_index+1]
-	   + coeffs[5] * (fluid_real_t)dsp_data[dsp_phase_index+2]
-	   + coeffs[6] * (fluid_real_t)end_points[0]);
+      dsp_buf[dsp_i] = fluid_dsp_apply_amp(dsp_amp,
+	     coeffs[0] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index-3]
+	   + coeffs[1] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index-2]
+	   + coeffs[2] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index-1]
+	   + coeffs[3] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index]
+	   + coeffs[4] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index+1]
+	   + coeffs[5] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index+2]
+	   + coeffs[6] * (fluid_interp_coeff_t)end_points[0]);
 
       /* increment phase and amplitude */
       fluid_phase_incr (dsp_phase, dsp_phase_incr);
@@ -614,14 +655,14 @@ fluid_dsp_float_interpolate_7th_order (fluid_voice_t *voice)
     {
       coeffs = sinc_table7[fluid_phase_fract_to_tablerow (dsp_phase)];
 
-      dsp_buf[dsp_i] = dsp_amp
-	* (coeffs[0] * (fluid_real_t)dsp_data[dsp_phase_index-3]
-	   + coeffs[1] * (fluid_real_t)dsp_data[dsp_phase_index-2]
-	   + coeffs[2] * (fluid_real_t)dsp_data[dsp_phase_index-1]
-	   + coeffs[3] * (fluid_real_t)dsp_data[dsp_phase_index]
-	   + coeffs[4] * (fluid_real_t)dsp_data[dsp_phase_index+1]
-	   + coeffs[5] * (fluid_real_t)end_points[0]
-	   + coeffs[6] * (fluid_real_t)end_points[1]);
+      dsp_buf[dsp_i] = fluid_dsp_apply_amp(dsp_amp,
+	     coeffs[0] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index-3]
+	   + coeffs[1] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index-2]
+	   + coeffs[2] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index-1]
+	   + coeffs[3] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index]
+	   + coeffs[4] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index+1]
+	   + coeffs[5] * (fluid_interp_coeff_t)end_points[0]
+	   + coeffs[6] * (fluid_interp_coeff_t)end_points[1]);
 
       /* increment phase and amplitude */
       fluid_phase_incr (dsp_phase, dsp_phase_incr);
@@ -636,14 +677,14 @@ fluid_dsp_float_interpolate_7th_order (fluid_voice_t *voice)
     {
       coeffs = sinc_table7[fluid_phase_fract_to_tablerow (dsp_phase)];
 
-      dsp_buf[dsp_i] = dsp_amp
-	* (coeffs[0] * (fluid_real_t)dsp_data[dsp_phase_index-3]
-	   + coeffs[1] * (fluid_real_t)dsp_data[dsp_phase_index-2]
-	   + coeffs[2] * (fluid_real_t)dsp_data[dsp_phase_index-1]
-	   + coeffs[3] * (fluid_real_t)dsp_data[dsp_phase_index]
-	   + coeffs[4] * (fluid_real_t)end_points[0]
-	   + coeffs[5] * (fluid_real_t)end_points[1]
-	   + coeffs[6] * (fluid_real_t)end_points[2]);
+      dsp_buf[dsp_i] = fluid_dsp_apply_amp(dsp_amp,
+	     coeffs[0] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index-3]
+	   + coeffs[1] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index-2]
+	   + coeffs[2] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index-1]
+	   + coeffs[3] * (fluid_interp_coeff_t)dsp_data[dsp_phase_index]
+	   + coeffs[4] * (fluid_interp_coeff_t)end_points[0]
+	   + coeffs[5] * (fluid_interp_coeff_t)end_points[1]
+	   + coeffs[6] * (fluid_interp_coeff_t)end_points[2]);
 
       /* increment phase and amplitude */
       fluid_phase_incr (dsp_phase, dsp_phase_incr);
@@ -679,7 +720,7 @@ fluid_dsp_float_interpolate_7th_order (fluid_voice_t *voice)
   fluid_phase_decr (dsp_phase, (fluid_phase_t)0x80000000);
 
   voice->phase = dsp_phase;
-  voice->amp = dsp_amp;
+  voice->amp = fluid_dsp_amp_to_real(dsp_amp);
 
   return (dsp_i);
 }
@@ -534,13 +534,13 @@ int fluid_rampreset_add_sample(fluid_rampreset_t* preset, fluid_sample_t* sample
 	/* one preset zone */
 	if (preset->zone == NULL) {
 		fluid_preset_zone_t* zone;
-		zone = new_fluid_preset_zone("");
+		zone = new_fluid_preset_zone(NULL, "");
 		if (zone == NULL) {
 			return FLUID_FAILED;
 		}
 
 		/* its instrument */
-		zone->inst = (fluid_inst_t*) new_fluid_inst();
+		zone->inst = (fluid_inst_t*) new_fluid_inst(NULL);
     if (zone->inst == NULL) {
       delete_fluid_preset_zone(zone);
       return FLUID_FAILED;
@@ -552,7 +552,7 @@ int fluid_rampreset_add_sample(fluid_rampreset_t* preset, fluid_sample_t* sample
 	/* add an instrument zone for each sample */
 	{
 		fluid_inst_t* inst = fluid_preset_zone_get_inst(preset->zone);
-		fluid_inst_zone_t* izone = new_fluid_inst_zone("");
+		fluid_inst_zone_t* izone = new_fluid_inst_zone(NULL, "");
 		if (izone == NULL) {
 			return FLUID_FAILED;
 		}
@@ -59,25 +59,30 @@
 
 
 //#define DC_OFFSET 0
+#ifdef FLUID_FIXED_POINT
+/* Integers do not denormalise */
+#define DC_OFFSET 0
+#else
 #define DC_OFFSET 1e-8
+#endif
 //#define DC_OFFSET 0.001f
 typedef struct _fluid_allpass fluid_allpass;
 typedef struct _fluid_comb fluid_comb;
 
 struct _fluid_allpass {
-  fluid_real_t feedback;
-  fluid_real_t *buffer;
+  fluid_coef_t feedback;
+  fluid_buf_t *buffer;
   int bufsize;
   int bufidx;
 };
 
-void fluid_allpass_setbuffer(fluid_allpass* allpass, fluid_real_t *buf, int size);
+void fluid_allpass_setbuffer(fluid_allpass* allpass, fluid_buf_t *buf, int size);
 void fluid_allpass_init(fluid_allpass* allpass);
 void fluid_allpass_setfeedback(fluid_allpass* allpass, fluid_real_t val);
 fluid_real_t fluid_allpass_getfeedback(fluid_allpass* allpass);
 
 void
-fluid_allpass_setbuffer(fluid_allpass* allpass, fluid_real_t *buf, int size)
+fluid_allpass_setbuffer(fluid_allpass* allpass, fluid_buf_t *buf, int size)
 {
   allpass->bufidx = 0;
   allpass->buffer = buf;
@@ -89,7 +94,7 @@ fluid_allpass_init(fluid_allpass* allpass)
 {
   int i;
   int len = allpass->bufsize;
-  fluid_real_t* buf = allpass->buffer;
+  fluid_buf_t* buf = allpass->buffer;
   for (i = 0; i < len; i++) {
     buf[i] = DC_OFFSET; /* this is not 100 % correct. */
   }
@@ -98,22 +103,22 @@ fluid_allpass_init(fluid_allpass* allpass)
 void
 fluid_allpass_setfeedback(fluid_allpass* allpass, fluid_real_t val)
 {
-  allpass->feedback = val;
+  allpass->feedback = FLUID_COEF(val);
 }
 
 fluid_real_t
 fluid_allpass_getfeedback(fluid_allpass* allpass)
 {
-  return allpass->feedback;
+  return FLUID_COEF_TO_REAL(allpass->feedback);
 }
 
 #define fluid_allpass_process(_allpass, _input) \
 { \
-  fluid_real_t output; \
-  fluid_real_t bufout; \
+  fluid_buf_t output; \
+  fluid_buf_t bufout; \
   bufout = _allpass.buffer[_allpass.bufidx]; \
   output = bufout-_input; \
-  _allpass.buffer[_allpass.bufidx] = _input + (bufout * _allpass.feedback); \
+  _allpass.buffer[_allpass.bufidx] = _input + FLUID_COEF_MUL(bufout, _allpass.feedback); \
   if (++_allpass.bufidx >= _allpass.bufsize) { \
     _allpass.bufidx = 0; \
   } \
@@ -135,16 +140,16 @@ fluid_allpass_getfeedback(fluid_allpass* allpass)
 /*  } */
 
 struct _fluid_comb {
-  fluid_real_t feedback;
-  fluid_real_t filterstore;
-  fluid_real_t damp1;
-  fluid_real_t damp2;
-  fluid_real_t *buffer;
+  fluid_coef_t feedback;
+  fluid_buf_t filterstore;
+  fluid_coef_t damp1;
+  fluid_coef_t damp2;
+  fluid_buf_t *buffer;
   int bufsize;
   int bufidx;
 };
 
-void fluid_comb_setbuffer(fluid_comb* comb, fluid_real_t *buf, int size);
+void fluid_comb_setbuffer(fluid_comb* comb, fluid_buf_t *buf, int size);
 void fluid_comb_init(fluid_comb* comb);
 void fluid_comb_setdamp(fluid_comb* comb, fluid_real_t val);
 fluid_real_t fluid_comb_getdamp(fluid_comb* comb);
@@ -152,7 +157,7 @@ void fluid_comb_setfeedback(fluid_comb* comb, fluid_real_t val);
 fluid_real_t fluid_comb_getfeedback(fluid_comb* comb);
 
 void
-fluid_comb_setbuffer(fluid_comb* comb, fluid_real_t *buf, int size)
+fluid_comb_setbuffer(fluid_comb* comb, fluid_buf_t *buf, int size)
 {
   comb->filterstore = 0;
   comb->bufidx = 0;
@@ -164,7 +169,7 @@ void
 fluid_comb_init(fluid_comb* comb)
 {
   int i;
-  fluid_real_t* buf = comb->buffer;
+  fluid_buf_t* buf = comb->buffer;
   int len = comb->bufsize;
   for (i = 0; i < len; i++) {
     buf[i] = DC_OFFSET; /* This is not 100 % correct. */
@@ -174,33 +179,33 @@ fluid_comb_init(fluid_comb* comb)
 void
 fluid_comb_setdamp(fluid_comb* comb, fluid_real_t val)
 {
-  comb->damp1 = val;
-  comb->damp2 = 1 - val;
+  comb->damp1 = FLUID_COEF(val);
+  comb->damp2 = FLUID_COEF(1 - val);
 }
 
 fluid_real_t
 fluid_comb_getdamp(fluid_comb* comb)
 {
-  return comb->damp1;
+  return FLUID_COEF_TO_REAL(comb->damp1);
 }
 
 void
 fluid_comb_setfeedback(fluid_comb* comb, fluid_real_t val)
 {
-  comb->feedback = val;
+  comb->feedback = FLUID_COEF(val);
 }
 
 fluid_real_t
 fluid_comb_getfeedback(fluid_comb* comb)
 {
-  return comb->feedback;
+  return FLUID_COEF_TO_REAL(comb->feedback);
 }
 
 #define fluid_comb_process(_comb, _input, _output) \
 { \
-  fluid_real_t _tmp = _comb.buffer[_comb.bufidx]; \
-  _comb.filterstore = (_tmp * _comb.damp2) + (_comb.filterstore * _comb.damp1); \
-  _comb.buffer[_comb.bufidx] = _input + (_comb.filterstore * _comb.feedback); \
+  fluid_buf_t _tmp = _comb.buffer[_comb.bufidx]; \
+  _comb.filterstore = FLUID_COEF_MUL(_tmp, _comb.damp2) + FLUID_COEF_MUL(_comb.filterstore, _comb.damp1); \
+  _comb.buffer[_comb.bufidx] = _input + FLUID_COEF_MUL(_comb.filterstore, _comb.feedback); \
   if (++_comb.bufidx >= _comb.bufsize) { \
     _comb.bufidx = 0; \
   } \
@@ -271,9 +276,10 @@ fluid_comb_getfeedback(fluid_comb* comb)
 struct _fluid_revmodel_t {
   fluid_real_t roomsize;
   fluid_real_t damp;
-  fluid_real_t wet, wet1, wet2;
+  fluid_real_t wet;
+  fluid_coef_t wet1, wet2;
   fluid_real_t width;
-  fluid_real_t gain;
+  fluid_coef_t gain;
   /*
    The following are all declared inline
    to remove the need for dynamic allocation
@@ -286,31 +292,31 @@ struct _fluid_revmodel_t {
   fluid_allpass allpassL[numallpasses];
   fluid_allpass allpassR[numallpasses];
   /* Buffers for the combs */
-  fluid_real_t bufcombL1[combtuningL1];
-  fluid_real_t bufcombR1[combtuningR1];
-  fluid_real_t bufcombL2[combtuningL2];
-  fluid_real_t bufcombR2[combtuningR2];
-  fluid_real_t bufcombL3[combtuningL3];
-  fluid_real_t bufcombR3[combtuningR3];
-  fluid_real_t bufcombL4[combtuningL4];
-  fluid_real_t bufcombR4[combtuningR4];
-  fluid_real_t bufcombL5[combtuningL5];
-  fluid_real_t bufcombR5[combtuningR5];
-  fluid_real_t bufcombL6[combtuningL6];
-  fluid_real_t bufcombR6[combtuningR6];
-  fluid_real_t bufcombL7[combtuningL7];
-  fluid_real_t bufcombR7[combtuningR7];
-  fluid_real_t bufcombL8[combtuningL8];
-  fluid_real_t bufcombR8[combtuningR8];
+  fluid_buf_t bufcombL1[combtuningL1];
+  fluid_buf_t bufcombR1[combtuningR1];
+  fluid_buf_t bufcombL2[combtuningL2];
+  fluid_buf_t bufcombR2[combtuningR2];
+  fluid_buf_t bufcombL3[combtuningL3];
+  fluid_buf_t bufcombR3[combtuningR3];
+  fluid_buf_t bufcombL4[combtuningL4];
+  fluid_buf_t bufcombR4[combtuningR4];
+  fluid_buf_t bufcombL5[combtuningL5];
+  fluid_buf_t bufcombR5[combtuningR5];
+  fluid_buf_t bufcombL6[combtuningL6];
+  fluid_buf_t bufcombR6[combtuningR6];
+  fluid_buf_t bufcombL7[combtuningL7];
+  fluid_buf_t bufcombR7[combtuningR7];
+  fluid_buf_t bufcombL8[combtuningL8];
+  fluid_buf_t bufcombR8[combtuningR8];
   /* Buffers for the allpasses */
-  fluid_real_t bufallpassL1[allpasstuningL1];
-  fluid_real_t bufallpassR1[allpasstuningR1];
-  fluid_real_t bufallpassL2[allpasstuningL2];
-  fluid_real_t bufallpassR2[allpasstuningR2];
-  fluid_real_t bufallpassL3[allpasstuningL3];
-  fluid_real_t bufallpassR3[allpasstuningR3];
-  fluid_real_t bufallpassL4[allpasstuningL4];
-  fluid_real_t bufallpassR4[allpasstuningR4];
+  fluid_buf_t bufallpassL1[allpasstuningL1];
+  fluid_buf_t bufallpassR1[allpasstuningR1];
+  fluid_buf_t bufallpassL2[allpasstuningL2];
+  fluid_buf_t bufallpassR2[allpasstuningR2];
+  fluid_buf_t bufallpassL3[allpasstuningL3];
+  fluid_buf_t bufallpassR3[allpasstuningR3];
+  fluid_buf_t bufallpassL4[allpasstuningL4];
+  fluid_buf_t bufallpassR4[allpasstuningR4];
 };
 
 void fluid_revmodel_update(fluid_revmodel_t* rev);
@@ -366,7 +372,7 @@ new_fluid_revmodel()
   rev->damp = initialdamp * scaledamp;
   rev->wet = initialwet * scalewet;
   rev->width = initialwidth;
-  rev->gain = fixedgain;
+  rev->gain = FLUID_COEF(fixedgain);
 
   /* now its okay to update reverb */
   fluid_revmodel_update(rev);
@@ -403,11 +409,11 @@ fluid_revmodel_reset(fluid_revmodel_t* rev)
 }
 
 void
-fluid_revmodel_processreplace(fluid_revmodel_t* rev, fluid_real_t *in,
-			     fluid_real_t *left_out, fluid_real_t *right_out)
+fluid_revmodel_processreplace(fluid_revmodel_t* rev, fluid_buf_t *in,
+			     fluid_buf_t *left_out, fluid_buf_t *right_out)
 {
   int i, k = 0;
-  fluid_real_t outL, outR, input;
+  fluid_buf_t outL, outR, input;
 
   for (k = 0; k < FLUID_BUFSIZE; k++) {
 
@@ -417,7 +423,7 @@ fluid_revmodel_processreplace(fluid_revmodel_t* rev, fluid_real_t *in,
      * is set to the sum of the left and right input sample. Since
      * this code works on a mono signal, 'input' is set to twice the
      * input sample. */
-    input = (2 * in[k] + DC_OFFSET) * rev->gain;
+    input = FLUID_COEF_MUL(2 * in[k] + DC_OFFSET, rev->gain);
 
     /* Accumulate comb filters in parallel */
     for (i = 0; i < numcombs; i++) {
@@ -435,17 +441,17 @@ fluid_revmodel_processreplace(fluid_revmodel_t* rev, fluid_real_t *in,
     outR -= DC_OFFSET;
 
     /* Calculate output REPLACING anything already there */
-    left_out[k] = outL * rev->wet1 + outR * rev->wet2;
-    right_out[k] = outR * rev->wet1 + outL * rev->wet2;
+    left_out[k] = FLUID_COEF_MUL(outL, rev->wet1) + FLUID_COEF_MUL(outR, rev->wet2);
+    right_out[k] = FLUID_COEF_MUL(outR, rev->wet1) + FLUID_COEF_MUL(outL, rev->wet2);
   }
 }
 
 void
-fluid_revmodel_processmix(fluid_revmodel_t* rev, fluid_real_t *in,
-			 fluid_real_t *left_out, fluid_real_t *right_out)
+fluid_revmodel_processmix(fluid_revmodel_t* rev, fluid_buf_t *in,
+			 fluid_buf_t *left_out, fluid_buf_t *right_out)
 {
   int i, k = 0;
-  fluid_real_t outL, outR, input;
+  fluid_buf_t outL, outR, input;
 
   for (k = 0; k < FLUID_BUFSIZE; k++) {
 
@@ -455,7 +461,7 @@ fluid_revmodel_processmix(fluid_revmodel_t* rev, fluid_real_t *in,
      * is set to the sum of the left and right input sample. Since
      * this code works on a mono signal, 'input' is set to twice the
      * input sample. */
-    input = (2 * in[k] + DC_OFFSET) * rev->gain;
+    input = FLUID_COEF_MUL(2 * in[k] + DC_OFFSET, rev->gain);
 
     /* Accumulate comb filters in parallel */
     for (i = 0; i < numcombs; i++) {
@@ -473,8 +479,8 @@ fluid_revmodel_processmix(fluid_revmodel_t* rev, fluid_real_t *in,
     outR -= DC_OFFSET;
 
     /* Calculate output MIXING with anything already there */
-    left_out[k] += outL * rev->wet1 + outR * rev->wet2;
-    right_out[k] += outR * rev->wet1 + outL * rev->wet2;
+    left_out[k] += FLUID_COEF_MUL(outL, rev->wet1) + FLUID_COEF_MUL(outR, rev->wet2);
+    right_out[k] += FLUID_COEF_MUL(outR, rev->wet1) + FLUID_COEF_MUL(outL, rev->wet2);
   }
 }
 
@@ -484,8 +490,8 @@ fluid_revmodel_update(fluid_revmodel_t* rev)
   /* Recalculate internal values after parameter change */
   int i;
 
-  rev->wet1 = rev->wet * (rev->width / 2 + 0.5f);
-  rev->wet2 = rev->wet * ((1 - rev->width) / 2);
+  rev->wet1 = FLUID_COEF(rev->wet * (rev->width / 2 + 0.5f));
+  rev->wet2 = FLUID_COEF(rev->wet * ((1 - rev->width) / 2));
 
   for (i = 0; i < numcombs; i++) {
     fluid_comb_setfeedback(&rev->combL[i], rev->roomsize);
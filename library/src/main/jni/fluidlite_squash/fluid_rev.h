@@ -33,11 +33,11 @@ typedef struct _fluid_revmodel_t fluid_revmodel_t;
 fluid_revmodel_t* new_fluid_revmodel(void);
 void delete_fluid_revmodel(fluid_revmodel_t* rev);
 
-void fluid_revmodel_processmix(fluid_revmodel_t* rev, fluid_real_t *in,
-			      fluid_real_t *left_out, fluid_real_t *right_out);
+void fluid_revmodel_processmix(fluid_revmodel_t* rev, fluid_buf_t *in,
+			      fluid_buf_t *left_out, fluid_buf_t *right_out);
 
-void fluid_revmodel_processreplace(fluid_revmodel_t* rev, fluid_real_t *in,
-				  fluid_real_t *left_out, fluid_real_t *right_out);
+void fluid_revmodel_processreplace(fluid_revmodel_t* rev, fluid_buf_t *in,
+				  fluid_buf_t *left_out, fluid_buf_t *right_out);
 
 void fluid_revmodel_reset(fluid_revmodel_t* rev);
 
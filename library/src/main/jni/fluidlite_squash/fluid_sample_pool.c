@@ -0,0 +1,156 @@
+/**
+ * Process-wide pool of sample data, keyed by content.
+ *
+ * Created by: Blaine Rister Oct 19 2026
+ */
+
+#include <pthread.h>
+#include <stddef.h>
+#include <stdint.h>
+#include <string.h>
+
+#include "fluid_sample_pool.h"
+
+/* Number of hash chains. A soundfont has at most a few thousand samples. */
+#define FLUID_SAMPLE_POOL_BUCKETS 1024
+
+typedef struct _fluid_pooled_sample_t fluid_pooled_sample_t;
+
+struct _fluid_pooled_sample_t
+{
+  fluid_pooled_sample_t* next;  /* the next sample in the hash chain */
+  uint64_t hash;                /* hash of the data */
+  unsigned int num_frames;      /* length of the data */
+  int refcount;                 /* users of the data */
+  short data[];                 /* the sample data, handed out to the users */
+};
+
+static fluid_pooled_sample_t* fluid_sample_pool_buckets[FLUID_SAMPLE_POOL_BUCKETS];
+static pthread_mutex_t fluid_sample_pool_mutex = PTHREAD_MUTEX_INITIALIZER;
+static size_t fluid_sample_pool_pooled;  /* bytes stored in the pool */
+static size_t fluid_sample_pool_saved;   /* bytes the users would hold without sharing */
+
+#define FLUID_POOLED_SAMPLE(_data) \
+  ((fluid_pooled_sample_t*) ((char*) (_data) - offsetof(fluid_pooled_sample_t, data)))
+#define FLUID_POOLED_SIZE(_num_frames) ((size_t) (_num_frames) * sizeof(short))
+
+/*
+ * fluid_sample_pool_hash
+ *
+ * FNV-1a over the 16 bit sample points, seeded with the length.
+ */
+static uint64_t
+fluid_sample_pool_hash(const short* data, unsigned int num_frames)
+{
+  uint64_t hash = 0xcbf29ce484222325ULL ^ num_frames;
+  unsigned int i;
+
+  for (i = 0; i < num_frames; i++) {
+    hash = (hash ^ (uint16_t) data[i]) * 0x100000001b3ULL;
+  }
+  return hash;
+}
+
+/*
+ * fluid_sample_pool_acquire
+ *
+ * Returns pooled data equal to the given sample data, copying it into the pool
+ * if it is not there yet. The caller keeps its data, and must release the
+ * returned data when done with it. Returns NULL if out of memory.
+ */
+short*
+fluid_sample_pool_acquire(const short* data, unsigned int num_frames)
+{
+  uint64_t hash = fluid_sample_pool_hash(data, num_frames);
+  fluid_pooled_sample_t **bucket, *entry;
+  size_t size = FLUID_POOLED_SIZE(num_frames);
+
+  pthread_mutex_lock(&fluid_sample_pool_mutex);
+
+  bucket = &fluid_sample_pool_buckets[hash % FLUID_SAMPLE_POOL_BUCKETS];
+  for (entry = *bucket; entry != NULL; entry = entry->next) {
+    if ((entry->hash == hash) && (entry->num_frames == num_frames)
+        && (memcmp(entry->data, data, size) == 0)) {
+      entry->refcount++;
+      fluid_sample_pool_saved += size;
+      pthread_mutex_unlock(&fluid_sample_pool_mutex);
+      return entry->data;
+    }
+  }
+
+  entry = (fluid_pooled_sample_t*) FLUID_MALLOC(sizeof(fluid_pooled_sample_t) + size);
+  if (entry == NULL) {
+    pthread_mutex_unlock(&fluid_sample_pool_mutex);
+    FLUID_LOG(FLUID_ERR, "Out of memory");
+    return NULL;
+  }
+  FLUID_MEMCPY(entry->data, data, size);
+  entry->hash = hash;
+  entry->num_frames = num_frames;
+  entry->refcount = 1;
+  entry->next = *bucket;
+  *bucket = entry;
+  fluid_sample_pool_pooled += size;
+
+  pthread_mutex_unlock(&fluid_sample_pool_mutex);
+  return entry->data;
+}
+
+/*
+ * fluid_sample_pool_adopt
+ *
+ * Like fluid_sample_pool_acquire, but takes over sample data allocated with
+ * FLUID_MALLOC, freeing it whether or not it is pooled.
+ */
+short*
+fluid_sample_pool_adopt(short* data, unsigned int num_frames)
+{
+  short* pooled = fluid_sample_pool_acquire(data, num_frames);
+
+  FLUID_FREE(data);
+  return pooled;
+}
+
+/*
+ * fluid_sample_pool_release
+ *
+ * Releases data returned by the pool. It is freed once no one uses it.
+ */
+void
+fluid_sample_pool_release(short* data)
+{
+  fluid_pooled_sample_t* entry = FLUID_POOLED_SAMPLE(data);
+  fluid_pooled_sample_t** link;
+  size_t size = FLUID_POOLED_SIZE(entry->num_frames);
+
+  pthread_mutex_lock(&fluid_sample_pool_mutex);
+
+  if (--entry->refcount > 0) {
+    fluid_sample_pool_saved -= size;
+    pthread_mutex_unlock(&fluid_sample_pool_mutex);
+    return;
+  }
+
+  for (link = &fluid_sample_pool_buckets[entry->hash % FLUID_SAMPLE_POOL_BUCKETS];
+       *link != entry; link = &(*link)->next);
+  *link = entry->next;
+  fluid_sample_pool_pooled -= size;
+
+  pthread_mutex_unlock(&fluid_sample_pool_mutex);
+  FLUID_FREE(entry);
+}
+
+/*
+ * fluid_sample_pool_get_usage
+ *
+ * Reports the bytes of sample data in the pool, and the bytes saved by
+ * sharing it, that is, how much more the users would hold with a copy each.
+ */
+void
+fluid_sample_pool_get_usage(size_t* pooled, size_t* saved)
+{
+  pthread_mutex_lock(&fluid_sample_pool_mutex);
+  *pooled = fluid_sample_pool_pooled;
+  *saved = fluid_sample_pool_saved;
+  pthread_mutex_unlock(&fluid_sample_pool_mutex);
+}
@@ -0,0 +1,20 @@
+/**
+ * Process-wide pool of sample data, keyed by content. Soundfonts which hold their samples in memory
+ * take them from the pool, so a sample shared by several soundfonts, or by a soundfont and its
+ * reload, is stored once. Each sample counts its users and is freed when the last one releases it.
+ * The pool is safe to use from several threads.
+ *
+ * Created by: Blaine Rister Oct 19 2026
+ */
+
+#ifndef _FLUID_SAMPLE_POOL_H
+#define _FLUID_SAMPLE_POOL_H
+
+#include "fluidsynth_priv.h"
+
+short* fluid_sample_pool_acquire(const short* data, unsigned int num_frames);
+short* fluid_sample_pool_adopt(short* data, unsigned int num_frames);
+void fluid_sample_pool_release(short* data);
+void fluid_sample_pool_get_usage(size_t* pooled, size_t* saved);
+
+#endif /* _FLUID_SAMPLE_POOL_H */
@@ -482,21 +482,21 @@ new_fluid_synth(fluid_settings_t *settings)
 
   /* Left and right audio buffers */
 
-  synth->left_buf = FLUID_ARRAY(fluid_real_t*, synth->nbuf);
-  synth->right_buf = FLUID_ARRAY(fluid_real_t*, synth->nbuf);
+  synth->left_buf = FLUID_ARRAY(fluid_buf_t*, synth->nbuf);
+  synth->right_buf = FLUID_ARRAY(fluid_buf_t*, synth->nbuf);
 
   if ((synth->left_buf == NULL) || (synth->right_buf == NULL)) {
     FLUID_LOG(FLUID_ERR, "Out of memory");
     goto error_recovery;
   }
 
-  FLUID_MEMSET(synth->left_buf, 0, synth->nbuf * sizeof(fluid_real_t*));
-  FLUID_MEMSET(synth->right_buf, 0, synth->nbuf * sizeof(fluid_real_t*));
+  FLUID_MEMSET(synth->left_buf, 0, synth->nbuf * sizeof(fluid_buf_t*));
+  FLUID_MEMSET(synth->right_buf, 0, synth->nbuf * sizeof(fluid_buf_t*));
 
   for (i = 0; i < synth->nbuf; i++) {
 
-    synth->left_buf[i] = FLUID_ARRAY(fluid_real_t, FLUID_BUFSIZE);
-    synth->right_buf[i] = FLUID_ARRAY(fluid_real_t, FLUID_BUFSIZE);
+    synth->left_buf[i] = FLUID_ARRAY(fluid_buf_t, FLUID_BUFSIZE);
+    synth->right_buf[i] = FLUID_ARRAY(fluid_buf_t, FLUID_BUFSIZE);
 
     if ((synth->left_buf[i] == NULL) || (synth->right_buf[i] == NULL)) {
       FLUID_LOG(FLUID_ERR, "Out of memory");
@@ -506,20 +506,20 @@ new_fluid_synth(fluid_settings_t *settings)
 
   /* Effects audio buffers */
 
-  synth->fx_left_buf = FLUID_ARRAY(fluid_real_t*, synth->effects_channels);
-  synth->fx_right_buf = FLUID_ARRAY(fluid_real_t*, synth->effects_channels);
+  synth->fx_left_buf = FLUID_ARRAY(fluid_buf_t*, synth->effects_channels);
+  synth->fx_right_buf = FLUID_ARRAY(fluid_buf_t*, synth->effects_channels);
 
   if ((synth->fx_left_buf == NULL) || (synth->fx_right_buf == NULL)) {
     FLUID_LOG(FLUID_ERR, "Out of memory");
     goto error_recovery;
   }
 
-  FLUID_MEMSET(synth->fx_left_buf, 0, 2 * sizeof(fluid_real_t*));
-  FLUID_MEMSET(synth->fx_right_buf, 0, 2 * sizeof(fluid_real_t*));
+  FLUID_MEMSET(synth->fx_left_buf, 0, 2 * sizeof(fluid_buf_t*));
+  FLUID_MEMSET(synth->fx_right_buf, 0, 2 * sizeof(fluid_buf_t*));
 
   for (i = 0; i < synth->effects_channels; i++) {
-    synth->fx_left_buf[i] = FLUID_ARRAY(fluid_real_t, FLUID_BUFSIZE);
-    synth->fx_right_buf[i] = FLUID_ARRAY(fluid_real_t, FLUID_BUFSIZE);
+    synth->fx_left_buf[i] = FLUID_ARRAY(fluid_buf_t, FLUID_BUFSIZE);
+    synth->fx_right_buf[i] = FLUID_ARRAY(fluid_buf_t, FLUID_BUFSIZE);
 
     if ((synth->fx_left_buf[i] == NULL) || (synth->fx_right_buf[i] == NULL)) {
       FLUID_LOG(FLUID_ERR, "Out of memory");
@@ -1914,6 +1914,24 @@ void fluid_synth_set_chorus(fluid_synth_t* synth, int nr, double level,
 
 ***************************************************/
 
+/*
+ *  fluid_synth_copy_float
+ *
+ *  Copies samples from a mixing bus to a float buffer.
+ */
+static void
+fluid_synth_copy_float(float* out, const fluid_buf_t* in, int num)
+{
+#ifdef FLUID_FIXED_POINT
+  int i;
+  for (i = 0; i < num; i++) {
+    out[i] = FLUID_BUF_TO_REAL(in[i]);
+  }
+#else
+  FLUID_MEMCPY(out, in, num * sizeof(float));
+#endif
+}
+
 /*
  *  fluid_synth_nwrite_float
  */
@@ -1922,9 +1940,9 @@ fluid_synth_nwrite_float(fluid_synth_t* synth, int len,
 			 float** left, float** right,
        float** fx_left, float** fx_right)
 {
-  fluid_real_t** left_in = synth->left_buf;
-  fluid_real_t** right_in = synth->right_buf;
-  int i, num, available, count, bytes;
+  fluid_buf_t** left_in = synth->left_buf;
+  fluid_buf_t** right_in = synth->right_buf;
+  int i, num, available, count;
 
   /* make sure we're playing */
   if (synth->state != FLUID_SYNTH_PLAYING) {
@@ -1938,11 +1956,10 @@ fluid_synth_nwrite_float(fluid_synth_t* synth, int len,
     available = FLUID_BUFSIZE - synth->cur;
 
     num = (available > len)? len : available;
-    bytes = num * sizeof(float);
 
     for (i = 0; i < synth->audio_channels; i++) {
-      FLUID_MEMCPY(left[i], left_in[i] + synth->cur, bytes);
-      FLUID_MEMCPY(right[i], right_in[i] + synth->cur, bytes);
+      fluid_synth_copy_float(left[i], left_in[i] + synth->cur, num);
+      fluid_synth_copy_float(right[i], right_in[i] + synth->cur, num);
     }
     count += num;
     num += synth->cur; /* if we're now done, num becomes the new synth->cur below */
@@ -1953,11 +1970,10 @@ fluid_synth_nwrite_float(fluid_synth_t* synth, int len,
     fluid_synth_one_block(synth, 1);
 
     num = (FLUID_BUFSIZE > len - count)? len - count : FLUID_BUFSIZE;
-    bytes = num * sizeof(float);
 
     for (i = 0; i < synth->audio_channels; i++) {
-      FLUID_MEMCPY(left[i] + count, left_in[i], bytes);
-      FLUID_MEMCPY(right[i] + count, right_in[i], bytes);
+      fluid_synth_copy_float(left[i] + count, left_in[i], num);
+      fluid_synth_copy_float(right[i] + count, right_in[i], num);
     }
 
     count += num;
@@ -2006,8 +2022,8 @@ fluid_synth_write_float(fluid_synth_t* synth, int len,
   int i, j, k, l;
   float* left_out = (float*) lout;
   float* right_out = (float*) rout;
-  fluid_real_t* left_in = synth->left_buf[0];
-  fluid_real_t* right_in = synth->right_buf[0];
+  fluid_buf_t* left_in = synth->left_buf[0];
+  fluid_buf_t* right_in = synth->right_buf[0];
 
   /* make sure we're playing */
   if (synth->state != FLUID_SYNTH_PLAYING) {
@@ -2023,8 +2039,8 @@ fluid_synth_write_float(fluid_synth_t* synth, int len,
 	l = 0;
       }
 
-      left_out[j] = (float) left_in[l];
-      right_out[k] = (float) right_in[l];
+      left_out[j] = (float) FLUID_BUF_TO_REAL(left_in[l]);
+      right_out[k] = (float) FLUID_BUF_TO_REAL(right_in[l]);
   }
 
   synth->cur = l;
@@ -2034,6 +2050,47 @@ fluid_synth_write_float(fluid_synth_t* synth, int len,
   return 0;
 }
 
+#ifdef FLUID_FIXED_POINT
+/*
+ *  fluid_synth_write_fixed
+ *
+ *  Same as fluid_synth_write_float, but hands out the mixing buses as they
+ *  are, with FLUID_FIXED_MIX_BITS fractional bits. This avoids any floating
+ *  point conversion on the way to 16 bit output.
+ */
+int
+fluid_synth_write_fixed(fluid_synth_t* synth, int len,
+			int32_t* left_out, int loff, int lincr,
+			int32_t* right_out, int roff, int rincr)
+{
+  int i, j, k, l;
+  fluid_buf_t* left_in = synth->left_buf[0];
+  fluid_buf_t* right_in = synth->right_buf[0];
+
+  /* make sure we're playing */
+  if (synth->state != FLUID_SYNTH_PLAYING) {
+    return 0;
+  }
+
+  l = synth->cur;
+
+  for (i = 0, j = loff, k = roff; i < len; i++, l++, j += lincr, k += rincr) {
+    /* fill up the buffers as needed */
+      if (l == FLUID_BUFSIZE) {
+	fluid_synth_one_block(synth, 0);
+	l = 0;
+      }
+
+      left_out[j] = left_in[l];
+      right_out[k] = right_in[l];
+  }
+
+  synth->cur = l;
+
+  return 0;
+}
+#endif
+
 #define DITHER_SIZE 48000
 #define DITHER_CHANNELS 2
 
@@ -2077,8 +2134,8 @@ fluid_synth_write_s16(fluid_synth_t* synth, int len,
   int i, j, k, cur;
   signed short* left_out = (signed short*) lout;
   signed short* right_out = (signed short*) rout;
-  fluid_real_t* left_in = synth->left_buf[0];
-  fluid_real_t* right_in = synth->right_buf[0];
+  fluid_buf_t* left_in = synth->left_buf[0];
+  fluid_buf_t* right_in = synth->right_buf[0];
   fluid_real_t left_sample;
   fluid_real_t right_sample;
   int di = synth->dither_index;
@@ -2098,8 +2155,8 @@ fluid_synth_write_s16(fluid_synth_t* synth, int len,
       cur = 0;
     }
 
-    left_sample = roundi (left_in[cur] * 32766.0f + rand_table[0][di]);
-    right_sample = roundi (right_in[cur] * 32766.0f + rand_table[1][di]);
+    left_sample = roundi (FLUID_BUF_TO_REAL(left_in[cur]) * 32766.0f + rand_table[0][di]);
+    right_sample = roundi (FLUID_BUF_TO_REAL(right_in[cur]) * 32766.0f + rand_table[1][di]);
 
     di++;
     if (di >= DITHER_SIZE) di = 0;
@@ -2163,6 +2220,42 @@ fluid_synth_dither_s16(int *dither_index, int len, float* lin, float* rin,
   *dither_index = di;	/* keep dither buffer continous */
 }
 
+/*
+ *  fluid_synth_chorus
+ *
+ *  Runs the chorus, mixing with or replacing the output. The chorus has no
+ *  fixed point version, so fixed point builds convert its signal on the way
+ *  in and out.
+ */
+static void
+fluid_synth_chorus(fluid_synth_t* synth, fluid_buf_t* in,
+		   fluid_buf_t* left_out, fluid_buf_t* right_out, int mix)
+{
+#ifdef FLUID_FIXED_POINT
+  fluid_real_t in_real[FLUID_BUFSIZE];
+  fluid_real_t left_real[FLUID_BUFSIZE];
+  fluid_real_t right_real[FLUID_BUFSIZE];
+  int i;
+
+  for (i = 0; i < FLUID_BUFSIZE; i++) {
+    in_real[i] = FLUID_BUF_TO_REAL(in[i]);
+  }
+
+  fluid_chorus_processreplace(synth->chorus, in_real, left_real, right_real);
+
+  for (i = 0; i < FLUID_BUFSIZE; i++) {
+    left_out[i] = (mix ? left_out[i] : 0) + FLUID_REAL_TO_BUF(left_real[i]);
+    right_out[i] = (mix ? right_out[i] : 0) + FLUID_REAL_TO_BUF(right_real[i]);
+  }
+#else
+  if (mix) {
+    fluid_chorus_processmix(synth->chorus, in, left_out, right_out);
+  } else {
+    fluid_chorus_processreplace(synth->chorus, in, left_out, right_out);
+  }
+#endif
+}
+
 /*
  *  fluid_synth_one_block
  */
@@ -2171,11 +2264,11 @@ fluid_synth_one_block(fluid_synth_t* synth, int do_not_mix_fx_to_out)
 {
   int i, auchan;
   fluid_voice_t* voice;
-  fluid_real_t* left_buf;
-  fluid_real_t* right_buf;
-  fluid_real_t* reverb_buf;
-  fluid_real_t* chorus_buf;
-  int byte_size = FLUID_BUFSIZE * sizeof(fluid_real_t);
+  fluid_buf_t* left_buf;
+  fluid_buf_t* right_buf;
+  fluid_buf_t* reverb_buf;
+  fluid_buf_t* chorus_buf;
+  int byte_size = FLUID_BUFSIZE * sizeof(fluid_buf_t);
 
 /*   fluid_mutex_lock(synth->busy); /\* Here comes the audio thread. Lock the synth. *\/ */
 
@@ -2237,8 +2330,8 @@ fluid_synth_one_block(fluid_synth_t* synth, int do_not_mix_fx_to_out)
 
     /* send to chorus */
     if (chorus_buf) {
-      fluid_chorus_processreplace(synth->chorus, chorus_buf,
-				 synth->fx_left_buf[1], synth->fx_right_buf[1]);
+      fluid_synth_chorus(synth, chorus_buf,
+			 synth->fx_left_buf[1], synth->fx_right_buf[1], 0);
     }
 
   } else {
@@ -2251,8 +2344,8 @@ fluid_synth_one_block(fluid_synth_t* synth, int do_not_mix_fx_to_out)
 
     /* send to chorus */
     if (chorus_buf) {
-      fluid_chorus_processmix(synth->chorus, chorus_buf,
-			     synth->left_buf[0], synth->right_buf[0]);
+      fluid_synth_chorus(synth, chorus_buf,
+			 synth->left_buf[0], synth->right_buf[0], 1);
     }
   }
 
@@ -2549,11 +2642,13 @@ fluid_synth_sfload(fluid_synth_t* synth, const char* filename, int reset_presets
   for (list = synth->loaders; list; list = fluid_list_next(list)) {
     loader = (fluid_sfloader_t*) fluid_list_get(list);
 
-    // Try to load the soundfont
+    // Try to load the soundfont. Don't leave the loader pointing at it.
     loader->data = sfont;
     if (fluid_sfloader_load(loader, filename) == NULL) {
+        loader->data = NULL;
         continue;
     }
+    loader->data = NULL;
 
     // Add the soundfont to the synth
     fluid_synth_add_sfont(synth, sfont);
@@ -2567,9 +2662,15 @@ fluid_synth_sfload(fluid_synth_t* synth, const char* filename, int reset_presets
     return (int) sfont->id;
   }
 
+  // No loader took the soundfont, so it holds nothing yet
+  FLUID_FREE(sfont);
+  FLUID_LOG(FLUID_ERR, "Failed to load SoundFont \"%s\"", filename);
+  return -1;
 
 sfload_err:
-  // Delete the soundfont and return -1
+  // Remove the soundfont from the synth, delete it and return -1
+  synth->sfont = fluid_list_remove(synth->sfont, sfont);
+  fluid_synth_update_presets(synth);
   delete_fluid_sfont(sfont);
   FLUID_LOG(FLUID_ERR, "Failed to load SoundFont \"%s\"", filename);
   return -1;
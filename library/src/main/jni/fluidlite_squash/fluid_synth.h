@@ -118,10 +118,10 @@ struct _fluid_synth_t
   unsigned int storeid;
   int nbuf;                           /** How many audio buffers are used? (depends on nr of audio channels / groups)*/
 
-  fluid_real_t** left_buf;
-  fluid_real_t** right_buf;
-  fluid_real_t** fx_left_buf;
-  fluid_real_t** fx_right_buf;
+  fluid_buf_t** left_buf;
+  fluid_buf_t** right_buf;
+  fluid_buf_t** fx_left_buf;
+  fluid_buf_t** fx_right_buf;
 
   fluid_revmodel_t* reverb;
   fluid_chorus_t* chorus;
@@ -158,6 +158,11 @@ int fluid_synth_getint(fluid_synth_t* synth, char* name, int* val);
 int fluid_synth_set_reverb_preset(fluid_synth_t* synth, int num);
 
 int fluid_synth_one_block(fluid_synth_t* synth, int do_not_mix_fx_to_out);
+#ifdef FLUID_FIXED_POINT
+int fluid_synth_write_fixed(fluid_synth_t* synth, int len,
+			    int32_t* left_out, int loff, int lincr,
+			    int32_t* right_out, int roff, int rincr);
+#endif
 
 fluid_preset_t* fluid_synth_get_preset(fluid_synth_t* synth,
 				     unsigned int sfontnum,
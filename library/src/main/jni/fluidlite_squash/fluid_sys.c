@@ -21,6 +21,11 @@
 
 #include "fluid_sys.h"
 
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
 static char fluid_errbuf[512];  /* buffer for error message */
 
 static fluid_log_function_t fluid_log_function[LAST_LOG_LEVEL];
@@ -339,6 +344,132 @@ fluid_is_soundfont(char* filename)
 
 
 
+/***************************************************************
+ *
+ *               Memory mapped files
+ *
+ */
+
+/*
+ * fluid_file_map_fd
+ *
+ * Maps size bytes of an open file, starting at offset. The file descriptor
+ * may be closed afterwards. Returns FLUID_FAILED if the file can't be mapped,
+ * in which case the caller should fall back to reading it.
+ */
+int
+fluid_file_map_fd(fluid_file_map_t* map, int fd, long offset, size_t size)
+{
+  long page_size, pad;
+  void* base;
+
+  map->data = NULL;
+  if (size == 0) {
+    return FLUID_FAILED;
+  }
+
+  /* The offset of a mapping must be page aligned */
+  page_size = sysconf(_SC_PAGESIZE);
+  pad = page_size > 0 ? offset % page_size : 0;
+
+  base = mmap(NULL, size + pad, PROT_READ, MAP_PRIVATE, fd, offset - pad);
+  if (base == MAP_FAILED) {
+    FLUID_LOG(FLUID_DBG, "Failed to map %u bytes of file data", (unsigned int) size);
+    return FLUID_FAILED;
+  }
+
+  map->base = base;
+  map->length = size + pad;
+  map->data = (char*) base + pad;
+  map->size = size;
+  return FLUID_OK;
+}
+
+#ifndef FLUID_WITH_ANDROID_AASSET
+/*
+ * fluid_file_map_open
+ */
+int
+fluid_file_map_open(fluid_file_map_t* map, const char* filename)
+{
+  struct stat st;
+  int fd, result;
+
+  map->data = NULL;
+  if ((fd = open(filename, O_RDONLY)) < 0) {
+    return FLUID_FAILED;
+  }
+
+  result = fstat(fd, &st) == 0 ? fluid_file_map_fd(map, fd, 0, (size_t) st.st_size) : FLUID_FAILED;
+  close(fd);
+  return result;
+}
+#endif
+
+/*
+ * fluid_file_map_close
+ */
+void
+fluid_file_map_close(fluid_file_map_t* map)
+{
+  if (map->data != NULL) {
+    munmap(map->base, map->length);
+    map->data = NULL;
+  }
+}
+
+
+/*
+ * fluid_file_map_page_in
+ *
+ * Asks the kernel to start reading size bytes of the mapping, starting at
+ * offset, ahead of their use. This is only a hint.
+ */
+void
+fluid_file_map_page_in(fluid_file_map_t* map, size_t offset, size_t size)
+{
+  long page_size = sysconf(_SC_PAGESIZE);
+  uintptr_t start, end;
+
+  if ((map->data == NULL) || (page_size <= 0) || (size == 0)) {
+    return;
+  }
+
+  /* Round out to whole pages */
+  start = (uintptr_t) map->data + offset;
+  end = start + size;
+  start -= start % page_size;
+  madvise((void*) start, end - start, MADV_WILLNEED);
+}
+
+/*
+ * fluid_file_map_page_out
+ *
+ * Drops the pages which lie entirely within size bytes of the mapping,
+ * starting at offset. The mapping stays valid: the pages are read back from
+ * the file if they are touched again.
+ */
+void
+fluid_file_map_page_out(fluid_file_map_t* map, size_t offset, size_t size)
+{
+  long page_size = sysconf(_SC_PAGESIZE);
+  uintptr_t start, end;
+
+  if ((map->data == NULL) || (page_size <= 0)) {
+    return;
+  }
+
+  /* Round in to whole pages, since the neighbouring data may be in use */
+  start = (uintptr_t) map->data + offset;
+  end = start + size;
+  start += (page_size - start % page_size) % page_size;
+  end -= end % page_size;
+  if (end > start) {
+    madvise((void*) start, end - start, MADV_DONTNEED);
+  }
+}
+
+
 /***************************************************************
  *
  *               Profiling (Linux, i586 only)
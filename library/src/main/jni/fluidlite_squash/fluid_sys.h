@@ -30,6 +30,7 @@
    - profiling
    - memory locking
    - checking for floating point exceptions
+   - memory mapped files
 
  */
 
@@ -49,6 +50,25 @@ void fluid_log_config(void);
 char *fluid_strtok (char **str, char *delim);
 
 
+/*
+ * Read-only memory mapping of a whole file. The data stays valid until the
+ * mapping is closed, independently of the file it came from.
+ */
+typedef struct _fluid_file_map_t
+{
+  const void* data;             /* the contents of the file, or NULL if not mapped */
+  size_t size;                  /* the size of the file */
+  void* base;                   /* the page aligned start of the mapping */
+  size_t length;                /* the length of the mapping */
+} fluid_file_map_t;
+
+int fluid_file_map_open(fluid_file_map_t* map, const char* filename);
+int fluid_file_map_fd(fluid_file_map_t* map, int fd, long offset, size_t size);
+void fluid_file_map_close(fluid_file_map_t* map);
+void fluid_file_map_page_in(fluid_file_map_t* map, size_t offset, size_t size);
+void fluid_file_map_page_out(fluid_file_map_t* map, size_t offset, size_t size);
+
+
 /**
 
   Additional debugging system, separate from the log system. This
@@ -47,10 +47,10 @@
 
 //removed inline
 static void fluid_voice_effects (fluid_voice_t *voice, int count,
-				        fluid_real_t* dsp_left_buf,
-				        fluid_real_t* dsp_right_buf,
-				        fluid_real_t* dsp_reverb_buf,
-				        fluid_real_t* dsp_chorus_buf);
+				        fluid_buf_t* dsp_left_buf,
+				        fluid_buf_t* dsp_right_buf,
+				        fluid_buf_t* dsp_reverb_buf,
+				        fluid_buf_t* dsp_chorus_buf);
 static void fluid_voice_clear_hist(fluid_voice_t *const voice);
 
 /*
@@ -127,6 +127,10 @@ void
 fluid_voice_clear_hist(fluid_voice_t *const voice) {
   voice->hist1 = 0;
   voice->hist2 = 0;
+#ifdef FLUID_FIXED_POINT
+  voice->in_hist1 = 0;
+  voice->in_hist2 = 0;
+#endif
 }
 
 /* fluid_voice_init
@@ -256,8 +260,8 @@ fluid_real_t fluid_voice_gen_value(fluid_voice_t* voice, int num)
  */
 int
 fluid_voice_write(fluid_voice_t* voice,
-		 fluid_real_t* dsp_left_buf, fluid_real_t* dsp_right_buf,
-		 fluid_real_t* dsp_reverb_buf, fluid_real_t* dsp_chorus_buf)
+		 fluid_buf_t* dsp_left_buf, fluid_buf_t* dsp_right_buf,
+		 fluid_buf_t* dsp_reverb_buf, fluid_buf_t* dsp_chorus_buf)
 {
   fluid_real_t fres;
   fluid_real_t target_amp;	/* target amplitude */
@@ -265,7 +269,7 @@ fluid_voice_write(fluid_voice_t* voice,
 
   int dsp_interp_method = voice->interp_method;
 
-  fluid_real_t dsp_buf[FLUID_BUFSIZE];
+  fluid_buf_t dsp_buf[FLUID_BUFSIZE];
   fluid_env_data_t* env_data;
   fluid_real_t x;
 
@@ -650,10 +654,146 @@ fluid_voice_write(fluid_voice_t* voice,
  * - dsp_hist2: same
  *
  */
+#ifdef FLUID_FIXED_POINT
+
+/* Gain from the voice buffer to a mixing bus, as a coefficient */
+#define fluid_voice_mix_gain(_amp) \
+  FLUID_COEF((_amp) * (fluid_real_t) (1 << (FLUID_FIXED_MIX_BITS - FLUID_FIXED_VOICE_BITS)))
+
+/* Fixed point version of the below. The filter runs in Direct-I form, because
+ * the center node of Direct-II grows by the inverse of the pole distance
+ * from DC, which would overflow for low cutoff frequencies. The
+ * coefficient ramp is computed in fixed point, but the voice keeps the
+ * floating point coefficients, so the error does not build up. */
 static __inline void
 fluid_voice_effects (fluid_voice_t *voice, int count,
-		     fluid_real_t* dsp_left_buf, fluid_real_t* dsp_right_buf,
-		     fluid_real_t* dsp_reverb_buf, fluid_real_t* dsp_chorus_buf)
+		     fluid_buf_t* dsp_left_buf, fluid_buf_t* dsp_right_buf,
+		     fluid_buf_t* dsp_reverb_buf, fluid_buf_t* dsp_chorus_buf)
+{
+  /* IIR filter sample history */
+  fluid_buf_t dsp_in1 = voice->in_hist1;
+  fluid_buf_t dsp_in2 = voice->in_hist2;
+  fluid_buf_t dsp_hist1 = voice->hist1;
+  fluid_buf_t dsp_hist2 = voice->hist2;
+
+  /* IIR filter coefficients */
+  fluid_coef_t dsp_a1 = FLUID_COEF(voice->a1);
+  fluid_coef_t dsp_a2 = FLUID_COEF(voice->a2);
+  fluid_coef_t dsp_b02 = FLUID_COEF(voice->b02);
+  fluid_coef_t dsp_b1 = FLUID_COEF(voice->b1);
+  fluid_coef_t dsp_a1_incr = FLUID_COEF(voice->a1_incr);
+  fluid_coef_t dsp_a2_incr = FLUID_COEF(voice->a2_incr);
+  fluid_coef_t dsp_b02_incr = FLUID_COEF(voice->b02_incr);
+  fluid_coef_t dsp_b1_incr = FLUID_COEF(voice->b1_incr);
+  int dsp_filter_coeff_incr_count = voice->filter_coeff_incr_count;
+  int num_incr;
+
+  fluid_buf_t *dsp_buf = voice->dsp_buf;
+
+  fluid_buf_t dsp_in;
+  fluid_coef_t gain;
+  int dsp_i;
+
+  /* filter (implement the voice filter according to SoundFont standard) */
+  if (dsp_filter_coeff_incr_count > 0)
+  {
+    for (dsp_i = 0; dsp_i < count; dsp_i++)
+    {
+      dsp_in = dsp_buf[dsp_i];
+      dsp_buf[dsp_i] = FLUID_COEF_MUL(dsp_in + dsp_in2, dsp_b02) + FLUID_COEF_MUL(dsp_in1, dsp_b1)
+	- FLUID_COEF_MUL(dsp_hist1, dsp_a1) - FLUID_COEF_MUL(dsp_hist2, dsp_a2);
+      dsp_in2 = dsp_in1;
+      dsp_in1 = dsp_in;
+      dsp_hist2 = dsp_hist1;
+      dsp_hist1 = dsp_buf[dsp_i];
+
+      if (dsp_i < dsp_filter_coeff_incr_count)
+      {
+	dsp_a1 += dsp_a1_incr;
+	dsp_a2 += dsp_a2_incr;
+	dsp_b02 += dsp_b02_incr;
+	dsp_b1 += dsp_b1_incr;
+      }
+    }
+
+    /* Advance the floating point coefficients by the same number of steps */
+    num_incr = count < dsp_filter_coeff_incr_count ? count : dsp_filter_coeff_incr_count;
+    voice->a1 += num_incr * voice->a1_incr;
+    voice->a2 += num_incr * voice->a2_incr;
+    voice->b02 += num_incr * voice->b02_incr;
+    voice->b1 += num_incr * voice->b1_incr;
+    voice->filter_coeff_incr_count = dsp_filter_coeff_incr_count - num_incr;
+  }
+  else /* The filter parameters are constant.  This is duplicated to save time. */
+  {
+    for (dsp_i = 0; dsp_i < count; dsp_i++)
+    {
+      dsp_in = dsp_buf[dsp_i];
+      dsp_buf[dsp_i] = FLUID_COEF_MUL(dsp_in + dsp_in2, dsp_b02) + FLUID_COEF_MUL(dsp_in1, dsp_b1)
+	- FLUID_COEF_MUL(dsp_hist1, dsp_a1) - FLUID_COEF_MUL(dsp_hist2, dsp_a2);
+      dsp_in2 = dsp_in1;
+      dsp_in1 = dsp_in;
+      dsp_hist2 = dsp_hist1;
+      dsp_hist1 = dsp_buf[dsp_i];
+    }
+  }
+
+  /* pan, as below */
+  if ((-0.5 < voice->pan) && (voice->pan < 0.5))
+  {
+    gain = fluid_voice_mix_gain(voice->amp_left);
+    for (dsp_i = 0; dsp_i < count; dsp_i++)
+    {
+      const fluid_buf_t v = FLUID_COEF_MUL(dsp_buf[dsp_i], gain);
+      dsp_left_buf[dsp_i] += v;
+      dsp_right_buf[dsp_i] += v;
+    }
+  }
+  else
+  {
+    if (voice->amp_left != 0.0)
+    {
+      gain = fluid_voice_mix_gain(voice->amp_left);
+      for (dsp_i = 0; dsp_i < count; dsp_i++)
+	dsp_left_buf[dsp_i] += FLUID_COEF_MUL(dsp_buf[dsp_i], gain);
+    }
+
+    if (voice->amp_right != 0.0)
+    {
+      gain = fluid_voice_mix_gain(voice->amp_right);
+      for (dsp_i = 0; dsp_i < count; dsp_i++)
+	dsp_right_buf[dsp_i] += FLUID_COEF_MUL(dsp_buf[dsp_i], gain);
+    }
+  }
+
+  /* reverb send. Buffer may be NULL. */
+  if ((dsp_reverb_buf != NULL) && (voice->amp_reverb != 0.0))
+  {
+    gain = fluid_voice_mix_gain(voice->amp_reverb);
+    for (dsp_i = 0; dsp_i < count; dsp_i++)
+      dsp_reverb_buf[dsp_i] += FLUID_COEF_MUL(dsp_buf[dsp_i], gain);
+  }
+
+  /* chorus send. Buffer may be NULL. */
+  if ((dsp_chorus_buf != NULL) && (voice->amp_chorus != 0))
+  {
+    gain = fluid_voice_mix_gain(voice->amp_chorus);
+    for (dsp_i = 0; dsp_i < count; dsp_i++)
+      dsp_chorus_buf[dsp_i] += FLUID_COEF_MUL(dsp_buf[dsp_i], gain);
+  }
+
+  voice->in_hist1 = dsp_in1;
+  voice->in_hist2 = dsp_in2;
+  voice->hist1 = dsp_hist1;
+  voice->hist2 = dsp_hist2;
+}
+
+#else
+
+static __inline void
+fluid_voice_effects (fluid_voice_t *voice, int count,
+		     fluid_buf_t* dsp_left_buf, fluid_buf_t* dsp_right_buf,
+		     fluid_buf_t* dsp_reverb_buf, fluid_buf_t* dsp_chorus_buf)
 {
   /* IIR filter sample history */
   fluid_real_t dsp_hist1 = voice->hist1;
@@ -770,6 +910,8 @@ fluid_voice_effects (fluid_voice_t *voice, int count,
   voice->filter_coeff_incr_count = dsp_filter_coeff_incr_count;
 }
 
+#endif /* FLUID_FIXED_POINT */
+
 /*
  * fluid_voice_get_channel
  */
@@ -28,6 +28,12 @@
 
 #define NO_CHANNEL             0xff
 
+/* Fixed point builds keep the voice buffer in 16 bit sample units, with this many
+ * fractional bits. The filter may boost resonant peaks, so this leaves some headroom. */
+#ifdef FLUID_FIXED_POINT
+#define FLUID_FIXED_VOICE_BITS 12
+#endif
+
 enum fluid_voice_status
 {
 	FLUID_VOICE_CLEAN,
@@ -116,7 +122,7 @@ struct _fluid_voice_t
 
 	fluid_real_t phase_incr;	/* the phase increment for the next 64 samples */
 	fluid_real_t amp_incr;		/* amplitude increment value */
-	fluid_real_t *dsp_buf;		/* buffer to store interpolated sample data to */
+	fluid_buf_t *dsp_buf;		/* buffer to store interpolated sample data to */
 
 	/* End temporary variables */
 
@@ -173,7 +179,10 @@ struct _fluid_voice_t
 	/* indicates, that the filter has to be recalculated. */
 	fluid_real_t q_lin;             /* the q-factor on a linear scale */
 	fluid_real_t filter_gain;       /* Gain correction factor, depends on q */
-	fluid_real_t hist1, hist2;      /* Sample history for the IIR filter */
+	fluid_buf_t hist1, hist2;       /* Sample history for the IIR filter */
+#ifdef FLUID_FIXED_POINT
+	fluid_buf_t in_hist1, in_hist2; /* Input history, since the fixed point filter is Direct-I */
+#endif
 	int filter_startup;             /* Flag: If set, the filter will be set directly.
 					   Else it changes smoothly. */
 
@@ -218,8 +227,8 @@ int delete_fluid_voice(fluid_voice_t* voice);
 void fluid_voice_start(fluid_voice_t* voice);
 
 int fluid_voice_write(fluid_voice_t* voice,
-		      fluid_real_t* left, fluid_real_t* right,
-		      fluid_real_t* reverb_buf, fluid_real_t* chorus_buf);
+		      fluid_buf_t* left, fluid_buf_t* right,
+		      fluid_buf_t* reverb_buf, fluid_buf_t* chorus_buf);
 
 int fluid_voice_init(fluid_voice_t* voice, fluid_sample_t* sample,
 		     fluid_channel_t* channel, int key, int vel,
@@ -0,0 +1,442 @@
+/**
+ * Decoder for the Ogg Vorbis samples of SF3 soundfonts.
+ *
+ * The Ogg pages are split into Vorbis packets here, and the packets are decoded by the platform
+ * codec through the NDK media API. That API only exists from Android 5.0, so it is looked up at
+ * runtime instead of linked, and SF3 soundfonts fail to load on older versions.
+ *
+ * Created by: Blaine Rister Oct 19 2026
+ */
+
+#include "fluid_vorbis.h"
+
+#ifdef __ANDROID__
+#include <dlfcn.h>
+#include <pthread.h>
+#include <stdbool.h>
+#include <sys/types.h>
+#endif
+
+/* Ogg page header, before the segment table */
+#define FLUID_OGG_HEADER_SIZE 27
+#define FLUID_OGG_CONTINUED 0x01
+
+/* Vorbis header packets, which open every stream */
+#define FLUID_VORBIS_NUM_HEADERS 3
+#define FLUID_VORBIS_ID_SIZE 30
+
+/* A packet of the stream */
+typedef struct _fluid_ogg_packet_t
+{
+  const unsigned char* data;
+  size_t size;
+} fluid_ogg_packet_t;
+
+/* The packets of a stream, in order */
+typedef struct _fluid_ogg_stream_t
+{
+  unsigned char* buffer;        /* the packet data, without the page framing */
+  fluid_ogg_packet_t* packets;
+  int num_packets;
+  int64_t last_granule;         /* the position of the last page, in frames */
+} fluid_ogg_stream_t;
+
+/*
+ * fluid_ogg_read_le
+ */
+static uint64_t
+fluid_ogg_read_le(const unsigned char* data, int size)
+{
+  uint64_t value = 0;
+  int i;
+
+  for (i = size - 1; i >= 0; i--) {
+    value = (value << 8) | data[i];
+  }
+  return value;
+}
+
+/*
+ * fluid_ogg_next_page
+ *
+ * Finds the page at the given position. Returns the size of the page, or 0 if
+ * it is missing or truncated.
+ */
+static size_t
+fluid_ogg_next_page(const unsigned char* data, size_t size, size_t pos)
+{
+  size_t header_size, body_size;
+  int i, num_segments;
+
+  if ((size - pos < FLUID_OGG_HEADER_SIZE) || (memcmp(data + pos, "OggS", 4) != 0)) {
+    return 0;
+  }
+  num_segments = data[pos + 26];
+  header_size = FLUID_OGG_HEADER_SIZE + num_segments;
+  if (size - pos < header_size) {
+    return 0;
+  }
+
+  body_size = 0;
+  for (i = 0; i < num_segments; i++) {
+    body_size += data[pos + FLUID_OGG_HEADER_SIZE + i];
+  }
+  return (size - pos - header_size < body_size) ? 0 : header_size + body_size;
+}
+
+/*
+ * fluid_ogg_stream_close
+ */
+static void
+fluid_ogg_stream_close(fluid_ogg_stream_t* stream)
+{
+  FLUID_FREE(stream->buffer);
+  FLUID_FREE(stream->packets);
+}
+
+/*
+ * fluid_ogg_stream_open
+ *
+ * Splits an Ogg stream into its packets. Packets which span pages are joined.
+ */
+static int
+fluid_ogg_stream_open(fluid_ogg_stream_t* stream, const unsigned char* data, size_t size)
+{
+  size_t pos, page_size, packet_size, buffer_size;
+  int i, num_segments, max_packets;
+
+  FLUID_MEMSET(stream, 0, sizeof(fluid_ogg_stream_t));
+
+  /* Count the lacing values, which bound the number of packets */
+  max_packets = 0;
+  for (pos = 0; pos < size; pos += page_size) {
+    if ((page_size = fluid_ogg_next_page(data, size, pos)) == 0) {
+      FLUID_LOG(FLUID_ERR, "Invalid Ogg page in compressed sample");
+      return FLUID_FAILED;
+    }
+    max_packets += data[pos + 26];
+  }
+
+  stream->buffer = FLUID_MALLOC(size);
+  stream->packets = FLUID_ARRAY(fluid_ogg_packet_t, max_packets + 1);
+  if ((stream->buffer == NULL) || (stream->packets == NULL)) {
+    FLUID_LOG(FLUID_ERR, "Out of memory");
+    fluid_ogg_stream_close(stream);
+    return FLUID_FAILED;
+  }
+
+  /* Copy out the packets. A lacing value below 255 ends a packet. */
+  buffer_size = 0;
+  packet_size = 0;
+  for (pos = 0; pos < size; pos += page_size) {
+    const unsigned char* body;
+
+    page_size = fluid_ogg_next_page(data, size, pos);
+    num_segments = data[pos + 26];
+    body = data + pos + FLUID_OGG_HEADER_SIZE + num_segments;
+
+    if (!(data[pos + 5] & FLUID_OGG_CONTINUED)) {
+      packet_size = 0; /* Drop a packet which the page does not continue */
+    }
+
+    for (i = 0; i < num_segments; i++) {
+      const int lacing = data[pos + FLUID_OGG_HEADER_SIZE + i];
+
+      FLUID_MEMCPY(stream->buffer + buffer_size + packet_size, body, lacing);
+      body += lacing;
+      packet_size += lacing;
+      if (lacing < 255) {
+        stream->packets[stream->num_packets].data = stream->buffer + buffer_size;
+        stream->packets[stream->num_packets].size = packet_size;
+        stream->num_packets++;
+        buffer_size += packet_size;
+        packet_size = 0;
+      }
+    }
+
+    stream->last_granule = (int64_t) fluid_ogg_read_le(data + pos + 6, 8);
+  }
+
+  /* Check the Vorbis headers */
+  if ((stream->num_packets <= FLUID_VORBIS_NUM_HEADERS)
+      || (stream->packets[0].size < FLUID_VORBIS_ID_SIZE)
+      || (memcmp(stream->packets[0].data, "\001vorbis", 7) != 0)
+      || (stream->packets[2].size < 7)
+      || (memcmp(stream->packets[2].data, "\005vorbis", 7) != 0)) {
+    FLUID_LOG(FLUID_ERR, "Compressed sample is not an Ogg Vorbis stream");
+    fluid_ogg_stream_close(stream);
+    return FLUID_FAILED;
+  }
+  if (stream->packets[0].data[11] != 1) {
+    FLUID_LOG(FLUID_ERR, "Compressed sample has %d channels, expected 1",
+              stream->packets[0].data[11]);
+    fluid_ogg_stream_close(stream);
+    return FLUID_FAILED;
+  }
+
+  return FLUID_OK;
+}
+
+#ifdef __ANDROID__
+
+/* From media/NdkMediaCodec.h, which is not declared below API level 21 */
+typedef struct _fluid_media_buffer_info_t
+{
+  int32_t offset;
+  int32_t size;
+  int64_t presentation_time_us;
+  uint32_t flags;
+} fluid_media_buffer_info_t;
+
+#define FLUID_MEDIA_OK 0
+#define FLUID_MEDIA_TRY_AGAIN_LATER -1
+#define FLUID_MEDIA_END_OF_STREAM 4
+
+/* How long to wait for the codec at a time, and how many times */
+#define FLUID_MEDIA_TIMEOUT_US 10000
+#define FLUID_MEDIA_MAX_WAITS 500
+
+/* Entry points of libmediandk */
+typedef struct _fluid_media_api_t
+{
+  void* (*codec_create_decoder_by_type)(const char* mime_type);
+  int (*codec_configure)(void* codec, const void* format, void* surface, void* crypto,
+                         uint32_t flags);
+  int (*codec_start)(void* codec);
+  int (*codec_stop)(void* codec);
+  int (*codec_delete)(void* codec);
+  ssize_t (*codec_dequeue_input_buffer)(void* codec, int64_t timeout_us);
+  uint8_t* (*codec_get_input_buffer)(void* codec, size_t index, size_t* size);
+  int (*codec_queue_input_buffer)(void* codec, size_t index, off_t offset, size_t size,
+                                  uint64_t time, uint32_t flags);
+  ssize_t (*codec_dequeue_output_buffer)(void* codec, fluid_media_buffer_info_t* info,
+                                         int64_t timeout_us);
+  uint8_t* (*codec_get_output_buffer)(void* codec, size_t index, size_t* size);
+  int (*codec_release_output_buffer)(void* codec, size_t index, bool render);
+  void* (*format_new)(void);
+  int (*format_delete)(void* format);
+  void (*format_set_string)(void* format, const char* name, const char* value);
+  void (*format_set_int32)(void* format, const char* name, int32_t value);
+  void (*format_set_buffer)(void* format, const char* name, const void* data, size_t size);
+} fluid_media_api_t;
+
+static fluid_media_api_t fluid_media_api;
+static int fluid_media_api_loaded = 0;
+static pthread_once_t fluid_media_api_once = PTHREAD_ONCE_INIT;
+
+/*
+ * fluid_media_api_load
+ */
+static void
+fluid_media_api_load(void)
+{
+  void* lib;
+
+  if ((lib = dlopen("libmediandk.so", RTLD_NOW)) == NULL) {
+    FLUID_LOG(FLUID_ERR, "Compressed samples need Android 5.0 or later");
+    return;
+  }
+
+#define FLUID_MEDIA_SYM(_field, _name) \
+  if ((*(void**) &fluid_media_api._field = dlsym(lib, _name)) == NULL) { \
+    FLUID_LOG(FLUID_ERR, "Missing %s", _name); \
+    return; \
+  }
+  FLUID_MEDIA_SYM(codec_create_decoder_by_type, "AMediaCodec_createDecoderByType");
+  FLUID_MEDIA_SYM(codec_configure, "AMediaCodec_configure");
+  FLUID_MEDIA_SYM(codec_start, "AMediaCodec_start");
+  FLUID_MEDIA_SYM(codec_stop, "AMediaCodec_stop");
+  FLUID_MEDIA_SYM(codec_delete, "AMediaCodec_delete");
+  FLUID_MEDIA_SYM(codec_dequeue_input_buffer, "AMediaCodec_dequeueInputBuffer");
+  FLUID_MEDIA_SYM(codec_get_input_buffer, "AMediaCodec_getInputBuffer");
+  FLUID_MEDIA_SYM(codec_queue_input_buffer, "AMediaCodec_queueInputBuffer");
+  FLUID_MEDIA_SYM(codec_dequeue_output_buffer, "AMediaCodec_dequeueOutputBuffer");
+  FLUID_MEDIA_SYM(codec_get_output_buffer, "AMediaCodec_getOutputBuffer");
+  FLUID_MEDIA_SYM(codec_release_output_buffer, "AMediaCodec_releaseOutputBuffer");
+  FLUID_MEDIA_SYM(format_new, "AMediaFormat_new");
+  FLUID_MEDIA_SYM(format_delete, "AMediaFormat_delete");
+  FLUID_MEDIA_SYM(format_set_string, "AMediaFormat_setString");
+  FLUID_MEDIA_SYM(format_set_int32, "AMediaFormat_setInt32");
+  FLUID_MEDIA_SYM(format_set_buffer, "AMediaFormat_setBuffer");
+#undef FLUID_MEDIA_SYM
+
+  /* The library stays open for the life of the process */
+  fluid_media_api_loaded = 1;
+}
+
+/*
+ * fluid_vorbis_run_codec
+ *
+ * Feeds the audio packets to a started codec and collects the PCM into the
+ * buffer, which has room for max_frames. Returns the number of frames, or -1
+ * on error.
+ */
+static long
+fluid_vorbis_run_codec(void* codec, const fluid_ogg_stream_t* stream, short* pcm,
+                       size_t max_frames)
+{
+  const fluid_media_api_t* api = &fluid_media_api;
+  /* The platform extractor appends the frame count of the page to each packet. -1 leaves it
+     unknown, since the output is trimmed here instead. */
+  const int32_t page_frames = -1;
+  fluid_media_buffer_info_t info;
+  size_t num_frames, capacity, copy;
+  int packet, input_done, waits;
+  ssize_t index;
+  uint8_t* buffer;
+
+  packet = FLUID_VORBIS_NUM_HEADERS;
+  input_done = 0;
+  num_frames = 0;
+  for (waits = 0; waits < FLUID_MEDIA_MAX_WAITS; ) {
+
+    /* Queue the next packet, or the end of the stream */
+    if (!input_done
+        && (index = api->codec_dequeue_input_buffer(codec, FLUID_MEDIA_TIMEOUT_US)) >= 0) {
+      if ((buffer = api->codec_get_input_buffer(codec, index, &capacity)) == NULL) {
+        return -1;
+      }
+      if (packet < stream->num_packets) {
+        const fluid_ogg_packet_t* p = &stream->packets[packet++];
+        if (p->size + sizeof(page_frames) > capacity) {
+          FLUID_LOG(FLUID_ERR, "Vorbis packet of %d bytes exceeds the codec buffer", (int) p->size);
+          return -1;
+        }
+        FLUID_MEMCPY(buffer, p->data, p->size);
+        FLUID_MEMCPY(buffer + p->size, &page_frames, sizeof(page_frames));
+        if (api->codec_queue_input_buffer(codec, index, 0, p->size + sizeof(page_frames), 0, 0)
+            != FLUID_MEDIA_OK) {
+          return -1;
+        }
+      } else {
+        if (api->codec_queue_input_buffer(codec, index, 0, 0, 0, FLUID_MEDIA_END_OF_STREAM)
+            != FLUID_MEDIA_OK) {
+          return -1;
+        }
+        input_done = 1;
+      }
+    }
+
+    /* Collect the output. Format changes need no action, since the output is 16 bit mono. */
+    index = api->codec_dequeue_output_buffer(codec, &info, input_done ? FLUID_MEDIA_TIMEOUT_US : 0);
+    if (index >= 0) {
+      if ((buffer = api->codec_get_output_buffer(codec, index, &capacity)) == NULL) {
+        return -1;
+      }
+      copy = (size_t) info.size / sizeof(short);
+      if (copy > max_frames - num_frames) {
+        copy = max_frames - num_frames;
+      }
+      FLUID_MEMCPY(pcm + num_frames, buffer + info.offset, copy * sizeof(short));
+      num_frames += copy;
+      api->codec_release_output_buffer(codec, index, false);
+
+      if (info.flags & FLUID_MEDIA_END_OF_STREAM) {
+        return (long) num_frames;
+      }
+      waits = 0;
+    } else if ((index == FLUID_MEDIA_TRY_AGAIN_LATER) && input_done) {
+      waits++;
+    }
+  }
+
+  FLUID_LOG(FLUID_ERR, "Timed out decoding a compressed sample");
+  return -1;
+}
+
+/*
+ * fluid_vorbis_decode
+ *
+ * Decodes a sample to 16 bit PCM, which the caller frees with FLUID_FREE.
+ */
+int
+fluid_vorbis_decode(const unsigned char* data, size_t size, short** samples,
+                    unsigned int* num_frames)
+{
+  const fluid_media_api_t* api = &fluid_media_api;
+  fluid_ogg_stream_t stream;
+  void *codec, *format;
+  short* pcm;
+  long frames;
+
+  pthread_once(&fluid_media_api_once, fluid_media_api_load);
+  if (!fluid_media_api_loaded) {
+    return FLUID_FAILED;
+  }
+
+  if (fluid_ogg_stream_open(&stream, data, size) != FLUID_OK) {
+    return FLUID_FAILED;
+  }
+
+  /* The position of the last page is the length of the stream, so the output
+     is allocated once */
+  if ((stream.last_granule <= 0) || (stream.last_granule > UINT_MAX)) {
+    FLUID_LOG(FLUID_ERR, "Compressed sample has an invalid length");
+    fluid_ogg_stream_close(&stream);
+    return FLUID_FAILED;
+  }
+  pcm = FLUID_ARRAY(short, stream.last_granule);
+  if (pcm == NULL) {
+    FLUID_LOG(FLUID_ERR, "Out of memory");
+    fluid_ogg_stream_close(&stream);
+    return FLUID_FAILED;
+  }
+
+  /* Set up a codec with the identification and setup headers */
+  frames = -1;
+  format = api->format_new();
+  codec = api->codec_create_decoder_by_type("audio/vorbis");
+  if ((format != NULL) && (codec != NULL)) {
+    api->format_set_string(format, "mime", "audio/vorbis");
+    api->format_set_int32(format, "channel-count", 1);
+    api->format_set_int32(format, "sample-rate",
+                          (int32_t) fluid_ogg_read_le(stream.packets[0].data + 12, 4));
+    api->format_set_buffer(format, "csd-0", stream.packets[0].data, stream.packets[0].size);
+    api->format_set_buffer(format, "csd-1", stream.packets[2].data, stream.packets[2].size);
+
+    if (api->codec_configure(codec, format, NULL, NULL, 0) == FLUID_MEDIA_OK
+        && api->codec_start(codec) == FLUID_MEDIA_OK) {
+      frames = fluid_vorbis_run_codec(codec, &stream, pcm, (size_t) stream.last_granule);
+      api->codec_stop(codec);
+    }
+  }
+  if (codec != NULL) {
+    api->codec_delete(codec);
+  }
+  if (format != NULL) {
+    api->format_delete(format);
+  }
+  fluid_ogg_stream_close(&stream);
+
+  if (frames <= 0) {
+    FLUID_LOG(FLUID_ERR, "Failed to decode a compressed sample");
+    FLUID_FREE(pcm);
+    return FLUID_FAILED;
+  }
+
+  *samples = pcm;
+  *num_frames = (unsigned int) frames;
+  return FLUID_OK;
+}
+
+#else
+
+/*
+ * fluid_vorbis_decode
+ *
+ * Host builds have no platform codec.
+ */
+int
+fluid_vorbis_decode(const unsigned char* data, size_t size, short** samples,
+                    unsigned int* num_frames)
+{
+  fluid_ogg_stream_t stream;
+
+  if (fluid_ogg_stream_open(&stream, data, size) == FLUID_OK) {
+    fluid_ogg_stream_close(&stream);
+  }
+  FLUID_LOG(FLUID_ERR, "Compressed samples are only supported on Android");
+  return FLUID_FAILED;
+}
+
+#endif
@@ -0,0 +1,16 @@
+/**
+ * Decoder for the Ogg Vorbis samples of SF3 soundfonts. Each sample is a complete Ogg stream in the
+ * sample data. The decoder holds no shared state, so several threads may decode at once.
+ *
+ * Created by: Blaine Rister Oct 19 2026
+ */
+
+#ifndef _FLUID_VORBIS_H
+#define _FLUID_VORBIS_H
+
+#include "fluidsynth_priv.h"
+
+int fluid_vorbis_decode(const unsigned char* data, size_t size, short** samples,
+                        unsigned int* num_frames);
+
+#endif /* _FLUID_VORBIS_H */
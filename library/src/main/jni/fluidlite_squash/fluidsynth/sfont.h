@@ -21,6 +21,8 @@
 #ifndef _FLUIDSYNTH_SFONT_H
 #define _FLUIDSYNTH_SFONT_H
 
+#include <stdint.h>
+
 #ifdef __cplusplus
 extern "C" {
 #endif
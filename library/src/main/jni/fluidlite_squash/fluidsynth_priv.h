@@ -46,7 +46,7 @@ typedef FILE* fluid_file;
 #define fluid_system_fseek fseek
 #define fluid_system_fclose fclose
 #define fluid_system_ftell ftell
-#define fluid_system_rewing rewind
+#define fluid_system_rewind rewind
 
 #endif /* ANDROID_ASSET */
 #endif /* HAVE_STDIO_H */
@@ -82,6 +82,37 @@ typedef float fluid_real_t;
 typedef double fluid_real_t;
 #endif
 
+/* Audio buffer and coefficient types of the voice DSP, the mixing buses and the reverb.
+ *
+ * Building with FLUID_FIXED_POINT replaces them by 32 bit integers, for CPUs where
+ * floating point is slow. The buses then hold FLUID_FIXED_MIX_BITS fractional bits,
+ * i.e. full scale is (1 << FLUID_FIXED_MIX_BITS), and coefficients hold
+ * FLUID_FIXED_COEF_BITS fractional bits. Control parameters stay fluid_real_t. */
+#ifdef FLUID_FIXED_POINT
+#include <stdint.h>
+
+typedef int32_t fluid_buf_t;
+typedef int32_t fluid_coef_t;
+
+#define FLUID_FIXED_MIX_BITS         24
+#define FLUID_FIXED_COEF_BITS        28
+
+#define FLUID_COEF(_x)               ((fluid_coef_t) ((_x) * (fluid_real_t) (1 << FLUID_FIXED_COEF_BITS)))
+#define FLUID_COEF_TO_REAL(_c)       ((fluid_real_t) (_c) * (1.0f / (1 << FLUID_FIXED_COEF_BITS)))
+#define FLUID_COEF_MUL(_s,_c)        ((fluid_buf_t) (((int64_t) (_s) * (_c) + (1 << (FLUID_FIXED_COEF_BITS - 1))) >> FLUID_FIXED_COEF_BITS))
+#define FLUID_BUF_TO_REAL(_s)        ((fluid_real_t) (_s) * (1.0f / (1 << FLUID_FIXED_MIX_BITS)))
+#define FLUID_REAL_TO_BUF(_x)        ((fluid_buf_t) ((_x) * (fluid_real_t) (1 << FLUID_FIXED_MIX_BITS)))
+#else
+typedef fluid_real_t fluid_buf_t;
+typedef fluid_real_t fluid_coef_t;
+
+#define FLUID_COEF(_x)               (_x)
+#define FLUID_COEF_TO_REAL(_c)       (_c)
+#define FLUID_COEF_MUL(_s,_c)        ((_s) * (_c))
+#define FLUID_BUF_TO_REAL(_s)        (_s)
+#define FLUID_REAL_TO_BUF(_x)        (_x)
+#endif
+
 
 typedef enum {
   FLUID_OK = 0,
@@ -29,14 +29,14 @@
 typedef int16_t output_t;
 
 // Constants
-const int numChannels = 2; // Stereo
-const float maxFloatLevel = 1.0; // Audio normalization
+static const int numChannels = 2; // Stereo
+static const float maxFloatLevel = 1.0; // Audio normalization
 
 /* ------------------- Utility (inline) functions -------------------- */
 
 // Computes the number of output_t elements needed to store a given number of samples. This depends
 // on how many channels we have.
-static size_t getNumPcm(const size_t numSamples) {
+static inline size_t getNumPcm(const size_t numSamples) {
     return numSamples * numChannels;
 }
 
@@ -48,17 +48,26 @@
 
 // Private headers
 #include "global.h"
+#include "dither.h"
+#include "fluid_defsfont.h"
+#include "fluid_sample_pool.h"
+#include "fluid_sfont.h"
 
 #ifdef __cplusplus
 extern "C" {
 #endif
 
 // Internal fluid functions which are not in the public header
-fluid_preset_t* fluid_synth_find_preset(fluid_synth_t* synth,
-                                        unsigned int banknum,
-                                        unsigned int prognum);
+fluid_preset_t* fluid_synth_get_preset(fluid_synth_t* synth,
+                                       unsigned int sfontnum,
+                                       unsigned int banknum,
+                                       unsigned int prognum);
 int fluid_synth_all_sounds_off(fluid_synth_t* synth, int chan);
 int fluid_synth_reset_effects(fluid_synth_t *const synth);
+#ifdef FLUID_FIXED_POINT
+int fluid_synth_write_fixed(fluid_synth_t* synth, int len, int32_t* left_out, int loff, int lincr,
+                            int32_t* right_out, int roff, int rincr);
+#endif
 
 // Internal functions
 static int get_program(void);
@@ -102,14 +111,57 @@ const uint8_t programMax = 127; // Maximum possible MIDI program number
 static const int midiChannel = 0;
 static const int sfBank = 0;
 static const int maxVoices = 8;
+static const size_t sampleBudget = 8 << 20; // Bytes of soundfont samples to keep paged in
+static const uint32_t ditherSeed = 0x5eed; // Seed for dithering renders, so they're reproducible
+
+// Most soundfonts kept loaded at once, however small they are
+#define MAX_CACHED_SOUNDFONTS 4
 
 // Sound parameters
 int sampleRate;
 
+// Format of the audio before normalization. Fixed point builds keep the integer mix of the synth,
+// which has FLUID_FIXED_MIX_BITS fractional bits.
+#ifdef FLUID_FIXED_POINT
+typedef int32_t render_t;
+static const float renderScale = (float) (1 << 24);
+#else
+typedef float render_t;
+static const float renderScale = 1.f;
+#endif
+
 // Fluid data
 static fluid_synth_t *fluidSynth = NULL;
 static fluid_settings_t *fluidSettings = NULL;
-static int soundfontId = -1;
+static fluid_sfloader_t *fluidLoader = NULL;
+static int soundfontId = -1; // The active soundfont
+
+/* Soundfonts kept loaded in the synth, most recently used first, so switching back to one does not
+ * reload it. The first is the active one. Inactive ones are unloaded when the memory of all of them
+ * exceeds the budget. */
+static int cachedSoundfontIds[MAX_CACHED_SOUNDFONTS + 1];
+static int numCachedSoundfonts = 0;
+static size_t soundfontCacheBudget = 32 << 20;
+
+// Progress of the soundfont being prepared, which other threads may watch or cancel
+static fluid_defsfont_progress_t loadProgress;
+
+// Layout of the memory report of getMemoryUsage(), see SoundfontMemory.java
+enum memory_field {
+    MEMORY_METADATA, // Metadata of the active soundfont
+    MEMORY_PEAK_METADATA, // Most metadata the active soundfont held at once while loading
+    MEMORY_POOLED, // Sample data in the pool, which soundfonts share
+    MEMORY_SAVED, // Sample data the pool saves, compared to a copy for each soundfont
+    NUM_MEMORY_FIELDS
+};
+
+// Soundfont and program to return to after selectPreparedSoundfont()
+static int restoreSoundfontId = -1;
+static int restoreProgram = -1;
+
+/* The asset adapter is global, so loads on different threads take turns with it. Held from
+ * init_AAssets() to release_AAssets(). */
+static pthread_mutex_t assetLock = PTHREAD_MUTEX_INITIALIZER;
 
 // Checks for initialization, doesn't print any messages.
 static jboolean isInitializedHelper() {
@@ -139,10 +191,15 @@ static size_t ms2Samples(const size_t ms) {
 // Check if the given program number is available in the soundfont.
 static int queryProgram(const uint8_t programNum, int *const isAvailable) {
 
+    fluid_preset_t *preset;
+
     if (!isInitialized("queryProgram"))
         return -1;
 
-    *isAvailable = fluid_synth_find_preset(fluidSynth, sfBank, programNum) != NULL;
+    // Look in the active soundfont only, since others may be cached
+    preset = fluid_synth_get_preset(fluidSynth, soundfontId, sfBank, programNum);
+    *isAvailable = preset != NULL;
+    delete_fluid_preset(preset);
     return 0;
 }
 
@@ -150,17 +207,71 @@ static int queryProgram(const uint8_t programNum, int *const isAvailable) {
 static const char *getProgramName(const uint8_t programNum) {
 
     fluid_preset_t *preset;
+    const char *name;
 
     if (!isInitialized("programName"))
         return NULL;
 
-    if ((preset = fluid_synth_find_preset(fluidSynth, sfBank, programNum)) == NULL)
+    if ((preset = fluid_synth_get_preset(fluidSynth, soundfontId, sfBank, programNum)) == NULL)
         return NULL;
 
-    return preset->get_name(preset);
+    // The name belongs to the soundfont, not the preset
+    name = preset->get_name(preset);
+    delete_fluid_preset(preset);
+    return name;
+}
+
+// List the programs of the loaded soundfont, in increasing order. Writes the number, name and key
+// range mask of each, with FLUID_MIDI_NUM_KEYS bytes of keyRanges per program. The arrays must have
+// room for programMax + 1 programs. Returns the number of programs, or -1 on error.
+static int listPrograms(uint8_t *const programs, const char **const names,
+                        uint8_t *const keyRanges) {
+
+    fluid_preset_t presets[UINT8_MAX + 1];
+    uint8_t isListed[UINT8_MAX + 1];
+    fluid_preset_t preset;
+    fluid_sfont_t *sfont;
+    int program, numPrograms;
+
+    if (!isInitialized("listPrograms"))
+        return -1;
+
+    if ((sfont = fluid_synth_get_sfont_by_id(fluidSynth, soundfontId)) == NULL)
+        return -1;
+
+    // Walk the presets once. Like fluid_synth_find_preset(), take the first preset with each
+    // program number.
+    memset(isListed, 0, sizeof(isListed));
+    sfont->iteration_start(sfont);
+    while (sfont->iteration_next(sfont, &preset)) {
+        if (preset.get_banknum(&preset) != sfBank)
+            continue;
+
+        program = preset.get_num(&preset);
+        if (program < 0 || program > programMax || isListed[program])
+            continue;
+
+        presets[program] = preset;
+        isListed[program] = 1;
+    }
+
+    // Write them out in order
+    numPrograms = 0;
+    for (program = 0; program <= programMax; program++) {
+        if (!isListed[program])
+            continue;
+
+        programs[numPrograms] = (uint8_t) program;
+        names[numPrograms] = presets[program].get_name(&presets[program]);
+        presets[program].get_range(&presets[program],
+                                   keyRanges + numPrograms * FLUID_MIDI_NUM_KEYS);
+        numPrograms++;
+    }
+
+    return numPrograms;
 }
 
-// Change the program
+// Change the program, taking it from the active soundfont
 static int changeProgram(const uint8_t programNum) {
 
     int result;
@@ -168,7 +279,7 @@ static int changeProgram(const uint8_t programNum) {
     if (!isInitialized("changeProgram"))
         return -1;
 
-    result = fluid_synth_program_change(fluidSynth, midiChannel, programNum);
+    result = fluid_synth_program_select(fluidSynth, midiChannel, soundfontId, sfBank, programNum);
     if (result != 0) {
         LOG_E(LOG_TAG, "Failed to change fluid program to %uc.", programNum);
     }
@@ -203,6 +314,29 @@ static int muteSounds() {
     return 0;
 }
 
+// Decode the compressed samples of the notes in parallel, before they start. Samples which are
+// not ready are decoded when their notes start, so this only speeds up the start.
+static int prepareNotes(const jbyte *const pitches, const int numPitches, const uint8_t velocity) {
+
+    int keys[FLUID_MIDI_NUM_KEYS];
+    const int numKeys = MIN(numPitches, FLUID_MIDI_NUM_KEYS);
+    int i;
+
+    if (!isInitialized("prepareNotes"))
+        return -1;
+
+    fluid_preset_t *const preset = fluid_synth_get_channel_preset(fluidSynth, midiChannel);
+    if (preset == NULL)
+        return -1;
+
+    for (i = 0; i < numKeys; i++) {
+        keys[i] = (uint8_t) pitches[i];
+    }
+
+    return fluid_defsfont_preset_prepare_notes(preset, keys, numKeys, velocity) == FLUID_OK ?
+           0 : -1;
+}
+
 // Start a note
 static int startNote(const uint8_t pitch, const uint8_t velocity) {
     return !isInitialized("startNote") || fluid_synth_noteon(fluidSynth, midiChannel, pitch,
@@ -221,8 +355,20 @@ static int endNote(const uint8_t pitch) {
     return fluid_synth_noteoff(fluidSynth, midiChannel, pitch) == 0 ? 0 : 1;
 }
 
-// Normalize the audio so the maximum value is given by maxLevel, on a scale of 0-1.
-static int normalize(float *const buffer, const size_t bufferLength, const double maxLevel) {
+// Convert rendered audio to float, on a scale of 0-1
+static float renderToFloat(const render_t sample) {
+    return (float) sample * (1.f / renderScale);
+}
+
+// Apply a linear gain to rendered audio
+static render_t scaleRender(const render_t sample, const float gain) {
+    return (render_t) ((float) sample * gain);
+}
+
+// Compute the linear gain which normalizes the audio to maxLevel, on a scale of 0-1. Returns a
+// negative value on failure. Silent audio gets a gain of zero.
+static double getNormalizeGain(const render_t *const buffer, const size_t bufferLength,
+                               const double maxLevel) {
 
     float maxBefore;
     size_t i;
@@ -235,21 +381,56 @@ static int normalize(float *const buffer, const size_t bufferLength, const doubl
     // Get the maximum value of the un-normalized stream
     maxBefore = 0;
     for (i = 0; i < bufferLength; i++) {
-        const float sampleLevel = fabsf(buffer[i]);
+        const float sampleLevel = fabsf(renderToFloat(buffer[i]));
         maxBefore = sampleLevel > maxBefore ? sampleLevel : maxBefore;
     }
 
+    return maxBefore > 0 ? maxLevel / (double) maxBefore : 0;
+}
+
+// Normalize the audio so the maximum value is given by maxLevel, on a scale of 0-1, and convert to
+// float.
+static int normalize(const render_t *const inBuffer, float *const outBuffer,
+                     const size_t bufferLength, const double maxLevel) {
+
+    size_t i;
+
     // Compute the linear gain
-    const float gain = (float) (maxLevel / (double) maxBefore);
+    const double gain = getNormalizeGain(inBuffer, bufferLength, maxLevel);
+    if (gain < 0)
+        return -1;
 
     // Apply the gain
+    const float floatGain = (float) gain;
     for (i = 0; i < bufferLength; i++) {
-        buffer[i] *= gain;
+        outBuffer[i] = renderToFloat(inBuffer[i]) * floatGain;
     }
 
     return 0;
 }
 
+// Like normalize(), but converts to 16 bit PCM with triangular dither. Fixed point builds never
+// leave integer arithmetic.
+static int normalizePcm16(const render_t *const inBuffer, int16_t *const outBuffer,
+                          const size_t bufferLength, const double maxLevel) {
+
+    // Compute the linear gain, from the rendered scale to the PCM scale
+    const double gain = getNormalizeGain(inBuffer, bufferLength, maxLevel);
+    if (gain < 0)
+        return -1;
+    const double pcmGain = gain * (double) INT16_MAX / (double) renderScale;
+
+    // Apply the gain and dither, then round. Each render is dithered with the same seed.
+#ifdef FLUID_FIXED_POINT
+    dither_fixed_to_pcm16(inBuffer, outBuffer, bufferLength,
+                          (int64_t) llround(pcmGain * 4294967296.0), ditherSeed);
+#else
+    dither_to_pcm16(inBuffer, outBuffer, bufferLength, (float) pcmGain, ditherSeed, 0);
+#endif
+
+    return 0;
+}
+
 // Convert a MIDI pitch number to a frequency. pitch 0 corresponds to A0
 static double pitch2frequency(const int pitch) {
     const double a4 = 440;
@@ -291,10 +472,10 @@ static float getSquaredTimeConstant(const double decay, const double numSamples)
 // Compress the dynamic range of the audio. The allowable dynamic range is given by the velocity
 // parameter. minFrequency is the fundamental frequency of the pitch, which determines the level
 // detector window length.
-static int compressDNR(float *const buffer, const size_t bufferLength, const size_t attackLength,
+static int compressDNR(render_t *const buffer, const size_t bufferLength, const size_t attackLength,
         const uint8_t velocity, const double minFrequency) {
 
-    int i, maxLevelIdx;
+    int i, j, maxLevelIdx;
     float level, maxLevelSq;
 
     // Verify inputs
@@ -308,6 +489,7 @@ static int compressDNR(float *const buffer, const size_t bufferLength, const siz
     const double minCompressionRatio = 1.1; // This is reached at maximum velocity
     const double maxCompressionRatio = 5.0; // This is reached at minimum velocity
     const double periodDecay = 0.8; // Decay this much in one note period
+    const int gainBlockLength = 32; // Samples between gain computations
 
     // Derived parameters -- compression ratio increases as velocity decreases
     const double compressionRatio = minCompressionRatio +
@@ -325,7 +507,7 @@ static int compressDNR(float *const buffer, const size_t bufferLength, const siz
     maxLevelIdx = maxLevelSq = level = 0;
     for (i = 0; i < attackLength; i++) {
         // Level detection
-        level = update_level(buffer[i], level, a0Attack);
+        level = update_level(renderToFloat(buffer[i]), level, a0Attack);
 
         // Maximum
         if (level > maxLevelSq) {
@@ -338,13 +520,19 @@ static int compressDNR(float *const buffer, const size_t bufferLength, const siz
     if (maxLevelSq == 0)
         return 0;
 
-    // Pass through the sustained portion of the note. This time apply compession.
+    // Pass through the sustained portion of the note. This time apply compession. The gain is only
+    // computed at the end of each block, and interpolated in between.
     level = maxLevelSq;
     float gainLin = 1;
     const float maxDb = linSq2db(maxLevelSq);
-    for (i = maxLevelIdx; i < attackLength; i++) {
+    for (i = maxLevelIdx; i < attackLength; i += gainBlockLength) {
+        const int blockLength = MIN(gainBlockLength, (int) attackLength - i);
+        const float lastGainLin = gainLin;
+
         // Level detection
-        level = update_level(buffer[i], level, a0Attack);
+        for (j = 0; j < blockLength; j++) {
+            level = update_level(renderToFloat(buffer[i + j]), level, a0Attack);
+        }
 
         // Get the gain
         const float currentDb = linSq2db(level);
@@ -352,12 +540,15 @@ static int compressDNR(float *const buffer, const size_t bufferLength, const siz
         gainLin = db2lin(gainDb);
 
         // Apply the gain
-        buffer[i] *= gainLin;
+        const float gainStep = (gainLin - lastGainLin) / (float) blockLength;
+        for (j = 0; j < blockLength; j++) {
+            buffer[i + j] = scaleRender(buffer[i + j], lastGainLin + gainStep * (float) (j + 1));
+        }
     }
 
     // Pass through the release stage. Keep the gain constant.
     for (i = attackLength; i < bufferLength; i++) {
-        buffer[i] *= gainLin;
+        buffer[i] = scaleRender(buffer[i], gainLin);
     }
 
     return 0;
@@ -365,31 +556,35 @@ static int compressDNR(float *const buffer, const size_t bufferLength, const siz
 
 // Ramp down the audio in the given buffer. The gain reaches the given number of decibels
 // by the end of the buffer. Positive or negative values of dB are interpreted the same.
-static void rampDown(float *const buffer, const size_t bufferLength, const double dB) {
+static void rampDown(render_t *const buffer, const size_t bufferLength, const double dB) {
 
     size_t i;
 
     // Take the negative absolute value of dB, to avoid ambiguity
     const double dbGain = -fabs(dB);
 
-    // Convert the dB to a time constant
+    // Convert the dB to a decay per sample
     const double linGain = pow(10, dbGain / 20);
-    const float tau = (float) (-log(linGain) / (double) bufferLength);
+    const float decay = (float) pow(linGain, 1. / (double) bufferLength);
 
     // Process the sound in-place
+    float gain = 1;
     for (i = 0; i < bufferLength; i++) {
-        buffer[i] = buffer[i] * expf(-tau * (float) i);
+        buffer[i] = scaleRender(buffer[i], gain);
+        gain *= decay;
     }
 }
 
 // Helper to render a specific number of samples to the buffer. Returns the new end of the buffer,
 // or NULL on failure. In actuality, finishes the last buffer after numSamples
-static float *renderSamples(const int numSamples, float *buffer) {
-
-
+static render_t *renderSamples(const int numSamples, render_t *buffer) {
 
     // Render samples
+#ifdef FLUID_FIXED_POINT
+    if (fluid_synth_write_fixed(fluidSynth, numSamples, buffer, 0, 2, buffer, 1, 2)) {
+#else
     if (fluid_synth_write_float(fluidSynth, numSamples, buffer, 0, 2, buffer, 1, 2)) {
+#endif
         LOG_E(LOG_TAG, "Fluid render failed");
         return NULL;
     }
@@ -402,11 +597,16 @@ static size_t getRenderFrames(const struct sound_settings settings) {
     return ms2Samples(settings.recordingDurationMs);
 }
 
-// Render the data offline, then start looping it. buffer must be large enough to hold
+// Return the level to normalize the recording to, on a scale of 0-1.
+static double getMaxLevel(const struct sound_settings settings) {
+    return (double) settings.velocity / (double) velocityMax;
+}
+
+// Render the data offline, without normalization. buffer must be large enough to hold
 // the number of frames returned by get_render_frames().
-static int render(const struct sound_settings settings, float *const buffer) {
+static int render(const struct sound_settings settings, render_t *const buffer) {
 
-    float *noteEndPosition, *decayEndPosition;
+    render_t *noteEndPosition, *decayEndPosition;
     int i;
 
     uint8_t key_range[FLUID_MIDI_NUM_KEYS];
@@ -484,6 +684,12 @@ static int render(const struct sound_settings settings, float *const buffer) {
        return -1;
    }
 
+    // Decode the samples of the notes
+    if (prepareNotes(pitches, numPitches, velocity)) {
+        LOG_E(LOG_TAG, "Failed to prepare the notes.");
+        return -1;
+    }
+
     // Send the note start messages
     for (i = 0; i < numPitches; i++) {
         const uint8_t pitch = (uint8_t) pitches[i];
@@ -541,19 +747,29 @@ static int render(const struct sound_settings settings, float *const buffer) {
     // Ramp down the audio at the end of the recording
     const size_t rampDownNumPcm = getNumPcm(ms2Samples(
             rampDownMs > noteDurationMs ? noteDurationMs : rampDownMs));
-    float *const rampStartPosition = decayEndPosition - rampDownNumPcm;
+    render_t *const rampStartPosition = decayEndPosition - rampDownNumPcm;
     rampDown(rampStartPosition, rampDownNumPcm, rampDb);
 
-    // Compute the maximum level based on the velocity
-    const double maxLevel = (double) velocity / (double) velocityMax;
+    return 0;
+}
 
-    // Normalize the audio and convert to the final recording representation
-    if (normalize(buffer, recordingLength, maxLevel)) {
-        LOG_E(LOG_TAG, "Failed normalization.");
-        return -1;
+// Render to a new buffer, which the caller must free. Returns NULL on failure.
+static render_t *renderBuffer(const struct sound_settings settings) {
+
+    render_t *buffer;
+
+    const size_t renderPcm = getNumPcm(getRenderFrames(settings));
+    if ((buffer = (render_t *) malloc(renderPcm * sizeof(render_t))) == NULL) {
+        LOG_E(LOG_TAG, "Insufficient memory for the render buffer.");
+        return NULL;
     }
 
-    return 0;
+    if (render(settings, buffer)) {
+        free(buffer);
+        return NULL;
+    }
+
+    return buffer;
 }
 
 // Shut down fluid synth
@@ -563,6 +779,11 @@ static void shutdownFluid(void) {
         delete_fluid_synth(fluidSynth);
         fluidSynth = NULL;
         soundfontId = -1;
+        numCachedSoundfonts = 0;
+    }
+    if (fluidLoader != NULL) {
+        delete_fluid_defsfloader(fluidLoader);
+        fluidLoader = NULL;
     }
     if (fluidSettings != NULL) {
         delete_fluid_settings(fluidSettings);
@@ -597,35 +818,103 @@ static int initFluid(const int sampleRate) {
         return -1;
     }
 
+    // Create a loader for soundfonts which are prepared outside the synth
+    if ((fluidLoader = new_fluid_defsfloader()) == NULL) {
+        LOG_E(LOG_TAG, "Failed to create the soundfont loader");
+        shutdownFluid();
+        return -1;
+    }
+
     return 0;
 }
 
-// Load a soundfont. Unloads whichever is currently loaded.
-static int load_soundfont(const char *soundfontFilename) {
+/*
+ * Parse a soundfont, without adding it to the synth. Since this does not touch the synth, it can run
+ * on another thread while the synth renders. Pass the result to commitSoundfont(),
+ * selectPreparedSoundfont() or discardSoundfont().
+ *
+ * The progress is reported to loadProgress, where cancelLoad() can stop it, if tracked is set.
+ * Other loads report nothing, so they neither clear nor consume a cancel meant for a tracked one.
+ *
+ * Returns NULL on failure, or if the load was cancelled by cancelLoad().
+ */
+static fluid_sfont_t *prepareSoundfont(const char *soundfontFilename, const int tracked) {
 
-    int current_program, program_available;
-    uint8_t program;
+    fluid_defsfont_progress_t *const progress = tracked ? &loadProgress : NULL;
+    fluid_sfont_t *sfont;
 
-    if (!isInitialized("load_soundfont")) {
-        return -1;
+    if (!isInitialized("prepareSoundfont")) {
+        return NULL;
     }
 
-    // Unload the current soundfont, if any
-    if (soundfontId >= 0) {
-        const int reset_presets = 1;
-        if (fluid_synth_sfunload(fluidSynth, soundfontId, reset_presets)) {
-            LOG_E(LOG_TAG, "Failed to unload soundfont ID %d", soundfontId);
-            return -1;
-        }
-        soundfontId = -1;
+    // Start reporting progress. This clears any earlier cancellation.
+    if (progress != NULL) {
+        __atomic_store_n(&progress->parsed, 0, __ATOMIC_RELAXED);
+        __atomic_store_n(&progress->total, 0, __ATOMIC_RELAXED);
+        __atomic_store_n(&progress->cancel, 0, __ATOMIC_RELAXED);
     }
 
     // Load the soundfont
-    soundfontId = fluid_synth_sfload(fluidSynth, soundfontFilename, 1);
-    if (soundfontId < 0) {
-        LOG_E(LOG_TAG, "Failed to load soundfont %s", soundfontFilename);
+    sfont = fluid_defsfloader_load_progress(fluidLoader, soundfontFilename, progress);
+    if (sfont == NULL) {
+        if (progress != NULL && __atomic_load_n(&progress->cancel, __ATOMIC_RELAXED)) {
+            LOG_I(LOG_TAG, "Cancelled loading soundfont %s", soundfontFilename);
+        } else {
+            LOG_E(LOG_TAG, "Failed to load soundfont %s", soundfontFilename);
+        }
+        return NULL;
+    }
+
+    // Bound the sample data kept in memory. Samples are paged in as notes use them.
+    fluid_defsfont_sfont_set_sample_budget(sfont, sampleBudget);
+
+    return sfont;
+}
+
+/* Report the memory held for the sounds, laid out as in enum memory_field. The metadata of the
+ * active soundfont lives in a per-soundfont arena, which reports its peak while loading. It is 0
+ * if no soundfont is active. The sample pool covers all the loaded soundfonts. */
+static int getMemoryUsage(int64_t *const usage) {
+
+    fluid_sfont_t *sfont;
+    size_t resident = 0, peak = 0, pooled, saved;
+
+    if (!isInitialized("getMemoryUsage"))
         return -1;
+
+    if (soundfontId >= 0 &&
+        (sfont = fluid_synth_get_sfont_by_id(fluidSynth, soundfontId)) != NULL &&
+        fluid_defsfont_sfont_get_memory_usage(sfont, &resident, &peak)) {
+        LOG_E(LOG_TAG, "Failed to get the memory usage of soundfont ID %d", soundfontId);
+        return -1;
+    }
+    usage[MEMORY_METADATA] = (int64_t) resident;
+    usage[MEMORY_PEAK_METADATA] = (int64_t) peak;
+
+    fluid_sample_pool_get_usage(&pooled, &saved);
+    usage[MEMORY_POOLED] = (int64_t) pooled;
+    usage[MEMORY_SAVED] = (int64_t) saved;
+
+    return 0;
+}
+
+// Abandon the soundfont being prepared, if any. Safe to call from any thread.
+static void cancelLoad(void) {
+    __atomic_store_n(&loadProgress.cancel, 1, __ATOMIC_RELAXED);
+}
+
+// Free a soundfont from prepareSoundfont() which was never committed.
+static void discardSoundfont(fluid_sfont_t *const sfont) {
+    if (delete_fluid_sfont(sfont)) {
+        LOG_E(LOG_TAG, "Failed to free soundfont");
     }
+}
+
+// Select the current program if the soundfont has it, or else the first program it has.
+static int selectAvailableProgram(const char *soundfontFilename) {
+
+    int current_program, program_available;
+    uint8_t program;
 
     // Get the current program number
     current_program = get_program();
@@ -636,9 +925,9 @@ static int load_soundfont(const char *soundfontFilename) {
     if (queryProgram(current_program, &program_available))
         return -1;
 
-    // Return if this program is available
+    // Keep this program if it is available. Select it again, in case the soundfont changed.
     if (program_available)
-        return 0;
+        return changeProgram(current_program);
 
     // If unavailable, select the first available program
     LOG_I(LOG_TAG, "Failed to find program %d in soundfont %s", current_program, soundfontFilename);
@@ -663,6 +952,201 @@ static int load_soundfont(const char *soundfontFilename) {
     return -1;
 }
 
+// Find a cached soundfont by file name. Returns its index in the cache, or -1 if it isn't cached.
+static int findCachedSoundfont(const char *soundfontFilename) {
+
+    int i;
+
+    for (i = 0; i < numCachedSoundfonts; i++) {
+        fluid_sfont_t *const sfont = fluid_synth_get_sfont_by_id(fluidSynth, cachedSoundfontIds[i]);
+        if (sfont != NULL && strcmp(fluid_sfont_get_name(sfont), soundfontFilename) == 0)
+            return i;
+    }
+
+    return -1;
+}
+
+// Make the cached soundfont at the given index the active one, moving it to the front
+static void activateCachedSoundfont(const int index) {
+
+    const int id = cachedSoundfontIds[index];
+
+    memmove(cachedSoundfontIds + 1, cachedSoundfontIds, index * sizeof(int));
+    cachedSoundfontIds[0] = id;
+    soundfontId = id;
+}
+
+// Unload the cached soundfont at the given index. Only unload the active one to replace it.
+static int unloadCachedSoundfont(const int index) {
+
+    const int id = cachedSoundfontIds[index];
+
+    // Stop any voices still playing its samples, or it can't be freed
+    if (muteSounds())
+        return -1;
+
+    if (fluid_synth_sfunload(fluidSynth, id, 0)) {
+        LOG_E(LOG_TAG, "Failed to unload soundfont ID %d", id);
+        return -1;
+    }
+
+    numCachedSoundfonts--;
+    memmove(cachedSoundfontIds + index, cachedSoundfontIds + index + 1,
+            (numCachedSoundfonts - index) * sizeof(int));
+    return 0;
+}
+
+// Unload the least recently used soundfonts until the cache fits its budget. Keeps the active one.
+static int trimSoundfontCache(void) {
+
+    size_t total = 0;
+    int i;
+
+    for (i = 0; i < numCachedSoundfonts; i++) {
+        fluid_sfont_t *const sfont = fluid_synth_get_sfont_by_id(fluidSynth, cachedSoundfontIds[i]);
+        if (sfont != NULL)
+            total += fluid_defsfont_sfont_get_resident_size(sfont);
+    }
+
+    while (numCachedSoundfonts > 1 &&
+           (numCachedSoundfonts > MAX_CACHED_SOUNDFONTS || total > soundfontCacheBudget)) {
+        const int last = numCachedSoundfonts - 1;
+        fluid_sfont_t *const sfont = fluid_synth_get_sfont_by_id(fluidSynth,
+                                                                 cachedSoundfontIds[last]);
+        const size_t size = sfont == NULL ? 0 : fluid_defsfont_sfont_get_resident_size(sfont);
+
+        LOG_I(LOG_TAG, "Evicting soundfont ID %d from the cache", cachedSoundfontIds[last]);
+        if (unloadCachedSoundfont(last))
+            return -1;
+        total -= MIN(size, total);
+    }
+
+    return 0;
+}
+
+/*
+ * Make a cached soundfont the active one, without reloading it.
+ *
+ * Returns 1 on success, 0 if the soundfont isn't cached, -1 on error.
+ */
+static int selectCachedSoundfont(const char *soundfontFilename) {
+
+    int index;
+
+    if (!isInitialized("selectCachedSoundfont"))
+        return -1;
+
+    if ((index = findCachedSoundfont(soundfontFilename)) < 0)
+        return 0;
+
+    activateCachedSoundfont(index);
+    return selectAvailableProgram(soundfontFilename) ? -1 : 1;
+}
+
+// Make a soundfont from prepareSoundfont() the active one, caching the previous one. Takes
+// ownership of the soundfont, even on failure.
+static int commitSoundfont(fluid_sfont_t *const sfont) {
+
+    const char *soundfontFilename;
+    int index;
+
+    if (!isInitialized("commitSoundfont")) {
+        discardSoundfont(sfont);
+        return -1;
+    }
+    soundfontFilename = fluid_sfont_get_name(sfont);
+
+    // Replace any cached copy of the same file
+    if ((index = findCachedSoundfont(soundfontFilename)) >= 0 && unloadCachedSoundfont(index)) {
+        discardSoundfont(sfont);
+        return -1;
+    }
+
+    // Add the new soundfont to the front of the cache
+    memmove(cachedSoundfontIds + 1, cachedSoundfontIds, numCachedSoundfonts * sizeof(int));
+    cachedSoundfontIds[0] = fluid_synth_add_sfont(fluidSynth, sfont);
+    soundfontId = cachedSoundfontIds[0];
+    numCachedSoundfonts++;
+
+    if (selectAvailableProgram(soundfontFilename))
+        return -1;
+
+    return trimSoundfontCache();
+}
+
+// Set the memory budget of the soundfont cache, in bytes. The active soundfont is always kept.
+static int setSoundfontCacheBudget(const size_t budget) {
+
+    if (!isInitialized("setSoundfontCacheBudget"))
+        return -1;
+
+    soundfontCacheBudget = budget;
+    return trimSoundfontCache();
+}
+
+// Load a soundfont and make it the active one. Soundfonts which are still cached are not reloaded.
+static int load_soundfont(const char *soundfontFilename) {
+
+    fluid_sfont_t *sfont;
+
+    switch (selectCachedSoundfont(soundfontFilename)) {
+        case 1:
+            return 0;
+        case 0:
+            break;
+        default:
+            return -1;
+    }
+
+    if ((sfont = prepareSoundfont(soundfontFilename, 0)) == NULL)
+        return -1;
+
+    return commitSoundfont(sfont);
+}
+
+// Undo selectPreparedSoundfont(), making the previous soundfont and program active again
+static int restoreSoundfont(fluid_sfont_t *const sfont) {
+
+    if (!isInitialized("restoreSoundfont"))
+        return -1;
+
+    // Stop any voices still playing its samples. Remove it regardless, since the caller frees it.
+    const int muteResult = muteSounds();
+    fluid_synth_remove_sfont(fluidSynth, sfont);
+    soundfontId = restoreSoundfontId;
+    if (muteResult)
+        return -1;
+
+    return restoreProgram < 0 ? 0 : changeProgram((uint8_t) restoreProgram);
+}
+
+/*
+ * Temporarily make a soundfont from prepareSoundfont() the active one, selecting the given program
+ * from it. Unlike commitSoundfont(), this leaves the cache alone, so nothing is evicted. Undo it
+ * with restoreSoundfont() before selecting or loading any other soundfont. The caller keeps
+ * ownership of the soundfont.
+ */
+static int selectPreparedSoundfont(fluid_sfont_t *const sfont, const uint8_t programNum) {
+
+    if (!isInitialized("selectPreparedSoundfont"))
+        return -1;
+
+    // Remember the active soundfont and program, to restore them
+    restoreSoundfontId = soundfontId;
+    restoreProgram = soundfontId < 0 ? -1 : get_program();
+
+    if (muteSounds())
+        return -1;
+
+    soundfontId = fluid_synth_add_sfont(fluidSynth, sfont);
+    if (changeProgram(programNum)) {
+        restoreSoundfont(sfont);
+        return -1;
+    }
+
+    return 0;
+}
+
 /*
  * Choose a reverb preset. Preset 0 disables the reverb.
  *
@@ -771,6 +1255,38 @@ jbooleanArray Java_com_bbrister_mididriver_MidiDriver_D(JNIEnv *env,
     return getProgramKeyRangeJNI(env, jobj);
 }
 
+// Read the render settings passed from Java. The pitches must be released with releaseSettings().
+static void getSettings(JNIEnv *env,
+                        struct sound_settings *const settings,
+                        jbyteArray pitches,
+                        jlong noteDurationMs,
+                        jlong recordingDurationMs,
+                        jint reverbPreset,
+                        jbyte velocity,
+                        jboolean volumeBoost) {
+
+    jboolean isCopy;
+
+    // Get the primitive data
+    settings->noteDurationMs = (long) noteDurationMs;
+    settings->recordingDurationMs = (long) recordingDurationMs;
+    settings->velocity = (uint8_t) velocity;
+    settings->volumeBoost = (volumeBoost == JNI_TRUE);
+    settings->reverbPreset = (int) reverbPreset;
+
+    // Get the pitch array data
+    settings->pitches = (*env)->GetByteArrayElements(env, pitches, &isCopy);
+    settings->numPitches = (int) (*env)->GetArrayLength(env, pitches);
+}
+
+// Release the Java data held by the settings
+static void releaseSettings(JNIEnv *env,
+                            const struct sound_settings *const settings,
+                            jbyteArray pitches) {
+    // Release the input arrays, without writing back changes
+    (*env)->ReleaseByteArrayElements(env, pitches, settings->pitches, JNI_ABORT);
+}
+
 // Render and then start looping
 static
 jfloatArray
@@ -784,37 +1300,35 @@ renderJNI(JNIEnv *env,
           jboolean volumeBoost) {
 
     struct sound_settings settings;
+    render_t *buffer;
     jboolean isCopy;
+    int result;
 
-    // Get the primitive data
-    settings.noteDurationMs = (long) noteDurationMs;
-    settings.recordingDurationMs = (long) recordingDurationMs;
-    settings.velocity = (uint8_t) velocity;
-    settings.volumeBoost = (volumeBoost == JNI_TRUE);
-    settings.reverbPreset = (int) reverbPreset;
-
-    // Get the pitch array data
-    settings.pitches = (*env)->GetByteArrayElements(env, pitches, &isCopy);
-    settings.numPitches = (int) (*env)->GetArrayLength(env, pitches);
+    getSettings(env, &settings, pitches, noteDurationMs, recordingDurationMs, reverbPreset,
+                velocity, volumeBoost);
 
-    // Get the required recording size
-    const size_t renderFloats = getNumPcm(getRenderFrames(settings));
+    // Render
+    buffer = renderBuffer(settings);
+    releaseSettings(env, &settings, pitches);
+    if (buffer == NULL)
+        return NULL;
 
     // Create a java array to hold the recording
     //TODO can this return null on OOM?
+    const size_t renderFloats = getNumPcm(getRenderFrames(settings));
     jfloatArray jRecording = (*env)->NewFloatArray(env, renderFloats);
     jfloat *const jData = (*env)->GetFloatArrayElements(env, jRecording, &isCopy);
 
-    // Render
+    // Normalize the audio and convert to the final recording representation
     assert(sizeof(jfloat) == sizeof(float));
-    const int result = render(settings, jData);
+    if ((result = normalize(buffer, jData, renderFloats, getMaxLevel(settings)))) {
+        LOG_E(LOG_TAG, "Failed normalization.");
+    }
+    free(buffer);
 
     // Release the output array (possibly) copy, writing back changes
     (*env)->ReleaseFloatArrayElements(env, jRecording, jData, 0);
 
-    // Release the input arrays, without writing back changes
-    (*env)->ReleaseByteArrayElements(env, pitches, settings.pitches, JNI_ABORT);
-
     // Return the output array, or NULL (will be GC'ed) on failure
     return result ? NULL : jRecording;
 }
@@ -841,6 +1355,93 @@ Java_com_bbrister_mididriver_MidiDriver_F(JNIEnv *env,
             volumeBoost);
 }
 
+// Render to 16 bit PCM, ready for playback
+static
+jshortArray
+renderPcm16JNI(JNIEnv *env,
+               jobject obj,
+               jbyteArray pitches,
+               jlong noteDurationMs,
+               jlong recordingDurationMs,
+               jint reverbPreset,
+               jbyte velocity,
+               jboolean volumeBoost) {
+
+    struct sound_settings settings;
+    render_t *buffer;
+    jboolean isCopy;
+    int result;
+
+    getSettings(env, &settings, pitches, noteDurationMs, recordingDurationMs, reverbPreset,
+                velocity, volumeBoost);
+
+    // Render
+    buffer = renderBuffer(settings);
+    releaseSettings(env, &settings, pitches);
+    if (buffer == NULL)
+        return NULL;
+
+    // Create a java array to hold the recording
+    //TODO can this return null on OOM?
+    const size_t renderPcm = getNumPcm(getRenderFrames(settings));
+    jshortArray jRecording = (*env)->NewShortArray(env, renderPcm);
+    jshort *const jData = (*env)->GetShortArrayElements(env, jRecording, &isCopy);
+
+    // Normalize the audio and convert to the final recording representation
+    assert(sizeof(jshort) == sizeof(int16_t));
+    if ((result = normalizePcm16(buffer, (int16_t *) jData, renderPcm, getMaxLevel(settings)))) {
+        LOG_E(LOG_TAG, "Failed normalization.");
+    }
+    free(buffer);
+
+    // Release the output array (possibly) copy, writing back changes
+    (*env)->ReleaseShortArrayElements(env, jRecording, jData, 0);
+
+    // Return the output array, or NULL (will be GC'ed) on failure
+    return result ? NULL : jRecording;
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jshortArray
+Java_com_bbrister_mididriver_MidiDriver_N(JNIEnv *env,
+                                          jobject obj,
+                                          jbyteArray pitches,
+                                          jlong noteDurationMs,
+                                          jlong recordingDurationMs,
+                                          jint reverbPreset,
+                                          jbyte velocity,
+                                          jboolean volumeBoost) {
+    return renderPcm16JNI(
+            env,
+            obj,
+            pitches,
+            noteDurationMs,
+            recordingDurationMs,
+            reverbPreset,
+            velocity,
+            volumeBoost);
+}
+
+// Tell whether the synth renders in fixed point, in which case 16 bit PCM is the native output
+static
+jboolean
+isFixedPointJNI(void) {
+#ifdef FLUID_FIXED_POINT
+    return JNI_TRUE;
+#else
+    return JNI_FALSE;
+#endif
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jboolean
+Java_com_bbrister_mididriver_MidiDriver_O(JNIEnv *env,
+                                          jobject obj) {
+    return isFixedPointJNI();
+}
+
 // Query if a program number is valid in the given soundfont. Returns 1 if valid, 0 if invalid, -1
 // on error.
 static
@@ -877,6 +1478,71 @@ Java_com_bbrister_mididriver_MidiDriver_H(JNIEnv *env,
                                                jbyte programNum) {
     return getProgramNameJNI(env, obj, programNum);
 }
+
+// List the programs of the loaded soundfont into parallel arrays, each with room for every program.
+// keyRanges holds a key range mask per program. Returns the number of programs, or -1 on error.
+static
+jint
+listProgramsJNI(JNIEnv *env,
+                jobject obj,
+                jbyteArray jPrograms,
+                jobjectArray jNames,
+                jbooleanArray jKeyRanges) {
+
+    const char *names[UINT8_MAX + 1];
+    jboolean *keyRanges;
+    jbyte *programs;
+    int i, numPrograms;
+
+    const jsize capacity = programMax + 1;
+
+    // Check the array sizes
+    if ((*env)->GetArrayLength(env, jPrograms) < capacity ||
+        (*env)->GetArrayLength(env, jNames) < capacity ||
+        (*env)->GetArrayLength(env, jKeyRanges) < capacity * FLUID_MIDI_NUM_KEYS) {
+        LOG_E(LOG_TAG, "listPrograms: arrays are too small");
+        return -1;
+    }
+
+    // Query on the C side
+    assert(sizeof(jboolean) == sizeof(uint8_t));
+    programs = (*env)->GetByteArrayElements(env, jPrograms, NULL);
+    keyRanges = (*env)->GetBooleanArrayElements(env, jKeyRanges, NULL);
+    if (programs == NULL || keyRanges == NULL) {
+        numPrograms = -1;
+    } else {
+        numPrograms = listPrograms((uint8_t *) programs, names, (uint8_t *) keyRanges);
+    }
+
+    // Release the arrays, writing back changes
+    if (programs != NULL)
+        (*env)->ReleaseByteArrayElements(env, jPrograms, programs, 0);
+    if (keyRanges != NULL)
+        (*env)->ReleaseBooleanArrayElements(env, jKeyRanges, keyRanges, 0);
+
+    // Convert the names
+    for (i = 0; i < numPrograms; i++) {
+        const jstring name = (*env)->NewStringUTF(env, names[i] == NULL ? "" : names[i]);
+        if (name == NULL)
+            return -1;
+        (*env)->SetObjectArrayElement(env, jNames, i, name);
+        (*env)->DeleteLocalRef(env, name);
+    }
+
+    return numPrograms;
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jint
+Java_com_bbrister_mididriver_MidiDriver_Q(JNIEnv *env,
+                                          jobject obj,
+                                          jbyteArray jPrograms,
+                                          jobjectArray jNames,
+                                          jbooleanArray jKeyRanges) {
+    return listProgramsJNI(env, obj, jPrograms, jNames, jKeyRanges);
+}
+
 // Change the MIDI program
 static
 jboolean
@@ -958,8 +1624,10 @@ loadSoundfontJNI(JNIEnv *env,
                  jstring soundfontAAssetName) {
 
     // Initialize the AAssets wrapper, so we can do file I/O
+    pthread_mutex_lock(&assetLock);
     if (init_AAssets(env, AAssetAdapter)) {
         LOG_E(LOG_TAG, "Failed to initialize AAssets.");
+        pthread_mutex_unlock(&assetLock);
         return JNI_FALSE;
     }
 
@@ -974,6 +1642,7 @@ loadSoundfontJNI(JNIEnv *env,
 
     // Release AAssets
     release_AAssets(env);
+    pthread_mutex_unlock(&assetLock);
 
     return result == 0 ? JNI_TRUE : JNI_FALSE;
 }
@@ -988,6 +1657,281 @@ Java_com_bbrister_mididriver_MidiDriver_M(JNIEnv *env,
     return loadSoundfontJNI(env, obj, AAssetAdapter, soundfontAAssetName);
 }
 
+// Prepare a soundfont from an asset, without adding it to the synth. Returns a handle for
+// commitSoundfontJNI(), selectPreparedSoundfontJNI() or discardSoundfontJNI(), or 0 on failure.
+// Only tracked loads report progress or can be cancelled.
+static
+jlong
+prepareSoundfontJNI(JNIEnv *env,
+                    jobject obj,
+                    jobject AAssetAdapter,
+                    jstring soundfontAAssetName,
+                    jboolean tracked) {
+
+    // Initialize the AAssets wrapper, so we can do file I/O
+    pthread_mutex_lock(&assetLock);
+    if (init_AAssets(env, AAssetAdapter)) {
+        LOG_E(LOG_TAG, "Failed to initialize AAssets.");
+        pthread_mutex_unlock(&assetLock);
+        return 0;
+    }
+
+    // Convert Java arguments
+    const char *const soundfontName = (*env)->GetStringUTFChars(env, soundfontAAssetName, NULL);
+
+    // Parse the soundfont
+    fluid_sfont_t *const sfont = prepareSoundfont(soundfontName, tracked == JNI_TRUE);
+
+    // Release Java arguments
+    (*env)->ReleaseStringUTFChars(env, soundfontAAssetName, soundfontName);
+
+    // Release AAssets
+    release_AAssets(env);
+    pthread_mutex_unlock(&assetLock);
+
+    return (jlong) (intptr_t) sfont;
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jlong
+Java_com_bbrister_mididriver_MidiDriver_R(JNIEnv *env,
+                                          jobject obj,
+                                          jobject AAssetAdapter,
+                                          jstring soundfontAAssetName,
+                                          jboolean tracked) {
+    return prepareSoundfontJNI(env, obj, AAssetAdapter, soundfontAAssetName, tracked);
+}
+
+// Replace the loaded soundfont with a prepared one
+static
+jboolean
+commitSoundfontJNI(jlong handle) {
+    return commitSoundfont((fluid_sfont_t *) (intptr_t) handle) == 0 ? JNI_TRUE : JNI_FALSE;
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jboolean
+Java_com_bbrister_mididriver_MidiDriver_S(JNIEnv *env,
+                                          jobject obj,
+                                          jlong handle) {
+    return commitSoundfontJNI(handle);
+}
+
+// Temporarily make a prepared soundfont the active one, selecting a program from it
+static
+jboolean
+selectPreparedSoundfontJNI(jlong handle,
+                           jbyte programNum) {
+    return selectPreparedSoundfont((fluid_sfont_t *) (intptr_t) handle, programNum) == 0 ?
+           JNI_TRUE : JNI_FALSE;
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jboolean
+Java_com_bbrister_mididriver_MidiDriver_Y(JNIEnv *env,
+                                          jobject obj,
+                                          jlong handle,
+                                          jbyte programNum) {
+    return selectPreparedSoundfontJNI(handle, programNum);
+}
+
+// Undo selectPreparedSoundfontJNI(), making the previous soundfont active again
+static
+jboolean
+restoreSoundfontJNI(jlong handle) {
+    return restoreSoundfont((fluid_sfont_t *) (intptr_t) handle) == 0 ? JNI_TRUE : JNI_FALSE;
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jboolean
+Java_com_bbrister_mididriver_MidiDriver_Z(JNIEnv *env,
+                                          jobject obj,
+                                          jlong handle) {
+    return restoreSoundfontJNI(handle);
+}
+
+// Free a prepared soundfont which will not be committed
+static
+void
+discardSoundfontJNI(jlong handle) {
+    discardSoundfont((fluid_sfont_t *) (intptr_t) handle);
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+void
+Java_com_bbrister_mididriver_MidiDriver_T(JNIEnv *env,
+                                          jobject obj,
+                                          jlong handle) {
+    discardSoundfontJNI(handle);
+}
+
+// Cancel the soundfont being prepared, if any
+static
+void
+cancelLoadJNI(void) {
+    cancelLoad();
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+void
+Java_com_bbrister_mididriver_MidiDriver_U(JNIEnv *env,
+                                          jobject obj) {
+    cancelLoadJNI();
+}
+
+// Get the progress of the soundfont being prepared, as {bytes parsed, total bytes}. The total is 0
+// until it is known.
+static
+jlongArray
+getLoadProgressJNI(JNIEnv *env,
+                   jobject obj) {
+
+    jlongArray progressArray;
+    jlong progress[2];
+
+    progress[0] = (jlong) __atomic_load_n(&loadProgress.parsed, __ATOMIC_RELAXED);
+    progress[1] = (jlong) __atomic_load_n(&loadProgress.total, __ATOMIC_RELAXED);
+
+    if ((progressArray = (*env)->NewLongArray(env, 2)) == NULL)
+        return NULL;
+    (*env)->SetLongArrayRegion(env, progressArray, 0, 2, progress);
+
+    return progressArray;
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jlongArray
+Java_com_bbrister_mididriver_MidiDriver_V(JNIEnv *env,
+                                          jobject obj) {
+    return getLoadProgressJNI(env, obj);
+}
+
+// Get the memory held for the sounds, laid out as in enum memory_field, or NULL on error
+static
+jlongArray
+getMemoryUsageJNI(JNIEnv *env,
+                  jobject obj) {
+
+    jlongArray usageArray;
+    int64_t usage[NUM_MEMORY_FIELDS];
+    jlong usageJava[NUM_MEMORY_FIELDS];
+    int i;
+
+    if (getMemoryUsage(usage))
+        return NULL;
+    for (i = 0; i < NUM_MEMORY_FIELDS; i++) {
+        usageJava[i] = (jlong) usage[i];
+    }
+
+    if ((usageArray = (*env)->NewLongArray(env, NUM_MEMORY_FIELDS)) == NULL)
+        return NULL;
+    (*env)->SetLongArrayRegion(env, usageArray, 0, NUM_MEMORY_FIELDS, usageJava);
+
+    return usageArray;
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jlongArray
+Java_com_bbrister_mididriver_MidiDriver_C(JNIEnv *env,
+                                          jobject obj) {
+    return getMemoryUsageJNI(env, obj);
+}
+
+// Make a cached soundfont the active one. Returns 1 on success, 0 if it isn't cached, -1 on error.
+static
+jint
+selectCachedSoundfontJNI(JNIEnv *env,
+                         jobject obj,
+                         jstring soundfontAAssetName) {
+
+    // Convert Java arguments
+    const char *const soundfontName = (*env)->GetStringUTFChars(env, soundfontAAssetName, NULL);
+
+    const int result = selectCachedSoundfont(soundfontName);
+
+    // Release Java arguments
+    (*env)->ReleaseStringUTFChars(env, soundfontAAssetName, soundfontName);
+
+    return (jint) result;
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jint
+Java_com_bbrister_mididriver_MidiDriver_W(JNIEnv *env,
+                                          jobject obj,
+                                          jstring soundfontAAssetName) {
+    return selectCachedSoundfontJNI(env, obj, soundfontAAssetName);
+}
+
+// Set the memory budget of the soundfont cache
+static
+jboolean
+setSoundfontCacheBudgetJNI(jlong budget) {
+    if (budget < 0)
+        return JNI_FALSE;
+
+    return setSoundfontCacheBudget((size_t) budget) == 0 ? JNI_TRUE : JNI_FALSE;
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jboolean
+Java_com_bbrister_mididriver_MidiDriver_X(JNIEnv *env,
+                                          jobject obj,
+                                          jlong budget) {
+    return setSoundfontCacheBudgetJNI(budget);
+}
+
+// Native methods of MidiDriver. libmidi loads one instruction set variant of this library, then
+// binds these through midiRegisterNatives(). Keep in sync with MidiDriver.java, which
+// tools/natives_check.sh checks.
+static const JNINativeMethod midiDriverMethods[] = {
+        {"A", "(I)Z", (void *) Java_com_bbrister_mididriver_MidiDriver_A},
+        {"B", "()I", (void *) Java_com_bbrister_mididriver_MidiDriver_B},
+        {"C", "()[J", (void *) Java_com_bbrister_mididriver_MidiDriver_C},
+        {"D", "()[Z", (void *) Java_com_bbrister_mididriver_MidiDriver_D},
+        {"F", "([BJJIBZ)[F", (void *) Java_com_bbrister_mididriver_MidiDriver_F},
+        {"G", "(B)I", (void *) Java_com_bbrister_mididriver_MidiDriver_G},
+        {"H", "(B)Ljava/lang/String;", (void *) Java_com_bbrister_mididriver_MidiDriver_H},
+        {"I", "(B)Z", (void *) Java_com_bbrister_mididriver_MidiDriver_I},
+        {"J", "()I", (void *) Java_com_bbrister_mididriver_MidiDriver_J},
+        {"K", "()Z", (void *) Java_com_bbrister_mididriver_MidiDriver_K},
+        {"L", "()I", (void *) Java_com_bbrister_mididriver_MidiDriver_L},
+        {"M", "(Ljava/lang/Object;Ljava/lang/String;)Z",
+                (void *) Java_com_bbrister_mididriver_MidiDriver_M},
+        {"N", "([BJJIBZ)[S", (void *) Java_com_bbrister_mididriver_MidiDriver_N},
+        {"O", "()Z", (void *) Java_com_bbrister_mididriver_MidiDriver_O},
+        {"Q", "([B[Ljava/lang/String;[Z)I", (void *) Java_com_bbrister_mididriver_MidiDriver_Q},
+        {"R", "(Ljava/lang/Object;Ljava/lang/String;Z)J",
+                (void *) Java_com_bbrister_mididriver_MidiDriver_R},
+        {"S", "(J)Z", (void *) Java_com_bbrister_mididriver_MidiDriver_S},
+        {"T", "(J)V", (void *) Java_com_bbrister_mididriver_MidiDriver_T},
+        {"U", "()V", (void *) Java_com_bbrister_mididriver_MidiDriver_U},
+        {"V", "()[J", (void *) Java_com_bbrister_mididriver_MidiDriver_V},
+        {"W", "(Ljava/lang/String;)I", (void *) Java_com_bbrister_mididriver_MidiDriver_W},
+        {"X", "(J)Z", (void *) Java_com_bbrister_mididriver_MidiDriver_X},
+        {"Y", "(JB)Z", (void *) Java_com_bbrister_mididriver_MidiDriver_Y},
+        {"Z", "(J)Z", (void *) Java_com_bbrister_mididriver_MidiDriver_Z},
+};
+
+// Bind the native methods of the given MidiDriver class to this library. Returns 0 on success.
+JNIEXPORT
+int
+midiRegisterNatives(JNIEnv *env, jclass midiDriverClass) {
+    const jint numMethods = sizeof(midiDriverMethods) / sizeof(JNINativeMethod);
+    return (*env)->RegisterNatives(env, midiDriverClass, midiDriverMethods, numMethods) == JNI_OK ?
+           0 : -1;
+}
+
 #ifdef __cplusplus
 }
 #endif
\ No newline at end of file
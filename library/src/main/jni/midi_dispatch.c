@@ -0,0 +1,203 @@
+/*
+ * Loads the instruction set variant of the MIDI driver which best suits this CPU. Each variant is a
+ * build of midi.c and the synth in libmidi_<variant>.so, see Android.mk.
+ *
+ * For benchmarking, a variant can be forced by setting a system property before the app starts:
+ *      adb shell setprop debug.mididriver.isa generic
+ * Variants which the CPU does not support are never loaded.
+ *
+ * Created by Blaine Rister on 10/19/2026.
+ */
+
+#include <jni.h>
+#include <dlfcn.h>
+#include <limits.h>
+#include <stdio.h>
+#include <string.h>
+#include <sys/system_properties.h>
+#if defined(__aarch64__)
+#include <sys/auxv.h>
+#endif
+
+#include "global.h"
+
+// Not defined by older NDK headers
+#if defined(__aarch64__)
+#ifndef HWCAP_FPHP
+#define HWCAP_FPHP (1 << 9)
+#endif
+#ifndef HWCAP_ASIMDHP
+#define HWCAP_ASIMDHP (1 << 10)
+#endif
+#ifndef HWCAP_ASIMDDP
+#define HWCAP_ASIMDDP (1 << 20)
+#endif
+#endif
+
+// Constants
+static const char forceProperty[] = "debug.mididriver.isa";
+static const char midiDriverClassName[] = "com/bbrister/mididriver/MidiDriver";
+static const char registerNativesName[] = "midiRegisterNatives";
+
+// Binds the natives of MidiDriver to a variant, see midi.c
+typedef int (*register_natives_t)(JNIEnv *env, jclass midiDriverClass);
+
+// An instruction set variant
+struct variant {
+    const char *name;
+    int (*isSupported)(void);
+};
+
+// The baseline of the ABI
+static int isAlwaysSupported(void) {
+    return 1;
+}
+
+#if defined(__aarch64__)
+// Check for the ARMv8.2 dot product and half precision extensions
+static int isDotprodSupported(void) {
+    const unsigned long required = HWCAP_FPHP | HWCAP_ASIMDHP | HWCAP_ASIMDDP;
+    return (getauxval(AT_HWCAP) & required) == required;
+}
+#endif
+
+#if defined(__x86_64__)
+// Check for AVX2 and FMA. This includes OS support for the AVX registers.
+static int isAvx2Supported(void) {
+    __builtin_cpu_init();
+    return __builtin_cpu_supports("avx2") && __builtin_cpu_supports("fma");
+}
+#endif
+
+// Variants in order of preference. Keep in sync with MIDI_VARIANTS in Android.mk.
+static const struct variant variants[] = {
+#if defined(__aarch64__)
+        {"dotprod", isDotprodSupported},
+#elif defined(__x86_64__)
+        {"avx2", isAvx2Supported},
+#endif
+        {"generic", isAlwaysSupported},
+};
+static const int numVariants = sizeof(variants) / sizeof(struct variant);
+
+// The variant which was loaded
+static const struct variant *loadedVariant = NULL;
+
+// Get the index of the variant to try first. This is the forced variant, if any, or else the most
+// preferred one the CPU supports.
+static int chooseVariant(void) {
+
+    char forced[PROP_VALUE_MAX];
+    int i;
+
+    // Check for a forced variant
+    if (__system_property_get(forceProperty, forced) > 0) {
+        for (i = 0; i < numVariants; i++) {
+            if (strcmp(variants[i].name, forced) == 0 && variants[i].isSupported()) {
+                LOG_I(LOG_TAG, "Forcing ISA variant %s", forced);
+                return i;
+            }
+        }
+        LOG_W(LOG_TAG, "Ignoring unavailable ISA variant %s", forced);
+    }
+
+    // Take the first supported variant
+    for (i = 0; i < numVariants; i++) {
+        if (variants[i].isSupported())
+            return i;
+    }
+
+    // Unreachable, since the last variant is always supported
+    return numVariants - 1;
+}
+
+// Open the library of a variant. Returns NULL on failure.
+static void *openVariant(const struct variant *const variant) {
+
+    char path[PATH_MAX];
+    const char *dirEnd;
+    Dl_info info;
+    void *handle;
+
+    // Look next to this library first, since older linkers do not search the app's library
+    // directory
+    if (dladdr((void *) openVariant, &info) && info.dli_fname != NULL &&
+        (dirEnd = strrchr(info.dli_fname, '/')) != NULL) {
+        const int dirLength = (int) (dirEnd - info.dli_fname);
+        const int pathLength = snprintf(path, sizeof(path), "%.*s/libmidi_%s.so", dirLength,
+                                        info.dli_fname, variant->name);
+        if (pathLength < (int) sizeof(path) &&
+            (handle = dlopen(path, RTLD_NOW | RTLD_LOCAL)) != NULL)
+            return handle;
+    }
+
+    // Fall back to the linker search path
+    snprintf(path, sizeof(path), "libmidi_%s.so", variant->name);
+    return dlopen(path, RTLD_NOW | RTLD_LOCAL);
+}
+
+// Load a variant and bind the MidiDriver natives to it. Returns 0 on success.
+static int loadVariant(JNIEnv *env, jclass midiDriverClass, const struct variant *const variant) {
+
+    register_natives_t registerNatives;
+    void *handle;
+
+    if ((handle = openVariant(variant)) == NULL) {
+        LOG_E(LOG_TAG, "Failed to open ISA variant %s: %s", variant->name, dlerror());
+        return -1;
+    }
+
+    registerNatives = (register_natives_t) dlsym(handle, registerNativesName);
+    if (registerNatives == NULL || registerNatives(env, midiDriverClass)) {
+        LOG_E(LOG_TAG, "Failed to register the natives of ISA variant %s", variant->name);
+        dlclose(handle);
+        return -1;
+    }
+
+    // The library stays open for the life of the process
+    loadedVariant = variant;
+    LOG_I(LOG_TAG, "Loaded ISA variant %s", variant->name);
+    return 0;
+}
+
+// Load the best variant which works, falling back to the less preferred ones.
+JNIEXPORT
+jint
+JNI_OnLoad(JavaVM *vm, void *reserved) {
+
+    jclass midiDriverClass;
+    JNIEnv *env;
+    int i;
+
+    if ((*vm)->GetEnv(vm, (void **) &env, JNI_VERSION_1_6) != JNI_OK)
+        return JNI_ERR;
+
+    if ((midiDriverClass = (*env)->FindClass(env, midiDriverClassName)) == NULL)
+        return JNI_ERR;
+
+    for (i = chooseVariant(); i < numVariants; i++) {
+        if (variants[i].isSupported() && loadVariant(env, midiDriverClass, &variants[i]) == 0) {
+            (*env)->DeleteLocalRef(env, midiDriverClass);
+            return JNI_VERSION_1_6;
+        }
+    }
+
+    (*env)->DeleteLocalRef(env, midiDriverClass);
+    return JNI_ERR;
+}
+
+// Get the name of the loaded ISA variant
+static
+jstring
+getIsaVariantJNI(JNIEnv *env,
+                 jobject obj) {
+    return (*env)->NewStringUTF(env, loadedVariant == NULL ? "" : loadedVariant->name);
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jstring
+Java_com_bbrister_mididriver_MidiDriver_P(JNIEnv *env,
+                                          jobject obj) {
+    return getIsaVariantJNI(env, obj);
+}
@@ -1,605 +1,2048 @@
 /*
- * Code for efficiently looping an audio track using OpenSL ES.
+ * Code for efficiently looping an audio track, with other looped streams and a click track mixed
+ * over it. The audio output is chosen at runtime, see audio_sink.h.
  *
  * Created by Blaine Rister on 9/13/2019.
  */
 
-#include <SLES/OpenSLES.h>
-#include <SLES/OpenSLES_Android.h>
+#include <jni.h>
 #include <semaphore.h>
 #include <malloc.h>
 #include <string.h>
 #include <assert.h>
+#include <errno.h>
 #include <limits.h>
 #include <stdlib.h>
+#include <time.h>
 
 #include "global.h"
+#include "audio_sink.h"
+#include "dither.h"
+#include "playback_health.h"
 
 // Constants
-const int bufferQueueSize = 2;
+const int crossfadeMs = 20; // Length of the crossfade between recordings
+const long audioPollMs = 100; // Interval for checking on the audio output while waiting
+const long idleTimeoutMs = 2000; // Longest wait for the sound to fade out, before cutting it off
+const uint32_t ditherSeed = 0x5eed; // Seed for dithering recordings down to 16 bit PCM
+const int ditherNoiseShaping = 0; // Whether to noise shape the dither
+
+// Device buffers rendered per callback, for each latency profile
+static const int buffersPerCallback[NUM_PROFILES] = {1, 4, 16};
+
+// Audio outputs, in order of preference. Off-device, there is only the simulated one.
+static const struct audio_sink *const sinks[] = {
+#ifdef __ANDROID__
+        &aaudio_sink,
+        &opensl_sink
+#else
+        &null_sink
+#endif
+};
 
 // Static function declarations
-static SLresult enqueueBuffer(void);
-static void bqPlayerCallback(SLAndroidSimpleBufferQueueItf bq, void *context);
+static void renderAudio(void *buffer, int32_t numFrames);
 static int idle(void);
-static void shutdownAudio(void);
 static int isPlaying(void);
-
-// engine interfaces
-static SLObjectItf engineObject = NULL;
-static SLEngineItf engineEngine;
-
-// output mix interfaces
-static SLObjectItf outputMixObject = NULL;
-
-// buffer queue player interfaces
-static SLObjectItf bqPlayerObject = NULL;
-static SLPlayItf bqPlayerPlay;
-static SLAndroidSimpleBufferQueueItf bqPlayerBufferQueue;
+static void freeRecording(void);
+static void freeStreams(void);
+static void freeClicks(void);
+static int finishSwap(void);
+static void dropSwap(void);
+static int64_t nowNs(void);
+static void resetHealth(void);
+
+// The open audio output, if any
+static const struct audio_sink *sink = NULL;
+static const struct audio_sink *forced_sink = NULL; // Replaces the list of outputs, if set
+static int session; // Whether the semaphores are initialized
 
 // Sound parameters
-int bufferSizeMono;
+static int bufferSizeMono;
+static int playerSampleRate;
+static enum sample_format output_format; // Format of the output, and so of the recordings
+static enum latency_profile profile = PROFILE_LOW_LATENCY; // Buffering of the output
+static int float_allowed; // Whether the output may take floating point
 
 // Recording buffer
 static enum State {
     PLAYING, STOPPING, IDLE
-} state = IDLE;
-static output_t *record_buffer = NULL; // Storage for the recording
-static output_t *recording_position = NULL; // Current recording position
-static output_t *playback_position = NULL; // Current playback position
+} state = IDLE; // Shared with the audio thread
+static void *record_buffer = NULL; // Storage for the recording, in the output format
+static size_t record_length; // Frames in the recording
+static size_t playback_frame; // Current playback position
 
-// State for pausing the sound
+// State for pausing and resuming the sound
 static size_t pause_count; // Counts down to zero
 static float pause_factor; // Ramp slope
+static int32_t drain_count; // Frames of silence to render before the ramp is audible
+static size_t resume_length; // Frames in the ramp up after resuming
+static size_t resume_count; // Frames left in the ramp up
+static int pause_pending; // Whether a pause started, and awaits stopping the output
+
+/* Health of the output, for spotting glitches in the field, see playback_health.h. The audio
+ * thread is the only writer. It bumps the sequence number before and after each update, so readers
+ * take consistent snapshots without locking. */
+static struct playback_health {
+    int64_t callbacks;
+    int64_t frames;
+    int64_t interval_bins[HEALTH_BINS];
+    int64_t render_bins[HEALTH_BINS];
+    int64_t max_interval_ns;
+    int64_t render_ns;
+    int64_t max_render_ns;
+    int64_t late_callbacks;
+} health; // Shared with the audio thread
+static uint32_t health_sequence; // Odd while the audio thread updates the health. Shared.
+static int64_t last_callback_ns; // Start of the last callback, used by the audio thread
+static int output_restarted; // Whether the next interval spans a stop, so is left out. Shared.
+static int64_t late_interval_ns; // Time the buffered audio lasts, set while the output is stopped
+static int64_t output_open_ns;
+
+// Time from the last play request to the first buffer of its recording, or -1 if unknown
+static int64_t switch_latency_ns = -1;
+
+// State for swapping recordings while playing. The audio thread crossfades to the new recording.
+enum SwapState {
+    SWAP_NONE, // No swap in progress
+    SWAP_PENDING, // The audio thread has yet to start the crossfade
+    SWAP_FADING, // The audio thread is crossfading
+    SWAP_DONE // The old recording can be freed
+};
+static int swap_state = SWAP_NONE; // Shared with the audio thread
+static void *swap_buffer = NULL; // Storage for the new recording
+static size_t swap_length; // Frames in the new recording
+static size_t swap_frame; // Playback position in the new recording
+static int swap_immediate; // Crossfade right away, rather than at the end of the beat
+static int64_t swap_request_ns; // Time of the swap request
+static void *retired_buffer = NULL; // The old recording, freed once the swap is done
+static size_t fade_lead; // Frames of the old recording to play before the crossfade
+static size_t fade_length; // Frames in the crossfade
+static size_t fade_count; // Frames left in the crossfade
+
+/* Streams mixed over the recording, each looping on its own. They play while the recording does,
+ * e.g. a second drone over the first. The audio thread fades them in and out. */
+#define MAX_STREAMS 8
+enum StreamState {
+    STREAM_FREE, // The slot is unused
+    STREAM_PLAYING, // Mixed in, fading to its gain
+    STREAM_STOPPING, // Fading out, to be freed once silent
+    STREAM_DONE // The audio thread is done with it, so it can be freed
+};
+static struct stream {
+    int state; // Shared with the audio thread
+    int id; // Identifies the stream to the caller, unlike the slot which is reused
+    void *buffer; // Storage for the loop, in the output format
+    size_t length; // Frames in the loop
+    size_t offset; // Frames from the start of the recording's loop to the start of this one
+    size_t frame; // Playback position, set by the audio thread when the stream starts
+    int started; // Whether the audio thread set the playback position
+    float gain; // Target gain, shared with the audio thread
+    float current_gain; // Gain the audio thread is fading from
+} streams[MAX_STREAMS];
+static int next_stream_id = 1;
+
+/* The click track, which starts a click on every beat of the recording, accenting the first beat
+ * of each bar. The clicks are rendered once, and the audio thread schedules them, so they stay on
+ * the beat across tempo changes. A new track takes over on a beat. */
+#define NUM_CLICK_VOICES 2 // Lets a click ring on while the next one starts
+static struct click_track {
+    void *normal; // Storage for the click, in the output format
+    size_t normal_length; // Frames in the click
+    void *accent; // Storage for the click on the first beat of the bar, or NULL to use the other
+    size_t accent_length; // Frames in the accented click
+    int beats_per_bar; // Beats from one accent to the next, or 0 for none
+    float gain;
+} clicks_off; // Handed to the audio thread to turn the clicks off
+static struct click_track *click_track = NULL; // Used by the audio thread, or NULL if off
+static struct click_track *click_pending = NULL; // Starts on the next beat. Shared.
+static struct click_track *click_retired = NULL; // Replaced, for the caller to free. Shared.
+static struct click_voice {
+    const void *buffer; // The click which is playing, or NULL if silent
+    size_t length; // Frames in the click
+    size_t frame; // Playback position
+} click_voices[NUM_CLICK_VOICES];
+static int click_beat; // Beat of the bar, counted from the first click
+static int32_t beat_offset; // Frame of the last render at which a beat started, or -1 if none
 
 // semaphores
 static sem_t is_idle;
+static sem_t swap_done;
+
+/* Main initialization routine. Opens the preferred audio output which works, for the given sound
+ * parameters and the latency profile. Tries the given sample format first, then the other one.
+ * Floating point is only tried if allowed. The output is kept for the following recordings, until
+ * the playback session is released. Only opens a new one if the parameters change, or the output
+ * died. */
+int init(const int sampleRate, const int deviceBufferSizeMono, const enum sample_format format,
+         const int allowFloat) {
+
+    enum sample_format formats[2];
+    size_t numFormats = 0;
+    size_t i, j;
+
+    // Initialize semaphores
+    if (!session) {
+        const int shared_processes = 0;
+        const int sem_initial_value = 0;
+        sem_init(&is_idle, shared_processes, sem_initial_value);
+        sem_init(&swap_done, shared_processes, sem_initial_value);
+        session = 1;
+    }
 
-// create the engine and output mix objects
-static SLresult createEngine() {
-    SLresult result;
+    // Keep the output, if it suits the sound
+    if (sink != NULL) {
+        if (sampleRate == playerSampleRate && deviceBufferSizeMono == bufferSizeMono &&
+            (allowFloat || output_format != SAMPLE_FORMAT_FLOAT) && sink->is_alive())
+            return 0;
+        sink->close();
+        sink = NULL;
+    }
 
-    // create engine
-    result = slCreateEngine(&engineObject, 0, NULL, 0, NULL, NULL);
-    if (SL_RESULT_SUCCESS != result)
-        return result;
-
-    // LOG_D(LOG_TAG, "Engine created");
-
-    // realize the engine
-    result = (*engineObject)->Realize(engineObject, SL_BOOLEAN_FALSE);
-    if (SL_RESULT_SUCCESS != result)
-        return result;
-
-    // LOG_D(LOG_TAG, "Engine realised");
-
-    // get the engine interface, which is needed in order to create
-    // other objects
-    result = (*engineObject)->GetInterface(engineObject, SL_IID_ENGINE,
-                                           &engineEngine);
-    if (SL_RESULT_SUCCESS != result)
-        return result;
-
-    // LOG_D(LOG_TAG, "Engine Interface retrieved");
-
-    // create output mix
-    result = (*engineEngine)->CreateOutputMix(engineEngine, &outputMixObject,
-                                              0, NULL, NULL);
-    if (SL_RESULT_SUCCESS != result)
-        return result;
-
-    // LOG_D(LOG_TAG, "Output mix created");
-
-    // realize the output mix
-    result = (*outputMixObject)->Realize(outputMixObject, SL_BOOLEAN_FALSE);
-    if (SL_RESULT_SUCCESS != result)
-        return result;
-
-    // LOG_D(LOG_TAG, "Output mix realised");
-
-    return SL_RESULT_SUCCESS;
-}
-
-// create buffer queue audio player
-static SLresult createBufferQueueAudioPlayer(int sampleRate, int deviceBufferSizeMono) {
-
-    SLAndroidConfigurationItf configItf;
-    SLVolumeItf volumeItf;
-    SLresult result;
-
-    // Store the sound parameters
-    bufferSizeMono = deviceBufferSizeMono;
-
-    // configure audio source
-    SLDataLocator_AndroidSimpleBufferQueue loc_bufq =
-            {
-                    SL_DATALOCATOR_ANDROIDSIMPLEBUFFERQUEUE, bufferQueueSize
-            };
-    SLDataFormat_PCM format_pcm =
-            {
-                    SL_DATAFORMAT_PCM, (SLuint32)(numChannels),
-                    (SLuint32)(sampleRate * 1000),
-                    SL_PCMSAMPLEFORMAT_FIXED_16, SL_PCMSAMPLEFORMAT_FIXED_16,
-                    SL_SPEAKER_FRONT_LEFT | SL_SPEAKER_FRONT_RIGHT,
-                    SL_BYTEORDER_LITTLEENDIAN
-            };
-    SLDataSource audioSrc = {&loc_bufq, &format_pcm};
-
-    // configure audio sink
-    SLDataLocator_OutputMix loc_outmix =
-            {SL_DATALOCATOR_OUTPUTMIX, outputMixObject};
-    SLDataSink audioSnk = {&loc_outmix, NULL};
-
-    // create audio player
-    const SLInterfaceID ids[] = {SL_IID_BUFFERQUEUE, SL_IID_VOLUME, SL_IID_ANDROIDCONFIGURATION};
-    const SLboolean req[] = {SL_BOOLEAN_TRUE, SL_BOOLEAN_FALSE, SL_BOOLEAN_FALSE};
-    const size_t numIds = sizeof(ids) / sizeof(SLInterfaceID);
-
-    result = (*engineEngine)->CreateAudioPlayer(engineEngine,
-                                                &bqPlayerObject,
-                                                &audioSrc, &audioSnk,
-                                                numIds, ids, req);
-    if (SL_RESULT_SUCCESS != result)
-        return result;
-
-    LOG_I(LOG_TAG, "Initialized audio player with sample rate: %d buffer size: %d", sampleRate,
-          bufferSizeMono);
-
-    // LOG_D(LOG_TAG, "Audio player created");
-
-    // Get the Android configuration interface, if it exists. If so, enable low power mode. This
-    // will fail on Android versions prior to API level 25
-    result = (*bqPlayerObject)->GetInterface(bqPlayerObject, SL_IID_ANDROIDCONFIGURATION,
-                                             &configItf);
-    if (result == SL_RESULT_SUCCESS) {
-
-        const SLuint32 desiredMode = SL_ANDROID_PERFORMANCE_POWER_SAVING;
-
-        LOG_I(LOG_TAG, "Successfully received Android audio configItf");
-
-        // Set the performance mode
-        result = (*configItf)->SetConfiguration(configItf, SL_ANDROID_KEY_PERFORMANCE_MODE,
-                                                &desiredMode, sizeof(desiredMode));
-        if (result == SL_RESULT_SUCCESS) {
-            LOG_I(LOG_TAG, "Set audio performance mode.");
-        } else {
-            LOG_W(LOG_TAG, "Failed to set audio performance mode (code %d).", result);
+    // List the formats to try
+    if (allowFloat && format == SAMPLE_FORMAT_FLOAT)
+        formats[numFormats++] = SAMPLE_FORMAT_FLOAT;
+    formats[numFormats++] = SAMPLE_FORMAT_I16;
+    if (allowFloat && format != SAMPLE_FORMAT_FLOAT)
+        formats[numFormats++] = SAMPLE_FORMAT_FLOAT;
+
+    // Open the first output which works, in the first format it supports
+    for (i = 0; i < sizeof(sinks) / sizeof(sinks[0]); i++) {
+        const struct audio_sink *const candidate = forced_sink != NULL ? forced_sink : sinks[i];
+        for (j = 0; j < numFormats; j++) {
+            if (candidate->open(sampleRate, deviceBufferSizeMono * buffersPerCallback[profile],
+                                formats[j], profile, renderAudio) == 0) {
+                sink = candidate;
+                playerSampleRate = sampleRate;
+                bufferSizeMono = deviceBufferSizeMono;
+                output_format = formats[j];
+                resetHealth();
+
+                LOG_I(LOG_TAG, "Playing %s through %s with sample rate: %d buffer size: %d "
+                               "profile: %d",
+                      output_format == SAMPLE_FORMAT_FLOAT ? "float" : "16 bit PCM", sink->name,
+                      sampleRate, deviceBufferSizeMono * buffersPerCallback[profile], profile);
+
+                return 0;
+            }
         }
-    } else {
-        LOG_W(LOG_TAG, "Failed to get the configuration controls (code %d). Audio performance mode "
-                       "will not be set.", result);
+        if (forced_sink != NULL)
+            break;
+    }
+
+    LOG_E(LOG_TAG, "Failed to open an audio output.");
+    return -1;
+}
+
+// Play through the given output from the next recording on. Only safe while idle.
+void playback_use_sink(const struct audio_sink *const newSink) {
+    forced_sink = newSink;
+    if (sink != NULL && sink != newSink) {
+        sink->close();
+        sink = NULL;
     }
+}
+
+// Read the monotonic clock, in nanoseconds
+static int64_t nowNs(void) {
+    struct timespec time;
+    clock_gettime(CLOCK_MONOTONIC, &time);
+    return (int64_t) time.tv_sec * 1000000000 + time.tv_nsec;
+}
 
-    // realize the player
-    result = (*bqPlayerObject)->Realize(bqPlayerObject, SL_BOOLEAN_FALSE);
-    if (SL_RESULT_SUCCESS != result)
-        return result;
+/* Clear the health for a newly opened output, which isn't running yet. A callback is late if it
+ * comes after the audio buffered by the output would have run out. */
+static void resetHealth(void) {
 
-    // LOG_D(LOG_TAG, "Audio player realised");
+    const int32_t bufferedFrames = sink->get_buffered_frames();
+    const int64_t lateFrames = bufferedFrames > 0 ? bufferedFrames :
+                               (int64_t) bufferSizeMono * buffersPerCallback[profile];
 
-    // get the play interface
-    result = (*bqPlayerObject)->GetInterface(bqPlayerObject, SL_IID_PLAY,
-                                             &bqPlayerPlay);
-    if (SL_RESULT_SUCCESS != result)
-        return result;
+    memset(&health, 0, sizeof(health));
+    __atomic_store_n(&output_restarted, 1, __ATOMIC_RELAXED);
+    __atomic_store_n(&late_interval_ns, lateFrames * 1000000000 / playerSampleRate,
+                     __ATOMIC_RELAXED);
+    output_open_ns = nowNs();
+}
+
+/* Copy the health, retrying if the audio thread updated it meanwhile. The audio thread never waits
+ * on this. The health is all counters, so it's copied as an array of them. */
+static void readHealth(struct playback_health *const copy) {
 
-    // Get the volume interface, if it exists. If so, set the volume to max.
-    result = (*bqPlayerObject)->GetInterface(bqPlayerObject, SL_IID_VOLUME, &volumeItf);
-    if (result == SL_RESULT_SUCCESS) {
+    const int64_t *const in = (const int64_t *) &health;
+    int64_t *const out = (int64_t *) copy;
+    uint32_t before, after;
+    size_t i;
 
-        SLmillibel maxVolume;
+    do {
+        before = __atomic_load_n(&health_sequence, __ATOMIC_ACQUIRE);
+        for (i = 0; i < sizeof(health) / sizeof(int64_t); i++)
+            out[i] = __atomic_load_n(&in[i], __ATOMIC_RELAXED);
+        __atomic_thread_fence(__ATOMIC_ACQUIRE);
+        after = __atomic_load_n(&health_sequence, __ATOMIC_RELAXED);
+    } while ((before & 1) || before != after);
+}
 
-        // Get the maximum volume level
-        result = (*volumeItf)->GetMaxVolumeLevel(volumeItf, &maxVolume);
-        if (result != SL_RESULT_SUCCESS) {
-            LOG_E(LOG_TAG, "failed to get the maximum volume");
-            return result;
+/* Wait for the audio thread to post the semaphore, for up to the timeout in milliseconds, or
+ * indefinitely if it's negative. Returns nonzero if the output died or the time ran out first. */
+static int waitForAudio(sem_t *const sem, const long timeoutMs) {
+
+    const int64_t endNs = nowNs() + (int64_t) timeoutMs * 1000000;
+    struct timespec deadline;
+
+    for (;;) {
+        // Wake up periodically to check on the output
+        int64_t waitNs = (int64_t) audioPollMs * 1000000;
+        if (timeoutMs >= 0)
+            waitNs = MAX(MIN(waitNs, endNs - nowNs()), 0);
+        clock_gettime(CLOCK_REALTIME, &deadline);
+        deadline.tv_sec += waitNs / 1000000000;
+        deadline.tv_nsec += waitNs % 1000000000;
+        if (deadline.tv_nsec >= 1000000000) {
+            deadline.tv_sec++;
+            deadline.tv_nsec -= 1000000000;
         }
 
-        // Set the volume to max
-        result = (*volumeItf)->SetVolumeLevel(volumeItf, maxVolume);
-        if (result != SL_RESULT_SUCCESS) {
-            LOG_E(LOG_TAG, "failed to set the volume level");
-            return result;
+        if (sem_timedwait(sem, &deadline) == 0)
+            return 0;
+        if (errno != ETIMEDOUT)
+            continue;
+        if (!sink->is_alive()) {
+            LOG_W(LOG_TAG, "The %s output died.", sink->name);
+            return -1;
+        }
+        if (timeoutMs >= 0 && nowNs() >= endNs) {
+            LOG_W(LOG_TAG, "Timed out waiting for the %s output.", sink->name);
+            return -1;
         }
+    }
+}
 
-        LOG_I(LOG_TAG, "Set volume level to the maximum.");
+/* Play the stored recording through the open output, from the given frame. Nothing may be playing.
+ * Ramps up the sound, unless starting from the top. The output keeps running when idle, in which
+ * case it starts right away. */
+static int play(const size_t position) {
 
-    } else {
-        LOG_W(LOG_TAG, "Failed to get the volume controls (code %d). The app will not control the "
-                       "OpenSL ES player volume.", result);
+    // Set the playback position
+    if (record_buffer == NULL) {
+        LOG_E(LOG_TAG, "playback failed: no recording stored");
+        return -1;
+    }
+    playback_frame = position;
+    resume_length = resume_count = position > 0 ? (size_t) bufferSizeMono : 0;
+
+    /* Set the state to playing, then start the output. Does nothing if it's still running, in
+     * which case leaving out the next interval loses little. */
+    __atomic_store_n(&output_restarted, 1, __ATOMIC_RELAXED);
+    __atomic_store_n(&state, PLAYING, __ATOMIC_RELEASE);
+    if (sink->start()) {
+        state = IDLE;
+        return -1;
     }
 
-    // get the buffer queue interface
-    result = (*bqPlayerObject)->GetInterface(bqPlayerObject, SL_IID_BUFFERQUEUE,
-                                             &bqPlayerBufferQueue);
-    if (SL_RESULT_SUCCESS != result)
-        return result;
+    return 0;
+}
+
+// Deletes all data, ending the playback session
+static void cleanup(void) {
+    if (sink != NULL) {
+        sink->close();
+        sink = NULL;
+    }
+    if (session) {
+        dropSwap();
+        sem_destroy(&is_idle);
+        sem_destroy(&swap_done);
+        session = 0;
+    }
+    freeRecording();
+    freeStreams();
+    freeClicks();
+}
 
-    // LOG_D(LOG_TAG, "Buffer queue interface retrieved");
+/* Start fading out the sound, without waiting. The audio thread ramps down whatever is playing,
+ * including a crossfade. Cancels a swap which has not started yet. */
+static void beginIdle(void) {
 
-    // register callback on the buffer queue
-    result = (*bqPlayerBufferQueue)->RegisterCallback(bqPlayerBufferQueue,
-                                                      bqPlayerCallback, NULL);
-    if (SL_RESULT_SUCCESS != result)
-        return result;
+    int expected = SWAP_PENDING;
 
-    // LOG_D(LOG_TAG, "Callback registered");
+    // Do nothing unless playing
+    if (state != PLAYING)
+        return;
 
-    return SL_RESULT_SUCCESS;
-    // LOG_D(LOG_TAG, "Audio player set playing");
-}
+    // Take back a new recording the audio thread has yet to start on
+    if (__atomic_compare_exchange_n(&swap_state, &expected, SWAP_NONE, 0, __ATOMIC_ACQUIRE,
+                                    __ATOMIC_ACQUIRE)) {
+        free(swap_buffer);
+        swap_buffer = NULL;
+    }
 
-// Main initialization routine
-int init(const int sampleRate, const int bufferSizeMono) {
+    // Drop any confirmation left over from a fade which timed out
+    while (sem_trywait(&is_idle) == 0)
+        ;
 
-    SLresult  result;
+    // Initialize the pausing parameters
+    pause_count = bufferSizeMono;
+    pause_factor = 1.F / (float) pause_count;
+    drain_count = MAX(sink->get_buffered_frames(), 1);
 
-    // create the engine and output mix objects
-    if ((result = createEngine()) != SL_RESULT_SUCCESS) {
-        shutdownAudio();
+    // Initiate the pausing phase
+    __atomic_store_n(&state, STOPPING, __ATOMIC_RELEASE);
+}
 
-        LOG_E(LOG_TAG, "Create engine failed: %d", result);
+/* Once the audio thread only renders silence, drop a crossfade which the fade out cut short, or
+ * free the old recording of one which finished. */
+static void dropSwap(void) {
 
-        return JNI_FALSE;
-    }
+    free(swap_buffer);
+    swap_buffer = NULL;
+    free(retired_buffer);
+    retired_buffer = NULL;
 
-    // create buffer queue audio player
-    if ((result = createBufferQueueAudioPlayer(sampleRate, bufferSizeMono)) != SL_RESULT_SUCCESS) {
-        shutdownAudio();
+    while (sem_trywait(&swap_done) == 0)
+        ;
+    __atomic_store_n(&swap_state, SWAP_NONE, __ATOMIC_RELAXED);
+}
 
-        LOG_E(LOG_TAG, "Create buffer queue audio player failed: %d", result);
+/* Wait for the fade started by beginIdle to be audible, for up to the timeout in milliseconds.
+ * The output keeps running on silence, so the recording and the swap can be replaced or freed. If
+ * the output died or the time ran out, it is closed instead, so no more callbacks come. Returns
+ * nonzero if the fade was cut short. */
+static int finishIdle(const long timeoutMs) {
 
-        return JNI_FALSE;
+    int cutShort = 0;
+
+    // Do nothing if we're already idle
+    if (state == IDLE)
+        return 0;
+
+    // Block until we have confirmation that the ramp has played
+    if (waitForAudio(&is_idle, timeoutMs)) {
+        LOG_W(LOG_TAG, "Stopped without finishing the ramp.");
+        sink->close();
+        sink = NULL;
+        cutShort = 1;
     }
+    __atomic_store_n(&state, IDLE, __ATOMIC_RELEASE);
 
-    // Initialize semaphor
-    const int shared_processes = 0;
-    const int sem_initial_value = 0;
-    sem_init(&is_idle, shared_processes, sem_initial_value);
+    return cutShort;
+}
 
-    return result;
+// Start pausing, without waiting for the fade out. Finished by finishPause.
+static void beginPause(void) {
+    if (pause_pending)
+        return;
+    beginIdle();
+    pause_pending = 1;
 }
 
-// Initialize everything and play sound
-static int play(int sampleRate, int bufferSizeMono) {
+/* Finish the pause in progress, if any. Waits for the fade out for up to the timeout in
+ * milliseconds, then stops the output and frees the recording, keeping the output for the next
+ * one. Returns -1 on failure, 1 if the fade was cut short, or 0 otherwise. */
+static int finishPause(const long timeoutMs) {
 
-    SLresult result;
-    int i;
+    int cutShort;
 
-    // Set the playback pointer
-    if (record_buffer == NULL) {
-        LOG_E(LOG_TAG, "playback failed: no recording stored");
-        return -1;
-    }
-    playback_position = record_buffer;
+    if (!pause_pending)
+        return 0;
+    pause_pending = 0;
 
-    // Initialize the sound player
-    if (init(sampleRate, bufferSizeMono))
-        return -1;
+    cutShort = finishIdle(timeoutMs);
+    dropSwap();
 
-    // Set the state to playing
-    result = (*bqPlayerPlay)->SetPlayState(bqPlayerPlay, SL_PLAYSTATE_PLAYING);
-    if (SL_RESULT_SUCCESS != result) {
-        LOG_E(LOG_TAG, "playback failed: failed to set play state");
+    // Tell the output to stop pulling audio. Note: this is non-blocking
+    if (sink != NULL && sink->stop())
         return -1;
+
+    freeRecording();
+    freeStreams();
+    freeClicks();
+    return cutShort;
+}
+
+/* Tell whether finishPause would return without waiting: no pause is pending, the fade out has
+ * played, or the output stopped calling back. */
+static int isPauseSettled(void) {
+
+    int posted;
+
+    if (!pause_pending || state != STOPPING || sink == NULL)
+        return 1;
+
+    // beginIdle drops old confirmations, so a posted one is for this fade
+    return (sem_getvalue(&is_idle, &posted) == 0 && posted > 0) || !sink->is_alive();
+}
+
+/* Fade out the sound, and wait until the fade is audible. The output keeps running on silence, so
+ * the recording can be replaced or freed. Finishes a pause in progress, which also frees the
+ * recording, the streams and the clicks. */
+static int idle(void) {
+
+    if (pause_pending)
+        return finishPause(idleTimeoutMs) < 0 ? -1 : 0;
+
+    beginIdle();
+    finishIdle(idleTimeoutMs);
+    dropSwap();
+    return 0;
+}
+
+// Stop the sound and free the recording, keeping the output for the next one
+static int stopPlayback(void) {
+    beginPause();
+    return finishPause(idleTimeoutMs) < 0 ? -1 : 0;
+}
+
+// Size of a frame in the output format, in bytes
+static size_t getFrameSize(void) {
+    return getNumPcm(getSampleSize(output_format));
+}
+
+// Read a sample of a buffer in the output format, in the units of that format
+static float getSample(const void *const buffer, const size_t index) {
+    return output_format == SAMPLE_FORMAT_FLOAT ? ((const float *) buffer)[index] :
+           (float) ((const output_t *) buffer)[index];
+}
+
+// Write a sample to a buffer in the output format
+static void putSample(void *const buffer, const size_t index, const float sample) {
+    if (output_format == SAMPLE_FORMAT_FLOAT) {
+        ((float *) buffer)[index] = sample;
+    } else {
+        // Saturate, since mixing can overflow
+        ((output_t *) buffer)[index] = (output_t) MIN(MAX(sample, (float) INT16_MIN),
+                                                      (float) INT16_MAX);
     }
+}
 
-    state = PLAYING;
+/* Render frames of the current recording, up to its end. A beat starts with the first frame if it
+ * starts the recording. Returns the number rendered. */
+static int32_t renderRecording(void *const out, const int32_t numFrames) {
 
-    // Fill the queue with buffers, starting playback
-    for (i = 0; i < bufferQueueSize; i++) {
-        if (enqueueBuffer() != SL_RESULT_SUCCESS) {
-            LOG_E(LOG_TAG, "playback failed: failed to enqueue buffer");
-            return -1;
-        }
+    const size_t frameSize = getFrameSize();
+    const int32_t frames = (int32_t) MIN((size_t) numFrames, record_length - playback_frame);
+
+    beat_offset = playback_frame == 0 ? 0 : -1;
+    memcpy(out, (const char *) record_buffer + playback_frame * frameSize, frames * frameSize);
+    playback_frame += frames;
+    if (playback_frame >= record_length)
+        playback_frame = 0;
+
+    return frames;
+}
+
+// Advance the playback position of the current recording by one frame, circularly
+static void advancePlayback(void) {
+    if (++playback_frame >= record_length)
+        playback_frame = 0;
+}
+
+// Advance the playback position of the new recording by one frame, circularly
+static void advanceSwap(void) {
+    if (++swap_frame >= swap_length)
+        swap_frame = 0;
+}
+
+/* Called from the audio thread. Start crossfading to the new recording, if it's time. An immediate
+ * swap starts now, at the same phase of the new beat. Otherwise, the crossfade ends with the
+ * current beat, blending in the tail of the new recording, so its start plays on the next beat.
+ * Returns nonzero if the crossfade started. */
+static int startCrossfade(const int32_t numFrames) {
+
+    const size_t oldLength = record_length;
+    const size_t newLength = swap_length;
+    const size_t position = playback_frame;
+    size_t fadeLength = MIN((size_t) playerSampleRate * crossfadeMs / 1000,
+                            MIN(oldLength, newLength));
+    size_t lead, newPosition;
+    int expected = SWAP_PENDING;
+
+    if (swap_immediate) {
+        lead = 0;
+        newPosition = (size_t) ((double) position * newLength / oldLength);
+    } else {
+        // Wait for the last render before the crossfade
+        const size_t remaining = oldLength - position;
+        if (remaining > fadeLength + numFrames)
+            return 0;
+
+        fadeLength = MIN(fadeLength, remaining);
+        lead = remaining - fadeLength;
+        newPosition = newLength - fadeLength;
     }
-    LOG_I(LOG_TAG, "created %d audio buffers", bufferQueueSize);
 
-    return 0;
+    // Take the new recording, unless the swap was just cancelled
+    if (!__atomic_compare_exchange_n(&swap_state, &expected, SWAP_FADING, 0, __ATOMIC_ACQUIRE,
+                                     __ATOMIC_RELAXED))
+        return 0;
+
+    fade_lead = lead;
+    fade_length = fade_count = fadeLength;
+    swap_frame = newPosition;
+    __atomic_store_n(&switch_latency_ns, nowNs() - swap_request_ns, __ATOMIC_RELAXED);
+    return 1;
+}
+
+// Called from the audio thread. Tell whether the next frames are part of a crossfade.
+static int isCrossfading(const int32_t numFrames) {
+
+    switch (__atomic_load_n(&swap_state, __ATOMIC_ACQUIRE)) {
+        case SWAP_PENDING:
+            return startCrossfade(numFrames);
+        case SWAP_FADING:
+            return 1;
+        default:
+            return 0;
+    }
 }
 
-// shut down the native audio system
-static void shutdownAudio(void) {
-    // destroy buffer queue audio player object, and invalidate all
-    // associated interfaces
-    if (bqPlayerObject != NULL) {
-        (*bqPlayerObject)->Destroy(bqPlayerObject);
-        bqPlayerObject = NULL;
-        bqPlayerPlay = NULL;
-        bqPlayerBufferQueue = NULL;
+/* Called from the audio thread. Render frames crossfading from the current recording to the new
+ * one, switching to the new one when the crossfade is done. The beat follows the new recording.
+ * Returns the number rendered. */
+static int32_t renderCrossfade(void *const out, const int32_t numFrames) {
+
+    int32_t frames, i, j;
+
+    // Play the old recording up to the crossfade
+    if (fade_lead > 0) {
+        frames = renderRecording(out, (int32_t) MIN((size_t) numFrames, fade_lead));
+        fade_lead -= frames;
+        return frames;
     }
 
-    // destroy output mix object, and invalidate all associated interfaces
-    if (outputMixObject != NULL) {
-        (*outputMixObject)->Destroy(outputMixObject);
-        outputMixObject = NULL;
+    // Blend the recordings with a linear ramp
+    frames = (int32_t) MIN((size_t) numFrames, fade_count);
+    beat_offset = -1;
+    for (i = 0; i < frames; i++) {
+        const float gain = (float) (fade_length - fade_count) / (float) fade_length;
+        for (j = 0; j < numChannels; j++) {
+            const float oldSample = getSample(record_buffer, getNumPcm(playback_frame) + j);
+            const float newSample = getSample(swap_buffer, getNumPcm(swap_frame) + j);
+            putSample(out, getNumPcm(i) + j, oldSample * (1.F - gain) + newSample * gain);
+        }
+        if (swap_frame == 0 && beat_offset < 0)
+            beat_offset = i;
+        advancePlayback();
+        advanceSwap();
+        fade_count--;
     }
 
-    // destroy engine object, and invalidate all associated interfaces
-    if (engineObject != NULL) {
-        (*engineObject)->Destroy(engineObject);
-        engineObject = NULL;
-        engineEngine = NULL;
+    // Switch to the new recording once the crossfade is done
+    if (fade_count == 0) {
+        retired_buffer = record_buffer;
+        record_buffer = swap_buffer;
+        record_length = swap_length;
+        playback_frame = swap_frame;
+        swap_buffer = NULL;
+        __atomic_store_n(&swap_state, SWAP_DONE, __ATOMIC_RELEASE);
+        sem_post(&swap_done);
     }
+
+    return frames;
 }
 
-// Deletes all data
-static void cleanup(void) {
-    shutdownAudio();
-    sem_destroy(&is_idle);
-    if (record_buffer != NULL) {
-        free(record_buffer);
-        record_buffer = NULL;
+/* Called from the audio thread. Add frames of a stream to the output, fading its gain towards the
+ * target over at most one device buffer. */
+static void mixStream(struct stream *const stream, void *const out, const int32_t numFrames,
+                      const float targetGain) {
+
+    const float maxStep = 1.F / (float) bufferSizeMono;
+    float gain = stream->current_gain;
+    int32_t i, j;
+
+    for (i = 0; i < numFrames; i++) {
+        gain = gain < targetGain ? MIN(gain + maxStep, targetGain) :
+               MAX(gain - maxStep, targetGain);
+        for (j = 0; j < numChannels; j++) {
+            const size_t index = getNumPcm(i) + j;
+            const float sample = getSample(stream->buffer, getNumPcm(stream->frame) + j);
+            putSample(out, index, getSample(out, index) + sample * gain);
+        }
+        if (++stream->frame >= stream->length)
+            stream->frame = 0;
     }
+
+    stream->current_gain = gain;
 }
 
-// Set the player's state to paused. If currently playing, waits for the buffer to empty.
-static int idle(void) {
+/* Called from the audio thread. Mix the streams into frames of the recording, which started at the
+ * given frame of its loop. New streams start at their offset from the start of that loop. */
+static void mixStreams(void *const out, const int32_t numFrames, const size_t recordingFrame) {
 
-    switch (state) {
-        case IDLE:
-            // Do nothing if we're already idle
-            return 0;
-        case PLAYING:
+    int i;
+
+    for (i = 0; i < MAX_STREAMS; i++) {
+        struct stream *const stream = &streams[i];
+        const int streamState = __atomic_load_n(&stream->state, __ATOMIC_ACQUIRE);
+        float targetGain = 0.F;
+
+        if (streamState != STREAM_PLAYING && streamState != STREAM_STOPPING)
+            continue;
 
-            // Initialize the pausing parameters
-            pause_count = bufferSizeMono;
-            pause_factor = 1.F / (float) pause_count;
+        if (!stream->started) {
+            stream->frame = (recordingFrame % stream->length + stream->length - stream->offset) %
+                            stream->length;
+            stream->started = 1;
+        }
 
-            // Initiate the pausing phase
-            state = STOPPING;
+        if (streamState == STREAM_PLAYING)
+            __atomic_load(&stream->gain, &targetGain, __ATOMIC_RELAXED);
+        mixStream(stream, out, numFrames, targetGain);
 
-            // Fall-through to stopping
-        case STOPPING:
-            // Block until we have confirmation that there are no more callbacks
-            sem_wait(&is_idle);
-            state = IDLE;
+        // Let the caller free a stream once it has faded out
+        if (streamState == STREAM_STOPPING && stream->current_gain == 0.F)
+            __atomic_store_n(&stream->state, STREAM_DONE, __ATOMIC_RELEASE);
     }
+}
 
-    // Tell OpenSL ES to stop playing sound. Note: this is non-blocking
-    if ((*bqPlayerPlay)->SetPlayState(bqPlayerPlay, SL_PLAYSTATE_PAUSED) != SL_RESULT_SUCCESS)
-        return -1;
+// Called from the audio thread. Add frames of the clicks which are ringing to the output.
+static void mixClickVoices(void *const out, const int32_t numFrames) {
 
-    // Delete all data
-    cleanup();
-    return 0;
+    const float gain = click_track->gain;
+    int i, j, k;
+
+    for (i = 0; i < NUM_CLICK_VOICES; i++) {
+        struct click_voice *const voice = &click_voices[i];
+        int32_t frames;
+
+        if (voice->buffer == NULL)
+            continue;
+
+        frames = (int32_t) MIN((size_t) numFrames, voice->length - voice->frame);
+        for (j = 0; j < frames; j++) {
+            for (k = 0; k < numChannels; k++) {
+                const size_t index = getNumPcm(j) + k;
+                const float sample = getSample(voice->buffer, getNumPcm(voice->frame + j) + k);
+                putSample(out, index, getSample(out, index) + sample * gain);
+            }
+        }
+
+        voice->frame += frames;
+        if (voice->frame >= voice->length)
+            voice->buffer = NULL;
+    }
+}
+
+/* Called from the audio thread on a beat. Switch to the pending click track, if any, once the
+ * caller has freed the one retired before. The clicks of the old track are cut off, and the bar
+ * starts over. */
+static void takeClickTrack(void) {
+
+    struct click_track *pending;
+
+    if (__atomic_load_n(&click_pending, __ATOMIC_RELAXED) == NULL ||
+        __atomic_load_n(&click_retired, __ATOMIC_ACQUIRE) != NULL)
+        return;
+    if ((pending = __atomic_exchange_n(&click_pending, NULL, __ATOMIC_ACQUIRE)) == NULL)
+        return;
+
+    memset(click_voices, 0, sizeof(click_voices));
+    __atomic_store_n(&click_retired, click_track, __ATOMIC_RELEASE);
+    click_track = pending == &clicks_off ? NULL : pending;
+    click_beat = 0;
 }
 
+// Called from the audio thread on a beat. Start a click, on a silent voice, or else cutting off
+// the one which has rung the longest.
+static void startClick(void) {
+
+    const int accented = click_track->beats_per_bar > 0 && click_beat == 0 &&
+                         click_track->accent != NULL;
+    struct click_voice *voice = &click_voices[0];
+    int i;
+
+    for (i = 1; i < NUM_CLICK_VOICES && voice->buffer != NULL; i++) {
+        if (click_voices[i].buffer == NULL || click_voices[i].frame > voice->frame)
+            voice = &click_voices[i];
+    }
 
-static SLresult enqueueBuffer(void) {
+    voice->buffer = accented ? click_track->accent : click_track->normal;
+    voice->length = accented ? click_track->accent_length : click_track->normal_length;
+    voice->frame = 0;
 
-    SLresult result;
+    if (click_track->beats_per_bar > 0 && ++click_beat >= click_track->beats_per_bar)
+        click_beat = 0;
+}
 
-    const size_t bufferSizePcm = getNumPcm(bufferSizeMono);
+/* Called from the audio thread. Mix the clicks into frames of the recording, starting one on the
+ * beat if the frames have one. A new click track takes over on the beat too. */
+static void mixClicks(void *const out, const int32_t numFrames) {
 
-    // Enqueue playback
-    result = (*bqPlayerBufferQueue)->Enqueue(bqPlayerBufferQueue, playback_position,
-                                             bufferSizePcm * sizeof(output_t));
+    const int32_t beat = beat_offset;
 
-    // Update the playback position circularly
-    playback_position += bufferSizePcm;
-    if (playback_position >= recording_position) {
-        playback_position = record_buffer + (playback_position - recording_position);
+    if (beat < 0) {
+        if (click_track != NULL)
+            mixClickVoices(out, numFrames);
+        return;
     }
 
-    return result;
+    if (click_track != NULL)
+        mixClickVoices(out, beat);
+    takeClickTrack();
+    if (click_track == NULL)
+        return;
+    startClick();
+    mixClickVoices((char *) out + beat * getFrameSize(), numFrames - beat);
 }
 
-// this callback handler is called every time a buffer finishes
-// playing
-static void bqPlayerCallback(SLAndroidSimpleBufferQueueItf bq, void *context) {
+// Called from the audio thread. Render the next frames of the recording, crossfading to a new one
+// if requested, and mix in the streams and the clicks. Returns the number rendered.
+static int32_t renderPlaying(void *const out, const int32_t numFrames) {
 
-    SLresult result;
-    int i, j;
+    const size_t recordingFrame = playback_frame;
+    const int32_t frames = isCrossfading(numFrames) ? renderCrossfade(out, numFrames) :
+                           renderRecording(out, numFrames);
 
-    assert(bq == bqPlayerBufferQueue);
-    assert(NULL == context);
+    mixStreams(out, frames, recordingFrame);
+    mixClicks(out, frames);
+    return frames;
+}
 
-    switch (state) {
-        case IDLE:
-            // This shouldn't happen
-            assert(0);
-        case STOPPING:
-            // Quit playing once the ramp is done
-            if (pause_count <= 0) {
-                sem_post(&is_idle);
-                return;
-            }
+// Scale rendered frames in place, by a gain which changes linearly per frame
+static void scaleFrames(void *const out, const int32_t numFrames, const float gain,
+                        const float slope) {
 
-            // Apply a linear ramp to the audio signal. Assumes interleaved channels
-            for (i = 0; i < bufferSizeMono; i++) {
-                const float rampFactor = pause_count > 0 ? (float) pause_count-- * pause_factor : 0;
-                for (j = 0; j < numChannels; j++) {
-                    const int sampleIdx = getNumPcm(i) + j;
-                    const float sample = playback_position[sampleIdx];
-                    const float ramped = sample * rampFactor;
-                    playback_position[sampleIdx] = (output_t) ramped;
-                }
-            }
+    int32_t i, j;
 
-            // Falls through to playback
-        case PLAYING:
-            // Enqueue playback of a buffer's portion of the recording
-            result = enqueueBuffer();
-            switch (result) {
-                case SL_RESULT_SUCCESS:
-                case SL_RESULT_OPERATION_ABORTED:
-                    return;
-                default:
-                    /* Could get SL_RESULT_BUFFER_INSUFFICIENT (code 7) if the buffer is full. This
-                     * shouldn't happen because we are supposed to wait for the buffer to clear
-                     * before starting a new render. */
-                    LOG_E(LOG_TAG, "Error code from OpenSL ES enqueue buffer: %d", result);
-                    assert(0);
-            }
-            return;
+    for (i = 0; i < numFrames; i++) {
+        const float rampFactor = gain + (float) i * slope;
+        for (j = 0; j < numChannels; j++) {
+            const size_t index = getNumPcm(i) + j;
+            putSample(out, index, getSample(out, index) * rampFactor);
+        }
     }
 }
 
-// Return a uniformly distributed R.V. in the range [0,1]
-static float uniform(void) {
-    return ((float) rand()) / (float) RAND_MAX;
+// Render frames with a linear ramp to silence. Returns the number rendered.
+static int32_t renderRamp(void *const out, const int32_t numFrames) {
+
+    const int32_t frames = renderPlaying(out, (int32_t) MIN((size_t) numFrames, pause_count));
+
+    scaleFrames(out, frames, (float) pause_count * pause_factor, -pause_factor);
+    pause_count -= frames;
+
+    return frames;
 }
 
-// Return triangularly-distributed dither in the range [-1, 1].
-static float dither(void) {
-    return (uniform() + uniform()) / 2;
+// Render frames with a linear ramp up from silence. Returns the number rendered.
+static int32_t renderResume(void *const out, const int32_t numFrames) {
+
+    const int32_t frames = renderPlaying(out, (int32_t) MIN((size_t) numFrames, resume_count));
+    const float slope = 1.F / (float) resume_length;
+
+    scaleFrames(out, frames, (float) (resume_length - resume_count) * slope, slope);
+    resume_count -= frames;
+
+    return frames;
 }
 
-// Convert float audio to the desired output type, with dithering.
-static int finalizeAudio(const float *const inBuffer, output_t *const outBuffer,
-                     const size_t bufferLength) {
+// Called from the audio thread. Fill the buffer with the next frames of the recording.
+static void renderFrames(void *const buffer, const int32_t numFrames) {
 
-    float maxBefore;
-    size_t i;
+    const size_t frameSize = getFrameSize();
+    int32_t i;
 
-    assert(sizeof(int16_t) == sizeof(output_t));
-    const double maxPcm = (double) INT16_MAX;
+    const enum State current = __atomic_load_n(&state, __ATOMIC_ACQUIRE);
 
-    // Compute the linear gain
-    const float gain = (float) (maxPcm / (double) maxFloatLevel);
+    for (i = 0; i < numFrames; ) {
+        void *const out = (char *) buffer + i * frameSize;
+        const int32_t remaining = numFrames - i;
+
+        switch (current) {
+            case PLAYING:
+                // Ramp up the sound after resuming
+                if (resume_count > 0) {
+                    i += renderResume(out, remaining);
+                    continue;
+                }
+
+                // Play the recording, crossfading to a new one if requested
+                i += renderPlaying(out, remaining);
+                continue;
+            case STOPPING:
+                // Ramp down the sound
+                if (pause_count > 0) {
+                    i += renderRamp(out, remaining);
+                    continue;
+                }
 
-    // Apply the gain and convert to fixed-point
-    for (i = 0; i < bufferLength; i++) {
-        // Apply gain and dither
-        const float dithered = inBuffer[i] * gain + dither();
+                // Quit playing once the ramp has played
+                if (drain_count > 0 && (drain_count -= remaining) <= 0)
+                    sem_post(&is_idle);
 
-        // Convert with truncation to avoid overflow
-        outBuffer[i] = (output_t) MIN(MAX(dithered, (float) INT16_MIN), (float) INT16_MAX);
+                // Falls through to silence
+            case IDLE:
+            default:
+                memset(out, 0, remaining * frameSize);
+                return;
+        }
     }
+}
 
-    return 0;
+// Bin a time by powers of two microseconds
+static int getHealthBin(const int64_t ns) {
+    const int64_t us = ns / 1000;
+    return us > 0 ? MIN(63 - __builtin_clzll((unsigned long long) us), HEALTH_BINS - 1) : 0;
 }
 
-// Make a copy of the recording and add padding
-int formatRecording(const int bufferSizeMono, const jfloat *const floatBuffer,
-        const size_t recordingSizeMono) {
+// Called from the audio thread, which is the only writer, so the counters are read non-atomically
+static void addToCounter(int64_t *const counter, const int64_t amount) {
+    __atomic_store_n(counter, *counter + amount, __ATOMIC_RELAXED);
+}
 
-    // Allocate a new recording. Add an extra buffer at the end, to imitate looping behavior
-    const size_t bufferLength = getNumPcm(recordingSizeMono + bufferSizeMono);
-    if ((record_buffer = (output_t *) malloc(bufferLength * sizeof(output_t))) == NULL) {
-        LOG_E(LOG_TAG, "Insufficient memory for recording buffer.");
-        return -1;
-    }
+// Called from the audio thread. Raise a maximum to the given value.
+static void raiseMax(int64_t *const max, const int64_t value) {
+    if (value > *max)
+        __atomic_store_n(max, value, __ATOMIC_RELAXED);
+}
 
-    // Convert to the output format with dithering
-    const size_t recordingLength = getNumPcm(recordingSizeMono);
-    finalizeAudio(floatBuffer, record_buffer, recordingLength);
-
-    // Set the end of the recording
-    recording_position = record_buffer + recordingLength;
-
-    // Configure the loop imitation at the end of the recording. Might theoretically need multiple
-    // copies if the buffer size exceeds the recording size
-    output_t *copySrcPosition, *copyDstPosition;
-    const output_t *const bufferEndPosition = record_buffer + bufferLength;
-    for (copySrcPosition = record_buffer, copyDstPosition = recording_position;
-         copyDstPosition < bufferEndPosition;
-            ) {
-        const size_t paddingCopyRemaining = bufferEndPosition - copyDstPosition;
-        const size_t amountToCopy = paddingCopyRemaining > recordingLength ? recordingLength :
-                                    paddingCopyRemaining;
-        // Copy the recording circularly
-        memcpy(copyDstPosition, copySrcPosition, amountToCopy * sizeof(output_t));
-        copyDstPosition += amountToCopy;
-        copySrcPosition += amountToCopy;
-        if (copySrcPosition >= recording_position) {
-            assert(copySrcPosition == recording_position);
-            copySrcPosition = record_buffer;
-        }
+/* Called from the audio thread. Add a callback to the health, given the times it started and
+ * ended. The interval since the last callback is left out if the output stopped in between. */
+static void recordHealth(const int64_t startNs, const int64_t endNs, const int32_t numFrames) {
+
+    const int restarted = __atomic_exchange_n(&output_restarted, 0, __ATOMIC_RELAXED);
+    const int64_t intervalNs = startNs - last_callback_ns;
+    const int64_t renderNs = endNs - startNs;
+
+    // Mark the update in progress, ahead of the counters
+    __atomic_store_n(&health_sequence, health_sequence + 1, __ATOMIC_RELAXED);
+    __atomic_thread_fence(__ATOMIC_RELEASE);
+
+    addToCounter(&health.callbacks, 1);
+    addToCounter(&health.frames, numFrames);
+    addToCounter(&health.render_bins[getHealthBin(renderNs)], 1);
+    addToCounter(&health.render_ns, renderNs);
+    raiseMax(&health.max_render_ns, renderNs);
+    if (!restarted) {
+        addToCounter(&health.interval_bins[getHealthBin(intervalNs)], 1);
+        raiseMax(&health.max_interval_ns, intervalNs);
+        if (intervalNs > __atomic_load_n(&late_interval_ns, __ATOMIC_RELAXED))
+            addToCounter(&health.late_callbacks, 1);
     }
 
-    return 0;
+    // Publish the update
+    __atomic_store_n(&health_sequence, health_sequence + 1, __ATOMIC_RELEASE);
+    last_callback_ns = startNs;
 }
 
-// Tell whether we are playing sound. For our purposes, stopping does not count.
-static int isPlaying(void) {
-    return state == PLAYING;
+// Called from the audio thread. Render the next frames, timing the callback for the health.
+static void renderAudio(void *const buffer, const int32_t numFrames) {
+
+    const int64_t startNs = nowNs();
+
+    renderFrames(buffer, numFrames);
+    recordHealth(startNs, nowNs(), numFrames);
 }
 
-/* ------------------ JNI functions ---------------------- */
+// Convert float audio to the desired output type, with dithering. The buffers may be the same, in
+// which case the conversion is done in place. The dither is seeded the same way every time, so a
+// recording always converts to the same PCM.
+static void finalizeAudio(const float *const inBuffer, output_t *const outBuffer,
+                          const size_t bufferLength) {
 
-// Play the given recording
-static
-jboolean
-playJNI(JNIEnv *env,
-        jobject obj,
-        jint deviceSampleRate,
-        jint deviceBufferSizeMono,
-        jfloatArray jArray) {
+    const float gain = (float) ((double) INT16_MAX / (double) maxFloatLevel);
+
+    dither_to_pcm16(inBuffer, outBuffer, bufferLength, gain, ditherSeed, ditherNoiseShaping);
+}
 
-    int result;
+// Convert 16 bit PCM to float audio. The buffers may be the same, in which case the conversion is
+// done in place, so it runs backwards.
+static void expandAudio(const output_t *const inBuffer, float *const outBuffer,
+                        const size_t bufferLength) {
 
-    // Stop playing, in case we previously were
-    if (idle())
-        return JNI_FALSE;
+    const float gain = maxFloatLevel / (float) INT16_MAX;
+    size_t i;
 
-    // Get the recording data
-    jboolean isCopy;
-    jfloat *const jData = (*env)->GetFloatArrayElements(env, jArray, &isCopy);
-    const size_t recordingSizeMono = (size_t) (*env)->GetArrayLength(env, jArray) / numChannels;
+    for (i = bufferLength; i > 0; i--)
+        outBuffer[i - 1] = (float) inBuffer[i - 1] * gain;
+}
 
-    // Make a copy for our own purposes, with padding
-    result = formatRecording(deviceBufferSizeMono, jData, recordingSizeMono);
+// Allocate a recording in the given format
+static void *allocateRecording(const size_t recordingSizeMono, const enum sample_format format) {
 
-    // Release the input recording, without writing back changes
-    (*env)->ReleaseFloatArrayElements(env, jArray, jData, JNI_ABORT);
+    void *const buffer = malloc(getNumPcm(recordingSizeMono) * getSampleSize(format));
+    if (buffer == NULL) {
+        LOG_E(LOG_TAG, "Insufficient memory for recording buffer.");
+    }
 
-    // If recording failed to format, quit early
-    if (result)
-        return JNI_FALSE;
+    return buffer;
+}
 
-    // Play sound
-    if (play(deviceSampleRate, deviceBufferSizeMono)) {
-        cleanup();
-        return JNI_FALSE;
+/* Convert a recording to the output format, in place. Float audio is only dithered down to 16 bit
+ * PCM if the output can't take it as is. Returns the converted recording, or NULL on failure, in
+ * which case the recording is freed. */
+static void *convertRecording(void *const buffer, const enum sample_format format,
+                              const size_t recordingSizeMono) {
+
+    const size_t recordingSizePcm = getNumPcm(recordingSizeMono);
+    void *converted;
+
+    if (format == output_format)
+        return buffer;
+
+    switch (output_format) {
+        case SAMPLE_FORMAT_I16:
+            // Shrink the buffer once converted. The recording stays where it is on failure.
+            finalizeAudio((const float *) buffer, (output_t *) buffer, recordingSizePcm);
+            converted = realloc(buffer, recordingSizePcm * sizeof(output_t));
+            return converted != NULL ? converted : buffer;
+        case SAMPLE_FORMAT_FLOAT:
+        default:
+            // Grow the buffer before converting
+            if ((converted = realloc(buffer, recordingSizePcm * sizeof(float))) == NULL) {
+                LOG_E(LOG_TAG, "Insufficient memory to convert the recording.");
+                free(buffer);
+                return NULL;
+            }
+            expandAudio((const output_t *) converted, (float *) converted, recordingSizePcm);
+            return converted;
+    }
+}
+
+// Free the stored recording, if any. The output must be idle.
+static void freeRecording(void) {
+    if (record_buffer != NULL) {
+        free(record_buffer);
+        record_buffer = NULL;
     }
+}
 
-    return JNI_TRUE;
+// Free a stream, leaving its slot unused
+static void freeStream(struct stream *const stream) {
+    free(stream->buffer);
+    stream->buffer = NULL;
+    __atomic_store_n(&stream->state, STREAM_FREE, __ATOMIC_RELAXED);
 }
 
-// Obfuscated JNI wrapper for the former
-JNIEXPORT
-jboolean
-Java_com_bbrister_mididriver_PlaybackDriver_B(JNIEnv *env,
-                                          jobject obj,
-                                          jint deviceSampleRate,
-                                          jint deviceBufferSizeMono,
-                                          jfloatArray jArray) {
-    return playJNI(env, obj, deviceSampleRate, deviceBufferSizeMono, jArray);
+// Free all the streams. Only safe while idle.
+static void freeStreams(void) {
+
+    int i;
+
+    for (i = 0; i < MAX_STREAMS; i++) {
+        if (streams[i].state != STREAM_FREE)
+            freeStream(&streams[i]);
+    }
 }
 
-// Stop looping, delete the recording
-static
-jboolean
-pauseJNI(JNIEnv *env,
-         jobject obj) {
-    return (idle() == 0) ? JNI_TRUE : JNI_FALSE;
+// Free the streams which the audio thread is done with
+static void reapStreams(void) {
+
+    int i;
+
+    for (i = 0; i < MAX_STREAMS; i++) {
+        if (__atomic_load_n(&streams[i].state, __ATOMIC_ACQUIRE) == STREAM_DONE)
+            freeStream(&streams[i]);
+    }
 }
 
-// Obfuscated JNI wrapper for the former
-JNIEXPORT
-jboolean
-Java_com_bbrister_mididriver_PlaybackDriver_C(JNIEnv *env,
-                                          jobject obj) {
-    return pauseJNI(env, obj);
+/* Convert the streams to the output format, after reopening the output. Only safe while idle. A
+ * stream which fails to convert is dropped. */
+static void convertStreams(const enum sample_format oldFormat) {
+
+    int i;
+
+    for (i = 0; i < MAX_STREAMS; i++) {
+        struct stream *const stream = &streams[i];
+        if (stream->state == STREAM_FREE)
+            continue;
+        if ((stream->buffer = convertRecording(stream->buffer, oldFormat, stream->length)) == NULL)
+            freeStream(stream);
+    }
 }
 
-// Tell whether we are playing sound. For our purposes, stopping does not count.
-static
-jboolean
-isPlayingJNI(JNIEnv *env,
-             jobject obj) {
-    return isPlaying() ? JNI_TRUE : JNI_FALSE;
+// Find a stream by its ID. Returns NULL if there is none.
+static struct stream *findStream(const int id) {
+
+    int i;
+
+    for (i = 0; i < MAX_STREAMS; i++) {
+        if (streams[i].state != STREAM_FREE && streams[i].id == id)
+            return &streams[i];
+    }
+
+    return NULL;
 }
 
-// Obfuscated JNI wrapper for the former
-JNIEXPORT
-jboolean
-Java_com_bbrister_mididriver_PlaybackDriver_D(JNIEnv *env,
-                                              jobject obj) {
-    return isPlayingJNI(env, obj);
+/* Add a stream, which takes ownership of the buffer, to the recording which is playing. It is
+ * converted to the output format, if they differ. The stream fades in without interrupting the
+ * output, starting the given number of frames after the start of the recording's loop. Returns the
+ * stream's ID, or -1 on failure, e.g. if nothing is playing or there are too many streams. */
+static int addStream(void *buffer, const enum sample_format format, const size_t streamSizeMono,
+                     const float gain, const size_t offset) {
+
+    struct stream *stream = NULL;
+    int i;
+
+    reapStreams();
+    for (i = 0; i < MAX_STREAMS && stream == NULL; i++) {
+        if (streams[i].state == STREAM_FREE)
+            stream = &streams[i];
+    }
+
+    if (stream == NULL || state != PLAYING || streamSizeMono == 0) {
+        LOG_E(LOG_TAG, "Failed to add a stream.");
+        free(buffer);
+        return -1;
+    }
+    if ((buffer = convertRecording(buffer, format, streamSizeMono)) == NULL)
+        return -1;
+
+    // Hand the stream to the audio thread
+    stream->id = next_stream_id++;
+    stream->buffer = buffer;
+    stream->length = streamSizeMono;
+    stream->offset = offset % streamSizeMono;
+    stream->started = 0;
+    stream->gain = gain;
+    stream->current_gain = 0.F;
+    __atomic_store_n(&stream->state, STREAM_PLAYING, __ATOMIC_RELEASE);
+
+    return stream->id;
 }
 
+/* Fade out a stream and remove it, without interrupting the output. It is freed once the audio
+ * thread is done with it. Returns nonzero if there is no such stream. */
+static int removeStream(const int id) {
 
+    struct stream *const stream = findStream(id);
+    int expected = STREAM_PLAYING;
+
+    if (stream == NULL)
+        return -1;
+
+    // Free it right away if the audio thread is idle, and so not using it
+    if (state == IDLE) {
+        freeStream(stream);
+        return 0;
+    }
+
+    __atomic_compare_exchange_n(&stream->state, &expected, STREAM_STOPPING, 0, __ATOMIC_RELEASE,
+                                __ATOMIC_RELAXED);
+    reapStreams();
+    return 0;
+}
+
+// Change the gain of a stream, which fades to the new one. Returns nonzero if there is no such
+// stream.
+static int setStreamGain(const int id, const float gain) {
+
+    struct stream *const stream = findStream(id);
+    float newGain = gain;
+
+    if (stream == NULL)
+        return -1;
+
+    __atomic_store(&stream->gain, &newGain, __ATOMIC_RELAXED);
+    return 0;
+}
+
+// Free a click track and its clicks
+static void freeClickTrack(struct click_track *const track) {
+    if (track == NULL || track == &clicks_off)
+        return;
+    free(track->normal);
+    free(track->accent);
+    free(track);
+}
+
+// Free all the click tracks, turning the clicks off. Only safe while idle.
+static void freeClicks(void) {
+    freeClickTrack(click_track);
+    freeClickTrack(click_pending);
+    freeClickTrack(click_retired);
+    click_track = click_pending = click_retired = NULL;
+    memset(click_voices, 0, sizeof(click_voices));
+}
+
+/* Convert the clicks of a track to the output format, from the given one. Returns nonzero on
+ * failure, in which case the track is freed. */
+static int convertClickTrack(struct click_track *const track, const enum sample_format format) {
+
+    const int hadAccent = track->accent != NULL;
+
+    track->normal = convertRecording(track->normal, format, track->normal_length);
+    if (hadAccent)
+        track->accent = convertRecording(track->accent, format, track->accent_length);
+
+    if (track->normal == NULL || (hadAccent && track->accent == NULL)) {
+        freeClickTrack(track);
+        return -1;
+    }
+
+    return 0;
+}
+
+/* Convert the click tracks to the output format, after reopening the output. Only safe while idle.
+ * A track which fails to convert is dropped. */
+static void convertClicks(const enum sample_format oldFormat) {
+
+    freeClickTrack(click_retired);
+    click_retired = NULL;
+    memset(click_voices, 0, sizeof(click_voices));
+
+    if (click_track != NULL && convertClickTrack(click_track, oldFormat))
+        click_track = NULL;
+    if (click_pending != NULL && click_pending != &clicks_off &&
+        convertClickTrack(click_pending, oldFormat))
+        click_pending = NULL;
+}
+
+/* Hand a click track to the audio thread, which switches to it on the next beat. Replaces any track
+ * still waiting, and frees the one the audio thread last switched away from. While idle, the track
+ * is switched to right away. */
+static void handOverClickTrack(struct click_track *const track) {
+
+    if (state == IDLE) {
+        freeClicks();
+        click_pending = track;
+        return;
+    }
+
+    freeClickTrack(__atomic_exchange_n(&click_retired, NULL, __ATOMIC_ACQUIRE));
+    freeClickTrack(__atomic_exchange_n(&click_pending, track, __ATOMIC_ACQ_REL));
+}
+
+/* Start clicking on every beat of the recording which is playing, from the next beat on. Takes
+ * ownership of the clicks, which are converted to the output format, if they differ. The accented
+ * click plays on the first of every bar of the given number of beats, if any. Replaces the current
+ * click track on the beat, without re-rendering anything. Returns nonzero on failure, e.g. if
+ * nothing is playing. */
+static int setClickTrack(void *const normal, void *const accent, const enum sample_format format,
+                         const size_t normalSizeMono, const size_t accentSizeMono,
+                         const int beatsPerBar, const float gain) {
+
+    struct click_track *const track = (struct click_track *) malloc(sizeof(struct click_track));
+
+    if (track == NULL || state != PLAYING || normalSizeMono == 0 ||
+        (accent != NULL && accentSizeMono == 0)) {
+        LOG_E(LOG_TAG, "Failed to set the click track.");
+        free(track);
+        free(normal);
+        free(accent);
+        return -1;
+    }
+
+    track->normal = normal;
+    track->normal_length = normalSizeMono;
+    track->accent = accent;
+    track->accent_length = accentSizeMono;
+    track->beats_per_bar = MAX(beatsPerBar, 0);
+    track->gain = gain;
+    if (convertClickTrack(track, format))
+        return -1;
+
+    handOverClickTrack(track);
+    return 0;
+}
+
+// Stop clicking from the next beat on
+static void clearClickTrack(void) {
+    handOverClickTrack(&clicks_off);
+}
+
+/* Wait for the audio thread to finish the current swap, if any, and free the old recording.
+ * Cancels a swap which has not started yet. If the output died or the crossfade takes longer than
+ * idleTimeoutMs, the output is closed, so no more callbacks come, and the new recording is dropped.
+ * Returns nonzero in that case. */
+static int finishSwap(void) {
+
+    int expected = SWAP_PENDING;
+
+    switch (__atomic_load_n(&swap_state, __ATOMIC_ACQUIRE)) {
+        case SWAP_NONE:
+            return 0;
+        case SWAP_PENDING:
+            // Take back the new recording, unless the audio thread just started on it
+            if (__atomic_compare_exchange_n(&swap_state, &expected, SWAP_NONE, 0,
+                                            __ATOMIC_ACQUIRE, __ATOMIC_ACQUIRE)) {
+                free(swap_buffer);
+                swap_buffer = NULL;
+                return 0;
+            }
+
+            // Falls through to waiting
+        default:
+            if (waitForAudio(&swap_done, idleTimeoutMs)) {
+                LOG_W(LOG_TAG, "Dropped a crossfade which didn't finish.");
+                sink->close();
+                sink = NULL;
+                __atomic_store_n(&state, IDLE, __ATOMIC_RELEASE);
+                dropSwap();
+                return -1;
+            }
+            free(retired_buffer);
+            retired_buffer = NULL;
+            __atomic_store_n(&swap_state, SWAP_NONE, __ATOMIC_RELAXED);
+            return 0;
+    }
+}
+
+/* Switch to a new recording, which takes ownership of the buffer. The recording is converted to
+ * the output format, if they differ. If the output is running with the same parameters, the audio
+ * thread crossfades to the new recording without stopping, either at the end of the current beat
+ * or immediately. Otherwise, the current recording fades out and the new one starts from the top,
+ * on an output opened in its format if possible. Reports the time since the request, given in
+ * nanoseconds, until the first buffer of the new recording is rendered. */
+static int switchRecording(void *buffer, const enum sample_format format,
+                           const size_t recordingSizeMono, const int sampleRate,
+                           const int deviceBufferSizeMono, const int allowFloat,
+                           const int immediate, const int64_t requestNs) {
+
+    const enum sample_format oldFormat = output_format;
+
+    /* Hand the new recording to the audio thread, replacing any which is still waiting. If the
+     * last swap can't finish, the output is closed, and reopened below. */
+    if (state == PLAYING && sampleRate == playerSampleRate &&
+        deviceBufferSizeMono == bufferSizeMono &&
+        (allowFloat || output_format != SAMPLE_FORMAT_FLOAT) && sink->is_alive() &&
+        !finishSwap()) {
+        if ((buffer = convertRecording(buffer, format, recordingSizeMono)) == NULL)
+            return -1;
+        swap_buffer = buffer;
+        swap_length = recordingSizeMono;
+        swap_immediate = immediate;
+        swap_request_ns = requestNs;
+        __atomic_store_n(&swap_state, SWAP_PENDING, __ATOMIC_RELEASE);
+        return 0;
+    }
+
+    // Stop playing, in case we previously were
+    if (idle()) {
+        free(buffer);
+        return -1;
+    }
+
+    // Initialize the sound output, then replace the recording. The streams and the clicks only
+    // carry over at the same sample rate.
+    freeRecording();
+    if (sampleRate != playerSampleRate) {
+        freeStreams();
+        freeClicks();
+    }
+    float_allowed = allowFloat;
+    if (init(sampleRate, deviceBufferSizeMono, format, allowFloat)) {
+        free(buffer);
+        cleanup();
+        return -1;
+    }
+    convertStreams(oldFormat);
+    convertClicks(oldFormat);
+    if ((record_buffer = convertRecording(buffer, format, recordingSizeMono)) == NULL)
+        return -1;
+    record_length = recordingSizeMono;
+
+    // Play sound
+    if (play(0)) {
+        cleanup();
+        return -1;
+    }
+
+    const int64_t latencyNs = nowNs() - requestNs;
+    __atomic_store_n(&switch_latency_ns, latencyNs, __ATOMIC_RELAXED);
+    LOG_I(LOG_TAG, "New recording started after %.1f ms", (double) latencyNs / 1e6);
+    return 0;
+}
+
+// Tell whether we are playing sound. For our purposes, stopping does not count.
+static int isPlaying(void) {
+    return state == PLAYING;
+}
+
+/* Once the audio thread only renders silence, settle a swap which the fade out interrupted, so it
+ * carries over to the next output. A crossfade which started blending is finished on the new
+ * recording, at the same position. One which was still playing the old recording up to the beat
+ * is taken back, to be handed over again, and returned. Returns NULL if there is none. */
+static void *settleSwap(void) {
+
+    void *pending = NULL;
+
+    if (swap_state == SWAP_FADING) {
+        if (fade_lead > 0) {
+            pending = swap_buffer;
+        } else {
+            free(record_buffer);
+            record_buffer = swap_buffer;
+            record_length = swap_length;
+            playback_frame = swap_frame;
+        }
+        swap_buffer = NULL;
+    }
+    dropSwap();
+
+    return pending;
+}
+
+/* Switch to a new latency profile. The output is reopened with the new buffering. If it's playing,
+ * the sound ramps down, then ramps back up at the same position in the recording and the streams.
+ * A swap in progress carries over. The beat is late by the time it takes to reopen the output.
+ *
+ * Returns 0 on success, 1 if the output reopened with the old profile instead, -1 on error. */
+static int setProfile(const enum latency_profile newProfile) {
+
+    const enum sample_format oldFormat = output_format;
+    const enum latency_profile oldProfile = profile;
+    void *pending = NULL;
+    int wasPlaying, fellBack = 0;
+    int expected = SWAP_PENDING;
+
+    if (newProfile == profile)
+        return 0;
+    profile = newProfile;
+
+    // Nothing to reopen. The profile applies to the next output.
+    if (sink == NULL)
+        return 0;
+
+    /* Fade out, keeping the recording. Take back a swap the audio thread has yet to start on,
+     * before the fade out cancels it. */
+    wasPlaying = isPlaying();
+    if (wasPlaying) {
+        if (__atomic_compare_exchange_n(&swap_state, &expected, SWAP_NONE, 0, __ATOMIC_ACQUIRE,
+                                        __ATOMIC_ACQUIRE)) {
+            pending = swap_buffer;
+            swap_buffer = NULL;
+        }
+        beginIdle();
+        finishIdle(idleTimeoutMs);
+        if (pending == NULL)
+            pending = settleSwap();
+        else
+            dropSwap();
+    } else if (idle()) {
+        profile = oldProfile;
+        return -1;
+    }
+
+    // Close the output
+    if (sink != NULL) {
+        sink->close();
+        sink = NULL;
+    }
+    if (!wasPlaying)
+        return 0;
+
+    /* Reopen the output and resume, converting the recording if the format changed. If the device
+     * refuses the new buffering, go back to the old one, which it took before. */
+    if (init(playerSampleRate, bufferSizeMono, oldFormat, float_allowed)) {
+        LOG_W(LOG_TAG, "Failed to reopen the output with profile %d, falling back to %d",
+              newProfile, oldProfile);
+        profile = oldProfile;
+        fellBack = 1;
+        if (init(playerSampleRate, bufferSizeMono, oldFormat, float_allowed)) {
+            free(pending);
+            cleanup();
+            return -1;
+        }
+    }
+    convertStreams(oldFormat);
+    convertClicks(oldFormat);
+    if ((record_buffer = convertRecording(record_buffer, oldFormat, record_length)) == NULL) {
+        free(pending);
+        return -1;
+    }
+
+    // Hand the swap back to the audio thread, if it survived conversion
+    if (pending != NULL &&
+        (swap_buffer = convertRecording(pending, oldFormat, swap_length)) != NULL)
+        __atomic_store_n(&swap_state, SWAP_PENDING, __ATOMIC_RELEASE);
+
+    if (play(playback_frame)) {
+        cleanup();
+        return -1;
+    }
+
+    return fellBack;
+}
+
+// Number of render callbacks per minute since the output opened, or -1 if none is open
+static double getWakeupsPerMinute(void) {
+
+    const int64_t elapsedNs = nowNs() - output_open_ns;
+
+    if (sink == NULL || elapsedNs <= 0)
+        return -1;
+
+    return (double) __atomic_load_n(&health.callbacks, __ATOMIC_RELAXED) * 60e9 /
+           (double) elapsedNs;
+}
+
+/* Take a snapshot of the health of the output, laid out as in playback_health.h. Returns nonzero
+ * if no output is open. */
+static int getHealth(int64_t *const snapshot) {
+
+    struct playback_health copy;
+    int i;
+
+    if (sink == NULL)
+        return -1;
+
+    readHealth(&copy);
+    snapshot[HEALTH_ELAPSED_NS] = nowNs() - output_open_ns;
+    snapshot[HEALTH_CALLBACKS] = copy.callbacks;
+    snapshot[HEALTH_FRAMES] = copy.frames;
+    snapshot[HEALTH_MAX_INTERVAL_NS] = copy.max_interval_ns;
+    snapshot[HEALTH_RENDER_NS] = copy.render_ns;
+    snapshot[HEALTH_MAX_RENDER_NS] = copy.max_render_ns;
+    snapshot[HEALTH_LATE_CALLBACKS] = copy.late_callbacks;
+    snapshot[HEALTH_XRUNS] = sink->get_xrun_count();
+    snapshot[HEALTH_ENQUEUE_FAILURES] = sink->get_enqueue_failure_count();
+    snapshot[HEALTH_SAMPLE_RATE] = playerSampleRate;
+    snapshot[HEALTH_FRAMES_PER_CALLBACK] = (int64_t) bufferSizeMono * buffersPerCallback[profile];
+    snapshot[HEALTH_BUFFERED_FRAMES] = sink->get_buffered_frames();
+    snapshot[HEALTH_PROFILE] = profile;
+    snapshot[HEALTH_FLOAT_OUTPUT] = output_format == SAMPLE_FORMAT_FLOAT;
+    for (i = 0; i < HEALTH_BINS; i++) {
+        snapshot[HEALTH_INTERVAL_BINS + i] = copy.interval_bins[i];
+        snapshot[HEALTH_RENDER_BINS + i] = copy.render_bins[i];
+    }
+
+    return 0;
+}
+
+/* ------------------ JNI functions ---------------------- */
+
+/* Play the given recording. It is copied straight into the recording buffer, and plays as is if
+ * the output takes floating point, which it may if allowed. Otherwise, it is dithered to 16 bit PCM
+ * while the current one still plays. Replaces the current one at the end of the beat, or
+ * immediately. */
+static
+jboolean
+playJNI(JNIEnv *env,
+        jobject obj,
+        jint deviceSampleRate,
+        jint deviceBufferSizeMono,
+        jfloatArray jArray,
+        jboolean immediate,
+        jboolean floatOutput) {
+
+    const int64_t requestNs = nowNs();
+
+    // Copy the recording
+    assert(sizeof(jfloat) == sizeof(float));
+    const size_t recordingSizeMono = (size_t) (*env)->GetArrayLength(env, jArray) / numChannels;
+    float *const buffer = (float *) allocateRecording(recordingSizeMono, SAMPLE_FORMAT_FLOAT);
+    if (buffer == NULL)
+        return JNI_FALSE;
+    (*env)->GetFloatArrayRegion(env, jArray, 0, (jsize) getNumPcm(recordingSizeMono),
+                                (jfloat *) buffer);
+
+    // Play sound
+    return switchRecording(buffer, SAMPLE_FORMAT_FLOAT, recordingSizeMono, deviceSampleRate,
+                           deviceBufferSizeMono, floatOutput, immediate, requestNs) ?
+           JNI_FALSE : JNI_TRUE;
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jboolean
+Java_com_bbrister_mididriver_PlaybackDriver_B(JNIEnv *env,
+                                          jobject obj,
+                                          jint deviceSampleRate,
+                                          jint deviceBufferSizeMono,
+                                          jfloatArray jArray,
+                                          jboolean immediate,
+                                          jboolean floatOutput) {
+    return playJNI(env, obj, deviceSampleRate, deviceBufferSizeMono, jArray, immediate,
+                   floatOutput);
+}
+
+/* Play the given recording, in 16 bit PCM. It is copied straight into the recording buffer, and
+ * plays without conversion unless the output was already opened for floating point. Replaces the
+ * current one like playJNI. */
+static
+jboolean
+playPcm16JNI(JNIEnv *env,
+             jobject obj,
+             jint deviceSampleRate,
+             jint deviceBufferSizeMono,
+             jshortArray jArray,
+             jboolean immediate,
+             jboolean floatOutput) {
+
+    const int64_t requestNs = nowNs();
+
+    // Copy the recording
+    assert(sizeof(jshort) == sizeof(output_t));
+    const size_t recordingSizeMono = (size_t) (*env)->GetArrayLength(env, jArray) / numChannels;
+    output_t *const buffer = (output_t *) allocateRecording(recordingSizeMono, SAMPLE_FORMAT_I16);
+    if (buffer == NULL)
+        return JNI_FALSE;
+    (*env)->GetShortArrayRegion(env, jArray, 0, (jsize) getNumPcm(recordingSizeMono),
+                                (jshort *) buffer);
+
+    // Play sound
+    return switchRecording(buffer, SAMPLE_FORMAT_I16, recordingSizeMono, deviceSampleRate,
+                           deviceBufferSizeMono, floatOutput, immediate, requestNs) ?
+           JNI_FALSE : JNI_TRUE;
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jboolean
+Java_com_bbrister_mididriver_PlaybackDriver_E(JNIEnv *env,
+                                              jobject obj,
+                                              jint deviceSampleRate,
+                                              jint deviceBufferSizeMono,
+                                              jshortArray jArray,
+                                              jboolean immediate,
+                                              jboolean floatOutput) {
+    return playPcm16JNI(env, obj, deviceSampleRate, deviceBufferSizeMono, jArray, immediate,
+                        floatOutput);
+}
+
+// Stop looping, delete the recording. The output is kept for the next recording.
+static
+jboolean
+pauseJNI(JNIEnv *env,
+         jobject obj) {
+    return (stopPlayback() == 0) ? JNI_TRUE : JNI_FALSE;
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jboolean
+Java_com_bbrister_mididriver_PlaybackDriver_C(JNIEnv *env,
+                                          jobject obj) {
+    return pauseJNI(env, obj);
+}
+
+// Tell whether we are playing sound. For our purposes, stopping does not count.
+static
+jboolean
+isPlayingJNI(JNIEnv *env,
+             jobject obj) {
+    return isPlaying() ? JNI_TRUE : JNI_FALSE;
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jboolean
+Java_com_bbrister_mididriver_PlaybackDriver_D(JNIEnv *env,
+                                              jobject obj) {
+    return isPlayingJNI(env, obj);
+}
+
+// End the playback session: stop looping, and close the audio output
+static
+jboolean
+releaseJNI(JNIEnv *env,
+           jobject obj) {
+    if (idle())
+        return JNI_FALSE;
+    cleanup();
+    return JNI_TRUE;
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jboolean
+Java_com_bbrister_mididriver_PlaybackDriver_F(JNIEnv *env,
+                                              jobject obj) {
+    return releaseJNI(env, obj);
+}
+
+// Get the time from the last play request to the first buffer of its recording, in nanoseconds.
+// Returns -1 if nothing played yet.
+static
+jlong
+getSwitchLatencyJNI(JNIEnv *env,
+                    jobject obj) {
+    return (jlong) __atomic_load_n(&switch_latency_ns, __ATOMIC_RELAXED);
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jlong
+Java_com_bbrister_mididriver_PlaybackDriver_G(JNIEnv *env,
+                                              jobject obj) {
+    return getSwitchLatencyJNI(env, obj);
+}
+
+// Get the number of underruns of the audio output this session, or -1 if it can't tell. Callers
+// hold the Java lock, since a profile switch or release may close the output meanwhile.
+static
+jint
+getUnderrunCountJNI(JNIEnv *env,
+                    jobject obj) {
+    return sink != NULL ? sink->get_xrun_count() : -1;
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jint
+Java_com_bbrister_mididriver_PlaybackDriver_H(JNIEnv *env,
+                                              jobject obj) {
+    return getUnderrunCountJNI(env, obj);
+}
+
+// Tell whether the audio output plays floating point, rather than 16 bit PCM. Callers hold the Java
+// lock, like getUnderrunCountJNI().
+static
+jboolean
+isFloatOutputJNI(JNIEnv *env,
+                 jobject obj) {
+    return sink != NULL && output_format == SAMPLE_FORMAT_FLOAT ? JNI_TRUE : JNI_FALSE;
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jboolean
+Java_com_bbrister_mididriver_PlaybackDriver_I(JNIEnv *env,
+                                              jobject obj) {
+    return isFloatOutputJNI(env, obj);
+}
+
+// Switch to a new latency profile, given by its index. Returns 0 on success, 1 if the output kept
+// the old profile, -1 on error.
+static
+jint
+setProfileJNI(JNIEnv *env,
+              jobject obj,
+              jint newProfile) {
+
+    if (newProfile < 0 || newProfile >= NUM_PROFILES) {
+        LOG_E(LOG_TAG, "Invalid latency profile %d", newProfile);
+        return -1;
+    }
+
+    return (jint) setProfile((enum latency_profile) newProfile);
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jint
+Java_com_bbrister_mididriver_PlaybackDriver_J(JNIEnv *env,
+                                              jobject obj,
+                                              jint newProfile) {
+    return setProfileJNI(env, obj, newProfile);
+}
+
+// Get the number of times per minute the audio thread wakes up to render, since the output opened.
+// Returns -1 if no output is open. Callers hold the Java lock, like getUnderrunCountJNI().
+static
+jdouble
+getWakeupsPerMinuteJNI(JNIEnv *env,
+                       jobject obj) {
+    return (jdouble) getWakeupsPerMinute();
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jdouble
+Java_com_bbrister_mididriver_PlaybackDriver_K(JNIEnv *env,
+                                              jobject obj) {
+    return getWakeupsPerMinuteJNI(env, obj);
+}
+
+// Start pausing, returning right away. The sound fades out while finishPauseJNI waits.
+static
+void
+beginPauseJNI(JNIEnv *env,
+              jobject obj) {
+    beginPause();
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+void
+Java_com_bbrister_mididriver_PlaybackDriver_L(JNIEnv *env,
+                                              jobject obj) {
+    beginPauseJNI(env, obj);
+}
+
+/* Finish the pause started by beginPauseJNI, waiting for up to the timeout in milliseconds for the
+ * sound to fade out, then freeing the recording. Optionally ends the playback session too. Does
+ * nothing if a later call already finished the pause, or replaced it with a new recording. Returns
+ * 1 if the sound faded out, 0 if it was cut short, or -1 on failure. */
+static
+jint
+finishPauseJNI(JNIEnv *env,
+               jobject obj,
+               jlong timeoutMs,
+               jboolean release) {
+
+    const int pending = pause_pending;
+    const int result = finishPause((long) timeoutMs);
+
+    if (result < 0)
+        return -1;
+    if (pending && release)
+        cleanup();
+
+    return result == 0 ? 1 : 0;
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jint
+Java_com_bbrister_mididriver_PlaybackDriver_M(JNIEnv *env,
+                                              jobject obj,
+                                              jlong timeoutMs,
+                                              jboolean release) {
+    return finishPauseJNI(env, obj, timeoutMs, release);
+}
+
+// Tell whether finishPauseJNI would return right away, so it can be waited for without blocking
+// other calls.
+static
+jboolean
+isPauseSettledJNI(JNIEnv *env,
+                  jobject obj) {
+    return isPauseSettled() ? JNI_TRUE : JNI_FALSE;
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jboolean
+Java_com_bbrister_mididriver_PlaybackDriver_V(JNIEnv *env,
+                                              jobject obj) {
+    return isPauseSettledJNI(env, obj);
+}
+
+/* Add a stream to mix over the playing recording, e.g. a second drone. It loops on its own,
+ * starting the given number of frames after the start of the recording's loop. Returns the
+ * stream's ID, or -1 on failure. */
+static
+jint
+addStreamJNI(JNIEnv *env,
+             jobject obj,
+             jfloatArray jArray,
+             jfloat gain,
+             jint offsetFrames) {
+
+    // Copy the stream
+    assert(sizeof(jfloat) == sizeof(float));
+    const size_t streamSizeMono = (size_t) (*env)->GetArrayLength(env, jArray) / numChannels;
+    float *const buffer = (float *) allocateRecording(streamSizeMono, SAMPLE_FORMAT_FLOAT);
+    if (buffer == NULL)
+        return -1;
+    (*env)->GetFloatArrayRegion(env, jArray, 0, (jsize) getNumPcm(streamSizeMono),
+                                (jfloat *) buffer);
+
+    return addStream(buffer, SAMPLE_FORMAT_FLOAT, streamSizeMono, gain,
+                     (size_t) MAX(offsetFrames, 0));
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jint
+Java_com_bbrister_mididriver_PlaybackDriver_N(JNIEnv *env,
+                                              jobject obj,
+                                              jfloatArray jArray,
+                                              jfloat gain,
+                                              jint offsetFrames) {
+    return addStreamJNI(env, obj, jArray, gain, offsetFrames);
+}
+
+// Add a stream in 16 bit PCM, like addStreamJNI
+static
+jint
+addStreamPcm16JNI(JNIEnv *env,
+                  jobject obj,
+                  jshortArray jArray,
+                  jfloat gain,
+                  jint offsetFrames) {
+
+    // Copy the stream
+    assert(sizeof(jshort) == sizeof(output_t));
+    const size_t streamSizeMono = (size_t) (*env)->GetArrayLength(env, jArray) / numChannels;
+    output_t *const buffer = (output_t *) allocateRecording(streamSizeMono, SAMPLE_FORMAT_I16);
+    if (buffer == NULL)
+        return -1;
+    (*env)->GetShortArrayRegion(env, jArray, 0, (jsize) getNumPcm(streamSizeMono),
+                                (jshort *) buffer);
+
+    return addStream(buffer, SAMPLE_FORMAT_I16, streamSizeMono, gain,
+                     (size_t) MAX(offsetFrames, 0));
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jint
+Java_com_bbrister_mididriver_PlaybackDriver_O(JNIEnv *env,
+                                              jobject obj,
+                                              jshortArray jArray,
+                                              jfloat gain,
+                                              jint offsetFrames) {
+    return addStreamPcm16JNI(env, obj, jArray, gain, offsetFrames);
+}
+
+// Fade out a stream and remove it. Fails if there is no such stream, e.g. after pausing.
+static
+jboolean
+removeStreamJNI(JNIEnv *env,
+                jobject obj,
+                jint id) {
+    return removeStream(id) ? JNI_FALSE : JNI_TRUE;
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jboolean
+Java_com_bbrister_mididriver_PlaybackDriver_P(JNIEnv *env,
+                                              jobject obj,
+                                              jint id) {
+    return removeStreamJNI(env, obj, id);
+}
+
+// Change the gain of a stream. Fails if there is no such stream.
+static
+jboolean
+setStreamGainJNI(JNIEnv *env,
+                 jobject obj,
+                 jint id,
+                 jfloat gain) {
+    return setStreamGain(id, gain) ? JNI_FALSE : JNI_TRUE;
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jboolean
+Java_com_bbrister_mididriver_PlaybackDriver_Q(JNIEnv *env,
+                                              jobject obj,
+                                              jint id,
+                                              jfloat gain) {
+    return setStreamGainJNI(env, obj, id, gain);
+}
+
+/* Click on every beat of the playing recording, accenting the first beat of each bar with the
+ * other click, if given. The clicks are copied, and play as they are from then on, so the tempo
+ * can change without re-rendering them. Replaces the current clicks on the next beat. */
+static
+jboolean
+setClickTrackJNI(JNIEnv *env,
+                 jobject obj,
+                 jfloatArray jClick,
+                 jfloatArray jAccent,
+                 jint beatsPerBar,
+                 jfloat gain) {
+
+    float *normal, *accent = NULL;
+    size_t accentSizeMono = 0;
+
+    // Copy the clicks
+    assert(sizeof(jfloat) == sizeof(float));
+    const size_t normalSizeMono = (size_t) (*env)->GetArrayLength(env, jClick) / numChannels;
+    if ((normal = (float *) allocateRecording(normalSizeMono, SAMPLE_FORMAT_FLOAT)) == NULL)
+        return JNI_FALSE;
+    (*env)->GetFloatArrayRegion(env, jClick, 0, (jsize) getNumPcm(normalSizeMono),
+                                (jfloat *) normal);
+    if (jAccent != NULL) {
+        accentSizeMono = (size_t) (*env)->GetArrayLength(env, jAccent) / numChannels;
+        if ((accent = (float *) allocateRecording(accentSizeMono, SAMPLE_FORMAT_FLOAT)) == NULL) {
+            free(normal);
+            return JNI_FALSE;
+        }
+        (*env)->GetFloatArrayRegion(env, jAccent, 0, (jsize) getNumPcm(accentSizeMono),
+                                    (jfloat *) accent);
+    }
+
+    return setClickTrack(normal, accent, SAMPLE_FORMAT_FLOAT, normalSizeMono, accentSizeMono,
+                         beatsPerBar, gain) ? JNI_FALSE : JNI_TRUE;
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jboolean
+Java_com_bbrister_mididriver_PlaybackDriver_R(JNIEnv *env,
+                                              jobject obj,
+                                              jfloatArray jClick,
+                                              jfloatArray jAccent,
+                                              jint beatsPerBar,
+                                              jfloat gain) {
+    return setClickTrackJNI(env, obj, jClick, jAccent, beatsPerBar, gain);
+}
+
+// Click in 16 bit PCM, like setClickTrackJNI
+static
+jboolean
+setClickTrackPcm16JNI(JNIEnv *env,
+                      jobject obj,
+                      jshortArray jClick,
+                      jshortArray jAccent,
+                      jint beatsPerBar,
+                      jfloat gain) {
+
+    output_t *normal, *accent = NULL;
+    size_t accentSizeMono = 0;
+
+    // Copy the clicks
+    assert(sizeof(jshort) == sizeof(output_t));
+    const size_t normalSizeMono = (size_t) (*env)->GetArrayLength(env, jClick) / numChannels;
+    if ((normal = (output_t *) allocateRecording(normalSizeMono, SAMPLE_FORMAT_I16)) == NULL)
+        return JNI_FALSE;
+    (*env)->GetShortArrayRegion(env, jClick, 0, (jsize) getNumPcm(normalSizeMono),
+                                (jshort *) normal);
+    if (jAccent != NULL) {
+        accentSizeMono = (size_t) (*env)->GetArrayLength(env, jAccent) / numChannels;
+        if ((accent = (output_t *) allocateRecording(accentSizeMono, SAMPLE_FORMAT_I16)) == NULL) {
+            free(normal);
+            return JNI_FALSE;
+        }
+        (*env)->GetShortArrayRegion(env, jAccent, 0, (jsize) getNumPcm(accentSizeMono),
+                                    (jshort *) accent);
+    }
+
+    return setClickTrack(normal, accent, SAMPLE_FORMAT_I16, normalSizeMono, accentSizeMono,
+                         beatsPerBar, gain) ? JNI_FALSE : JNI_TRUE;
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jboolean
+Java_com_bbrister_mididriver_PlaybackDriver_S(JNIEnv *env,
+                                              jobject obj,
+                                              jshortArray jClick,
+                                              jshortArray jAccent,
+                                              jint beatsPerBar,
+                                              jfloat gain) {
+    return setClickTrackPcm16JNI(env, obj, jClick, jAccent, beatsPerBar, gain);
+}
+
+// Stop clicking from the next beat on
+static
+void
+clearClickTrackJNI(JNIEnv *env,
+                   jobject obj) {
+    clearClickTrack();
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+void
+Java_com_bbrister_mididriver_PlaybackDriver_T(JNIEnv *env,
+                                              jobject obj) {
+    clearClickTrackJNI(env, obj);
+}
+
+// Get a snapshot of the health of the audio output since it opened, or NULL if none is open
+static
+jlongArray
+getHealthJNI(JNIEnv *env,
+             jobject obj) {
+
+    jlongArray healthArray;
+    jlong snapshot[HEALTH_LENGTH];
+    int64_t values[HEALTH_LENGTH];
+    int i;
+
+    if (getHealth(values))
+        return NULL;
+    for (i = 0; i < HEALTH_LENGTH; i++)
+        snapshot[i] = (jlong) values[i];
+
+    if ((healthArray = (*env)->NewLongArray(env, HEALTH_LENGTH)) == NULL)
+        return NULL;
+    (*env)->SetLongArrayRegion(env, healthArray, 0, HEALTH_LENGTH, snapshot);
+
+    return healthArray;
+}
+
+// Obfuscated JNI wrapper for the former
+JNIEXPORT
+jlongArray
+Java_com_bbrister_mididriver_PlaybackDriver_U(JNIEnv *env,
+                                              jobject obj) {
+    return getHealthJNI(env, obj);
+}
@@ -0,0 +1,36 @@
+/*
+ * Layout of the playback health snapshot, which playback.c hands to PlaybackDriver as an array of
+ * longs. PlaybackHealth reads it in the same order.
+ *
+ * Created by: Blaine Rister Oct 19 2026
+ */
+
+#ifndef METRODRONE_PLAYBACK_HEALTH_H
+#define METRODRONE_PLAYBACK_HEALTH_H
+
+// Bins of the time histograms. Bin i counts times from 2^i up to 2^(i+1) microseconds, except the
+// first also counts anything shorter, and the last anything longer, from about 8 s on.
+#define HEALTH_BINS 24
+
+// Indices of the snapshot. Counts and times are since the output opened.
+enum health_field {
+    HEALTH_ELAPSED_NS, // Time since the output opened
+    HEALTH_CALLBACKS, // Render callbacks, i.e. wakeups of the audio thread
+    HEALTH_FRAMES, // Frames rendered
+    HEALTH_MAX_INTERVAL_NS, // Longest time from the start of one callback to the next
+    HEALTH_RENDER_NS, // Total time spent rendering
+    HEALTH_MAX_RENDER_NS, // Longest time spent in one callback
+    HEALTH_LATE_CALLBACKS, // Intervals longer than the buffered audio lasts, which may underrun
+    HEALTH_XRUNS, // Underruns reported by the output, or -1 if it can't tell
+    HEALTH_ENQUEUE_FAILURES, // Rendered buffers the output failed to queue
+    HEALTH_SAMPLE_RATE,
+    HEALTH_FRAMES_PER_CALLBACK, // Buffer size the output was opened with
+    HEALTH_BUFFERED_FRAMES, // Frames rendered ahead of what is audible
+    HEALTH_PROFILE, // Latency profile
+    HEALTH_FLOAT_OUTPUT, // 1 if the output plays floating point, 0 for 16 bit PCM
+    HEALTH_INTERVAL_BINS, // Histogram of the times from one callback to the next
+    HEALTH_RENDER_BINS = HEALTH_INTERVAL_BINS + HEALTH_BINS, // Histogram of the render times
+    HEALTH_LENGTH = HEALTH_RENDER_BINS + HEALTH_BINS
+};
+
+#endif //METRODRONE_PLAYBACK_HEALTH_H
@@ -0,0 +1,209 @@
+/*
+ * Host-side check of the dithered 16 bit conversion in dither.c. Converts a quiet stereo test tone
+ * with and without noise shaping, and from the fixed point format of the synth, and checks that:
+ *   - a seed always gives the same output, in place or not, and another seed doesn't,
+ *   - the error is unbiased, with the variance of rounding plus triangular dither (1/4 LSB^2),
+ *   - without shaping the error is white, while first order shaping gives a lag-one
+ *     autocorrelation of -1/2.
+ * The fixed point conversion is checked the same way, except in place, which it can't do.
+ * Prints a hash of the output for each mode, to compare across builds, and the conversion speed.
+ * Exits non-zero if a check fails.
+ *
+ * Build and run on a Linux host:
+ *   cc -O3 -std=gnu99 -DNDEBUG -I.. -o dither_check dither_check.c ../dither.c -lm
+ *   ./dither_check
+ *
+ * Created by: Blaine Rister Oct 19 2026
+ */
+
+#include <math.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include "dither.h"
+
+#define NUM_FRAMES (1 << 20)
+#define LENGTH (NUM_FRAMES * 2)
+#define SPEED_REPEATS 32
+
+static const uint32_t seed = 0x5eed;
+static const float sampleRate = 48000.F;
+static const float gain = 32767.F;
+static const int fixedBits = 24; // Fractional bits of the synth's fixed point mix
+
+// Tolerances of the statistics
+static const double maxMean = 0.01;
+static const double minVariance = 0.25 * 0.95;
+static const double maxVariance = 0.25 * 1.05;
+static const double maxWhiteCorrelation = 0.02;
+static const double shapedCorrelation = -0.5;
+
+// FNV-1a hash of the output
+static uint32_t hashPcm(const output_t *const pcm, const size_t length) {
+
+    const uint8_t *const bytes = (const uint8_t *) pcm;
+    uint32_t hash = 2166136261U;
+    size_t i;
+
+    for (i = 0; i < length * sizeof(output_t); i++) {
+        hash ^= bytes[i];
+        hash *= 16777619U;
+    }
+
+    return hash;
+}
+
+static double nowSeconds(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (double) ts.tv_sec + (double) ts.tv_nsec * 1e-9;
+}
+
+// Conversion modes
+enum mode {
+    MODE_PLAIN,
+    MODE_SHAPED,
+    MODE_FIXED
+};
+
+// Convert the input, in fixed point if the mode says so
+static void convert(const float *const input, const int32_t *const fixedInput,
+                    output_t *const out, const uint32_t convertSeed, const enum mode mode) {
+    if (mode == MODE_FIXED) {
+        dither_fixed_to_pcm16(fixedInput, out, LENGTH,
+                              (int64_t) llround(gain * (double) (1LL << (32 - fixedBits))),
+                              convertSeed);
+    } else {
+        dither_to_pcm16(input, out, LENGTH, gain, convertSeed, mode == MODE_SHAPED);
+    }
+}
+
+// Check one mode, returning nonzero on failure
+static int checkMode(const float *const input, const int32_t *const fixedInput,
+                     const enum mode mode) {
+
+    static const char *const names[] = {"plain", "shaped", "fixed"};
+    const char *const name = names[mode];
+    const int noiseShaping = mode == MODE_SHAPED;
+    output_t *const out = malloc(LENGTH * sizeof(output_t));
+    output_t *const again = malloc(LENGTH * sizeof(output_t));
+    float *const inPlace = malloc(LENGTH * sizeof(float));
+    double sum = 0, sumSquares = 0, lagSum = 0, mean, variance, correlation, start, seconds;
+    int failed = 0;
+    size_t i;
+
+    if (out == NULL || again == NULL || inPlace == NULL) {
+        fprintf(stderr, "Out of memory\n");
+        exit(EXIT_FAILURE);
+    }
+
+    convert(input, fixedInput, out, seed, mode);
+
+    // Determinism
+    convert(input, fixedInput, again, seed, mode);
+    if (memcmp(out, again, LENGTH * sizeof(output_t)) != 0) {
+        fprintf(stderr, "%s: output differs between runs with the same seed\n", name);
+        failed = 1;
+    }
+    if (mode != MODE_FIXED) {
+        memcpy(inPlace, input, LENGTH * sizeof(float));
+        dither_to_pcm16(inPlace, (output_t *) inPlace, LENGTH, gain, seed, noiseShaping);
+        if (memcmp(out, inPlace, LENGTH * sizeof(output_t)) != 0) {
+            fprintf(stderr, "%s: converting in place gives different output\n", name);
+            failed = 1;
+        }
+    }
+    convert(input, fixedInput, again, seed + 1, mode);
+    if (memcmp(out, again, LENGTH * sizeof(output_t)) == 0) {
+        fprintf(stderr, "%s: output doesn't depend on the seed\n", name);
+        failed = 1;
+    }
+
+    // Error statistics of the left channel. Its previous sample is two back.
+    for (i = 0; i < LENGTH; i += 2) {
+        const double error = (double) out[i] - (double) input[i] * gain;
+        sum += error;
+        sumSquares += error * error;
+        if (i >= 2)
+            lagSum += error * ((double) out[i - 2] - (double) input[i - 2] * gain);
+    }
+    mean = sum / NUM_FRAMES;
+    variance = sumSquares / NUM_FRAMES - mean * mean;
+    correlation = lagSum / (NUM_FRAMES - 1) / (sumSquares / NUM_FRAMES);
+
+    // The plain error is dither plus rounding. Shaping filters the same error by 1 - z^-1.
+    if (fabs(mean) > maxMean) {
+        fprintf(stderr, "%s: error is biased, mean %g LSB\n", name, mean);
+        failed = 1;
+    }
+    if (noiseShaping) {
+        if (variance < 2 * minVariance || variance > 2 * maxVariance ||
+            fabs(correlation - shapedCorrelation) > maxWhiteCorrelation) {
+            fprintf(stderr, "%s: error isn't first order shaped, variance %g correlation %g\n",
+                    name, variance, correlation);
+            failed = 1;
+        }
+    } else if (variance < minVariance || variance > maxVariance ||
+               fabs(correlation) > maxWhiteCorrelation) {
+        fprintf(stderr, "%s: error isn't white TPDF, variance %g correlation %g\n", name,
+                variance, correlation);
+        failed = 1;
+    }
+
+    // Speed
+    start = nowSeconds();
+    for (i = 0; i < SPEED_REPEATS; i++)
+        convert(input, fixedInput, again, seed, mode);
+    seconds = nowSeconds() - start;
+
+    printf("%-6s hash %08x mean %+.4f variance %.4f correlation %+.4f %.0f Msamples/s\n", name,
+           hashPcm(out, LENGTH), mean, variance, correlation,
+           (double) LENGTH * SPEED_REPEATS / seconds * 1e-6);
+
+    free(out);
+    free(again);
+    free(inPlace);
+
+    return failed;
+}
+
+int main(void) {
+
+    float *const input = malloc(LENGTH * sizeof(float));
+    int32_t *const fixedInput = malloc(LENGTH * sizeof(int32_t));
+    int failed;
+    size_t i;
+
+    if (input == NULL || fixedInput == NULL) {
+        fprintf(stderr, "Out of memory\n");
+        return EXIT_FAILURE;
+    }
+
+    // A 1 kHz tone at -60 dBFS, with the right channel out of phase
+    for (i = 0; i < NUM_FRAMES; i++) {
+        const float sample = 1e-3F * sinf(2.F * (float) M_PI * 1000.F * (float) i / sampleRate);
+        input[2 * i] = sample;
+        input[2 * i + 1] = -sample;
+    }
+
+    // The same tone in fixed point. The error is measured against the float tone, so the
+    // rounding to fixed point adds a little to it, far below the dither.
+    for (i = 0; i < LENGTH; i++)
+        fixedInput[i] = (int32_t) lrintf(input[i] * (float) (1 << fixedBits));
+
+    failed = checkMode(input, fixedInput, MODE_PLAIN);
+    failed |= checkMode(input, fixedInput, MODE_SHAPED);
+    failed |= checkMode(input, fixedInput, MODE_FIXED);
+
+    free(input);
+    free(fixedInput);
+
+    if (failed)
+        return EXIT_FAILURE;
+
+    printf("OK\n");
+    return EXIT_SUCCESS;
+}
@@ -0,0 +1,246 @@
+/*
+ * Host-side check of the fixed point render path. The same program is built twice, with and
+ * without FLUID_FIXED_POINT, and renders the same scenes with a synthetic soundfont. Comparing the
+ * two renders gives the signal-to-noise ratio of the fixed point path. See fixed_point_snr.sh.
+ *
+ * Created by: Blaine Rister Oct 19 2026
+ */
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "fluidlite.h"
+
+// Render parameters
+#define SAMPLE_RATE 44100
+#define SCENE_FRAMES (2 * SAMPLE_RATE)
+#define NOTE_FRAMES (SAMPLE_RATE * 6 / 5)
+#define NUM_CHANNELS 2
+
+// Synthetic sample: a band-limited sawtooth with a period of exactly 100 frames, so it loops
+// cleanly. That is 441 Hz, close enough to A4.
+#define SAMPLE_FRAMES SAMPLE_RATE
+#define SAMPLE_PERIOD 100
+#define SAMPLE_HARMONICS 40
+#define SAMPLE_ROOT_KEY 69
+
+// Programs of the synthetic soundfont
+enum program {
+    PROGRAM_PLAIN,
+    PROGRAM_FILTERED,
+    PROGRAM_EFFECTS,
+    NUM_PROGRAMS
+};
+
+// A scene to render
+struct scene {
+    const char *name;
+    enum program program;
+    int interpMethod;
+    int reverb;
+    int chorus;
+};
+
+static const struct scene scenes[] = {
+        {"4th order",          PROGRAM_PLAIN,    FLUID_INTERP_4THORDER, 0, 0},
+        {"no interpolation",   PROGRAM_PLAIN,    FLUID_INTERP_NONE,     0, 0},
+        {"linear",             PROGRAM_PLAIN,    FLUID_INTERP_LINEAR,   0, 0},
+        {"7th order",          PROGRAM_PLAIN,    FLUID_INTERP_7THORDER, 0, 0},
+        {"resonant low-pass",  PROGRAM_FILTERED, FLUID_INTERP_4THORDER, 0, 0},
+        {"reverb",             PROGRAM_EFFECTS,  FLUID_INTERP_4THORDER, 1, 0},
+        {"reverb and chorus",  PROGRAM_EFFECTS,  FLUID_INTERP_4THORDER, 1, 1},
+};
+static const int numScenes = sizeof(scenes) / sizeof(struct scene);
+
+// A chord spanning a few octaves, so the phase increments differ
+static const int keys[] = {36, 55, 64, 71, 84};
+static const int numKeys = sizeof(keys) / sizeof(int);
+
+// Fill the sample data
+static void makeSaw(short *const data) {
+    int i, h;
+
+    for (i = 0; i < SAMPLE_FRAMES; i++) {
+        double x = 0;
+        for (h = 1; h <= SAMPLE_HARMONICS; h++) {
+            x += sin(2 * M_PI * h * i / SAMPLE_PERIOD) / h;
+        }
+        data[i] = (short) lrint(x * 0.5 / (M_PI / 2) * 32767);
+    }
+}
+
+// Add a looped instrument zone for the sample
+static int addProgram(fluid_ramsfont_t *const rsf, fluid_sample_t *const sample,
+                      const enum program program) {
+
+    const unsigned int bank = 0;
+
+    if (fluid_ramsfont_add_izone(rsf, bank, program, sample, 0, 127) ||
+        fluid_ramsfont_izone_set_loop(rsf, bank, program, sample, 1, 0, 0) ||
+        fluid_ramsfont_izone_set_gen(rsf, bank, program, sample, GEN_VOLENVRELEASE, -1200))
+        return -1;
+
+    switch (program) {
+        case PROGRAM_FILTERED:
+            // Roughly 260 Hz, with a 10 dB resonance peak
+            return fluid_ramsfont_izone_set_gen(rsf, bank, program, sample, GEN_FILTERFC, 6000) ||
+                   fluid_ramsfont_izone_set_gen(rsf, bank, program, sample, GEN_FILTERQ, 100);
+        case PROGRAM_EFFECTS:
+            return fluid_ramsfont_izone_set_gen(rsf, bank, program, sample, GEN_REVERBSEND, 500) ||
+                   fluid_ramsfont_izone_set_gen(rsf, bank, program, sample, GEN_CHORUSSEND, 300);
+        default:
+            return 0;
+    }
+}
+
+// Create the synthetic soundfont and add it to the synth. The ramsfont deletes a sample once for
+// each of its zones, so every program gets its own copy.
+static int loadSoundfont(fluid_synth_t *const synth) {
+
+    static short data[SAMPLE_FRAMES];
+    int program;
+
+    fluid_sfont_t *const sfont = fluid_ramsfont_create_sfont();
+    if (sfont == NULL)
+        return -1;
+
+    makeSaw(data);
+    for (program = 0; program < NUM_PROGRAMS; program++) {
+        fluid_sample_t *const sample = new_fluid_ramsample();
+        if (sample == NULL ||
+            fluid_sample_set_sound_data(sample, data, SAMPLE_FRAMES, 1, SAMPLE_ROOT_KEY) ||
+            addProgram((fluid_ramsfont_t *) sfont->data, sample, (enum program) program))
+            return -1;
+    }
+
+    return fluid_synth_add_sfont(synth, sfont) < 0 ? -1 : 0;
+}
+
+// Render a scene to the buffer, which holds SCENE_FRAMES interleaved frames
+static int renderScene(fluid_synth_t *const synth, const struct scene *const scene,
+                       float *const buffer) {
+    int i;
+
+    fluid_synth_system_reset(synth);
+    fluid_synth_set_reverb_on(synth, scene->reverb);
+    fluid_synth_set_reverb(synth, 0.8, 0.7, 0.5, 0.6);
+    fluid_synth_set_chorus_on(synth, scene->chorus);
+    if (fluid_synth_program_change(synth, 0, scene->program) ||
+        fluid_synth_set_interp_method(synth, -1, scene->interpMethod))
+        return -1;
+
+    for (i = 0; i < numKeys; i++) {
+        if (fluid_synth_noteon(synth, 0, keys[i], 100))
+            return -1;
+    }
+    fluid_synth_write_float(synth, NOTE_FRAMES, buffer, 0, NUM_CHANNELS, buffer, 1, NUM_CHANNELS);
+
+    for (i = 0; i < numKeys; i++) {
+        fluid_synth_noteoff(synth, 0, keys[i]);
+    }
+    fluid_synth_write_float(synth, SCENE_FRAMES - NOTE_FRAMES, buffer + NOTE_FRAMES * NUM_CHANNELS,
+                            0, NUM_CHANNELS, buffer + NOTE_FRAMES * NUM_CHANNELS, 1, NUM_CHANNELS);
+
+    return 0;
+}
+
+// Render all scenes to a raw float file
+static int render(const char *const path) {
+
+    static float buffer[SCENE_FRAMES * NUM_CHANNELS];
+    fluid_settings_t *settings;
+    fluid_synth_t *synth;
+    FILE *file;
+    int i;
+
+    settings = new_fluid_settings();
+    fluid_settings_setint(settings, "synth.polyphony", 16);
+    fluid_settings_setnum(settings, "synth.sample-rate", SAMPLE_RATE);
+    if ((synth = new_fluid_synth(settings)) == NULL || loadSoundfont(synth)) {
+        fprintf(stderr, "Failed to set up the synth\n");
+        return -1;
+    }
+
+    if ((file = fopen(path, "wb")) == NULL) {
+        fprintf(stderr, "Failed to open %s\n", path);
+        return -1;
+    }
+
+    for (i = 0; i < numScenes; i++) {
+        if (renderScene(synth, &scenes[i], buffer)) {
+            fprintf(stderr, "Failed to render scene '%s'\n", scenes[i].name);
+            return -1;
+        }
+        fwrite(buffer, sizeof(float), SCENE_FRAMES * NUM_CHANNELS, file);
+    }
+
+    fclose(file);
+    delete_fluid_synth(synth);
+    delete_fluid_settings(settings);
+    return 0;
+}
+
+// Compare two renders scene by scene. Fails if any scene is below the minimum SNR.
+static int compare(const char *const refPath, const char *const testPath, const double minSnrDb) {
+
+    static float ref[SCENE_FRAMES * NUM_CHANNELS], test[SCENE_FRAMES * NUM_CHANNELS];
+    const size_t sceneLength = SCENE_FRAMES * NUM_CHANNELS;
+    FILE *refFile, *testFile;
+    double worstSnrDb;
+    size_t j;
+    int i;
+
+    refFile = fopen(refPath, "rb");
+    testFile = fopen(testPath, "rb");
+    if (refFile == NULL || testFile == NULL) {
+        fprintf(stderr, "Failed to open the renders\n");
+        return -1;
+    }
+
+    worstSnrDb = INFINITY;
+    for (i = 0; i < numScenes; i++) {
+        double signal = 0, noise = 0, snrDb;
+
+        if (fread(ref, sizeof(float), sceneLength, refFile) != sceneLength ||
+            fread(test, sizeof(float), sceneLength, testFile) != sceneLength) {
+            fprintf(stderr, "Render is truncated\n");
+            return -1;
+        }
+
+        for (j = 0; j < sceneLength; j++) {
+            const double error = (double) test[j] - (double) ref[j];
+            signal += (double) ref[j] * ref[j];
+            noise += error * error;
+        }
+
+        snrDb = noise > 0 ? 10 * log10(signal / noise) : INFINITY;
+        worstSnrDb = snrDb < worstSnrDb ? snrDb : worstSnrDb;
+        printf("%-20s %6.1f dB\n", scenes[i].name, snrDb);
+    }
+
+    fclose(refFile);
+    fclose(testFile);
+
+    if (worstSnrDb < minSnrDb) {
+        printf("FAILED: worst SNR %.1f dB is below %.1f dB\n", worstSnrDb, minSnrDb);
+        return -1;
+    }
+    printf("OK: worst SNR %.1f dB\n", worstSnrDb);
+    return 0;
+}
+
+int main(int argc, char **argv) {
+
+    if (argc == 3 && strcmp(argv[1], "render") == 0)
+        return render(argv[2]) ? EXIT_FAILURE : EXIT_SUCCESS;
+
+    if (argc == 5 && strcmp(argv[1], "compare") == 0)
+        return compare(argv[2], argv[3], atof(argv[4])) ? EXIT_FAILURE : EXIT_SUCCESS;
+
+    fprintf(stderr, "Usage: %s render <out.raw>\n"
+                    "       %s compare <reference.raw> <test.raw> <minimum SNR dB>\n",
+            argv[0], argv[0]);
+    return EXIT_FAILURE;
+}
@@ -0,0 +1,38 @@
+#!/bin/sh
+#
+# Checks that the fixed point render path stays within MIN_SNR_DB of the floating point one. Builds
+# the fluidlite sources from Android.mk for the host, once per arithmetic, renders the same scenes
+# with both and compares them. Exits non-zero if any scene falls short.
+#
+# Usage: fixed_point_snr.sh [minimum SNR in dB]
+#
+# Created by: Blaine Rister Oct 19 2026
+
+set -e
+
+MIN_SNR_DB=${1:-80}
+CC=${CC:-cc}
+
+TOOLS_DIR=$(cd "$(dirname "$0")" && pwd)
+JNI_DIR=$(dirname "$TOOLS_DIR")
+
+# The fluidlite sources, minus the Android asset adapter. Host builds read files with stdio.
+SOURCES=$(grep -o 'fluidlite_squash/[a-z0-9_]*\.c' "$JNI_DIR/Android.mk" |
+	grep -v aasset_stdio_adapter |
+	sed "s#^#$JNI_DIR/#")
+
+WORK_DIR=$(mktemp -d)
+trap 'rm -rf "$WORK_DIR"' EXIT
+
+for VARIANT in float fixed; do
+	if [ "$VARIANT" = fixed ]; then
+		DEFINES=-DFLUID_FIXED_POINT
+	else
+		DEFINES=
+	fi
+	$CC -O2 -std=gnu99 -DNDEBUG $DEFINES -I "$JNI_DIR/fluidlite_squash" \
+		$SOURCES "$TOOLS_DIR/fixed_point_snr.c" -lm -o "$WORK_DIR/$VARIANT"
+	"$WORK_DIR/$VARIANT" render "$WORK_DIR/$VARIANT.raw"
+done
+
+"$WORK_DIR/float" compare "$WORK_DIR/float.raw" "$WORK_DIR/fixed.raw" "$MIN_SNR_DB"
@@ -0,0 +1,526 @@
+/*
+ * Host-side generator of synthetic SF2 soundfonts, for benchmarking and testing the soundfont
+ * loader and the render path at realistic scale without shipping real soundfonts. The preset
+ * count, zones per preset, sample count and length, loops and stereo links are configurable, and
+ * the output only depends on the options, so a benchmark can regenerate the same font anywhere.
+ *
+ * Each preset has one instrument, whose zones split the keyboard evenly and use the samples in
+ * turn. Every sample is a distinct periodic waveform, so samples don't compress or dedupe more
+ * than those of a real soundfont would. With stereo, the samples form left and right pairs linked
+ * to each other, and every zone plays a pair.
+ *
+ * Build and run on a Linux host:
+ *   cc -O2 -o make_soundfont make_soundfont.c -lm
+ *   ./make_soundfont -p 128 -z 16 -s 2048 -n 100000 -l -S big.sf2
+ * That is about 400 MB. The sample data is written a sample at a time, so any size fits in memory.
+ *
+ * Created by: Blaine Rister Oct 19 2026
+ */
+
+#include <math.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+
+// SF2 limits and layout
+#define NAME_LENGTH 20
+#define SAMPLE_PADDING 46 // zero points the format requires after each sample
+#define NUM_KEYS 128
+#define MAX_PRESETS (128 * 128) // programs times banks
+#define MAX_RIFF_SIZE 0xffffffffULL
+
+// Record sizes in the pdta chunk
+#define PHDR_SIZE 38
+#define BAG_SIZE 4
+#define MOD_SIZE 10
+#define GEN_SIZE 4
+#define INST_SIZE 22
+#define SHDR_SIZE 46
+
+// Generators used by the zones
+#define GEN_PAN 17
+#define GEN_INSTRUMENT 41
+#define GEN_KEYRANGE 43
+#define GEN_SAMPLEID 53
+#define GEN_SAMPLEMODES 54
+
+// Sample types
+#define SAMPLE_MONO 1
+#define SAMPLE_RIGHT 2
+#define SAMPLE_LEFT 4
+
+// Synthetic waveforms. The period is a whole number of frames, so loops are seamless.
+#define MIN_PERIOD 32
+#define MAX_PERIOD 255
+#define NUM_HARMONICS 8
+
+// The soundfont to write
+struct options {
+    int numPresets;
+    int zonesPerPreset;
+    int numSamples;
+    unsigned int sampleFrames;
+    int loop;
+    int stereo;
+    unsigned int sampleRate;
+    uint32_t seed;
+    const char *path;
+};
+
+// Layout derived from the options
+struct layout {
+    int instZonesPerPreset; // two per zone with stereo
+    int gensPerInstZone;
+    uint32_t sampleSpan; // points per sample, with the padding
+    uint32_t smplSize;
+    uint32_t pdtaSize;
+    uint32_t infoSize;
+    uint64_t riffSize;
+};
+
+static const char softwareName[] = "make_soundfont";
+static const char bankName[] = "Synthetic";
+
+// xorshift32, so the output is the same on every host
+static uint32_t nextRandom(uint32_t *const state) {
+    uint32_t x = *state;
+    x ^= x << 13;
+    x ^= x >> 17;
+    x ^= x << 5;
+    return *state = x;
+}
+
+static void putU8(FILE *const file, const unsigned int value) {
+    fputc((int) (value & 0xff), file);
+}
+
+static void putU16(FILE *const file, const unsigned int value) {
+    putU8(file, value);
+    putU8(file, value >> 8);
+}
+
+static void putU32(FILE *const file, const uint32_t value) {
+    putU16(file, value & 0xffff);
+    putU16(file, value >> 16);
+}
+
+static void putId(FILE *const file, const char *const id) {
+    fwrite(id, 1, 4, file);
+}
+
+static void putChunkHeader(FILE *const file, const char *const id, const uint32_t size) {
+    putId(file, id);
+    putU32(file, size);
+}
+
+// Write a zero padded name field
+static void putName(FILE *const file, const char *const prefix, const int index) {
+    char name[NAME_LENGTH];
+
+    memset(name, 0, sizeof(name));
+    snprintf(name, sizeof(name), "%s%05d", prefix, index);
+    fwrite(name, 1, sizeof(name), file);
+}
+
+// Size of a zero terminated string chunk, padded to an even length
+static uint32_t stringChunkSize(const char *const string) {
+    return (uint32_t) (strlen(string) + 2) & ~1u;
+}
+
+static void putStringChunk(FILE *const file, const char *const id, const char *const string) {
+    const uint32_t size = stringChunkSize(string);
+    uint32_t i;
+
+    putChunkHeader(file, id, size);
+    for (i = 0; i < size; i++) {
+        putU8(file, i < strlen(string) ? (unsigned char) string[i] : 0);
+    }
+}
+
+// Work out the chunk sizes. Fails if the soundfont would not fit in a RIFF file.
+static int makeLayout(const struct options *const options, struct layout *const layout) {
+
+    const uint64_t numPresets = (uint64_t) options->numPresets;
+    uint64_t instZones, smplSize, pdtaSize;
+
+    layout->instZonesPerPreset = options->zonesPerPreset * (options->stereo ? 2 : 1);
+    layout->gensPerInstZone = 2 + (options->loop ? 1 : 0) + (options->stereo ? 1 : 0);
+    instZones = numPresets * layout->instZonesPerPreset;
+
+    smplSize = (uint64_t) options->numSamples * (options->sampleFrames + SAMPLE_PADDING) * 2;
+    pdtaSize = 9 * 8 // sub-chunk headers
+               + (numPresets + 1) * PHDR_SIZE
+               + (numPresets + 1) * BAG_SIZE
+               + MOD_SIZE
+               + (2 * numPresets + 1) * GEN_SIZE
+               + (numPresets + 1) * INST_SIZE
+               + (instZones + 1) * BAG_SIZE
+               + MOD_SIZE
+               + (instZones * layout->gensPerInstZone + 1) * GEN_SIZE
+               + ((uint64_t) options->numSamples + 1) * SHDR_SIZE;
+
+    layout->infoSize = 4 + 8 + 4 + 8 + stringChunkSize("EMU8000") + 8 + stringChunkSize(bankName)
+                       + 8 + stringChunkSize(softwareName);
+    layout->riffSize = 4 + 8 + layout->infoSize + 8 + 4 + 8 + smplSize + 8 + 4 + pdtaSize;
+    if (layout->riffSize > MAX_RIFF_SIZE) {
+        fprintf(stderr, "The soundfont would be %llu bytes, over the RIFF limit of 4 GB\n",
+                (unsigned long long) layout->riffSize + 8);
+        return -1;
+    }
+
+    layout->sampleSpan = options->sampleFrames + SAMPLE_PADDING;
+    layout->smplSize = (uint32_t) smplSize;
+    layout->pdtaSize = (uint32_t) pdtaSize;
+    return 0;
+}
+
+// Period in frames of a sample's waveform
+static int samplePeriod(const struct options *const options, const int sample) {
+    uint32_t state = options->seed ^ (0x9e3779b9u * (uint32_t) (sample + 1));
+
+    if (state == 0)
+        state = 1;
+    return MIN_PERIOD + (int) (nextRandom(&state) % (MAX_PERIOD - MIN_PERIOD + 1));
+}
+
+// The loop of a sample, relative to its start. It spans whole periods, leaving at least 8 points
+// before and after it, as players expect.
+static void sampleLoop(const struct options *const options, const int sample,
+                       uint32_t *const loopStart, uint32_t *const loopEnd) {
+    const uint32_t period = (uint32_t) samplePeriod(options, sample);
+    const uint32_t frames = options->sampleFrames;
+
+    if (frames >= 2 * period + 16) {
+        *loopStart = period;
+        *loopEnd = period + (frames - 8 - period) / period * period;
+    } else {
+        *loopStart = 8;
+        *loopEnd = frames - 8;
+    }
+}
+
+// The MIDI key closest to the pitch of a sample's waveform
+static int sampleRootKey(const struct options *const options, const int sample) {
+    const double frequency = (double) options->sampleRate / samplePeriod(options, sample);
+    const long key = lrint(69 + 12 * log2(frequency / 440));
+
+    return key < 0 ? 0 : key >= NUM_KEYS ? NUM_KEYS - 1 : (int) key;
+}
+
+// Write the points of a sample, followed by its padding. One period is synthesized, from
+// harmonics with random amplitudes, and repeated.
+static void putSampleData(FILE *const file, const struct options *const options, const int sample,
+                          short *const period) {
+
+    const int periodFrames = samplePeriod(options, sample);
+    double amplitudes[NUM_HARMONICS], total = 0;
+    uint32_t state = options->seed + 0x6d2b79f5u * (uint32_t) (sample + 1);
+    uint32_t i;
+    int h;
+
+    if (state == 0)
+        state = 1;
+    for (h = 0; h < NUM_HARMONICS; h++) {
+        amplitudes[h] = (double) (nextRandom(&state) % 1000 + 1) / (h + 1);
+        total += amplitudes[h];
+    }
+    for (i = 0; i < (uint32_t) periodFrames; i++) {
+        double x = 0;
+        for (h = 0; h < NUM_HARMONICS; h++) {
+            x += amplitudes[h] * sin(2 * M_PI * (h + 1) * i / periodFrames);
+        }
+        period[i] = (short) lrint(x / total * 16384);
+    }
+
+    for (i = 0; i < options->sampleFrames; i++) {
+        putU16(file, (uint16_t) period[i % periodFrames]);
+    }
+    for (i = 0; i < SAMPLE_PADDING; i++) {
+        putU16(file, 0);
+    }
+}
+
+// The sample of a mono zone, or the left sample of a stereo one
+static int zoneSample(const struct options *const options, const int preset, const int zone) {
+    const int64_t index = (int64_t) preset * options->zonesPerPreset + zone;
+
+    if (options->stereo)
+        return (int) (index % (options->numSamples / 2)) * 2;
+    return (int) (index % options->numSamples);
+}
+
+static void putPdta(FILE *const file, const struct options *const options,
+                    const struct layout *const layout) {
+
+    const int numPresets = options->numPresets;
+    const int instZones = numPresets * layout->instZonesPerPreset;
+    int p, z, c, s;
+
+    putChunkHeader(file, "LIST", 4 + layout->pdtaSize);
+    putId(file, "pdta");
+
+    // Presets: one zone each, playing the preset's instrument over the whole keyboard
+    putChunkHeader(file, "phdr", (uint32_t) (numPresets + 1) * PHDR_SIZE);
+    for (p = 0; p <= numPresets; p++) {
+        if (p < numPresets) {
+            putName(file, "Preset ", p);
+            putU16(file, p % 128);
+            putU16(file, p / 128);
+        } else {
+            fwrite("EOP\0\0\0\0\0\0\0\0\0\0\0\0\0\0\0\0\0", 1, NAME_LENGTH, file);
+            putU16(file, 0);
+            putU16(file, 0);
+        }
+        putU16(file, p);
+        putU32(file, 0);
+        putU32(file, 0);
+        putU32(file, 0);
+    }
+
+    putChunkHeader(file, "pbag", (uint32_t) (numPresets + 1) * BAG_SIZE);
+    for (p = 0; p <= numPresets; p++) {
+        putU16(file, 2 * p);
+        putU16(file, 0);
+    }
+
+    putChunkHeader(file, "pmod", MOD_SIZE);
+    for (c = 0; c < MOD_SIZE; c++) {
+        putU8(file, 0);
+    }
+
+    putChunkHeader(file, "pgen", (uint32_t) (2 * numPresets + 1) * GEN_SIZE);
+    for (p = 0; p < numPresets; p++) {
+        putU16(file, GEN_KEYRANGE);
+        putU8(file, 0);
+        putU8(file, NUM_KEYS - 1);
+        putU16(file, GEN_INSTRUMENT);
+        putU16(file, p);
+    }
+    putU32(file, 0);
+
+    // Instruments: the zones split the keyboard evenly
+    putChunkHeader(file, "inst", (uint32_t) (numPresets + 1) * INST_SIZE);
+    for (p = 0; p <= numPresets; p++) {
+        if (p < numPresets)
+            putName(file, "Instrument ", p);
+        else
+            fwrite("EOI\0\0\0\0\0\0\0\0\0\0\0\0\0\0\0\0\0", 1, NAME_LENGTH, file);
+        putU16(file, p * layout->instZonesPerPreset);
+    }
+
+    putChunkHeader(file, "ibag", (uint32_t) (instZones + 1) * BAG_SIZE);
+    for (z = 0; z <= instZones; z++) {
+        putU16(file, z * layout->gensPerInstZone);
+        putU16(file, 0);
+    }
+
+    putChunkHeader(file, "imod", MOD_SIZE);
+    for (c = 0; c < MOD_SIZE; c++) {
+        putU8(file, 0);
+    }
+
+    putChunkHeader(file, "igen",
+                   (uint32_t) (instZones * layout->gensPerInstZone + 1) * GEN_SIZE);
+    for (p = 0; p < numPresets; p++) {
+        for (z = 0; z < options->zonesPerPreset; z++) {
+            const int lowKey = z * NUM_KEYS / options->zonesPerPreset;
+            const int highKey = (z + 1) * NUM_KEYS / options->zonesPerPreset - 1;
+            const int sample = zoneSample(options, p, z);
+
+            for (c = 0; c < (options->stereo ? 2 : 1); c++) {
+                putU16(file, GEN_KEYRANGE);
+                putU8(file, lowKey);
+                putU8(file, highKey);
+                if (options->stereo) {
+                    putU16(file, GEN_PAN);
+                    putU16(file, (uint16_t) (c == 0 ? -500 : 500));
+                }
+                if (options->loop) {
+                    putU16(file, GEN_SAMPLEMODES);
+                    putU16(file, 1);
+                }
+                putU16(file, GEN_SAMPLEID);
+                putU16(file, sample + c);
+            }
+        }
+    }
+    putU32(file, 0);
+
+    // Sample headers, with positions in points from the start of the sample data
+    putChunkHeader(file, "shdr", (uint32_t) (options->numSamples + 1) * SHDR_SIZE);
+    for (s = 0; s < options->numSamples; s++) {
+        const uint32_t start = (uint32_t) s * layout->sampleSpan;
+        uint32_t loopStart, loopEnd;
+
+        sampleLoop(options, s, &loopStart, &loopEnd);
+        putName(file, "Sample ", s);
+        putU32(file, start);
+        putU32(file, start + options->sampleFrames);
+        putU32(file, start + loopStart);
+        putU32(file, start + loopEnd);
+        putU32(file, options->sampleRate);
+        putU8(file, sampleRootKey(options, s));
+        putU8(file, 0);
+        if (options->stereo) {
+            putU16(file, s ^ 1);
+            putU16(file, s % 2 == 0 ? SAMPLE_LEFT : SAMPLE_RIGHT);
+        } else {
+            putU16(file, 0);
+            putU16(file, SAMPLE_MONO);
+        }
+    }
+    fwrite("EOS\0\0\0\0\0\0\0\0\0\0\0\0\0\0\0\0\0", 1, NAME_LENGTH, file);
+    for (c = 0; c < SHDR_SIZE - NAME_LENGTH; c++) {
+        putU8(file, 0);
+    }
+}
+
+static int writeSoundfont(const struct options *const options) {
+
+    struct layout layout;
+    short *period;
+    FILE *file;
+    int s;
+
+    if (makeLayout(options, &layout))
+        return -1;
+
+    if ((period = malloc(MAX_PERIOD * sizeof(short))) == NULL) {
+        fprintf(stderr, "Out of memory\n");
+        return -1;
+    }
+    if ((file = fopen(options->path, "wb")) == NULL) {
+        fprintf(stderr, "Failed to open %s\n", options->path);
+        free(period);
+        return -1;
+    }
+
+    putChunkHeader(file, "RIFF", (uint32_t) layout.riffSize);
+    putId(file, "sfbk");
+
+    putChunkHeader(file, "LIST", layout.infoSize);
+    putId(file, "INFO");
+    putChunkHeader(file, "ifil", 4);
+    putU16(file, 2);
+    putU16(file, 1);
+    putStringChunk(file, "isng", "EMU8000");
+    putStringChunk(file, "INAM", bankName);
+    putStringChunk(file, "ISFT", softwareName);
+
+    putChunkHeader(file, "LIST", 4 + 8 + layout.smplSize);
+    putId(file, "sdta");
+    putChunkHeader(file, "smpl", layout.smplSize);
+    for (s = 0; s < options->numSamples; s++) {
+        putSampleData(file, options, s, period);
+    }
+
+    putPdta(file, options, &layout);
+
+    free(period);
+    if (ferror(file) | fclose(file)) {
+        fprintf(stderr, "Failed to write %s\n", options->path);
+        return -1;
+    }
+
+    printf("Wrote %s: %llu bytes, %d presets, %d zones per preset, %d %s samples of %u frames%s\n",
+           options->path, (unsigned long long) layout.riffSize + 8, options->numPresets,
+           options->zonesPerPreset, options->numSamples, options->stereo ? "stereo" : "mono",
+           options->sampleFrames, options->loop ? ", looped" : "");
+    return 0;
+}
+
+static void usage(const char *const name) {
+    fprintf(stderr,
+            "Usage: %s [options] <out.sf2>\n"
+            "  -p presets            number of presets, up to %d (default 1)\n"
+            "  -z zones              zones per preset, up to %d (default 1)\n"
+            "  -s samples            number of samples (default: one per zone)\n"
+            "  -n frames             length of each sample (default 44100)\n"
+            "  -r rate               sample rate (default 44100)\n"
+            "  -l                    loop the samples\n"
+            "  -S                    stereo: samples form linked pairs, and each zone plays one\n"
+            "  -x seed               seed of the waveforms (default 1)\n",
+            name, MAX_PRESETS, NUM_KEYS);
+}
+
+int main(int argc, char **argv) {
+
+    struct options options;
+    int opt;
+
+    options.numPresets = 1;
+    options.zonesPerPreset = 1;
+    options.numSamples = 0;
+    options.sampleFrames = 44100;
+    options.loop = 0;
+    options.stereo = 0;
+    options.sampleRate = 44100;
+    options.seed = 1;
+
+    while ((opt = getopt(argc, argv, "p:z:s:n:r:lSx:")) != -1) {
+        switch (opt) {
+            case 'p':
+                options.numPresets = atoi(optarg);
+                break;
+            case 'z':
+                options.zonesPerPreset = atoi(optarg);
+                break;
+            case 's':
+                options.numSamples = atoi(optarg);
+                break;
+            case 'n':
+                options.sampleFrames = (unsigned int) strtoul(optarg, NULL, 10);
+                break;
+            case 'r':
+                options.sampleRate = (unsigned int) strtoul(optarg, NULL, 10);
+                break;
+            case 'l':
+                options.loop = 1;
+                break;
+            case 'S':
+                options.stereo = 1;
+                break;
+            case 'x':
+                options.seed = (uint32_t) strtoul(optarg, NULL, 10);
+                break;
+            default:
+                usage(argv[0]);
+                return EXIT_FAILURE;
+        }
+    }
+    if (optind != argc - 1) {
+        usage(argv[0]);
+        return EXIT_FAILURE;
+    }
+    options.path = argv[optind];
+
+    if (options.numSamples == 0) {
+        options.numSamples = options.numPresets * options.zonesPerPreset
+                             * (options.stereo ? 2 : 1);
+    }
+
+    if (options.numPresets < 1 || options.numPresets > MAX_PRESETS ||
+        options.zonesPerPreset < 1 || options.zonesPerPreset > NUM_KEYS) {
+        fprintf(stderr, "Presets must be 1 to %d, zones per preset 1 to %d\n", MAX_PRESETS,
+                NUM_KEYS);
+        return EXIT_FAILURE;
+    }
+    if (options.numSamples < 1 || options.numSamples > 0xffff ||
+        (options.stereo && options.numSamples % 2)) {
+        fprintf(stderr, "Samples must be 1 to %d, and even with stereo\n", 0xffff);
+        return EXIT_FAILURE;
+    }
+    if (options.sampleFrames < 32 || options.sampleRate == 0) {
+        fprintf(stderr, "Samples need at least 32 frames and a sample rate\n");
+        return EXIT_FAILURE;
+    }
+    if ((int64_t) options.numPresets * options.zonesPerPreset * (options.stereo ? 2 : 1)
+        * (2 + options.loop + options.stereo) >= 0xffff) {
+        fprintf(stderr, "Too many zones: the generator indices would overflow\n");
+        return EXIT_FAILURE;
+    }
+
+    return writeSoundfont(&options) ? EXIT_FAILURE : EXIT_SUCCESS;
+}
@@ -0,0 +1,162 @@
+#!/bin/sh
+#
+# Checks that every native method declared in MidiDriver.java and PlaybackDriver.java is bound. The
+# MidiDriver natives of the synth are only reachable through the midiDriverMethods table in midi.c,
+# which midi_dispatch.c registers, so each one must be in the table with a matching signature,
+# unless midi_dispatch.c exports it itself. The PlaybackDriver natives are found by name, so each
+# one must be exported. Table entries without a declaration fail too, since they make the whole
+# registration fail. Exits non-zero if anything is missing.
+#
+# Usage: natives_check.sh
+#
+# Created by: Blaine Rister Oct 19 2026
+
+set -e
+
+TOOLS_DIR=$(cd "$(dirname "$0")" && pwd)
+JNI_DIR=$(dirname "$TOOLS_DIR")
+JAVA_DIR="$JNI_DIR/../java/com/bbrister/mididriver"
+PREFIX=Java_com_bbrister_mididriver_
+
+WORK_DIR=$(mktemp -d)
+trap 'rm -rf "$WORK_DIR"' EXIT
+
+# Print "name signature" for each native method declared in a Java file
+listNatives() {
+	awk '
+	function descriptor(type,    dims, base, code) {
+		gsub(/[ \t]/, "", type)
+		dims = ""
+		while (type ~ /\[\]$/) {
+			dims = dims "["
+			sub(/\[\]$/, "", type)
+		}
+		base = type
+		if (base == "boolean") code = "Z"
+		else if (base == "byte") code = "B"
+		else if (base == "char") code = "C"
+		else if (base == "short") code = "S"
+		else if (base == "int") code = "I"
+		else if (base == "long") code = "J"
+		else if (base == "float") code = "F"
+		else if (base == "double") code = "D"
+		else if (base == "void") code = "V"
+		else if (base == "String") code = "Ljava/lang/String;"
+		else if (base == "Object") code = "Ljava/lang/Object;"
+		else {
+			printf "%s: unsupported native type %s\n", FILENAME, base > "/dev/stderr"
+			exit 1
+		}
+		return dims code
+	}
+	/^[ \t]*((public|protected|private|static|final|synchronized)[ \t]+)*native[ \t]/ {
+		decl = ""
+		collecting = 1
+	}
+	collecting {
+		decl = decl " " $0
+		if (index($0, ";") == 0)
+			next
+		collecting = 0
+
+		# Split into return type, name and parameters
+		sub(/^.*[ \t]native[ \t]+/, "", decl)
+		open = index(decl, "(")
+		head = substr(decl, 1, open - 1)
+		params = substr(decl, open + 1)
+		sub(/\).*$/, "", params)
+		sub(/[ \t]+$/, "", head)
+		name = head
+		sub(/^.*[ \t]/, "", name)
+		ret = substr(head, 1, length(head) - length(name))
+
+		sig = "("
+		n = split(params, list, ",")
+		for (i = 1; i <= n; i++) {
+			param = list[i]
+			gsub(/^[ \t]+|[ \t]+$/, "", param)
+			if (param == "")
+				continue
+			sub(/^final[ \t]+/, "", param)
+			# Move brackets after the parameter name onto the type
+			brackets = ""
+			while (param ~ /\[\]$/) {
+				brackets = brackets "[]"
+				sub(/\[\]$/, "", param)
+			}
+			sub(/[ \t]+[A-Za-z_0-9]+$/, "", param)
+			sig = sig descriptor(param brackets)
+		}
+		print name, sig ")" descriptor(ret)
+	}
+	' "$1"
+}
+
+# Print "name signature" for each entry of the MidiDriver registration table
+listRegistered() {
+	awk '
+	/midiDriverMethods\[\] = \{/ { table = 1; next }
+	table && /^\};/ { exit }
+	table { entry = entry $0 }
+	table && /\},/ {
+		if (match(entry, /"[^"]*", "[^"]*"/)) {
+			pair = substr(entry, RSTART, RLENGTH)
+			gsub(/"/, "", pair)
+			sub(/, /, " ", pair)
+			split(pair, parts, " ")
+			if (match(entry, /MidiDriver_[A-Za-z0-9_]+/))
+				bound = substr(entry, RSTART + 11, RLENGTH - 11)
+			if (bound != parts[1]) {
+				printf "midi.c: %s is registered with the function of %s\n", parts[1], bound \
+					> "/dev/stderr"
+				exit 1
+			}
+			print pair
+		}
+		entry = ""
+	}
+	' "$JNI_DIR/midi.c"
+}
+
+# Tell whether a native method is exported by name from a source file
+isExported() {
+	grep -q "^${PREFIX}$1(" "$2"
+}
+
+listNatives "$JAVA_DIR/MidiDriver.java" > "$WORK_DIR/midi_natives"
+listNatives "$JAVA_DIR/PlaybackDriver.java" > "$WORK_DIR/playback_natives"
+listRegistered > "$WORK_DIR/midi_registered"
+
+FAILED=0
+
+while read -r NAME SIG; do
+	if isExported "MidiDriver_$NAME" "$JNI_DIR/midi_dispatch.c"; then
+		continue
+	fi
+	if ! grep -qxF "$NAME $SIG" "$WORK_DIR/midi_registered"; then
+		echo "MidiDriver.$NAME $SIG is not registered in midi.c" >&2
+		FAILED=1
+	fi
+done < "$WORK_DIR/midi_natives"
+
+while read -r NAME SIG; do
+	if ! grep -qxF "$NAME $SIG" "$WORK_DIR/midi_natives"; then
+		echo "midi.c registers MidiDriver.$NAME $SIG, which MidiDriver.java does not declare" >&2
+		FAILED=1
+	fi
+done < "$WORK_DIR/midi_registered"
+
+while read -r NAME SIG; do
+	if ! grep -q "^${PREFIX}PlaybackDriver_$NAME(" "$JNI_DIR"/*.c; then
+		echo "PlaybackDriver.$NAME $SIG is not exported" >&2
+		FAILED=1
+	fi
+done < "$WORK_DIR/playback_natives"
+
+if [ $FAILED -ne 0 ]; then
+	echo "FAILED" >&2
+	exit 1
+fi
+
+echo "OK: $(wc -l < "$WORK_DIR/midi_natives") MidiDriver and" \
+	"$(wc -l < "$WORK_DIR/playback_natives") PlaybackDriver natives are bound"
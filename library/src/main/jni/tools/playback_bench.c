@@ -0,0 +1,689 @@
+/*
+ * Host-side benchmark of the playback engine. Drives playback.c through its JNI entry points, with
+ * a simulated audio output standing in for the device. Plays a loop, swaps to another one on the
+ * beat, swaps back immediately, switches the latency profile, then swaps again and pauses without
+ * waiting, while measuring the render time, underruns, wakeups, switch latency and the time to
+ * pause. The second loop is also mixed over all of that as a stream, which is removed before the
+ * pause, and a click track plays on the beat until the profile switch. While the first loop plays
+ * alone with the clicks, each click is checked to start exactly on a beat, with an accent on the
+ * first of every bar. Every buffer is checked for glitches, i.e. jumps between frames which the
+ * test tones can't explain. The loops are sent as 16 bit PCM or float, and the output plays
+ * either format. Before the output closes, the engine's health snapshot is printed, and checked
+ * against the simulated output. See playback_bench.sh.
+ *
+ * Created by: Blaine Rister Oct 19 2026
+ */
+
+#include <getopt.h>
+#include <jni.h>
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include "../audio_sink.h"
+#include "../playback_health.h"
+
+// Test tones
+#define AMPLITUDE 8000
+#define CHANNELS 2
+#define PAUSE_TIMEOUT_MS 1000
+#define STREAM_GAIN 0.5F
+#define CLICK_AMPLITUDE 16000 // Peak of the test clicks, which are smooth bumps
+#define CLICK_MS 10
+#define CLICK_GAIN 0.5F
+#define CLICK_BEATS_PER_BAR 4
+#define CLICK_THRESHOLD 1000 // Level of the output above the loop at which a click is heard
+static const double beatsPerMinute[] = {120.0, 100.0};
+static const double frequencies[] = {440.0, 660.0};
+
+// Entry points of playback.c
+JNIEXPORT jboolean JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_B(JNIEnv *env, jobject obj, jint deviceSampleRate,
+                                              jint deviceBufferSizeMono, jfloatArray jArray,
+                                              jboolean immediate, jboolean floatOutput);
+JNIEXPORT jboolean JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_E(JNIEnv *env, jobject obj, jint deviceSampleRate,
+                                              jint deviceBufferSizeMono, jshortArray jArray,
+                                              jboolean immediate, jboolean floatOutput);
+JNIEXPORT jboolean JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_C(JNIEnv *env, jobject obj);
+JNIEXPORT jboolean JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_F(JNIEnv *env, jobject obj);
+JNIEXPORT jlong JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_G(JNIEnv *env, jobject obj);
+JNIEXPORT jint JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_H(JNIEnv *env, jobject obj);
+JNIEXPORT jboolean JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_I(JNIEnv *env, jobject obj);
+JNIEXPORT jboolean JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_J(JNIEnv *env, jobject obj, jint newProfile);
+JNIEXPORT jdouble JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_K(JNIEnv *env, jobject obj);
+JNIEXPORT void JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_L(JNIEnv *env, jobject obj);
+JNIEXPORT jint JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_M(JNIEnv *env, jobject obj, jlong timeoutMs,
+                                              jboolean release);
+JNIEXPORT jint JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_N(JNIEnv *env, jobject obj, jfloatArray jArray,
+                                              jfloat gain, jint offsetFrames);
+JNIEXPORT jint JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_O(JNIEnv *env, jobject obj, jshortArray jArray,
+                                              jfloat gain, jint offsetFrames);
+JNIEXPORT jboolean JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_P(JNIEnv *env, jobject obj, jint id);
+JNIEXPORT jboolean JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_R(JNIEnv *env, jobject obj, jfloatArray jClick,
+                                              jfloatArray jAccent, jint beatsPerBar, jfloat gain);
+JNIEXPORT jboolean JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_S(JNIEnv *env, jobject obj, jshortArray jClick,
+                                              jshortArray jAccent, jint beatsPerBar, jfloat gain);
+JNIEXPORT void JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_T(JNIEnv *env, jobject obj);
+JNIEXPORT jlongArray JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_U(JNIEnv *env, jobject obj);
+
+// Stand-in for a Java array, holding 16 bit PCM or float
+struct test_array {
+    jsize length;
+    jshort *shorts;
+    jfloat *floats;
+};
+
+// Stand-in for a Java long array, which the bench frees
+struct test_long_array {
+    jsize length;
+    jlong *longs;
+};
+
+// Output under test, and the render callback it wraps
+static const struct audio_sink *target;
+static audio_render_callback engineRender;
+static enum sample_format target_format;
+
+// Options which apply to every loop
+static int send_float;
+static int allow_float = 1;
+
+// Glitch detection, on the audio thread. Jumps are measured in 16 bit PCM units.
+static float last_frame[CHANNELS];
+static int have_last_frame;
+static int max_jump;
+
+/* Click timing, on the audio thread. While only the first loop and the clicks play, the loop is
+ * subtracted from the output, leaving the clicks. The main thread ends the check before changing
+ * anything else. */
+static const struct test_array *timed_loop; // The first loop, or NULL once the check is over
+static int timing_over; // Shared with the main thread
+static int64_t timed_frames; // Frames played since the first loop started
+static int64_t last_click_frame = -1;
+static int click_onset; // Frame of a click at which it crosses the threshold
+static int num_clicks;
+static int misplaced_clicks; // Clicks off the beat
+static int misaccented_clicks; // Clicks with the wrong accent for their beat of the bar
+
+static jsize getArrayLength(JNIEnv *env, jarray array) {
+    return ((struct test_array *) array)->length;
+}
+
+static void getShortArrayRegion(JNIEnv *env, jshortArray array, jsize start, jsize len,
+                                jshort *buf) {
+    memcpy(buf, ((struct test_array *) array)->shorts + start, len * sizeof(jshort));
+}
+
+static void getFloatArrayRegion(JNIEnv *env, jfloatArray array, jsize start, jsize len,
+                                jfloat *buf) {
+    memcpy(buf, ((struct test_array *) array)->floats + start, len * sizeof(jfloat));
+}
+
+static jlongArray newLongArray(JNIEnv *env, jsize length) {
+
+    struct test_long_array *const array = malloc(sizeof(struct test_long_array));
+
+    if (array == NULL || (array->longs = calloc(length, sizeof(jlong))) == NULL) {
+        fprintf(stderr, "Out of memory\n");
+        exit(EXIT_FAILURE);
+    }
+    array->length = length;
+
+    return (jlongArray) array;
+}
+
+static void setLongArrayRegion(JNIEnv *env, jlongArray array, jsize start, jsize len,
+                               const jlong *buf) {
+    memcpy(((struct test_long_array *) array)->longs + start, buf, len * sizeof(jlong));
+}
+
+// Read a frame of the left channel in 16 bit PCM units
+static float getLeft(const void *const buffer, const int32_t frame) {
+    return target_format == SAMPLE_FORMAT_FLOAT ?
+           ((const float *) buffer)[frame * CHANNELS] * INT16_MAX / maxFloatLevel :
+           (float) ((const output_t *) buffer)[frame * CHANNELS];
+}
+
+/* Find the clicks in rendered frames of the first loop. Each must start a beat, and the accents,
+ * which have the opposite sign, start the bars. Drops the frames if the check ended meanwhile,
+ * since something else may have changed the sound. */
+static void checkClicks(const void *const buffer, const int32_t numFrames) {
+
+    const int64_t loopFrames = timed_loop->length / CHANNELS;
+    int64_t onsets[4];
+    int accents[4];
+    int numOnsets = 0, i;
+    int32_t frame;
+
+    for (frame = 0; frame < numFrames; frame++) {
+        const int64_t n = timed_frames + frame;
+        const jsize index = (jsize) (n % loopFrames) * CHANNELS;
+        const float loopSample = send_float ?
+                                 timed_loop->floats[index] * INT16_MAX / maxFloatLevel :
+                                 (float) timed_loop->shorts[index];
+        const float click = getLeft(buffer, frame) - loopSample;
+        const int64_t last = numOnsets > 0 ? onsets[numOnsets - 1] : last_click_frame;
+
+        // Wait for the last click to end
+        if (fabsf(click) < CLICK_THRESHOLD || (last >= 0 && n - last < loopFrames / 2) ||
+            numOnsets == 4)
+            continue;
+        onsets[numOnsets] = n;
+        accents[numOnsets++] = click < 0;
+    }
+
+    if (__atomic_load_n(&timing_over, __ATOMIC_SEQ_CST)) {
+        timed_loop = NULL;
+        return;
+    }
+
+    for (i = 0; i < numOnsets; i++) {
+        if ((onsets[i] - click_onset) % loopFrames != 0)
+            misplaced_clicks++;
+        if (accents[i] != (num_clicks % CLICK_BEATS_PER_BAR == 0))
+            misaccented_clicks++;
+        num_clicks++;
+        last_click_frame = onsets[i];
+    }
+    timed_frames += numFrames;
+}
+
+// Render through the engine, check the clicks, then look for the largest jump between frames
+static void checkRender(void *const buffer, const int32_t numFrames) {
+
+    int32_t i;
+    int c;
+
+    engineRender(buffer, numFrames);
+    if (timed_loop != NULL)
+        checkClicks(buffer, numFrames);
+
+    for (i = 0; i < numFrames; i++) {
+        for (c = 0; c < CHANNELS; c++) {
+            const int index = i * CHANNELS + c;
+            const float sample = target_format == SAMPLE_FORMAT_FLOAT ?
+                                 ((const float *) buffer)[index] * INT16_MAX / maxFloatLevel :
+                                 (float) ((const output_t *) buffer)[index];
+            const int jump = (int) fabsf(sample - last_frame[c]);
+            if (have_last_frame && jump > max_jump)
+                max_jump = jump;
+            last_frame[c] = sample;
+        }
+        have_last_frame = 1;
+    }
+}
+
+static int openChecked(const int sampleRate, const int bufferSizeMono,
+                       const enum sample_format format, const enum latency_profile profile,
+                       const audio_render_callback render) {
+    engineRender = render;
+    target_format = format;
+    return target->open(sampleRate, bufferSizeMono, format, profile, checkRender);
+}
+
+static int startChecked(void) {
+    return target->start();
+}
+
+static int stopChecked(void) {
+    return target->stop();
+}
+
+static void closeChecked(void) {
+    target->close();
+}
+
+static int isCheckedAlive(void) {
+    return target->is_alive();
+}
+
+static int32_t getCheckedBufferedFrames(void) {
+    return target->get_buffered_frames();
+}
+
+static int32_t getCheckedXRunCount(void) {
+    return target->get_xrun_count();
+}
+
+static int32_t getCheckedEnqueueFailureCount(void) {
+    return target->get_enqueue_failure_count();
+}
+
+static const struct audio_sink checked_sink = {
+        "checked",
+        openChecked,
+        startChecked,
+        stopChecked,
+        closeChecked,
+        isCheckedAlive,
+        getCheckedBufferedFrames,
+        getCheckedXRunCount,
+        getCheckedEnqueueFailureCount
+};
+
+// Make a one beat loop of a sine tone. The frequency is rounded to fit a whole number of periods
+// in the loop, so it wraps around without a click. Returns the frequency.
+static double makeLoop(struct test_array *const loop, const int sampleRate, const double bpm,
+                       const double frequency) {
+
+    const jsize frames = (jsize) (sampleRate * 60.0 / bpm);
+    const double periods = MAX(round(frequency * frames / sampleRate), 1.0);
+    jsize i;
+    int c;
+
+    loop->length = frames * CHANNELS;
+    loop->shorts = (jshort *) malloc(loop->length * sizeof(jshort));
+    loop->floats = (jfloat *) malloc(loop->length * sizeof(jfloat));
+    if (loop->shorts == NULL || loop->floats == NULL) {
+        fprintf(stderr, "Out of memory\n");
+        exit(EXIT_FAILURE);
+    }
+
+    for (i = 0; i < frames; i++) {
+        const double sample = AMPLITUDE * sin(2 * M_PI * periods * i / frames);
+        for (c = 0; c < CHANNELS; c++) {
+            loop->shorts[i * CHANNELS + c] = (jshort) lrint(sample);
+            loop->floats[i * CHANNELS + c] = (jfloat) (sample * maxFloatLevel / INT16_MAX);
+        }
+    }
+
+    return periods * sampleRate / frames;
+}
+
+/* Make a test click, a raised cosine bump which starts and ends smoothly. The accent has the
+ * opposite sign. Returns the frame at which the click crosses the threshold. */
+static int makeClick(struct test_array *const click, const int sampleRate, const int accent) {
+
+    const jsize frames = sampleRate * CLICK_MS / 1000;
+    const double sign = accent ? -1.0 : 1.0;
+    int onset = -1;
+    jsize i;
+    int c;
+
+    click->length = frames * CHANNELS;
+    click->shorts = (jshort *) malloc(click->length * sizeof(jshort));
+    click->floats = (jfloat *) malloc(click->length * sizeof(jfloat));
+    if (click->shorts == NULL || click->floats == NULL) {
+        fprintf(stderr, "Out of memory\n");
+        exit(EXIT_FAILURE);
+    }
+
+    for (i = 0; i < frames; i++) {
+        const double sample = sign * CLICK_AMPLITUDE * (1 - cos(2 * M_PI * i / frames)) / 2;
+        for (c = 0; c < CHANNELS; c++) {
+            click->shorts[i * CHANNELS + c] = (jshort) lrint(sample);
+            click->floats[i * CHANNELS + c] = (jfloat) (sample * maxFloatLevel / INT16_MAX);
+        }
+        if (onset < 0 && fabs(sample) * CLICK_GAIN >= CLICK_THRESHOLD)
+            onset = i;
+    }
+
+    return onset;
+}
+
+static double nowSeconds(void) {
+    struct timespec time;
+    clock_gettime(CLOCK_MONOTONIC, &time);
+    return (double) time.tv_sec + (double) time.tv_nsec * 1e-9;
+}
+
+static void sleepSeconds(const double seconds) {
+    struct timespec time;
+    time.tv_sec = (time_t) seconds;
+    time.tv_nsec = (long) ((seconds - (double) time.tv_sec) * 1e9);
+    nanosleep(&time, NULL);
+}
+
+// Play a loop, in the chosen format
+static int playLoop(JNIEnv *env, const char *const what, struct test_array *const loop,
+                    const int sampleRate, const int bufferSizeMono, const int immediate) {
+
+    const jboolean result = send_float ?
+            Java_com_bbrister_mididriver_PlaybackDriver_B(env, NULL, sampleRate, bufferSizeMono,
+                                                          (jfloatArray) loop, immediate,
+                                                          allow_float) :
+            Java_com_bbrister_mididriver_PlaybackDriver_E(env, NULL, sampleRate, bufferSizeMono,
+                                                          (jshortArray) loop, immediate,
+                                                          allow_float);
+    if (!result) {
+        fprintf(stderr, "Failed to play %s\n", what);
+        return -1;
+    }
+
+    return 0;
+}
+
+// Mix a loop over the recording as a stream, in the chosen format, starting half a beat in.
+// Returns its ID, or -1 on failure.
+static int addStreamLoop(JNIEnv *env, struct test_array *const loop) {
+
+    const jint offset = loop->length / CHANNELS / 2;
+    const jint id = send_float ?
+            Java_com_bbrister_mididriver_PlaybackDriver_N(env, NULL, (jfloatArray) loop,
+                                                          STREAM_GAIN, offset) :
+            Java_com_bbrister_mididriver_PlaybackDriver_O(env, NULL, (jshortArray) loop,
+                                                          STREAM_GAIN, offset);
+    if (id < 0)
+        fprintf(stderr, "Failed to add a stream\n");
+
+    return id;
+}
+
+// Click on the beat, in the chosen format
+static int setClicks(JNIEnv *env, struct test_array *const click,
+                     struct test_array *const accent) {
+
+    const jboolean result = send_float ?
+            Java_com_bbrister_mididriver_PlaybackDriver_R(env, NULL, (jfloatArray) click,
+                                                          (jfloatArray) accent,
+                                                          CLICK_BEATS_PER_BAR, CLICK_GAIN) :
+            Java_com_bbrister_mididriver_PlaybackDriver_S(env, NULL, (jshortArray) click,
+                                                          (jshortArray) accent,
+                                                          CLICK_BEATS_PER_BAR, CLICK_GAIN);
+    if (!result) {
+        fprintf(stderr, "Failed to set the clicks\n");
+        return -1;
+    }
+
+    return 0;
+}
+
+static void printLatency(JNIEnv *env, const char *const what) {
+    printf("%-24s %8.2f ms\n", what,
+           (double) Java_com_bbrister_mididriver_PlaybackDriver_G(env, NULL) / 1e6);
+}
+
+// Add up the statistics of the outputs opened so far, and their underruns
+static void addStats(JNIEnv *env, struct simulated_sink_stats *const total) {
+
+    struct simulated_sink_stats stats;
+
+    simulated_sink_get_stats(&stats);
+    total->frames += stats.frames;
+    total->callbacks += stats.callbacks;
+    total->render_ns += stats.render_ns;
+    total->max_render_ns = MAX(total->max_render_ns, stats.max_render_ns);
+    total->xruns += Java_com_bbrister_mididriver_PlaybackDriver_H(env, NULL);
+}
+
+// Print a histogram of the health, skipping empty bins
+static void printBins(const char *const what, const jlong *const bins) {
+
+    int i;
+
+    printf("%s\n", what);
+    for (i = 0; i < HEALTH_BINS; i++) {
+        if (bins[i] > 0)
+            printf("  %8lld us and up:     %8lld\n", 1LL << i, (long long) bins[i]);
+    }
+}
+
+/* Print the health snapshot of the open output, and check that it adds up and agrees with the
+ * simulated output. The output must be paused. Returns nonzero on failure. */
+static int checkHealth(JNIEnv *env) {
+
+    struct test_long_array *const array =
+            (struct test_long_array *) Java_com_bbrister_mididriver_PlaybackDriver_U(env, NULL);
+    struct simulated_sink_stats stats;
+    const jlong *health;
+    jlong renderCount = 0, intervalCount = 0;
+    int i, failed = 0;
+
+    if (array == NULL) {
+        fprintf(stderr, "Failed to get the health\n");
+        return -1;
+    }
+    health = array->longs;
+    simulated_sink_get_stats(&stats);
+
+    printf("Health callbacks:        %8lld over %.2f s\n", (long long) health[HEALTH_CALLBACKS],
+           (double) health[HEALTH_ELAPSED_NS] / 1e9);
+    printf("Health max interval:     %8.2f ms\n",
+           (double) health[HEALTH_MAX_INTERVAL_NS] / 1e6);
+    printf("Health max render time:  %8.2f us\n", (double) health[HEALTH_MAX_RENDER_NS] / 1e3);
+    printf("Late callbacks:          %8lld, buffered %lld frames\n",
+           (long long) health[HEALTH_LATE_CALLBACKS],
+           (long long) health[HEALTH_BUFFERED_FRAMES]);
+    printf("Enqueue failures:        %8lld\n", (long long) health[HEALTH_ENQUEUE_FAILURES]);
+    printBins("Callback intervals:", health + HEALTH_INTERVAL_BINS);
+    printBins("Render times:", health + HEALTH_RENDER_BINS);
+
+    // Every callback is binned by its render time, and all but those after a start by interval
+    for (i = 0; i < HEALTH_BINS; i++) {
+        renderCount += health[HEALTH_RENDER_BINS + i];
+        intervalCount += health[HEALTH_INTERVAL_BINS + i];
+    }
+    if (renderCount != health[HEALTH_CALLBACKS] || intervalCount >= renderCount) {
+        fprintf(stderr, "The health histograms don't add up\n");
+        failed = 1;
+    }
+    // The output counts a callback after the engine does, so it may be one behind
+    if (health[HEALTH_CALLBACKS] - stats.callbacks < 0 ||
+        health[HEALTH_CALLBACKS] - stats.callbacks > 1 ||
+        health[HEALTH_FRAMES] != health[HEALTH_CALLBACKS] * health[HEALTH_FRAMES_PER_CALLBACK] ||
+        health[HEALTH_ENQUEUE_FAILURES] != 0) {
+        fprintf(stderr, "The health disagrees with the output\n");
+        failed = 1;
+    }
+
+    free(array->longs);
+    free(array);
+
+    return failed;
+}
+
+static void usage(const char *const name) {
+    fprintf(stderr, "Usage: %s [-r sample rate] [-b buffer frames] [-s clock speed] "
+                    "[-t seconds per loop] [-w output.wav] [-f] [-i] [-p profile] [-q profile]\n"
+                    "A clock speed of 0 renders as fast as possible. -f sends the loops as float, "
+                    "rather than 16 bit PCM. -i keeps the output in 16 bit PCM. -p and -q give "
+                    "the latency profiles to play in before and after switching: 0 for low latency "
+                    "(the default before), 1 for balanced and 2 for deep buffers (the default "
+                    "after).\n", name);
+}
+
+int main(int argc, char *argv[]) {
+
+    struct JNINativeInterface_ functions;
+    const struct JNINativeInterface_ *functionsPtr = &functions;
+    JNIEnv *const env = &functionsPtr;
+    struct test_array loops[2];
+    struct test_array clicks[2];
+    double tones[2];
+    struct simulated_sink_stats stats;
+    const char *wavPath = NULL;
+    int firstProfile = PROFILE_LOW_LATENCY;
+    int secondProfile = PROFILE_DEEP_BUFFER;
+    int sampleRate = 48000;
+    int bufferSizeMono = 192;
+    double speed = 1.0;
+    double seconds = 2.0;
+    double pauseStart;
+    int opt, i, faded, stream;
+
+    while ((opt = getopt(argc, argv, "r:b:s:t:w:fip:q:h")) != -1) {
+        switch (opt) {
+            case 'r':
+                sampleRate = atoi(optarg);
+                break;
+            case 'b':
+                bufferSizeMono = atoi(optarg);
+                break;
+            case 's':
+                speed = atof(optarg);
+                break;
+            case 't':
+                seconds = atof(optarg);
+                break;
+            case 'w':
+                wavPath = optarg;
+                break;
+            case 'f':
+                send_float = 1;
+                break;
+            case 'i':
+                allow_float = 0;
+                break;
+            case 'p':
+                firstProfile = atoi(optarg);
+                break;
+            case 'q':
+                secondProfile = atoi(optarg);
+                break;
+            default:
+                usage(argv[0]);
+                return EXIT_FAILURE;
+        }
+    }
+    if (sampleRate <= 0 || bufferSizeMono <= 0 || speed < 0 || seconds <= 0 ||
+        firstProfile < 0 || firstProfile >= NUM_PROFILES ||
+        secondProfile < 0 || secondProfile >= NUM_PROFILES) {
+        usage(argv[0]);
+        return EXIT_FAILURE;
+    }
+
+    // Only the array functions of the JNI environment are used
+    memset(&functions, 0, sizeof(functions));
+    functions.GetArrayLength = getArrayLength;
+    functions.GetShortArrayRegion = getShortArrayRegion;
+    functions.GetFloatArrayRegion = getFloatArrayRegion;
+    functions.NewLongArray = newLongArray;
+    functions.SetLongArrayRegion = setLongArrayRegion;
+
+    for (i = 0; i < 2; i++) {
+        tones[i] = makeLoop(&loops[i], sampleRate, beatsPerMinute[i], frequencies[i]);
+        click_onset = makeClick(&clicks[i], sampleRate, i);
+    }
+
+    target = wavPath != NULL ? &wav_sink : &null_sink;
+    simulated_sink_configure(wavPath, speed);
+    playback_use_sink(&checked_sink);
+
+    printf("Output: %s, sample rate: %d, buffer: %d frames, clock speed: %g\n", target->name,
+           sampleRate, bufferSizeMono, speed);
+
+    // Play with clicks, check their timing, then mix in a stream, swap on the beat, swap back
+    // immediately, switch profiles, remove the stream and the clicks, swap and pause
+    memset(&stats, 0, sizeof(stats));
+    Java_com_bbrister_mididriver_PlaybackDriver_J(env, NULL, firstProfile);
+    timed_loop = &loops[0];
+    if (playLoop(env, "the first loop", &loops[0], sampleRate, bufferSizeMono, 0))
+        return EXIT_FAILURE;
+    printf("Output format: %s\n", Java_com_bbrister_mididriver_PlaybackDriver_I(env, NULL) ?
+                                   "float" : "16 bit PCM");
+    printLatency(env, "Start latency:");
+    if (setClicks(env, &clicks[0], &clicks[1]))
+        return EXIT_FAILURE;
+    sleepSeconds(seconds);
+    __atomic_store_n(&timing_over, 1, __ATOMIC_SEQ_CST);
+    if ((stream = addStreamLoop(env, &loops[1])) < 0)
+        return EXIT_FAILURE;
+    sleepSeconds(seconds);
+    if (playLoop(env, "the second loop", &loops[1], sampleRate, bufferSizeMono, 0))
+        return EXIT_FAILURE;
+    sleepSeconds(seconds);
+    printLatency(env, "Beat swap latency:");
+    if (playLoop(env, "the first loop again", &loops[0], sampleRate, bufferSizeMono, 1))
+        return EXIT_FAILURE;
+    if (setClicks(env, &clicks[0], &clicks[1]))
+        return EXIT_FAILURE;
+    sleepSeconds(seconds);
+    printLatency(env, "Immediate swap latency:");
+    printf("Wakeups per minute (%d): %8.0f\n", firstProfile,
+           Java_com_bbrister_mididriver_PlaybackDriver_K(env, NULL));
+    addStats(env, &stats);
+    if (!Java_com_bbrister_mididriver_PlaybackDriver_J(env, NULL, secondProfile)) {
+        fprintf(stderr, "Failed to switch profiles\n");
+        return EXIT_FAILURE;
+    }
+    sleepSeconds(seconds);
+    printf("Wakeups per minute (%d): %8.0f\n", secondProfile,
+           Java_com_bbrister_mididriver_PlaybackDriver_K(env, NULL));
+    if (!Java_com_bbrister_mididriver_PlaybackDriver_P(env, NULL, stream)) {
+        fprintf(stderr, "Failed to remove the stream\n");
+        return EXIT_FAILURE;
+    }
+    Java_com_bbrister_mididriver_PlaybackDriver_T(env, NULL);
+    if (playLoop(env, "the second loop again", &loops[1], sampleRate, bufferSizeMono, 1))
+        return EXIT_FAILURE;
+    pauseStart = nowSeconds();
+    Java_com_bbrister_mididriver_PlaybackDriver_L(env, NULL);
+    printf("Pause request:           %8.2f us\n", (nowSeconds() - pauseStart) * 1e6);
+    faded = Java_com_bbrister_mididriver_PlaybackDriver_M(env, NULL, PAUSE_TIMEOUT_MS, JNI_FALSE);
+    printf("Pause fade out:          %8.2f ms\n", (nowSeconds() - pauseStart) * 1e3);
+    if (faded != 1) {
+        fprintf(stderr, faded < 0 ? "Failed to pause\n" : "The pause timed out\n");
+        return EXIT_FAILURE;
+    }
+
+    // Read the statistics before the output closes. Switching profiles reopens it.
+    if (secondProfile != firstProfile)
+        addStats(env, &stats);
+    printf("Underruns:               %8lld\n", (long long) stats.xruns);
+    if (checkHealth(env))
+        return EXIT_FAILURE;
+    Java_com_bbrister_mididriver_PlaybackDriver_F(env, NULL);
+
+    printf("Frames rendered:         %8lld\n", (long long) stats.frames);
+    if (stats.callbacks > 0 && stats.render_ns > 0) {
+        printf("Mean render time:        %8.2f us per buffer\n",
+               (double) stats.render_ns / stats.callbacks / 1e3);
+        printf("Max render time:         %8.2f us\n", (double) stats.max_render_ns / 1e3);
+        printf("Throughput:              %8.0fx real time\n",
+               (double) stats.frames / sampleRate / ((double) stats.render_ns / 1e9));
+    }
+
+    for (i = 0; i < 2; i++) {
+        free(loops[i].shorts);
+        free(loops[i].floats);
+        free(clicks[i].shorts);
+        free(clicks[i].floats);
+    }
+
+    // Every click of the first loop should be on its beat, with the right accent
+    {
+        const int minClicks = MAX((int) (seconds * beatsPerMinute[0] / 60) - 1, 1);
+        printf("Clicks on the beat:      %8d of %d, %d misaccented\n",
+               num_clicks - misplaced_clicks, num_clicks, misaccented_clicks);
+        if (num_clicks < minClicks || misplaced_clicks > 0 || misaccented_clicks > 0) {
+            fprintf(stderr, "The clicks were off the beat\n");
+            return EXIT_FAILURE;
+        }
+    }
+
+    // A tone changes by at most its slope between frames. The crossfade and the ramps add a bit.
+    {
+        // The stream adds its slope to that of the recording, and so do the clicks
+        const double maxTone = MAX(tones[0], tones[1]) + STREAM_GAIN * tones[1];
+        const double clickSlope = CLICK_AMPLITUDE * CLICK_GAIN * M_PI * 1000 /
+                                  (CLICK_MS * sampleRate);
+        const int allowedJump = (int) (AMPLITUDE * (2 * M_PI * maxTone / sampleRate + 0.05) +
+                                       clickSlope);
+        printf("Largest jump:            %8d (allowed %d)\n", max_jump, allowedJump);
+        if (max_jump > allowedJump) {
+            fprintf(stderr, "Playback glitched\n");
+            return EXIT_FAILURE;
+        }
+    }
+
+    return EXIT_SUCCESS;
+}
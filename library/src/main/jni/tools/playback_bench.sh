@@ -0,0 +1,38 @@
+#!/bin/sh
+#
+# Benchmarks the playback engine on the host. Builds playback.c with the simulated audio outputs,
+# then plays, mixes and swaps test loops under a click track and switches latency profiles,
+# reporting the render time, underruns, wakeups per minute, switch latency, the timing of the clicks,
+# the playback health and any glitches. Exits non-zero if playback fails, glitches or clicks off
+# the beat, or the health doesn't add up. The options are passed to playback_bench.c, e.g. -s 0
+# renders as fast as possible and -w out.wav keeps the audio.
+#
+# Usage: playback_bench.sh [-r sample rate] [-b buffer frames] [-s clock speed]
+#                          [-t seconds per loop] [-w output.wav] [-f] [-i]
+#                          [-p profile] [-q profile]
+#
+# Needs JAVA_HOME for the JNI headers.
+#
+# Created by: Blaine Rister Oct 19 2026
+
+set -e
+
+CC=${CC:-cc}
+
+if [ -z "$JAVA_HOME" ]; then
+	echo "Set JAVA_HOME to a JDK, for jni.h" >&2
+	exit 1
+fi
+
+TOOLS_DIR=$(cd "$(dirname "$0")" && pwd)
+JNI_DIR=$(dirname "$TOOLS_DIR")
+
+WORK_DIR=$(mktemp -d)
+trap 'rm -rf "$WORK_DIR"' EXIT
+
+$CC -O2 -std=gnu99 -D_GNU_SOURCE -DNDEBUG -I "$JNI_DIR" \
+	-I "$JAVA_HOME/include" -I "$JAVA_HOME/include/linux" \
+	"$JNI_DIR/playback.c" "$JNI_DIR/dither.c" "$JNI_DIR/audio_sink_simulated.c" "$TOOLS_DIR/playback_bench.c" \
+	-lpthread -lm -o "$WORK_DIR/playback_bench"
+
+"$WORK_DIR/playback_bench" "$@"
@@ -0,0 +1,743 @@
+/*
+ * Host-side unit tests of the playback engine against a stub audio output. The stub either renders
+ * only when a test pumps it, so the output can be compared frame for frame, or runs on its own
+ * thread like a device. Each test drives playback.c through its JNI entry points, and checks:
+ *   - the output format falls back to 16 bit PCM if the output refuses float,
+ *   - a loop plays back exactly, across buffer boundaries,
+ *   - a swap on the beat starts the new loop right where the old one ends,
+ *   - a pause fades out to silence and stops the output, also when polled for the end of the fade,
+ *   - waits give up on an output which dies, and the next recording opens a new one,
+ *   - a swap which is waiting for the beat carries over to a new latency profile,
+ *   - a crossfade which stalls is dropped after a while, for a new output,
+ *   - the output's underrun count is passed through.
+ * Exits non-zero if a test fails. See playback_test.sh.
+ *
+ * Created by: Blaine Rister Oct 19 2026
+ */
+
+#include <jni.h>
+#include <pthread.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include "../audio_sink.h"
+
+#define SAMPLE_RATE 8000
+#define BUFFER_FRAMES 64
+#define CAPTURE_FRAMES (1 << 16)
+#define TIMEOUT_MS 1000
+
+// Entry points of playback.c
+JNIEXPORT jboolean JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_B(JNIEnv *env, jobject obj, jint deviceSampleRate,
+                                              jint deviceBufferSizeMono, jfloatArray jArray,
+                                              jboolean immediate, jboolean floatOutput);
+JNIEXPORT jboolean JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_D(JNIEnv *env, jobject obj);
+JNIEXPORT jboolean JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_E(JNIEnv *env, jobject obj, jint deviceSampleRate,
+                                              jint deviceBufferSizeMono, jshortArray jArray,
+                                              jboolean immediate, jboolean floatOutput);
+JNIEXPORT jboolean JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_F(JNIEnv *env, jobject obj);
+JNIEXPORT jint JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_H(JNIEnv *env, jobject obj);
+JNIEXPORT jboolean JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_I(JNIEnv *env, jobject obj);
+JNIEXPORT jint JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_J(JNIEnv *env, jobject obj, jint profile);
+JNIEXPORT void JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_L(JNIEnv *env, jobject obj);
+JNIEXPORT jint JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_M(JNIEnv *env, jobject obj, jlong timeoutMs,
+                                              jboolean release);
+JNIEXPORT jboolean JNICALL
+Java_com_bbrister_mididriver_PlaybackDriver_V(JNIEnv *env, jobject obj);
+
+// Stand-in for a Java array, holding 16 bit PCM or float
+struct test_array {
+    jsize length;
+    jshort *shorts;
+    jfloat *floats;
+};
+
+/* The stub output. Its thread renders whenever the output runs freely, and a test pumps it
+ * otherwise. The lock keeps the two from rendering at once, and guards the capture. */
+static struct {
+    pthread_mutex_t lock;
+    pthread_t thread;
+    audio_render_callback render;
+    enum sample_format format;
+    int32_t frames; // Frames per callback
+    void *buffer;
+    int open; // Whether a stream is open
+    int opens; // Streams opened, counting refusals
+    int accept_float; // Whether float streams open
+    int refused_profile; // Profile whose streams fail to open, or -1
+    int free_run; // Whether the thread renders on its own. Shared.
+    int started; // Shared
+    int alive; // Shared
+    int32_t xruns;
+    output_t capture[CAPTURE_FRAMES * 2]; // The 16 bit output, from the start of the test
+    size_t captured; // Frames in the capture
+} stub = {PTHREAD_MUTEX_INITIALIZER};
+
+static jsize getArrayLength(JNIEnv *env, jarray array) {
+    return ((struct test_array *) array)->length;
+}
+
+static void getShortArrayRegion(JNIEnv *env, jshortArray array, jsize start, jsize len,
+                                jshort *buf) {
+    memcpy(buf, ((struct test_array *) array)->shorts + start, len * sizeof(jshort));
+}
+
+static void getFloatArrayRegion(JNIEnv *env, jfloatArray array, jsize start, jsize len,
+                                jfloat *buf) {
+    memcpy(buf, ((struct test_array *) array)->floats + start, len * sizeof(jfloat));
+}
+
+static void sleepMs(const long ms) {
+    struct timespec time;
+    time.tv_sec = ms / 1000;
+    time.tv_nsec = (ms % 1000) * 1000000;
+    nanosleep(&time, NULL);
+}
+
+static double nowSeconds(void) {
+    struct timespec time;
+    clock_gettime(CLOCK_MONOTONIC, &time);
+    return (double) time.tv_sec + (double) time.tv_nsec * 1e-9;
+}
+
+// Render one callback and capture it. The lock must be held.
+static void renderStub(void) {
+
+    stub.render(stub.buffer, stub.frames);
+
+    if (stub.format != SAMPLE_FORMAT_I16)
+        return;
+    if (stub.captured + stub.frames <= CAPTURE_FRAMES) {
+        memcpy(stub.capture + getNumPcm(stub.captured), stub.buffer,
+               getNumPcm(stub.frames) * sizeof(output_t));
+        stub.captured += stub.frames;
+    }
+}
+
+// Render until the output closes, while running freely
+static void *runStub(void *arg) {
+    for (;;) {
+        pthread_mutex_lock(&stub.lock);
+        if (!stub.open) {
+            pthread_mutex_unlock(&stub.lock);
+            return NULL;
+        }
+        if (__atomic_load_n(&stub.free_run, __ATOMIC_ACQUIRE) &&
+            __atomic_load_n(&stub.started, __ATOMIC_ACQUIRE) &&
+            __atomic_load_n(&stub.alive, __ATOMIC_ACQUIRE))
+            renderStub();
+        pthread_mutex_unlock(&stub.lock);
+        sleepMs(1);
+    }
+}
+
+// Render the given number of callbacks, if the output is started and alive
+static void pumpStub(const int callbacks) {
+
+    int i;
+
+    pthread_mutex_lock(&stub.lock);
+    for (i = 0; i < callbacks && stub.open && stub.started && stub.alive; i++)
+        renderStub();
+    pthread_mutex_unlock(&stub.lock);
+}
+
+static int openStub(const int sampleRate, const int bufferSizeMono,
+                    const enum sample_format format, const enum latency_profile profile,
+                    const audio_render_callback render) {
+
+    stub.opens++;
+    if ((format == SAMPLE_FORMAT_FLOAT && !stub.accept_float) ||
+        (int) profile == stub.refused_profile)
+        return -1;
+
+    if ((stub.buffer = malloc(getNumPcm(bufferSizeMono) * getSampleSize(format))) == NULL)
+        return -1;
+    stub.render = render;
+    stub.format = format;
+    stub.frames = bufferSizeMono;
+    stub.started = 0;
+    stub.alive = 1;
+    stub.open = 1;
+    if (pthread_create(&stub.thread, NULL, runStub, NULL) != 0) {
+        free(stub.buffer);
+        stub.open = 0;
+        return -1;
+    }
+
+    return 0;
+}
+
+static int startStub(void) {
+    __atomic_store_n(&stub.started, 1, __ATOMIC_RELEASE);
+    return 0;
+}
+
+static int stopStub(void) {
+    __atomic_store_n(&stub.started, 0, __ATOMIC_RELEASE);
+    return 0;
+}
+
+static void closeStub(void) {
+
+    if (!stub.open)
+        return;
+
+    pthread_mutex_lock(&stub.lock);
+    stub.open = 0;
+    pthread_mutex_unlock(&stub.lock);
+    pthread_join(stub.thread, NULL);
+    free(stub.buffer);
+}
+
+static int isStubAlive(void) {
+    return __atomic_load_n(&stub.alive, __ATOMIC_ACQUIRE);
+}
+
+static int32_t getStubBufferedFrames(void) {
+    return stub.frames;
+}
+
+static int32_t getStubXRunCount(void) {
+    return stub.xruns;
+}
+
+static int32_t getStubEnqueueFailureCount(void) {
+    return 0;
+}
+
+static const struct audio_sink stub_sink = {
+        "stub",
+        openStub,
+        startStub,
+        stopStub,
+        closeStub,
+        isStubAlive,
+        getStubBufferedFrames,
+        getStubXRunCount,
+        getStubEnqueueFailureCount
+};
+
+/* Make a stereo loop whose frames all differ, so any misplaced frame shows. The samples share the
+ * sign of the seed. */
+static void makeLoop(struct test_array *const loop, const jsize frames, const int seed) {
+
+    jsize i;
+
+    loop->length = (jsize) getNumPcm(frames);
+    loop->shorts = (jshort *) malloc(loop->length * sizeof(jshort));
+    loop->floats = (jfloat *) malloc(loop->length * sizeof(jfloat));
+    if (loop->shorts == NULL || loop->floats == NULL) {
+        fprintf(stderr, "Out of memory\n");
+        exit(EXIT_FAILURE);
+    }
+
+    for (i = 0; i < loop->length; i++) {
+        loop->shorts[i] = (jshort) (seed * (i + 1));
+        loop->floats[i] = (jfloat) loop->shorts[i] * maxFloatLevel / INT16_MAX;
+    }
+}
+
+static void freeLoop(struct test_array *const loop) {
+    free(loop->shorts);
+    free(loop->floats);
+}
+
+// Reset the stub for a test, running freely or pumped
+static void resetStub(const int freeRun, const int acceptFloat) {
+    stub.free_run = freeRun;
+    stub.accept_float = acceptFloat;
+    stub.refused_profile = -1;
+    stub.opens = 0;
+    stub.xruns = 0;
+    stub.captured = 0;
+}
+
+static jboolean playPcm16(JNIEnv *env, struct test_array *const loop, const int immediate) {
+    return Java_com_bbrister_mididriver_PlaybackDriver_E(env, NULL, SAMPLE_RATE, BUFFER_FRAMES,
+                                                         (jshortArray) loop, immediate, JNI_FALSE);
+}
+
+static jboolean playFloat(JNIEnv *env, struct test_array *const loop) {
+    return Java_com_bbrister_mididriver_PlaybackDriver_B(env, NULL, SAMPLE_RATE, BUFFER_FRAMES,
+                                                         (jfloatArray) loop, JNI_FALSE, JNI_TRUE);
+}
+
+/* Check that the captured frames from the given one on repeat the loop, starting from its first
+ * frame. Returns nonzero on a mismatch. */
+static int checkCapture(const char *const test, const size_t start, const size_t frames,
+                        const struct test_array *const loop) {
+
+    const size_t loopFrames = (size_t) loop->length / getNumPcm(1);
+    size_t i;
+
+    if (stub.captured < start + frames) {
+        fprintf(stderr, "%s: captured %zu frames, expected %zu\n", test, stub.captured,
+                start + frames);
+        return -1;
+    }
+
+    for (i = 0; i < getNumPcm(frames); i++) {
+        const jshort expected = loop->shorts[i % getNumPcm(loopFrames)];
+        const output_t actual = stub.capture[getNumPcm(start) + i];
+        if (actual != expected) {
+            fprintf(stderr, "%s: sample %zu is %d, expected %d\n", test, getNumPcm(start) + i,
+                    actual, expected);
+            return -1;
+        }
+    }
+
+    return 0;
+}
+
+// Float recordings play through a 16 bit output if it refuses float, and as float otherwise
+static int testFormatFallback(JNIEnv *env) {
+
+    struct test_array loop;
+    int failed = 0;
+
+    makeLoop(&loop, 100, 1);
+
+    resetStub(0, 0);
+    if (!playFloat(env, &loop) || Java_com_bbrister_mididriver_PlaybackDriver_I(env, NULL) ||
+        stub.opens != 2) {
+        fprintf(stderr, "format fallback: expected 16 bit PCM on the second try, got %s after "
+                        "%d tries\n",
+                Java_com_bbrister_mididriver_PlaybackDriver_I(env, NULL) ? "float" : "PCM",
+                stub.opens);
+        failed = 1;
+    }
+    Java_com_bbrister_mididriver_PlaybackDriver_F(env, NULL);
+
+    resetStub(0, 1);
+    if (!playFloat(env, &loop) || !Java_com_bbrister_mididriver_PlaybackDriver_I(env, NULL)) {
+        fprintf(stderr, "format fallback: expected a float output\n");
+        failed = 1;
+    }
+    Java_com_bbrister_mididriver_PlaybackDriver_F(env, NULL);
+
+    freeLoop(&loop);
+    return failed;
+}
+
+// A loop which doesn't fill whole buffers plays back exactly
+static int testLoop(JNIEnv *env) {
+
+    struct test_array loop;
+    int failed;
+
+    makeLoop(&loop, 100, 1);
+    resetStub(0, 0);
+
+    if (!playPcm16(env, &loop, 0)) {
+        fprintf(stderr, "loop: failed to play\n");
+        freeLoop(&loop);
+        return -1;
+    }
+    pumpStub(10);
+    failed = checkCapture("loop", 0, 10 * BUFFER_FRAMES, &loop);
+    Java_com_bbrister_mididriver_PlaybackDriver_F(env, NULL);
+
+    freeLoop(&loop);
+    return failed;
+}
+
+// A new loop requested mid-beat starts from its top where the old one ends
+static int testBeatSwap(JNIEnv *env) {
+
+    const size_t oldFrames = 300;
+    struct test_array loops[2];
+    int failed = -1;
+
+    makeLoop(&loops[0], (jsize) oldFrames, 1);
+    makeLoop(&loops[1], 200, 2);
+    resetStub(0, 0);
+
+    if (playPcm16(env, &loops[0], 0)) {
+        pumpStub(2);
+        if (playPcm16(env, &loops[1], 0)) {
+            pumpStub(20);
+            failed = checkCapture("beat swap", 0, 2 * BUFFER_FRAMES, &loops[0]) ||
+                     checkCapture("beat swap", oldFrames, 15 * BUFFER_FRAMES - oldFrames,
+                                  &loops[1]);
+        }
+    }
+    if (failed < 0)
+        fprintf(stderr, "beat swap: failed to play\n");
+    Java_com_bbrister_mididriver_PlaybackDriver_F(env, NULL);
+
+    freeLoop(&loops[0]);
+    freeLoop(&loops[1]);
+    return failed;
+}
+
+// Pausing fades out to silence, then stops the output
+static int testPause(JNIEnv *env) {
+
+    struct test_array loop;
+    int failed = 0, faded;
+    size_t i;
+
+    makeLoop(&loop, 100, 1);
+    resetStub(1, 0);
+
+    if (!playPcm16(env, &loop, 0)) {
+        fprintf(stderr, "pause: failed to play\n");
+        freeLoop(&loop);
+        return -1;
+    }
+    sleepMs(20);
+    Java_com_bbrister_mididriver_PlaybackDriver_L(env, NULL);
+    faded = Java_com_bbrister_mididriver_PlaybackDriver_M(env, NULL, TIMEOUT_MS, JNI_FALSE);
+
+    if (faded != 1 || Java_com_bbrister_mididriver_PlaybackDriver_D(env, NULL) ||
+        stub.started) {
+        fprintf(stderr, "pause: expected a full fade and a stopped output, got %d\n", faded);
+        failed = 1;
+    }
+
+    // The last buffer is silent
+    pthread_mutex_lock(&stub.lock);
+    for (i = getNumPcm(stub.captured - BUFFER_FRAMES); i < getNumPcm(stub.captured); i++) {
+        if (stub.capture[i] != 0) {
+            fprintf(stderr, "pause: sample %zu is %d after the fade\n", i, stub.capture[i]);
+            failed = 1;
+            break;
+        }
+    }
+    pthread_mutex_unlock(&stub.lock);
+    Java_com_bbrister_mididriver_PlaybackDriver_F(env, NULL);
+
+    freeLoop(&loop);
+    return failed;
+}
+
+// Polling for the end of the fade, then finishing without waiting, fades out the whole way
+static int testPolledPause(JNIEnv *env) {
+
+    struct test_array loop;
+    double end;
+    int failed = 0, faded;
+
+    makeLoop(&loop, 100, 1);
+    resetStub(1, 0);
+
+    if (!playPcm16(env, &loop, 0)) {
+        fprintf(stderr, "polled pause: failed to play\n");
+        freeLoop(&loop);
+        return -1;
+    }
+    sleepMs(20);
+    Java_com_bbrister_mididriver_PlaybackDriver_L(env, NULL);
+
+    end = nowSeconds() + TIMEOUT_MS / 1000.0;
+    while (!Java_com_bbrister_mididriver_PlaybackDriver_V(env, NULL) && nowSeconds() < end)
+        sleepMs(1);
+    faded = Java_com_bbrister_mididriver_PlaybackDriver_M(env, NULL, 0, JNI_FALSE);
+
+    if (faded != 1 || !Java_com_bbrister_mididriver_PlaybackDriver_V(env, NULL)) {
+        fprintf(stderr, "polled pause: expected a full fade, got %d\n", faded);
+        failed = 1;
+    }
+    Java_com_bbrister_mididriver_PlaybackDriver_F(env, NULL);
+
+    freeLoop(&loop);
+    return failed;
+}
+
+// A pause gives up on an output which died, well before the timeout, and playing again reopens it
+static int testDeadOutput(JNIEnv *env) {
+
+    struct test_array loop;
+    double start, seconds;
+    int failed = 0, faded;
+
+    makeLoop(&loop, 100, 1);
+    resetStub(1, 0);
+
+    if (!playPcm16(env, &loop, 0)) {
+        fprintf(stderr, "dead output: failed to play\n");
+        freeLoop(&loop);
+        return -1;
+    }
+    sleepMs(20);
+    __atomic_store_n(&stub.alive, 0, __ATOMIC_RELEASE);
+
+    start = nowSeconds();
+    Java_com_bbrister_mididriver_PlaybackDriver_L(env, NULL);
+    faded = Java_com_bbrister_mididriver_PlaybackDriver_M(env, NULL, TIMEOUT_MS, JNI_FALSE);
+    seconds = nowSeconds() - start;
+    if (faded != 0 || seconds > TIMEOUT_MS / 2000.0) {
+        fprintf(stderr, "dead output: expected the pause cut short early, got %d after %.0f ms\n",
+                faded, seconds * 1e3);
+        failed = 1;
+    }
+
+    if (!playPcm16(env, &loop, 0) || stub.opens != 2 || !stub.alive) {
+        fprintf(stderr, "dead output: expected a new output, after %d opens\n", stub.opens);
+        failed = 1;
+    }
+    Java_com_bbrister_mididriver_PlaybackDriver_F(env, NULL);
+
+    freeLoop(&loop);
+    return failed;
+}
+
+// A new loop waiting for the beat plays once the output reopens with another latency profile
+/* Check that the captured frames from the given one on repeat the loop, from wherever in the loop
+ * they start. Returns nonzero on a mismatch. */
+static int checkContinues(const char *const test, const size_t start, const size_t frames,
+                          const struct test_array *const loop) {
+
+    const size_t loopFrames = (size_t) loop->length / getNumPcm(1);
+    size_t i, phase;
+
+    if (stub.captured < start + frames) {
+        fprintf(stderr, "%s: captured %zu frames, expected %zu\n", test, stub.captured,
+                start + frames);
+        return -1;
+    }
+
+    // Find where in the loop the capture is, from its first frame, which is unique
+    for (phase = 0; phase < loopFrames; phase++) {
+        if (memcmp(loop->shorts + getNumPcm(phase), stub.capture + getNumPcm(start),
+                   getNumPcm(1) * sizeof(jshort)) == 0)
+            break;
+    }
+    if (phase == loopFrames) {
+        fprintf(stderr, "%s: frame %zu is not in the loop\n", test, start);
+        return -1;
+    }
+
+    for (i = 0; i < getNumPcm(frames); i++) {
+        const jshort expected = loop->shorts[(getNumPcm(phase) + i) % getNumPcm(loopFrames)];
+        const output_t actual = stub.capture[getNumPcm(start) + i];
+        if (actual != expected) {
+            fprintf(stderr, "%s: sample %zu is %d, expected %d\n", test, getNumPcm(start) + i,
+                    actual, expected);
+            return -1;
+        }
+    }
+
+    return 0;
+}
+
+static int testProfileSwap(JNIEnv *env) {
+
+    struct test_array loops[2];
+    int failed = 0;
+    size_t i;
+
+    // The old loop is positive and lasts a while, the new one is negative
+    makeLoop(&loops[0], 4000, 1);
+    makeLoop(&loops[1], 200, -1);
+    resetStub(1, 0);
+
+    if (!playPcm16(env, &loops[0], 0) || !playPcm16(env, &loops[1], 0) ||
+        Java_com_bbrister_mididriver_PlaybackDriver_J(env, NULL, PROFILE_DEEP_BUFFER) != 0) {
+        fprintf(stderr, "profile swap: failed to play\n");
+        failed = -1;
+    }
+    sleepMs(300);
+
+    // The old loop is over, so the last buffer is the new one
+    pthread_mutex_lock(&stub.lock);
+    for (i = getNumPcm(stub.captured - BUFFER_FRAMES); !failed && i < getNumPcm(stub.captured);
+         i++) {
+        if (stub.capture[i] >= 0) {
+            fprintf(stderr, "profile swap: sample %zu is %d, expected the new loop\n", i,
+                    stub.capture[i]);
+            failed = 1;
+        }
+    }
+    pthread_mutex_unlock(&stub.lock);
+    Java_com_bbrister_mididriver_PlaybackDriver_F(env, NULL);
+    Java_com_bbrister_mididriver_PlaybackDriver_J(env, NULL, PROFILE_LOW_LATENCY);
+
+    freeLoop(&loops[0]);
+    freeLoop(&loops[1]);
+    return failed;
+}
+
+/* A profile the device refuses falls back to the old one, which keeps playing the loop from where
+ * it was */
+static int testProfileFallback(JNIEnv *env) {
+
+    struct test_array loop;
+    size_t restart;
+    int failed = 0;
+
+    makeLoop(&loop, 100, 1);
+    resetStub(0, 0);
+
+    if (!playPcm16(env, &loop, 0)) {
+        fprintf(stderr, "profile fallback: failed to play\n");
+        freeLoop(&loop);
+        return -1;
+    }
+    pumpStub(2);
+
+    // The fade out renders on its own while the profile switches
+    stub.refused_profile = PROFILE_BALANCED;
+    __atomic_store_n(&stub.free_run, 1, __ATOMIC_RELEASE);
+    if (Java_com_bbrister_mididriver_PlaybackDriver_J(env, NULL, PROFILE_BALANCED) != 1) {
+        fprintf(stderr, "profile fallback: expected to fall back to the old profile\n");
+        failed = 1;
+    }
+    __atomic_store_n(&stub.free_run, 0, __ATOMIC_RELEASE);
+    if (!failed && (!Java_com_bbrister_mididriver_PlaybackDriver_D(env, NULL) || !stub.open)) {
+        fprintf(stderr, "profile fallback: expected to keep playing\n");
+        failed = 1;
+    }
+
+    // The old profile is kept, so switching to it again is a no-op
+    if (!failed && (Java_com_bbrister_mididriver_PlaybackDriver_J(env, NULL, PROFILE_LOW_LATENCY) ||
+                    stub.opens != 3)) {
+        fprintf(stderr, "profile fallback: expected the old profile, with %d opens\n",
+                stub.opens);
+        failed = 1;
+    }
+
+    // Once the ramp up is over, the loop carries on
+    if (!failed) {
+        pumpStub(2);
+        restart = stub.captured;
+        pumpStub(4);
+        failed = checkContinues("profile fallback", restart, 4 * BUFFER_FRAMES, &loop);
+    }
+
+    Java_com_bbrister_mididriver_PlaybackDriver_F(env, NULL);
+    freeLoop(&loop);
+    return failed;
+}
+
+/* A new loop requested while a crossfade stalls, because the output stopped calling back without
+ * dying, drops the crossfade after a while and starts from the top on a new output */
+static int testStalledSwap(JNIEnv *env) {
+
+    struct test_array loops[3];
+    double start, seconds;
+    size_t restart;
+    int failed = -1;
+
+    makeLoop(&loops[0], 300, 1);
+    makeLoop(&loops[1], 200, 2);
+    makeLoop(&loops[2], 100, 3);
+    resetStub(0, 0);
+
+    // Start the crossfade on the beat, then leave it hanging
+    if (playPcm16(env, &loops[0], 0)) {
+        pumpStub(2);
+        if (playPcm16(env, &loops[1], 0)) {
+            pumpStub(1);
+
+            start = nowSeconds();
+            restart = stub.captured;
+            if (playPcm16(env, &loops[2], 0)) {
+                seconds = nowSeconds() - start;
+                pumpStub(3);
+                failed = checkCapture("stalled swap", restart, 3 * BUFFER_FRAMES, &loops[2]);
+                if (stub.opens != 2 || seconds > 2 * TIMEOUT_MS / 1000.0 + 1) {
+                    fprintf(stderr, "stalled swap: expected a new output in time, got %d "
+                                    "opens after %.0f ms\n", stub.opens, seconds * 1e3);
+                    failed = 1;
+                }
+            }
+        }
+    }
+    if (failed < 0)
+        fprintf(stderr, "stalled swap: failed to play\n");
+    Java_com_bbrister_mididriver_PlaybackDriver_F(env, NULL);
+
+    freeLoop(&loops[0]);
+    freeLoop(&loops[1]);
+    freeLoop(&loops[2]);
+    return failed;
+}
+
+// The output's underruns are reported as is
+static int testUnderruns(JNIEnv *env) {
+
+    struct test_array loop;
+    int failed = 0;
+
+    makeLoop(&loop, 100, 1);
+    resetStub(0, 0);
+
+    if (!playPcm16(env, &loop, 0)) {
+        fprintf(stderr, "underruns: failed to play\n");
+        freeLoop(&loop);
+        return -1;
+    }
+    stub.xruns = 3;
+    if (Java_com_bbrister_mididriver_PlaybackDriver_H(env, NULL) != 3) {
+        fprintf(stderr, "underruns: expected 3, got %d\n",
+                Java_com_bbrister_mididriver_PlaybackDriver_H(env, NULL));
+        failed = 1;
+    }
+    Java_com_bbrister_mididriver_PlaybackDriver_F(env, NULL);
+    if (Java_com_bbrister_mididriver_PlaybackDriver_H(env, NULL) != -1) {
+        fprintf(stderr, "underruns: expected -1 without an output\n");
+        failed = 1;
+    }
+
+    freeLoop(&loop);
+    return failed;
+}
+
+int main(void) {
+
+    static const struct {
+        const char *name;
+        int (*run)(JNIEnv *env);
+    } tests[] = {
+            {"format fallback", testFormatFallback},
+            {"loop", testLoop},
+            {"beat swap", testBeatSwap},
+            {"pause", testPause},
+            {"polled pause", testPolledPause},
+            {"dead output", testDeadOutput},
+            {"profile swap", testProfileSwap},
+            {"profile fallback", testProfileFallback},
+            {"stalled swap", testStalledSwap},
+            {"underruns", testUnderruns}
+    };
+    struct JNINativeInterface_ functions;
+    const struct JNINativeInterface_ *functionsPtr = &functions;
+    JNIEnv *const env = &functionsPtr;
+    int failures = 0;
+    size_t i;
+
+    // Only the array accessors of the JNI environment are used
+    memset(&functions, 0, sizeof(functions));
+    functions.GetArrayLength = getArrayLength;
+    functions.GetShortArrayRegion = getShortArrayRegion;
+    functions.GetFloatArrayRegion = getFloatArrayRegion;
+
+    playback_use_sink(&stub_sink);
+
+    for (i = 0; i < sizeof(tests) / sizeof(tests[0]); i++) {
+        const int failed = tests[i].run(env) != 0;
+        printf("%-24s %s\n", tests[i].name, failed ? "FAILED" : "ok");
+        failures += failed;
+    }
+
+    if (failures > 0) {
+        fprintf(stderr, "%d of %zu tests failed\n", failures, sizeof(tests) / sizeof(tests[0]));
+        return EXIT_FAILURE;
+    }
+
+    printf("OK\n");
+    return EXIT_SUCCESS;
+}
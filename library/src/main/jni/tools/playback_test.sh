@@ -0,0 +1,33 @@
+#!/bin/sh
+#
+# Unit tests of the playback engine on the host. Builds playback.c with the stub audio output of
+# playback_test.c, then checks format fallback, exact loop playback, swaps on the beat, pausing and
+# dead outputs. Exits non-zero if a test fails.
+#
+# Usage: playback_test.sh
+#
+# Needs JAVA_HOME for the JNI headers.
+#
+# Created by: Blaine Rister Oct 19 2026
+
+set -e
+
+CC=${CC:-cc}
+
+if [ -z "$JAVA_HOME" ]; then
+	echo "Set JAVA_HOME to a JDK, for jni.h" >&2
+	exit 1
+fi
+
+TOOLS_DIR=$(cd "$(dirname "$0")" && pwd)
+JNI_DIR=$(dirname "$TOOLS_DIR")
+
+WORK_DIR=$(mktemp -d)
+trap 'rm -rf "$WORK_DIR"' EXIT
+
+$CC -O2 -std=gnu99 -D_GNU_SOURCE -DNDEBUG -I "$JNI_DIR" \
+	-I "$JAVA_HOME/include" -I "$JAVA_HOME/include/linux" \
+	"$JNI_DIR/playback.c" "$JNI_DIR/dither.c" "$JNI_DIR/audio_sink_simulated.c" "$TOOLS_DIR/playback_test.c" \
+	-lpthread -lm -o "$WORK_DIR/playback_test"
+
+"$WORK_DIR/playback_test"